@@ -84,6 +84,8 @@ public class HealthConnectBackupAgent extends BackupAgent {
         for (var file : backupFiles) {
             backupFile(file, data);
         }
+        // The changes backed up are only left out of the next incremental backup from now on.
+        mHealthConnectManager.onBackupDelivered();
 
         deleteBackupFiles();
     }
@@ -19,6 +19,7 @@ package com.android.health.connect.backuprestore;
 import static com.google.common.truth.Truth.assertThat;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -150,6 +151,23 @@ public class HealthConnectBackupAgentTest {
         assertThat(mHealthConnectBackupAgent.mBackedUpFiles).hasSize(2);
     }
 
+    @Test
+    public void testOnFullBackup_notifiesDeliveryAfterBackingUpFiles() throws Exception {
+        createAndGetNonEmptyFile(mBackupDataDirectory, "testFile1");
+        createAndGetNonEmptyFile(mBackupDataDirectory, "testFile2");
+        List<Integer> backedUpFileCounts = new ArrayList<>();
+        doAnswer(
+                        invocation ->
+                                backedUpFileCounts.add(
+                                        mHealthConnectBackupAgent.mBackedUpFiles.size()))
+                .when(mHealthConnectManager)
+                .onBackupDelivered();
+
+        mHealthConnectBackupAgent.onFullBackup(mFullBackupDataOutput);
+
+        assertThat(backedUpFileCounts).containsExactly(2);
+    }
+
     @Test
     public void testOnBackup_doesNotBackUpAnything() throws Exception {
         createAndGetNonEmptyFile(mBackupDataDirectory, "testFile1");
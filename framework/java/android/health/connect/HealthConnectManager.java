@@ -51,6 +51,7 @@ import android.health.connect.aidl.IAccessLogsResponseCallback;
 import android.health.connect.aidl.IActivityDatesResponseCallback;
 import android.health.connect.aidl.IAggregateRecordsResponseCallback;
 import android.health.connect.aidl.IApplicationInfoResponseCallback;
+import android.health.connect.aidl.IChangeLogsListener;
 import android.health.connect.aidl.IChangeLogsResponseCallback;
 import android.health.connect.aidl.IDataStagingFinishedCallback;
 import android.health.connect.aidl.IEmptyResponseCallback;
@@ -88,6 +89,7 @@ import android.os.Binder;
 import android.os.OutcomeReceiver;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import java.lang.annotation.Retention;
@@ -297,6 +299,7 @@ public class HealthConnectManager {
     private final Context mContext;
     private final IHealthConnectService mService;
     private final InternalExternalRecordConverter mInternalExternalRecordConverter;
+    private final Map<Runnable, IChangeLogsListener.Stub> mChangeLogsListeners = new ArrayMap<>();
 
     /** @hide */
     HealthConnectManager(@NonNull Context context, @NonNull IHealthConnectService service) {
@@ -854,6 +857,94 @@ public class HealthConnectManager {
         }
     }
 
+    /**
+     * Registers {@code listener} to be run when change logs matching the filters of {@code token}
+     * are available, instead of polling {@link HealthConnectManager#getChangeLogs}. Changes
+     * committed in a burst are signalled once, and the changes are read with {@link
+     * HealthConnectManager#getChangeLogs} using the latest token of the caller.
+     *
+     * <p>The listener is unregistered when the calling process dies.
+     *
+     * @param token The token from {@link HealthConnectManager#getChangeLogToken}.
+     * @param executor Executor on which to run the listener and invoke the callback.
+     * @param listener Listener to run when change logs are available.
+     * @param callback Callback to receive result of performing this operation.
+     * @hide
+     */
+    public void registerChangeLogsListener(
+            @NonNull String token,
+            @NonNull @CallbackExecutor Executor executor,
+            @NonNull Runnable listener,
+            @NonNull OutcomeReceiver<Void, HealthConnectException> callback) {
+        Objects.requireNonNull(token);
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(listener);
+        Objects.requireNonNull(callback);
+
+        IChangeLogsListener.Stub changeLogsListener;
+        synchronized (mChangeLogsListeners) {
+            changeLogsListener = mChangeLogsListeners.get(listener);
+            if (changeLogsListener == null) {
+                changeLogsListener =
+                        new IChangeLogsListener.Stub() {
+                            @Override
+                            public void onChangeLogsAvailable() {
+                                Binder.clearCallingIdentity();
+                                executor.execute(listener);
+                            }
+                        };
+                mChangeLogsListeners.put(listener, changeLogsListener);
+            }
+        }
+
+        try {
+            mService.registerChangeLogsListener(
+                    mContext.getAttributionSource(),
+                    token,
+                    changeLogsListener,
+                    new IEmptyResponseCallback.Stub() {
+                        @Override
+                        public void onResult() {
+                            Binder.clearCallingIdentity();
+                            executor.execute(() -> callback.onResult(null));
+                        }
+
+                        @Override
+                        public void onError(HealthConnectExceptionParcel exception) {
+                            returnError(executor, exception, callback);
+                        }
+                    });
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
+    /**
+     * Unregisters a listener registered with {@link
+     * HealthConnectManager#registerChangeLogsListener}.
+     *
+     * @param listener Listener passed to {@link HealthConnectManager#registerChangeLogsListener}.
+     * @hide
+     */
+    public void unregisterChangeLogsListener(@NonNull Runnable listener) {
+        Objects.requireNonNull(listener);
+
+        IChangeLogsListener.Stub changeLogsListener;
+        synchronized (mChangeLogsListeners) {
+            changeLogsListener = mChangeLogsListeners.remove(listener);
+        }
+        if (changeLogsListener == null) {
+            return;
+        }
+
+        try {
+            mService.unregisterChangeLogsListener(
+                    mContext.getAttributionSource(), changeLogsListener);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     /**
      * Fetch the data priority order of the contributing {@link DataOrigin} for {@code
      * dataCategory}.
@@ -1311,6 +1402,20 @@ public class HealthConnectManager {
         }
     }
 
+    /**
+     * Notifies HealthConnect that the data shared by the last {@link #getAllDataForBackup} call
+     * was backed up, so that the next incremental backup only holds the changes made since.
+     *
+     * @hide
+     */
+    public void onBackupDelivered() {
+        try {
+            mService.onBackupDelivered();
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     /**
      * Deletes all previously staged HealthConnect data from the disk. For testing purposes only.
      *
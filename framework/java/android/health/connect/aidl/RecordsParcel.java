@@ -24,15 +24,23 @@ import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.internal.datatypes.utils.ParcelRecordConverter;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.ArrayMap;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A wrapper to carry a list of entries of type {@link RecordInternal} from and to {@link
  * HealthConnectManager}
  *
+ * <p>Records are written in a dictionary-encoded format: the package name, app name, manufacturer
+ * and model, which records of a same app and device share, are written once in a string table and
+ * referenced by index, and uuids are written as two longs. The legacy format, where every record
+ * carries its own strings, starts with the number of records and is still accepted. Newer formats
+ * start with their version, written as a negative number.
+ *
  * @hide
  */
 public class RecordsParcel implements Parcelable {
@@ -50,6 +58,8 @@ public class RecordsParcel implements Parcelable {
                 }
             };
 
+    private static final int FORMAT_VERSION_DICTIONARY_ENCODED = 1;
+
     private final List<RecordInternal<?>> mRecordInternals;
     private long mRecordsChunkSize;
     private List<Long> mRecordsSize;
@@ -60,18 +70,48 @@ public class RecordsParcel implements Parcelable {
 
     private RecordsParcel(@NonNull Parcel in) {
         in = ParcelUtils.getParcelForSharedMemoryIfRequired(in);
+        mRecordsChunkSize = in.dataAvail();
         int size = in.readInt();
+        List<String> strings = null;
+        Map<String, Long> stringSizes = null;
+        if (size < 0) {
+            if (size != -FORMAT_VERSION_DICTIONARY_ENCODED) {
+                throw new IllegalArgumentException("Unsupported records format: " + -size);
+            }
+            int stringCount = in.readInt();
+            strings = new ArrayList<>(stringCount);
+            stringSizes = new ArrayMap<>(stringCount);
+            for (int i = 0; i < stringCount; i++) {
+                long availableBeforeString = in.dataAvail();
+                String string = in.readString();
+                strings.add(string);
+                stringSizes.put(string, availableBeforeString - in.dataAvail());
+            }
+            size = in.readInt();
+        }
         mRecordInternals = new ArrayList<>(size);
         mRecordsSize = new ArrayList<>(size);
+        Map<String, Integer> recordStrings = new ArrayMap<>();
         long remainingParcelSize = in.dataAvail();
-        mRecordsChunkSize = remainingParcelSize;
         for (int i = 0; i < size; i++) {
             int identifier = in.readInt();
             try {
-                mRecordInternals.add(ParcelRecordConverter.getInstance().getRecord(in, identifier));
+                RecordInternal<?> recordInternal =
+                        ParcelRecordConverter.getInstance().getRecord(in, identifier, strings);
+                mRecordInternals.add(recordInternal);
                 // Calculating record size based on before and after values of parcel size.
-                mRecordsSize.add(remainingParcelSize - in.dataAvail());
+                long recordSize = remainingParcelSize - in.dataAvail();
                 remainingParcelSize = in.dataAvail();
+                if (stringSizes != null) {
+                    // Each record is charged for the shared strings it references, as it would be
+                    // if it carried them itself, so that sharing them doesn't lift the limits.
+                    recordStrings.clear();
+                    recordInternal.addSharedStringsTo(recordStrings);
+                    for (String string : recordStrings.keySet()) {
+                        recordSize += stringSizes.get(string);
+                    }
+                }
+                mRecordsSize.add(recordSize);
             } catch (InstantiationException
                      | IllegalAccessException
                      | NoSuchMethodException
@@ -97,7 +137,8 @@ public class RecordsParcel implements Parcelable {
     }
 
     /**
-     * @return a list containing size of the individual records. Used for memory rate limiting.
+     * @return a list containing size of the individual records, including the shared strings they
+     *     reference. Used for memory rate limiting.
      */
     @Nullable
     public List<Long> getRecordsSize() {
@@ -112,10 +153,25 @@ public class RecordsParcel implements Parcelable {
     }
 
     private void writeToParcelInternal(@NonNull Parcel dest) {
+        Map<String, Integer> stringIndexes = new ArrayMap<>();
+        for (RecordInternal<?> recordInternal : mRecordInternals) {
+            recordInternal.addSharedStringsTo(stringIndexes);
+        }
+        String[] strings = new String[stringIndexes.size()];
+        for (Map.Entry<String, Integer> entry : stringIndexes.entrySet()) {
+            strings[entry.getValue()] = entry.getKey();
+        }
+
+        dest.writeInt(-FORMAT_VERSION_DICTIONARY_ENCODED);
+        // Written one by one, so that the reader can measure each of them.
+        dest.writeInt(strings.length);
+        for (String string : strings) {
+            dest.writeString(string);
+        }
         dest.writeInt(mRecordInternals.size());
         for (RecordInternal<?> recordInternal : mRecordInternals) {
             dest.writeInt(recordInternal.getRecordType());
-            recordInternal.writeToParcel(dest);
+            recordInternal.writeToParcel(dest, stringIndexes);
         }
     }
 }
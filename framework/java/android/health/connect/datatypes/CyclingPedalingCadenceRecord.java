@@ -21,10 +21,8 @@ import android.health.connect.internal.datatypes.CyclingPedalingCadenceRecordInt
 
 import java.time.Instant;
 import java.time.ZoneOffset;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
-import java.util.Set;
 
 /** Captures the user's cycling pedaling cadence. */
 @Identifier(recordIdentifier = RecordTypeIdentifier.RECORD_TYPE_CYCLING_PEDALING_CADENCE)
@@ -292,17 +290,14 @@ public final class CyclingPedalingCadenceRecord extends IntervalRecord {
                                 .setModel(getMetadata().getDevice().getModel())
                                 .setDeviceType(getMetadata().getDevice().getType())
                                 .setRecordingMethod(getMetadata().getRecordingMethod());
-        Set<CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample> samples =
-                new HashSet<>(getSamples().size());
-
+        recordInternal.ensureSampleCapacity(getSamples().size());
         for (CyclingPedalingCadenceRecord.CyclingPedalingCadenceRecordSample
                 cyclingPedalingCadenceRecordSample : getSamples()) {
-            samples.add(
-                    new CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample(
-                            cyclingPedalingCadenceRecordSample.getRevolutionsPerMinute(),
-                            cyclingPedalingCadenceRecordSample.getTime().toEpochMilli()));
+            recordInternal.addSample(
+                    cyclingPedalingCadenceRecordSample.getTime().toEpochMilli(),
+                    cyclingPedalingCadenceRecordSample.getRevolutionsPerMinute());
         }
-        recordInternal.setSamples(samples);
+        recordInternal.compactSamples();
         recordInternal.setStartTime(getStartTime().toEpochMilli());
         recordInternal.setEndTime(getEndTime().toEpochMilli());
         recordInternal.setStartZoneOffset(getStartZoneOffset().getTotalSeconds());
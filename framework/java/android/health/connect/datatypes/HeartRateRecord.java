@@ -25,10 +25,8 @@ import android.health.connect.internal.datatypes.HeartRateRecordInternal;
 
 import java.time.Instant;
 import java.time.ZoneOffset;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
-import java.util.Set;
 
 /** Captures the user's heart rate. Each record represents a series of measurements. */
 @Identifier(recordIdentifier = RecordTypeIdentifier.RECORD_TYPE_HEART_RATE)
@@ -339,15 +337,13 @@ public final class HeartRateRecord extends IntervalRecord {
                                 .setModel(getMetadata().getDevice().getModel())
                                 .setDeviceType(getMetadata().getDevice().getType())
                                 .setRecordingMethod(getMetadata().getRecordingMethod());
-        Set<HeartRateRecordInternal.HeartRateSample> samples = new HashSet<>(getSamples().size());
-
+        recordInternal.ensureSampleCapacity(getSamples().size());
         for (HeartRateRecord.HeartRateSample heartRateSample : getSamples()) {
-            samples.add(
-                    new HeartRateRecordInternal.HeartRateSample(
-                            (int) heartRateSample.getBeatsPerMinute(),
-                            heartRateSample.getTime().toEpochMilli()));
+            recordInternal.addSample(
+                    heartRateSample.getTime().toEpochMilli(),
+                    (int) heartRateSample.getBeatsPerMinute());
         }
-        recordInternal.setSamples(samples);
+        recordInternal.compactSamples();
         recordInternal.setStartTime(getStartTime().toEpochMilli());
         recordInternal.setEndTime(getEndTime().toEpochMilli());
         recordInternal.setStartZoneOffset(getStartZoneOffset().getTotalSeconds());
@@ -25,10 +25,8 @@ import android.health.connect.internal.datatypes.PowerRecordInternal;
 
 import java.time.Instant;
 import java.time.ZoneOffset;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
-import java.util.Set;
 
 /** Captures the power generated by the user, e.g. during cycling or rowing with a power meter. */
 @Identifier(recordIdentifier = RECORD_TYPE_POWER)
@@ -320,15 +318,13 @@ public final class PowerRecord extends IntervalRecord {
                                 .setModel(getMetadata().getDevice().getModel())
                                 .setDeviceType(getMetadata().getDevice().getType())
                                 .setRecordingMethod(getMetadata().getRecordingMethod());
-        Set<PowerRecordInternal.PowerRecordSample> samples = new HashSet<>(getSamples().size());
-
+        recordInternal.ensureSampleCapacity(getSamples().size());
         for (PowerRecord.PowerRecordSample powerRecordSample : getSamples()) {
-            samples.add(
-                    new PowerRecordInternal.PowerRecordSample(
-                            powerRecordSample.getPower().getInWatts(),
-                            powerRecordSample.getTime().toEpochMilli()));
+            recordInternal.addSample(
+                    powerRecordSample.getTime().toEpochMilli(),
+                    powerRecordSample.getPower().getInWatts());
         }
-        recordInternal.setSamples(samples);
+        recordInternal.compactSamples();
         recordInternal.setStartTime(getStartTime().toEpochMilli());
         recordInternal.setEndTime(getEndTime().toEpochMilli());
         recordInternal.setStartZoneOffset(getStartZoneOffset().getTotalSeconds());
@@ -22,10 +22,8 @@ import android.health.connect.internal.datatypes.SpeedRecordInternal;
 
 import java.time.Instant;
 import java.time.ZoneOffset;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
-import java.util.Set;
 
 /** Captures the user's speed, e.g. during running or cycling. */
 @Identifier(recordIdentifier = RecordTypeIdentifier.RECORD_TYPE_SPEED)
@@ -288,15 +286,13 @@ public final class SpeedRecord extends IntervalRecord {
                                 .setModel(getMetadata().getDevice().getModel())
                                 .setDeviceType(getMetadata().getDevice().getType())
                                 .setRecordingMethod(getMetadata().getRecordingMethod());
-        Set<SpeedRecordInternal.SpeedRecordSample> samples = new HashSet<>(getSamples().size());
-
+        recordInternal.ensureSampleCapacity(getSamples().size());
         for (SpeedRecord.SpeedRecordSample speedRecordSample : getSamples()) {
-            samples.add(
-                    new SpeedRecordInternal.SpeedRecordSample(
-                            speedRecordSample.getSpeed().getInMetersPerSecond(),
-                            speedRecordSample.getTime().toEpochMilli()));
+            recordInternal.addSample(
+                    speedRecordSample.getTime().toEpochMilli(),
+                    speedRecordSample.getSpeed().getInMetersPerSecond());
         }
-        recordInternal.setSamples(samples);
+        recordInternal.compactSamples();
         recordInternal.setStartTime(getStartTime().toEpochMilli());
         recordInternal.setEndTime(getEndTime().toEpochMilli());
         recordInternal.setStartZoneOffset(getStartZoneOffset().getTotalSeconds());
@@ -21,10 +21,8 @@ import android.health.connect.internal.datatypes.StepsCadenceRecordInternal;
 
 import java.time.Instant;
 import java.time.ZoneOffset;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
-import java.util.Set;
 
 /** Captures the user's steps cadence. */
 @Identifier(recordIdentifier = RecordTypeIdentifier.RECORD_TYPE_STEPS_CADENCE)
@@ -282,16 +280,13 @@ public final class StepsCadenceRecord extends IntervalRecord {
                                 .setModel(getMetadata().getDevice().getModel())
                                 .setDeviceType(getMetadata().getDevice().getType())
                                 .setRecordingMethod(getMetadata().getRecordingMethod());
-        Set<StepsCadenceRecordInternal.StepsCadenceRecordSample> samples =
-                new HashSet<>(getSamples().size());
-
+        recordInternal.ensureSampleCapacity(getSamples().size());
         for (StepsCadenceRecord.StepsCadenceRecordSample stepsCadenceRecordSample : getSamples()) {
-            samples.add(
-                    new StepsCadenceRecordInternal.StepsCadenceRecordSample(
-                            stepsCadenceRecordSample.getRate(),
-                            stepsCadenceRecordSample.getTime().toEpochMilli()));
+            recordInternal.addSample(
+                    stepsCadenceRecordSample.getTime().toEpochMilli(),
+                    stepsCadenceRecordSample.getRate());
         }
-        recordInternal.setSamples(samples);
+        recordInternal.compactSamples();
         recordInternal.setStartTime(getStartTime().toEpochMilli());
         recordInternal.setEndTime(getEndTime().toEpochMilli());
         recordInternal.setStartZoneOffset(getStartZoneOffset().getTotalSeconds());
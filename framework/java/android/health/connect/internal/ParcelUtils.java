@@ -21,6 +21,7 @@ import android.os.IBinder;
 import android.os.Parcel;
 import android.os.SharedMemory;
 import android.system.ErrnoException;
+import android.system.OsConstants;
 
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -45,9 +46,13 @@ public final class ParcelUtils {
             try (SharedMemory memory = SharedMemory.CREATOR.createFromParcel(in)) {
                 Parcel dataParcel = Parcel.obtain();
                 ByteBuffer buffer = memory.mapReadOnly();
-                byte[] payload = new byte[buffer.limit()];
-                buffer.get(payload);
-                dataParcel.unmarshall(payload, 0, payload.length);
+                try {
+                    byte[] payload = new byte[buffer.limit()];
+                    buffer.get(payload);
+                    dataParcel.unmarshall(payload, 0, payload.length);
+                } finally {
+                    SharedMemory.unmap(buffer);
+                }
                 dataParcel.setDataPosition(0);
                 return dataParcel;
             } catch (ErrnoException e) {
@@ -62,8 +67,14 @@ public final class ParcelUtils {
             SharedMemory sharedMemory =
                     SharedMemory.create("RecordsParcelSharedMemory", dataParcelSize);
             ByteBuffer buffer = sharedMemory.mapReadWrite();
-            byte[] data = dataParcel.marshall();
-            buffer.put(data, 0, dataParcelSize);
+            try {
+                byte[] data = dataParcel.marshall();
+                buffer.put(data, 0, dataParcelSize);
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+            // The receiver only ever reads the payload.
+            sharedMemory.setProtect(OsConstants.PROT_READ);
             return sharedMemory;
         } catch (ErrnoException e) {
             throw new RuntimeException(e);
@@ -73,6 +84,10 @@ public final class ParcelUtils {
     /**
      * Determines which memory to use and puts the {@code parcel} in it, and details of it in {@code
      * dest}
+     *
+     * <p>The payload is serialized once into a separate parcel, which measures it. Payloads larger
+     * than {@link #IPC_PARCEL_LIMIT} are marshalled from there straight into shared memory, so
+     * {@code dest} never grows by the payload. Smaller ones are appended to {@code dest}.
      */
     public static void putToRequiredMemory(
             Parcel dest, int flags, IPutToParcelRunnable parcelRunnable) {
@@ -81,16 +96,20 @@ public final class ParcelUtils {
             parcelRunnable.writeToParcel(dataParcel);
             final int dataParcelSize = dataParcel.dataSize();
             if (dataParcelSize > IPC_PARCEL_LIMIT) {
-                SharedMemory sharedMemory =
-                        ParcelUtils.getSharedMemoryForParcel(dataParcel, dataParcelSize);
-                dest.writeInt(USING_SHARED_MEMORY);
-                sharedMemory.writeToParcel(dest, flags);
+                writeSharedMemory(dest, flags, dataParcel, dataParcelSize);
             } else {
                 dest.writeInt(USING_PARCEL);
-                parcelRunnable.writeToParcel(dest);
+                dest.appendFrom(dataParcel, 0, dataParcelSize);
             }
         } finally {
             dataParcel.recycle();
         }
     }
+
+    private static void writeSharedMemory(
+            Parcel dest, int flags, Parcel dataParcel, int dataParcelSize) {
+        SharedMemory sharedMemory = getSharedMemoryForParcel(dataParcel, dataParcelSize);
+        dest.writeInt(USING_SHARED_MEMORY);
+        sharedMemory.writeToParcel(dest, flags);
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.health.connect.internal.datatypes;
+
+import android.annotation.NonNull;
+import android.health.connect.datatypes.IntervalRecord;
+import android.os.Parcel;
+
+import java.util.Arrays;
+
+/**
+ * Parent class for the Series type records whose sample values are doubles, e.g. speed or power.
+ *
+ * @hide
+ */
+public abstract class DoubleSeriesRecordInternal<T extends IntervalRecord, U>
+        extends SeriesRecordInternal<T, U> {
+    private static final double[] EMPTY_VALUES = new double[0];
+
+    private double[] mSampleValues = EMPTY_VALUES;
+
+    /**
+     * Returns the value of the sample at {@code index}, which must be lower than {@link
+     * #getSampleCount()}.
+     */
+    public final double getSampleValue(int index) {
+        return mSampleValues[index];
+    }
+
+    /** Adds a sample of {@code value} at {@code epochMillis}. */
+    @NonNull
+    public final DoubleSeriesRecordInternal<T, U> addSample(long epochMillis, double value) {
+        mSampleValues[addSampleEpochMillis(epochMillis)] = value;
+        return this;
+    }
+
+    @Override
+    final void populateIntervalRecordFrom(@NonNull Parcel parcel) {
+        int size = parcel.readInt();
+        clearSamples();
+        ensureSampleCapacity(size);
+        for (int i = 0; i < size; i++) {
+            double value = parcel.readDouble();
+            addSample(parcel.readLong(), value);
+        }
+        compactSamples();
+    }
+
+    @Override
+    final void populateIntervalRecordTo(@NonNull Parcel parcel) {
+        int size = getSampleCount();
+        parcel.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            parcel.writeDouble(mSampleValues[i]);
+            parcel.writeLong(getSampleEpochMillis(i));
+        }
+    }
+
+    @Override
+    final void resizeSampleValues(int capacity) {
+        mSampleValues = Arrays.copyOf(mSampleValues, capacity);
+    }
+
+    @Override
+    final int compareSampleValues(int index1, int index2) {
+        return Double.compare(mSampleValues[index1], mSampleValues[index2]);
+    }
+
+    @Override
+    final void swapSampleValues(int index1, int index2) {
+        double value = mSampleValues[index1];
+        mSampleValues[index1] = mSampleValues[index2];
+        mSampleValues[index2] = value;
+    }
+
+    @Override
+    final void copySampleValue(int fromIndex, int toIndex) {
+        mSampleValues[toIndex] = mSampleValues[fromIndex];
+    }
+}
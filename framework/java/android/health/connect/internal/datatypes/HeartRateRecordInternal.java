@@ -17,7 +17,6 @@
 package android.health.connect.internal.datatypes;
 
 import android.annotation.NonNull;
-import android.annotation.Nullable;
 import android.health.connect.datatypes.HeartRateRecord;
 import android.health.connect.datatypes.Identifier;
 import android.health.connect.datatypes.RecordTypeIdentifier;
@@ -25,10 +24,8 @@ import android.os.Parcel;
 
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Objects;
-import java.util.Set;
 
 /**
  * @see HeartRateRecord
@@ -37,50 +34,22 @@ import java.util.Set;
 @Identifier(recordIdentifier = RecordTypeIdentifier.RECORD_TYPE_HEART_RATE)
 public class HeartRateRecordInternal
         extends SeriesRecordInternal<HeartRateRecord, HeartRateRecord.HeartRateSample> {
-    public static final class HeartRateSample implements Sample {
-        private final int mBeatsPerMinute;
-        private final long mEpochMillis;
+    private static final int[] EMPTY_BEATS_PER_MINUTE = new int[0];
 
-        public HeartRateSample(int beatsPerMinute, long epochMillis) {
-            mBeatsPerMinute = beatsPerMinute;
-            mEpochMillis = epochMillis;
-        }
-
-        public int getBeatsPerMinute() {
-            return mBeatsPerMinute;
-        }
-
-        public long getEpochMillis() {
-            return mEpochMillis;
-        }
-
-        @Override
-        public boolean equals(@NonNull Object object) {
-            if (super.equals(object) && object instanceof HeartRateRecordInternal.HeartRateSample) {
-                HeartRateRecordInternal.HeartRateSample other =
-                        (HeartRateRecordInternal.HeartRateSample) object;
-                return getEpochMillis() == other.getEpochMillis();
-            }
-            return false;
-        }
+    private int[] mBeatsPerMinute = EMPTY_BEATS_PER_MINUTE;
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(getEpochMillis());
-        }
+    /**
+     * Returns the beats per minute of the sample at {@code index}, which must be lower than {@link
+     * #getSampleCount()}.
+     */
+    public int getSampleBeatsPerMinute(int index) {
+        return mBeatsPerMinute[index];
     }
 
-    private Set<HeartRateSample> mHeartRateHeartRateSamples;
-
-    @Override
-    @Nullable
-    public Set<HeartRateSample> getSamples() {
-        return mHeartRateHeartRateSamples;
-    }
-
-    @Override
-    public HeartRateRecordInternal setSamples(Set<? extends Sample> samples) {
-        this.mHeartRateHeartRateSamples = (Set<HeartRateSample>) samples;
+    /** Adds a sample of {@code beatsPerMinute} at {@code epochMillis}. */
+    @NonNull
+    public HeartRateRecordInternal addSample(long epochMillis, int beatsPerMinute) {
+        mBeatsPerMinute[addSampleEpochMillis(epochMillis)] = beatsPerMinute;
         return this;
     }
 
@@ -97,31 +66,56 @@ public class HeartRateRecordInternal
     @Override
     void populateIntervalRecordFrom(@NonNull Parcel parcel) {
         int size = parcel.readInt();
-        mHeartRateHeartRateSamples = new HashSet<>(size);
+        clearSamples();
+        ensureSampleCapacity(size);
         for (int i = 0; i < size; i++) {
-            mHeartRateHeartRateSamples.add(
-                    new HeartRateSample(parcel.readInt(), parcel.readLong()));
+            int beatsPerMinute = parcel.readInt();
+            addSample(parcel.readLong(), beatsPerMinute);
         }
+        compactSamples();
     }
 
     @Override
     void populateIntervalRecordTo(@NonNull Parcel parcel) {
-        parcel.writeInt(mHeartRateHeartRateSamples.size());
-        for (HeartRateSample heartRateSample : mHeartRateHeartRateSamples) {
-            parcel.writeInt(heartRateSample.getBeatsPerMinute());
-            parcel.writeLong(heartRateSample.getEpochMillis());
+        int size = getSampleCount();
+        parcel.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            parcel.writeInt(mBeatsPerMinute[i]);
+            parcel.writeLong(getSampleEpochMillis(i));
         }
     }
 
+    @Override
+    void resizeSampleValues(int capacity) {
+        mBeatsPerMinute = Arrays.copyOf(mBeatsPerMinute, capacity);
+    }
+
+    @Override
+    int compareSampleValues(int index1, int index2) {
+        return Integer.compare(mBeatsPerMinute[index1], mBeatsPerMinute[index2]);
+    }
+
+    @Override
+    void swapSampleValues(int index1, int index2) {
+        int beatsPerMinute = mBeatsPerMinute[index1];
+        mBeatsPerMinute[index1] = mBeatsPerMinute[index2];
+        mBeatsPerMinute[index2] = beatsPerMinute;
+    }
+
+    @Override
+    void copySampleValue(int fromIndex, int toIndex) {
+        mBeatsPerMinute[toIndex] = mBeatsPerMinute[fromIndex];
+    }
+
     private List<HeartRateRecord.HeartRateSample> getExternalSamples() {
-        List<HeartRateRecord.HeartRateSample> heartRateRecords =
-                new ArrayList<>(mHeartRateHeartRateSamples.size());
+        int size = getSampleCount();
+        List<HeartRateRecord.HeartRateSample> heartRateRecords = new ArrayList<>(size);
 
-        for (HeartRateSample heartRateSample : mHeartRateHeartRateSamples) {
+        for (int i = 0; i < size; i++) {
             heartRateRecords.add(
                     new HeartRateRecord.HeartRateSample(
-                            heartRateSample.getBeatsPerMinute(),
-                            Instant.ofEpochMilli(heartRateSample.getEpochMillis()),
+                            mBeatsPerMinute[i],
+                            Instant.ofEpochMilli(getSampleEpochMillis(i)),
                             true));
         }
 
@@ -21,14 +21,10 @@ import android.health.connect.datatypes.Identifier;
 import android.health.connect.datatypes.PowerRecord;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.datatypes.units.Power;
-import android.os.Parcel;
 
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
-import java.util.Set;
 
 /**
  * @see PowerRecord
@@ -36,32 +32,7 @@ import java.util.Set;
  */
 @Identifier(recordIdentifier = RecordTypeIdentifier.RECORD_TYPE_POWER)
 public class PowerRecordInternal
-        extends SeriesRecordInternal<PowerRecord, PowerRecord.PowerRecordSample> {
-    private Set<PowerRecordSample> mPowerRecordSamples;
-
-    @Override
-    void populateIntervalRecordFrom(@NonNull Parcel parcel) {
-        int size = parcel.readInt();
-        mPowerRecordSamples = new HashSet<>(size);
-        for (int i = 0; i < size; i++) {
-            mPowerRecordSamples.add(new PowerRecordSample(parcel.readDouble(), parcel.readLong()));
-        }
-    }
-
-    @Override
-    @NonNull
-    public Set<PowerRecordSample> getSamples() {
-        return mPowerRecordSamples;
-    }
-
-    @NonNull
-    @Override
-    public PowerRecordInternal setSamples(Set<? extends Sample> samples) {
-        Objects.requireNonNull(samples);
-        this.mPowerRecordSamples = (Set<PowerRecordSample>) samples;
-        return this;
-    }
-
+        extends DoubleSeriesRecordInternal<PowerRecord, PowerRecord.PowerRecordSample> {
     @Override
     @NonNull
     public PowerRecord toExternalRecord() {
@@ -72,61 +43,16 @@ public class PowerRecordInternal
                 .buildWithoutValidation();
     }
 
-    @Override
-    void populateIntervalRecordTo(@NonNull Parcel parcel) {
-        parcel.writeInt(mPowerRecordSamples.size());
-        for (PowerRecordSample powerRecordSample : mPowerRecordSamples) {
-            parcel.writeDouble(powerRecordSample.getPower());
-            parcel.writeLong(powerRecordSample.getEpochMillis());
-        }
-    }
-
     private List<PowerRecord.PowerRecordSample> getExternalSamples() {
-        List<PowerRecord.PowerRecordSample> powerRecords =
-                new ArrayList<>(mPowerRecordSamples.size());
-        for (PowerRecordSample powerRecordSample : mPowerRecordSamples) {
+        int size = getSampleCount();
+        List<PowerRecord.PowerRecordSample> powerRecords = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
             powerRecords.add(
                     new PowerRecord.PowerRecordSample(
-                            Power.fromWatts(powerRecordSample.getPower()),
-                            Instant.ofEpochMilli(powerRecordSample.getEpochMillis()),
+                            Power.fromWatts(getSampleValue(i)),
+                            Instant.ofEpochMilli(getSampleEpochMillis(i)),
                             true));
         }
         return powerRecords;
     }
-
-    /**
-     * @see PowerRecord.PowerRecordSample
-     */
-    public static final class PowerRecordSample implements Sample {
-        private final double mPower;
-        private final long mEpochMillis;
-
-        public PowerRecordSample(double power, long epochMillis) {
-            mPower = power;
-            mEpochMillis = epochMillis;
-        }
-
-        public double getPower() {
-            return mPower;
-        }
-
-        public long getEpochMillis() {
-            return mEpochMillis;
-        }
-
-        @Override
-        public boolean equals(@NonNull Object object) {
-            if (super.equals(object) && object instanceof PowerRecordInternal.PowerRecordSample) {
-                PowerRecordInternal.PowerRecordSample other =
-                        (PowerRecordInternal.PowerRecordSample) object;
-                return getEpochMillis() == other.getEpochMillis();
-            }
-            return false;
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(getEpochMillis());
-        }
-    }
 }
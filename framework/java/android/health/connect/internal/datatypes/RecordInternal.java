@@ -31,6 +31,8 @@ import android.os.Parcel;
 
 import java.time.Instant;
 import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 
@@ -109,6 +111,63 @@ public abstract class RecordInternal<T extends Record> {
         populateRecordTo(parcel);
     }
 
+    /**
+     * Same as {@link #populateUsing(Parcel)}, but for the dictionary-encoded format written by
+     * {@link #writeToParcel(Parcel, Map)}, where the strings shared by records are read from {@code
+     * strings}.
+     */
+    public final void populateUsing(@NonNull Parcel parcel, @NonNull List<String> strings) {
+        if (parcel.readBoolean()) {
+            mUuid = new UUID(parcel.readLong(), parcel.readLong());
+        }
+        mPackageName = readIndexedString(parcel, strings);
+        mAppName = readIndexedString(parcel, strings);
+        mLastModifiedTime = parcel.readLong();
+        mClientRecordId = parcel.readString();
+        mClientRecordVersion = parcel.readLong();
+        mManufacturer = readIndexedString(parcel, strings);
+        mModel = readIndexedString(parcel, strings);
+        mDeviceType = parcel.readInt();
+        mRecordingMethod = parcel.readInt();
+
+        populateRecordFrom(parcel);
+    }
+
+    /**
+     * Adds the strings that records of a same app and device usually share, i.e. the package name,
+     * app name, manufacturer and model, to {@code stringIndexes}, each mapped to its index.
+     */
+    public final void addSharedStringsTo(@NonNull Map<String, Integer> stringIndexes) {
+        addIndexedString(stringIndexes, mPackageName);
+        addIndexedString(stringIndexes, mAppName);
+        addIndexedString(stringIndexes, mManufacturer);
+        addIndexedString(stringIndexes, mModel);
+    }
+
+    /**
+     * Same as {@link #writeToParcel(Parcel)}, but writes the uuid as two longs and the shared
+     * strings as their index in {@code stringIndexes}, see {@link #addSharedStringsTo(Map)}.
+     */
+    public final void writeToParcel(
+            @NonNull Parcel parcel, @NonNull Map<String, Integer> stringIndexes) {
+        parcel.writeBoolean(mUuid != null);
+        if (mUuid != null) {
+            parcel.writeLong(mUuid.getMostSignificantBits());
+            parcel.writeLong(mUuid.getLeastSignificantBits());
+        }
+        writeIndexedString(parcel, stringIndexes, mPackageName);
+        writeIndexedString(parcel, stringIndexes, mAppName);
+        parcel.writeLong(mLastModifiedTime);
+        parcel.writeString(mClientRecordId);
+        parcel.writeLong(mClientRecordVersion);
+        writeIndexedString(parcel, stringIndexes, mManufacturer);
+        writeIndexedString(parcel, stringIndexes, mModel);
+        parcel.writeInt(mDeviceType);
+        parcel.writeInt(mRecordingMethod);
+
+        populateRecordTo(parcel);
+    }
+
     @Nullable
     public UUID getUuid() {
         return mUuid;
@@ -293,6 +352,26 @@ public abstract class RecordInternal<T extends Record> {
      */
     public abstract LocalDate getLocalDate();
 
+    private static void addIndexedString(
+            @NonNull Map<String, Integer> stringIndexes, @Nullable String value) {
+        if (value != null) {
+            stringIndexes.putIfAbsent(value, stringIndexes.size());
+        }
+    }
+
+    private static void writeIndexedString(
+            @NonNull Parcel parcel,
+            @NonNull Map<String, Integer> stringIndexes,
+            @Nullable String value) {
+        parcel.writeInt(value == null ? -1 : stringIndexes.get(value));
+    }
+
+    @Nullable
+    private static String readIndexedString(@NonNull Parcel parcel, @NonNull List<String> strings) {
+        int index = parcel.readInt();
+        return index == -1 ? null : strings.get(index);
+    }
+
     /**
      * Populate {@code bundle} with the data required to un-bundle self. This is used suring IPC
      * transmissions
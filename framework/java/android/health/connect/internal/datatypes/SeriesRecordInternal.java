@@ -16,26 +16,141 @@
 
 package android.health.connect.internal.datatypes;
 
-import android.annotation.NonNull;
 import android.health.connect.datatypes.IntervalRecord;
 
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  * Parent class for all the Series type records.
  *
+ * <p>Samples are kept in parallel primitive arrays, the time of each sample in this class and its
+ * value in the subclass, rather than as one object per sample. Samples are kept in the order they
+ * are added until {@link #compactSamples()} is called, once all of them have been added. Sample
+ * objects are only created when building the external record.
+ *
  * <p>U -> Sample type for series record
  *
  * @hide
  */
 public abstract class SeriesRecordInternal<T extends IntervalRecord, U>
         extends IntervalRecordInternal<T> {
-    @NonNull
-    public abstract Set<? extends Sample> getSamples();
+    private static final long[] EMPTY_EPOCH_MILLIS = new long[0];
+
+    private long[] mSampleEpochMillis = EMPTY_EPOCH_MILLIS;
+    private int mSampleCount;
+    private boolean mSamplesCompacted = true;
+
+    /** Returns the number of samples. */
+    public final int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the time of the sample at {@code index}, which must be lower than {@link
+     * #getSampleCount()}.
+     */
+    public final long getSampleEpochMillis(int index) {
+        return mSampleEpochMillis[index];
+    }
+
+    /** Removes all the samples. */
+    public final void clearSamples() {
+        mSampleCount = 0;
+        mSamplesCompacted = true;
+    }
+
+    /** Makes room for {@code capacity} samples, to avoid growing the arrays sample by sample. */
+    public final void ensureSampleCapacity(int capacity) {
+        if (capacity > mSampleEpochMillis.length) {
+            mSampleEpochMillis = Arrays.copyOf(mSampleEpochMillis, capacity);
+            resizeSampleValues(capacity);
+        }
+    }
+
+    /**
+     * Adds a sample at {@code epochMillis}, and returns the index the subclass must store its
+     * value at.
+     */
+    final int addSampleEpochMillis(long epochMillis) {
+        if (mSampleCount == mSampleEpochMillis.length) {
+            ensureSampleCapacity(Math.max(16, mSampleCount * 2));
+        }
+        // Samples usually come in order, in which case they don't need to be sorted.
+        if (mSampleCount > 0 && epochMillis <= mSampleEpochMillis[mSampleCount - 1]) {
+            mSamplesCompacted = false;
+        }
+        mSampleEpochMillis[mSampleCount] = epochMillis;
+        return mSampleCount++;
+    }
+
+    /** Resizes the array(s) holding the sample values to {@code capacity}, keeping the values. */
+    abstract void resizeSampleValues(int capacity);
+
+    /** Compares the values of the samples at {@code index1} and {@code index2}. */
+    abstract int compareSampleValues(int index1, int index2);
+
+    /** Swaps the values of the samples at {@code index1} and {@code index2}. */
+    abstract void swapSampleValues(int index1, int index2);
+
+    /** Copies the value of the sample at {@code fromIndex} to {@code toIndex}. */
+    abstract void copySampleValue(int fromIndex, int toIndex);
+
+    /**
+     * Sorts the samples by time, then value, and drops exact duplicates. Samples usually come in
+     * order, in which case this does nothing.
+     */
+    public final void compactSamples() {
+        if (mSamplesCompacted) {
+            return;
+        }
+
+        heapSortSamples();
+        int count = 1;
+        for (int i = 1; i < mSampleCount; i++) {
+            if (compareSamples(i, count - 1) != 0) {
+                mSampleEpochMillis[count] = mSampleEpochMillis[i];
+                copySampleValue(i, count);
+                count++;
+            }
+        }
+        mSampleCount = count;
+        mSamplesCompacted = true;
+    }
+
+    /** Sorts the samples in place, without allocating, as series can hold many samples. */
+    private void heapSortSamples() {
+        for (int i = mSampleCount / 2 - 1; i >= 0; i--) {
+            siftDown(i, mSampleCount);
+        }
+        for (int end = mSampleCount - 1; end > 0; end--) {
+            swapSamples(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int root, int end) {
+        while (2 * root + 1 < end) {
+            int child = 2 * root + 1;
+            if (child + 1 < end && compareSamples(child, child + 1) < 0) {
+                child++;
+            }
+            if (compareSamples(root, child) >= 0) {
+                return;
+            }
+            swapSamples(root, child);
+            root = child;
+        }
+    }
 
-    @NonNull
-    public abstract SeriesRecordInternal setSamples(Set<? extends Sample> samples);
+    private int compareSamples(int index1, int index2) {
+        int result = Long.compare(mSampleEpochMillis[index1], mSampleEpochMillis[index2]);
+        return result != 0 ? result : compareSampleValues(index1, index2);
+    }
 
-    /** Base class for the series data stored in {@link SeriesRecordInternal} types */
-    public interface Sample {}
+    private void swapSamples(int index1, int index2) {
+        long epochMillis = mSampleEpochMillis[index1];
+        mSampleEpochMillis[index1] = mSampleEpochMillis[index2];
+        mSampleEpochMillis[index2] = epochMillis;
+        swapSampleValues(index1, index2);
+    }
 }
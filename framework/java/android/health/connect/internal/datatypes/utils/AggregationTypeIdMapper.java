@@ -94,6 +94,8 @@ import android.health.connect.datatypes.units.Volume;
 import android.os.Parcel;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -219,6 +221,12 @@ public final class AggregationTypeIdMapper {
         return mDataAggregationTypeIdMap.get(aggregationType);
     }
 
+    /** Returns all the supported {@link AggregationType}s. */
+    @NonNull
+    public Collection<AggregationType<?>> getAggregationTypes() {
+        return Collections.unmodifiableCollection(mIdDataAggregationTypeMap.values());
+    }
+
     @NonNull
     private AggregateResult<Long> getLongResult(long result) {
         return new AggregateResult<>(result);
@@ -17,11 +17,13 @@
 package android.health.connect.internal.datatypes.utils;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.os.Parcel;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
@@ -55,10 +57,28 @@ public final class ParcelRecordConverter {
             @NonNull Parcel parcel, @RecordTypeIdentifier.RecordType int type)
             throws InstantiationException, IllegalAccessException, NoSuchMethodException,
                     InvocationTargetException {
+        return getRecord(parcel, type, /* strings= */ null);
+    }
+
+    /**
+     * Same as {@link #getRecord(Parcel, int)}, but reads the dictionary-encoded format of {@link
+     * RecordInternal} if {@code strings} is not null.
+     */
+    @NonNull
+    public RecordInternal<?> getRecord(
+            @NonNull Parcel parcel,
+            @RecordTypeIdentifier.RecordType int type,
+            @Nullable List<String> strings)
+            throws InstantiationException, IllegalAccessException, NoSuchMethodException,
+                    InvocationTargetException {
         Class<? extends RecordInternal<?>> recordClass = mDataTypeClassMap.get(type);
         Objects.requireNonNull(recordClass);
         RecordInternal<?> recordInternal = recordClass.getConstructor().newInstance();
-        recordInternal.populateUsing(parcel);
+        if (strings == null) {
+            recordInternal.populateUsing(parcel);
+        } else {
+            recordInternal.populateUsing(parcel, strings);
+        }
         return recordInternal;
     }
 }
@@ -16,34 +16,33 @@
 
 package android.health.connect.ratelimiter;
 
-import android.annotation.NonNull;
-
-import java.time.Instant;
-import java.util.Objects;
-
 /**
- * Object to store the last update time and remaining quota for quota buckets as used in {@link
- * RateLimiter}.
+ * Object to store the last update time and remaining quota for the 15 minutes and 24 hours quota
+ * buckets of a quota category, as used in {@link RateLimiter}. Both buckets are spent together, so
+ * share their last update time.
  *
  * @hide
  */
 public final class Quota {
-    private final Instant mLastUpdatedTime;
-    private final float mRemainingQuota;
-
-    public Quota(@NonNull Instant lastUpdatedTime, float remainingQuota) {
-        Objects.requireNonNull(lastUpdatedTime);
+    private final long mLastUpdatedTimeMillis;
+    private final float mRemainingQuota15m;
+    private final float mRemainingQuota24h;
+
+    public Quota(long lastUpdatedTimeMillis, float remainingQuota15m, float remainingQuota24h) {
+        mLastUpdatedTimeMillis = lastUpdatedTimeMillis;
+        mRemainingQuota15m = remainingQuota15m;
+        mRemainingQuota24h = remainingQuota24h;
+    }
 
-        mLastUpdatedTime = lastUpdatedTime;
-        mRemainingQuota = remainingQuota;
+    public long getLastUpdatedTimeMillis() {
+        return mLastUpdatedTimeMillis;
     }
 
-    @NonNull
-    public Instant getLastUpdatedTime() {
-        return mLastUpdatedTime;
+    public float getRemainingQuota15m() {
+        return mRemainingQuota15m;
     }
 
-    public float getRemainingQuota() {
-        return mRemainingQuota;
+    public float getRemainingQuota24h() {
+        return mRemainingQuota24h;
     }
 }
@@ -19,24 +19,23 @@ package android.health.connect.ratelimiter;
 import android.annotation.IntDef;
 import android.health.connect.HealthConnectException;
 
-import com.android.internal.annotations.GuardedBy;
-
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.time.Duration;
-import java.time.Instant;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Basic rate limiter that assigns a fixed request rate quota. If no quota has previously been noted
  * (e.g. first request scenario), the full quota for each window will be immediately granted.
  *
+ * <p>The quotas of a uid are kept in one cell per (quota category, foreground) pair, holding both
+ * the 15 minutes and the 24 hours buckets of the pair, which are always spent together. Cells are
+ * updated with compare-and-set, and found through striped copy-on-write arrays of uids, so that
+ * calls of different uids don't contend and no lock is taken.
+ *
  * @hide
  */
 public final class RateLimiter {
@@ -45,27 +44,44 @@ public final class RateLimiter {
     // The maximum size in bytes of a single record a client can insert in one go.
     public static final String RECORD_SIZE_LIMIT_IN_BYTES = "record_size_limit_in_bytes";
     private static final int DEFAULT_API_CALL_COST = 1;
-    private static final Map<Integer, Map<Integer, Quota>> sUserIdToQuotasMap = new HashMap<>();
-
-    private static final ConcurrentMap<Integer, Integer> sLocks = new ConcurrentHashMap<>();
-    private static final Map<Integer, Float> QUOTA_BUCKET_TO_MAX_API_CALL_QUOTA_MAP =
-            new HashMap<>();
+    private static final long WINDOW_15M_MILLIS = Duration.ofMinutes(15).toMillis();
+    private static final long WINDOW_24H_MILLIS = Duration.ofHours(24).toMillis();
+
+    // Quota buckets of each cell, as {15 minutes bucket, 24 hours bucket}.
+    private static final int[][] CELL_QUOTA_BUCKETS = {
+        {
+            QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND,
+            QuotaBucket.QUOTA_BUCKET_READS_PER_24H_FOREGROUND
+        },
+        {
+            QuotaBucket.QUOTA_BUCKET_READS_PER_15M_BACKGROUND,
+            QuotaBucket.QUOTA_BUCKET_READS_PER_24H_BACKGROUND
+        },
+        {
+            QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_FOREGROUND,
+            QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_FOREGROUND
+        },
+        {
+            QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_BACKGROUND,
+            QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND
+        },
+    };
+    private static final int STRIPE_COUNT = 16;
+    private static final UidQuotas[] NO_UID_QUOTAS = new UidQuotas[0];
+
+    // Each stripe holds the quotas of its uids, sorted by uid.
+    private static final AtomicReferenceArray<UidQuotas[]> sStripes =
+            createEmptyStripes(STRIPE_COUNT);
+    // Indexed by quota bucket, NaN if not configured. Replaced as a whole on update.
+    private static volatile float[] sMaxApiCallQuotas = createUnconfiguredQuotas();
     private static final Map<String, Integer> QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP =
             new HashMap<>();
-    private static final ReentrantReadWriteLock sLock = new ReentrantReadWriteLock();
-
-    @GuardedBy("sLock")
-    private static boolean sRateLimiterEnabled;
+    private static volatile boolean sRateLimiterEnabled;
 
     public static void tryAcquireApiCallQuota(
             int uid, @QuotaCategory.Type int quotaCategory, boolean isInForeground) {
-        sLock.readLock().lock();
-        try {
-            if (!sRateLimiterEnabled) {
-                return;
-            }
-        } finally {
-            sLock.readLock().unlock();
+        if (!sRateLimiterEnabled) {
+            return;
         }
         if (quotaCategory == QuotaCategory.QUOTA_CATEGORY_UNDEFINED) {
             throw new IllegalArgumentException("Quota category not defined.");
@@ -75,22 +91,15 @@ public final class RateLimiter {
         if (quotaCategory == QuotaCategory.QUOTA_CATEGORY_UNMETERED) {
             return;
         }
-        synchronized (getLockObject(uid)) {
-            spendResourcesIfAvailable(
-                    uid,
-                    getAffectedQuotaBuckets(quotaCategory, isInForeground),
-                    DEFAULT_API_CALL_COST);
-        }
+        spendResourcesIfAvailable(
+                getUidQuotas(uid),
+                getCellIndex(quotaCategory, isInForeground),
+                DEFAULT_API_CALL_COST);
     }
 
     public static void checkMaxChunkMemoryUsage(long memoryCost) {
-        sLock.readLock().lock();
-        try {
-            if (!sRateLimiterEnabled) {
-                return;
-            }
-        } finally {
-            sLock.readLock().unlock();
+        if (!sRateLimiterEnabled) {
+            return;
         }
         long memoryLimit = getConfiguredMaxApiMemoryQuota(CHUNK_SIZE_LIMIT_IN_BYTES);
         if (memoryCost > memoryLimit) {
@@ -104,13 +113,8 @@ public final class RateLimiter {
     }
 
     public static void checkMaxRecordMemoryUsage(long memoryCost) {
-        sLock.readLock().lock();
-        try {
-            if (!sRateLimiterEnabled) {
-                return;
-            }
-        } finally {
-            sLock.readLock().unlock();
+        if (!sRateLimiterEnabled) {
+            return;
         }
         long memoryLimit = getConfiguredMaxApiMemoryQuota(RECORD_SIZE_LIMIT_IN_BYTES);
         if (memoryCost > memoryLimit) {
@@ -124,16 +128,18 @@ public final class RateLimiter {
     }
 
     public static void clearCache() {
-        sUserIdToQuotasMap.clear();
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            sStripes.set(i, NO_UID_QUOTAS);
+        }
     }
 
-    public static void updateApiCallQuotaMap(
+    public static synchronized void updateApiCallQuotaMap(
             Map<Integer, Integer> quotaBucketToMaxApiCallQuotaMap) {
-
+        float[] maxApiCallQuotas = sMaxApiCallQuotas.clone();
         for (Integer key : quotaBucketToMaxApiCallQuotaMap.keySet()) {
-            QUOTA_BUCKET_TO_MAX_API_CALL_QUOTA_MAP.put(
-                    key, (float) quotaBucketToMaxApiCallQuotaMap.get(key));
+            maxApiCallQuotas[key] = (float) quotaBucketToMaxApiCallQuotaMap.get(key);
         }
+        sMaxApiCallQuotas = maxApiCallQuotas;
     }
 
     public static void updateMemoryQuotaMap(Map<String, Integer> quotaBucketToMaxMemoryQuotaMap) {
@@ -143,41 +149,86 @@ public final class RateLimiter {
     }
 
     public static void updateEnableRateLimiterFlag(boolean enableRateLimiter) {
-        sLock.writeLock().lock();
-        try {
-            sRateLimiterEnabled = enableRateLimiter;
-        } finally {
-            sLock.writeLock().unlock();
-        }
+        sRateLimiterEnabled = enableRateLimiter;
     }
 
-    private static Object getLockObject(int uid) {
-        sLocks.putIfAbsent(uid, uid);
-        return sLocks.get(uid);
-    }
+    private static UidQuotas getUidQuotas(int uid) {
+        int stripe = Math.floorMod(uid, STRIPE_COUNT);
+        while (true) {
+            UidQuotas[] uidQuotas = sStripes.get(stripe);
+            int index = binarySearch(uidQuotas, uid);
+            if (index >= 0) {
+                return uidQuotas[index];
+            }
 
-    private static void spendResourcesIfAvailable(int uid, List<Integer> quotaBuckets, int cost) {
-        Map<Integer, Float> quotaBucketToAvailableQuotaMap =
-                quotaBuckets.stream()
-                        .collect(
-                                Collectors.toMap(
-                                        quotaBucket -> quotaBucket,
-                                        quotaBucket ->
-                                                getAvailableQuota(
-                                                        quotaBucket, getQuota(uid, quotaBucket))));
-        for (@QuotaBucket.Type int quotaBucket : quotaBuckets) {
-            hasSufficientQuota(quotaBucketToAvailableQuotaMap.get(quotaBucket), cost, quotaBucket);
+            // Handles first request scenario.
+            int insertionIndex = -(index + 1);
+            UidQuotas[] updated = new UidQuotas[uidQuotas.length + 1];
+            System.arraycopy(uidQuotas, 0, updated, 0, insertionIndex);
+            updated[insertionIndex] = new UidQuotas(uid);
+            System.arraycopy(
+                    uidQuotas,
+                    insertionIndex,
+                    updated,
+                    insertionIndex + 1,
+                    uidQuotas.length - insertionIndex);
+            if (sStripes.compareAndSet(stripe, uidQuotas, updated)) {
+                return updated[insertionIndex];
+            }
         }
-        for (@QuotaBucket.Type int quotaBucket : quotaBuckets) {
-            spendResources(uid, quotaBucket, quotaBucketToAvailableQuotaMap.get(quotaBucket), cost);
+    }
+
+    private static int binarySearch(UidQuotas[] uidQuotas, int uid) {
+        int low = 0;
+        int high = uidQuotas.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleUid = uidQuotas[middle].mUid;
+            if (middleUid < uid) {
+                low = middle + 1;
+            } else if (middleUid > uid) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
         }
+        return -(low + 1);
     }
 
-    private static void spendResources(
-            int uid, @QuotaBucket.Type int quotaBucket, float availableQuota, int cost) {
-        sUserIdToQuotasMap
-                .get(uid)
-                .put(quotaBucket, new Quota(Instant.now(), availableQuota - cost));
+    private static void spendResourcesIfAvailable(UidQuotas uidQuotas, int cellIndex, int cost) {
+        @QuotaBucket.Type int quotaBucket15m = CELL_QUOTA_BUCKETS[cellIndex][0];
+        @QuotaBucket.Type int quotaBucket24h = CELL_QUOTA_BUCKETS[cellIndex][1];
+        while (true) {
+            Quota current = uidQuotas.mCells.get(cellIndex);
+            long currentTimeMillis = System.currentTimeMillis();
+            Quota quota =
+                    current != null
+                            ? current
+                            : getInitialQuota(quotaBucket15m, quotaBucket24h, currentTimeMillis);
+            long timeSinceLastQuotaSpend = currentTimeMillis - quota.getLastUpdatedTimeMillis();
+            float availableQuota15m =
+                    getAvailableQuota(
+                            quotaBucket15m,
+                            WINDOW_15M_MILLIS,
+                            quota.getRemainingQuota15m(),
+                            timeSinceLastQuotaSpend);
+            float availableQuota24h =
+                    getAvailableQuota(
+                            quotaBucket24h,
+                            WINDOW_24H_MILLIS,
+                            quota.getRemainingQuota24h(),
+                            timeSinceLastQuotaSpend);
+            hasSufficientQuota(availableQuota15m, cost, quotaBucket15m);
+            hasSufficientQuota(availableQuota24h, cost, quotaBucket24h);
+
+            Quota spent =
+                    new Quota(
+                            currentTimeMillis, availableQuota15m - cost, availableQuota24h - cost);
+            // Retries with the latest quota if another call of the uid spent it meanwhile.
+            if (uidQuotas.mCells.compareAndSet(cellIndex, current, spent)) {
+                return;
+            }
+        }
     }
 
     private static void hasSufficientQuota(
@@ -193,60 +244,34 @@ public final class RateLimiter {
         }
     }
 
-    private static float getAvailableQuota(@QuotaBucket.Type int quotaBucket, Quota quota) {
-        Instant lastUpdatedTime = quota.getLastUpdatedTime();
-        Instant currentTime = Instant.now();
-        Duration timeSinceLastQuotaSpend = Duration.between(lastUpdatedTime, currentTime);
-        Duration window = getWindowDuration(quotaBucket);
-        float accumulated =
-                timeSinceLastQuotaSpend.toMillis()
-                        * (getConfiguredApiCallMaxQuota(quotaBucket) / (float) window.toMillis());
+    private static float getAvailableQuota(
+            @QuotaBucket.Type int quotaBucket,
+            long windowMillis,
+            float remainingQuota,
+            long timeSinceLastQuotaSpend) {
+        float maxQuota = getConfiguredApiCallMaxQuota(quotaBucket);
+        float accumulated = timeSinceLastQuotaSpend * (maxQuota / (float) windowMillis);
         // Cannot accumulate more than the configured max quota.
-        return Math.min(
-                quota.getRemainingQuota() + accumulated, getConfiguredApiCallMaxQuota(quotaBucket));
+        return Math.min(remainingQuota + accumulated, maxQuota);
     }
 
-    private static Quota getQuota(int uid, @QuotaBucket.Type int quotaBucket) {
-        // Handles first request scenario.
-        if (!sUserIdToQuotasMap.containsKey(uid)) {
-            sUserIdToQuotasMap.put(uid, new HashMap<>());
-        }
-        Map<Integer, Quota> packageQuotas = sUserIdToQuotasMap.get(uid);
-        Quota quota = packageQuotas.get(quotaBucket);
-        if (quota == null) {
-            quota = getInitialQuota(quotaBucket);
-        }
-        return quota;
-    }
-
-    private static Quota getInitialQuota(@QuotaBucket.Type int bucket) {
-        return new Quota(Instant.now(), getConfiguredApiCallMaxQuota(bucket));
-    }
-
-    private static Duration getWindowDuration(@QuotaBucket.Type int quotaBucket) {
-        switch (quotaBucket) {
-            case QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND:
-            case QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_FOREGROUND:
-            case QuotaBucket.QUOTA_BUCKET_READS_PER_24H_BACKGROUND:
-            case QuotaBucket.QUOTA_BUCKET_READS_PER_24H_FOREGROUND:
-                return Duration.ofHours(24);
-            case QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_BACKGROUND:
-            case QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND:
-            case QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_FOREGROUND:
-            case QuotaBucket.QUOTA_BUCKET_READS_PER_15M_BACKGROUND:
-                return Duration.ofMinutes(15);
-            case QuotaBucket.QUOTA_BUCKET_UNDEFINED:
-                throw new IllegalArgumentException("Invalid quota bucket.");
-        }
-        throw new IllegalArgumentException("Invalid quota bucket.");
+    private static Quota getInitialQuota(
+            @QuotaBucket.Type int quotaBucket15m,
+            @QuotaBucket.Type int quotaBucket24h,
+            long currentTimeMillis) {
+        return new Quota(
+                currentTimeMillis,
+                getConfiguredApiCallMaxQuota(quotaBucket15m),
+                getConfiguredApiCallMaxQuota(quotaBucket24h));
     }
 
     private static float getConfiguredApiCallMaxQuota(@QuotaBucket.Type int quotaBucket) {
-        if (!QUOTA_BUCKET_TO_MAX_API_CALL_QUOTA_MAP.containsKey(quotaBucket)) {
+        float maxQuota = sMaxApiCallQuotas[quotaBucket];
+        if (Float.isNaN(maxQuota)) {
             throw new IllegalArgumentException(
                     "Max quota not found for quotaBucket: " + quotaBucket);
         }
-        return QUOTA_BUCKET_TO_MAX_API_CALL_QUOTA_MAP.get(quotaBucket);
+        return maxQuota;
     }
 
     private static int getConfiguredMaxApiMemoryQuota(String quotaBucket) {
@@ -257,29 +282,13 @@ public final class RateLimiter {
         return QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP.get(quotaBucket);
     }
 
-    private static List<Integer> getAffectedQuotaBuckets(
-            @QuotaCategory.Type int quotaCategory, boolean isInForeground) {
+    /** Returns the index in {@link #CELL_QUOTA_BUCKETS} of the cell spent by the calls. */
+    private static int getCellIndex(@QuotaCategory.Type int quotaCategory, boolean isInForeground) {
         switch (quotaCategory) {
             case QuotaCategory.QUOTA_CATEGORY_READ:
-                if (isInForeground) {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND,
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_24H_FOREGROUND);
-                } else {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_15M_BACKGROUND,
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_24H_BACKGROUND);
-                }
+                return isInForeground ? 0 : 1;
             case QuotaCategory.QUOTA_CATEGORY_WRITE:
-                if (isInForeground) {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_FOREGROUND,
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_FOREGROUND);
-                } else {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_BACKGROUND,
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND);
-                }
+                return isInForeground ? 2 : 3;
             case QuotaCategory.QUOTA_CATEGORY_UNDEFINED:
             case QuotaCategory.QUOTA_CATEGORY_UNMETERED:
                 throw new IllegalArgumentException("Invalid quota category.");
@@ -287,6 +296,32 @@ public final class RateLimiter {
         throw new IllegalArgumentException("Invalid quota category.");
     }
 
+    private static AtomicReferenceArray<UidQuotas[]> createEmptyStripes(int stripeCount) {
+        AtomicReferenceArray<UidQuotas[]> stripes = new AtomicReferenceArray<>(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes.set(i, NO_UID_QUOTAS);
+        }
+        return stripes;
+    }
+
+    private static float[] createUnconfiguredQuotas() {
+        float[] maxApiCallQuotas =
+                new float[QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND + 1];
+        Arrays.fill(maxApiCallQuotas, Float.NaN);
+        return maxApiCallQuotas;
+    }
+
+    private static final class UidQuotas {
+        final int mUid;
+        // Indexed like CELL_QUOTA_BUCKETS, null until the quota is first spent.
+        final AtomicReferenceArray<Quota> mCells =
+                new AtomicReferenceArray<>(CELL_QUOTA_BUCKETS.length);
+
+        UidQuotas(int uid) {
+            mUid = uid;
+        }
+    }
+
     public static final class QuotaBucket {
         public static final int QUOTA_BUCKET_UNDEFINED = 0;
         public static final int QUOTA_BUCKET_READS_PER_15M_FOREGROUND = 1;
@@ -28,17 +28,22 @@ import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
 import android.content.ComponentName;
 import android.content.Context;
+import android.os.CancellationSignal;
 import android.os.PersistableBundle;
 import android.os.UserHandle;
+import android.util.Slog;
 
 import com.android.server.healthconnect.logging.DailyLoggingService;
 import com.android.server.healthconnect.storage.AutoDeleteService;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper;
 
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 /** @hide */
 public class HealthConnectDailyJobs {
+    private static final String TAG = "HealthConnectDailyJobs";
     public static final String HC_DAILY_JOB = "hc_daily_job";
     private static final int MIN_JOB_ID = HealthConnectDailyJobs.class.hashCode();
     private static final long JOB_RUN_INTERVAL = TimeUnit.DAYS.toMillis(1);
@@ -69,9 +74,42 @@ public class HealthConnectDailyJobs {
                 .cancelAll();
     }
 
-    public static void execute(@NonNull Context context, JobParameters params) {
+    /**
+     * Runs the daily tasks. Once {@code cancellationSignal} is cancelled, the auto delete stops
+     * between chunks and the tasks after it are left for the next run.
+     */
+    public static void execute(
+            @NonNull Context context,
+            JobParameters params,
+            @NonNull CancellationSignal cancellationSignal) {
         int userId = params.getExtras().getInt(EXTRA_USER_ID, /* defaultValue= */ DEFAULT_INT);
-        AutoDeleteService.startAutoDelete();
+        AutoDeleteService.startAutoDelete(cancellationSignal);
+        if (cancellationSignal.isCanceled()) {
+            return;
+        }
+        refreshStaleRollups();
+        checkpointDatabase();
         DailyLoggingService.logDailyMetrics(context, UserHandle.getUserHandleForUid(userId));
     }
+
+    // Runs after the auto delete, which leaves stale rollups behind when it deletes records.
+    private static void refreshStaleRollups() {
+        try {
+            AggregateRollupHelper.getInstance().refreshStaleRollups();
+        } catch (Exception e) {
+            Slog.e(TAG, "Refreshing stale rollups failed", e);
+            // Don't rethrow as that will crash system_server
+        }
+    }
+
+    // Runs after the auto delete, which can write a lot, and while the device is idle so that no
+    // reader keeps the log alive.
+    private static void checkpointDatabase() {
+        try {
+            TransactionManager.getInitialisedInstance().checkpoint();
+        } catch (Exception e) {
+            Slog.e(TAG, "Database checkpoint failed", e);
+            // Don't rethrow as that will crash system_server
+        }
+    }
 }
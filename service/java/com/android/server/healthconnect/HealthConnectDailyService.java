@@ -23,12 +23,14 @@ import static com.android.server.healthconnect.migration.MigrationConstants.MIGR
 import static com.android.server.healthconnect.migration.MigrationConstants.MIGRATION_PAUSE_JOB_NAME;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.annotation.UserIdInt;
 import android.app.job.JobInfo;
 import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
 import android.app.job.JobService;
 import android.health.connect.Constants;
+import android.os.CancellationSignal;
 import android.util.Slog;
 
 import com.android.server.healthconnect.migration.MigrationStateChangeJob;
@@ -45,6 +47,7 @@ public class HealthConnectDailyService extends JobService {
     public static final String EXTRA_JOB_NAME_KEY = "job_name";
     private static final String TAG = "HealthConnectDailyService";
     @UserIdInt private static volatile int sCurrentUserId;
+    @Nullable private volatile CancellationSignal mDailyJobCancellationSignal;
 
     /**
      * Called everytime when the operation corresponding to this service is to be performed,
@@ -70,9 +73,12 @@ public class HealthConnectDailyService extends JobService {
         // main thread. This means that we must offload the execution logic to background executor.
         switch (jobName) {
             case HC_DAILY_JOB -> {
+                CancellationSignal cancellationSignal = new CancellationSignal();
+                mDailyJobCancellationSignal = cancellationSignal;
                 HealthConnectThreadScheduler.scheduleInternalTask(
                         () -> {
-                            HealthConnectDailyJobs.execute(getApplicationContext(), params);
+                            HealthConnectDailyJobs.execute(
+                                    getApplicationContext(), params, cancellationSignal);
                             jobFinished(params, false);
                         });
                 return true;
@@ -102,9 +108,17 @@ public class HealthConnectDailyService extends JobService {
         return false;
     }
 
-    /** Called when job needs to be stopped. Don't do anything here and let the job be killed. */
+    /**
+     * Called when job needs to be stopped. The daily job is cancelled, so that it stops between
+     * chunks of its auto delete, and other jobs are left to be killed.
+     */
     @Override
     public boolean onStopJob(@NonNull JobParameters params) {
+        CancellationSignal cancellationSignal = mDailyJobCancellationSignal;
+        if (HC_DAILY_JOB.equals(params.getExtras().getString(EXTRA_JOB_NAME_KEY))
+                && cancellationSignal != null) {
+            cancellationSignal.cancel();
+        }
         return false;
     }
 
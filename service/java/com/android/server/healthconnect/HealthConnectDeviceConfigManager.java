@@ -109,6 +109,15 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
     public static final String ENABLE_MIGRATION_NOTIFICATIONS_FLAG =
             "enable_migration_notifications";
 
+    @VisibleForTesting
+    public static final String ENABLE_PACKED_SERIES_SAMPLES_FLAG = "enable_packed_series_samples";
+
+    @VisibleForTesting
+    public static final String FOREGROUND_READ_THREAD_COUNT_FLAG = "foreground_read_thread_count";
+
+    @VisibleForTesting
+    public static final String BACKGROUND_READ_THREAD_COUNT_FLAG = "background_read_thread_count";
+
     private static final boolean SESSION_DATATYPE_DEFAULT_FLAG_VALUE = true;
     private static final boolean EXERCISE_ROUTE_DEFAULT_FLAG_VALUE = true;
     public static final boolean ENABLE_RATE_LIMITER_DEFAULT_FLAG_VALUE = true;
@@ -148,6 +157,12 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
     @VisibleForTesting
     public static final boolean ENABLE_MIGRATION_NOTIFICATIONS_DEFAULT_FLAG_VALUE = true;
 
+    @VisibleForTesting
+    public static final boolean ENABLE_PACKED_SERIES_SAMPLES_DEFAULT_FLAG_VALUE = false;
+
+    @VisibleForTesting public static final int FOREGROUND_READ_THREAD_COUNT_DEFAULT_FLAG_VALUE = 2;
+    @VisibleForTesting public static final int BACKGROUND_READ_THREAD_COUNT_DEFAULT_FLAG_VALUE = 2;
+
     private static HealthConnectDeviceConfigManager sDeviceConfigManager;
     private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
     private static final String HEALTH_FITNESS_NAMESPACE = DeviceConfig.NAMESPACE_HEALTH_FITNESS;
@@ -250,6 +265,27 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
                     ENABLE_MIGRATION_NOTIFICATIONS_FLAG,
                     ENABLE_MIGRATION_NOTIFICATIONS_DEFAULT_FLAG_VALUE);
 
+    @GuardedBy("mLock")
+    private boolean mPackedSeriesSamplesEnabled =
+            DeviceConfig.getBoolean(
+                    HEALTH_FITNESS_NAMESPACE,
+                    ENABLE_PACKED_SERIES_SAMPLES_FLAG,
+                    ENABLE_PACKED_SERIES_SAMPLES_DEFAULT_FLAG_VALUE);
+
+    @GuardedBy("mLock")
+    private int mForegroundReadThreadCount =
+            DeviceConfig.getInt(
+                    HEALTH_FITNESS_NAMESPACE,
+                    FOREGROUND_READ_THREAD_COUNT_FLAG,
+                    FOREGROUND_READ_THREAD_COUNT_DEFAULT_FLAG_VALUE);
+
+    @GuardedBy("mLock")
+    private int mBackgroundReadThreadCount =
+            DeviceConfig.getInt(
+                    HEALTH_FITNESS_NAMESPACE,
+                    BACKGROUND_READ_THREAD_COUNT_FLAG,
+                    BACKGROUND_READ_THREAD_COUNT_DEFAULT_FLAG_VALUE);
+
     @NonNull
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public static void initializeInstance(Context context) {
@@ -286,6 +322,9 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
         sFlagsToTrack.add(ENABLE_PAUSE_STATE_CHANGE_JOBS_FLAG);
         sFlagsToTrack.add(ENABLE_COMPLETE_STATE_CHANGE_JOBS_FLAG);
         sFlagsToTrack.add(ENABLE_MIGRATION_NOTIFICATIONS_FLAG);
+        sFlagsToTrack.add(ENABLE_PACKED_SERIES_SAMPLES_FLAG);
+        sFlagsToTrack.add(FOREGROUND_READ_THREAD_COUNT_FLAG);
+        sFlagsToTrack.add(BACKGROUND_READ_THREAD_COUNT_FLAG);
     }
 
     /** Returns if operations with exercise route are enabled. */
@@ -447,6 +486,47 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
         }
     }
 
+    /** Returns if new series records should store their samples as a single packed BLOB. */
+    public boolean isPackedSeriesSamplesEnabled() {
+        mLock.readLock().lock();
+        try {
+            return mPackedSeriesSamplesEnabled;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Returns the number of threads running read only tasks of foreground apps. */
+    public int getForegroundReadThreadCount() {
+        mLock.readLock().lock();
+        try {
+            return mForegroundReadThreadCount;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Returns the number of threads running read only tasks of background apps. */
+    public int getBackgroundReadThreadCount() {
+        mLock.readLock().lock();
+        try {
+            return mBackgroundReadThreadCount;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Updates the number of threads of the scheduler's read lanes. */
+    public void updateSchedulerThreadCounts() {
+        mLock.readLock().lock();
+        try {
+            HealthConnectThreadScheduler.updateReadThreadCounts(
+                    mForegroundReadThreadCount, mBackgroundReadThreadCount);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
     /** Updates rate limiting quota values. */
     public void updateRateLimiterValues() {
         Map<Integer, Integer> quotaBucketToMaxApiCallQuotaMap = new HashMap<>();
@@ -681,6 +761,40 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
                 } finally {
                     mLock.writeLock().unlock();
                 }
+            } else if (name.equals(ENABLE_PACKED_SERIES_SAMPLES_FLAG)) {
+                mLock.writeLock().lock();
+                try {
+                    mPackedSeriesSamplesEnabled =
+                            properties.getBoolean(
+                                    ENABLE_PACKED_SERIES_SAMPLES_FLAG,
+                                    ENABLE_PACKED_SERIES_SAMPLES_DEFAULT_FLAG_VALUE);
+                } finally {
+                    mLock.writeLock().unlock();
+                }
+            } else if (name.equals(FOREGROUND_READ_THREAD_COUNT_FLAG)) {
+                mLock.writeLock().lock();
+                try {
+                    mForegroundReadThreadCount =
+                            properties.getInt(
+                                    FOREGROUND_READ_THREAD_COUNT_FLAG,
+                                    FOREGROUND_READ_THREAD_COUNT_DEFAULT_FLAG_VALUE);
+                    HealthConnectThreadScheduler.updateReadThreadCounts(
+                            mForegroundReadThreadCount, mBackgroundReadThreadCount);
+                } finally {
+                    mLock.writeLock().unlock();
+                }
+            } else if (name.equals(BACKGROUND_READ_THREAD_COUNT_FLAG)) {
+                mLock.writeLock().lock();
+                try {
+                    mBackgroundReadThreadCount =
+                            properties.getInt(
+                                    BACKGROUND_READ_THREAD_COUNT_FLAG,
+                                    BACKGROUND_READ_THREAD_COUNT_DEFAULT_FLAG_VALUE);
+                    HealthConnectThreadScheduler.updateReadThreadCounts(
+                            mForegroundReadThreadCount, mBackgroundReadThreadCount);
+                } finally {
+                    mLock.writeLock().unlock();
+                }
             }
         }
     }
@@ -127,6 +127,7 @@ public class HealthConnectManagerService extends SystemService {
                 .registerBroadcastReceiver(mContext);
         publishBinderService(Context.HEALTHCONNECT_SERVICE, mHealthConnectService);
         HealthConnectDeviceConfigManager.getInitialisedInstance().updateRateLimiterValues();
+        HealthConnectDeviceConfigManager.getInitialisedInstance().updateSchedulerThreadCounts();
     }
 
     /**
@@ -19,86 +19,167 @@ package com.android.server.healthconnect;
 import android.annotation.NonNull;
 import android.util.Log;
 
-import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A scheduler class to run the tasks in a Round Robin fashion based on client package names.
  *
+ * <p>Every client uid has its own task queue, and the uids which have tasks are kept in a ring.
+ * {@link #getNextTask} takes the uid at the head of the ring, which gives it exclusive access to
+ * the uid's queue until the uid is put back in the ring, so none of the operations need a lock.
+ *
+ * <p>The ring is served with deficit round robin: every turn of a uid grants it {@link #QUANTUM}
+ * units of cost, and a task runs only once the uid has saved enough units for it. Tasks cost one
+ * unit by default, which gives plain round robin, while a task writing many records costs more,
+ * so that clients writing large batches can't starve clients writing a few records.
+ *
  * @hide
  */
 public final class HealthConnectRoundRobinScheduler {
     private static final String TAG = "HealthConnectScheduler";
-    private final ConcurrentSkipListMap<Integer, Queue<Runnable>> mTasks =
-            new ConcurrentSkipListMap<>();
-    private final Object mLock = new Object();
 
-    @GuardedBy("mLock")
-    private boolean mPauseScheduler;
+    /** Units of cost a uid can spend per turn. */
+    @VisibleForTesting static final int QUANTUM = 1;
+
+    /** Highest cost of a task, so that any task waits for at most this many turns. */
+    @VisibleForTesting static final int MAX_TASK_COST = 10;
+
+    private static final int RECORDS_PER_COST_UNIT = 100;
 
-    @GuardedBy("mLock")
-    private Integer mLastKeyUsed;
+    private static final Runnable NO_OP_TASK = () -> {};
+
+    // Replaced as a whole when the tasks are killed, so that threads still holding a queue of the
+    // previous generation can't leak its tasks into the new one.
+    private volatile Generation mGeneration = new Generation();
+    private volatile boolean mPauseScheduler;
 
     void resume() {
-        synchronized (mLock) {
-            mPauseScheduler = false;
-        }
+        mPauseScheduler = false;
     }
 
     void addTask(int uid, Runnable task) {
-        synchronized (mLock) {
-            // If the scheduler is currently paused (this can happen if the platform is doing a user
-            // switch), ignore this request. This most likely means that we won't be able to deliver
-            // the result back anyway.
-            if (mPauseScheduler) {
-                Log.e(TAG, "Unable to schedule task for uid: " + uid);
-                return;
-            }
+        addTask(uid, task, /* cost= */ 1);
+    }
+
+    /**
+     * Adds a task of the given cost, see {@link #getCostOfRecords}. Every call must be followed by
+     * exactly one call to {@link #getNextTask}.
+     */
+    void addTask(int uid, Runnable task, int cost) {
+        // If the scheduler is currently paused (this can happen if the platform is doing a user
+        // switch), ignore this request. This most likely means that we won't be able to deliver
+        // the result back anyway.
+        if (mPauseScheduler) {
+            Log.e(TAG, "Unable to schedule task for uid: " + uid);
+            return;
+        }
 
-            mTasks.putIfAbsent(uid, new LinkedBlockingQueue<>());
-            mTasks.get(uid).add(task);
+        Generation generation = mGeneration;
+        UidTaskQueue queue = generation.mTaskQueues.get(uid);
+        if (queue == null) {
+            queue = generation.mTaskQueues.computeIfAbsent(uid, unused -> new UidTaskQueue());
         }
+
+        queue.mTasks.add(new ScheduledTask(task, Math.max(1, Math.min(cost, MAX_TASK_COST))));
+        generation.mQueuedTaskCount.incrementAndGet();
+        if (queue.mPendingTaskCount.getAndIncrement() == 0) {
+            // The queue was empty, so it is neither in the ring nor owned by a consumer.
+            queue.mDeficit = 0;
+            queue.mInTurn = false;
+            generation.mActiveUids.addLast(queue);
+        }
+    }
+
+    /** Returns the cost of a task which writes the given number of records. */
+    static int getCostOfRecords(int numberOfRecords) {
+        return 1 + numberOfRecords / RECORDS_PER_COST_UNIT;
     }
 
     @NonNull
     Runnable getNextTask() {
-        synchronized (mLock) {
-            if (mLastKeyUsed == null) {
-                mLastKeyUsed = mTasks.firstKey();
+        while (true) {
+            Generation generation = mGeneration;
+            UidTaskQueue queue = generation.mActiveUids.pollFirst();
+            if (queue == null) {
+                if (generation.mQueuedTaskCount.get() > 0) {
+                    // Another thread owns the queue with the remaining tasks and is about to put
+                    // it back in the ring.
+                    Thread.yield();
+                    continue;
+                }
+                if (mPauseScheduler) {
+                    return NO_OP_TASK;
+                }
+                throw new InternalError("Task scheduled but none found");
             }
 
-            Map.Entry<Integer, Queue<Runnable>> entry = mTasks.higherEntry(mLastKeyUsed);
-            while (entry != null && entry.getValue().isEmpty()) {
-                mTasks.remove(entry.getKey());
-                entry = mTasks.higherEntry(entry.getKey());
+            if (!queue.mInTurn) {
+                queue.mInTurn = true;
+                queue.mDeficit += QUANTUM;
             }
 
-            if (entry == null) {
-                // Reached the end, no tasks found. Reset to first entry and try again.
-                entry = mTasks.firstEntry();
-                while (entry != null && entry.getValue().isEmpty()) {
-                    mTasks.remove(entry.getKey());
-                    entry = mTasks.higherEntry(entry.getKey());
-                }
+            ScheduledTask task = queue.mTasks.peek();
+            if (task.mCost > queue.mDeficit) {
+                // Not enough units saved yet, let the next uid go first.
+                queue.mInTurn = false;
+                generation.mActiveUids.addLast(queue);
+                continue;
             }
 
-            if (entry != null) {
-                mLastKeyUsed = entry.getKey();
-                return entry.getValue().poll();
+            queue.mTasks.poll();
+            queue.mDeficit -= task.mCost;
+            generation.mQueuedTaskCount.decrementAndGet();
+            boolean keepTurn = queue.mDeficit > 0;
+            if (!keepTurn) {
+                queue.mInTurn = false;
             }
-
-            throw new InternalError("Task scheduled but none found");
+            if (queue.mPendingTaskCount.decrementAndGet() > 0) {
+                if (keepTurn) {
+                    generation.mActiveUids.addFirst(queue);
+                } else {
+                    generation.mActiveUids.addLast(queue);
+                }
+            }
+            return task.mTask;
         }
     }
 
     void killTasksAndPauseScheduler() {
-        synchronized (mLock) {
-            mPauseScheduler = true;
-            mTasks.clear();
+        mPauseScheduler = true;
+        mGeneration = new Generation();
+    }
+
+    private static final class Generation {
+        final ConcurrentHashMap<Integer, UidTaskQueue> mTaskQueues = new ConcurrentHashMap<>();
+        // Ring of the uids which have tasks and aren't owned by a thread at the moment.
+        final ConcurrentLinkedDeque<UidTaskQueue> mActiveUids = new ConcurrentLinkedDeque<>();
+        final AtomicInteger mQueuedTaskCount = new AtomicInteger();
+    }
+
+    private static final class ScheduledTask {
+        final Runnable mTask;
+        final int mCost;
+
+        ScheduledTask(Runnable task, int cost) {
+            mTask = task;
+            mCost = cost;
         }
     }
+
+    private static final class UidTaskQueue {
+        final ConcurrentLinkedQueue<ScheduledTask> mTasks = new ConcurrentLinkedQueue<>();
+        // Number of tasks added but not yet taken. The thread moving it from 0 to 1 puts the
+        // queue in the ring, the thread moving it to 0 leaves it out of the ring.
+        final AtomicInteger mPendingTaskCount = new AtomicInteger();
+
+        // Only accessed by the thread owning the queue, which is published through the ring and
+        // mPendingTaskCount.
+        int mDeficit;
+        boolean mInTurn;
+    }
 }
@@ -63,6 +63,7 @@ import android.health.connect.aidl.IAccessLogsResponseCallback;
 import android.health.connect.aidl.IActivityDatesResponseCallback;
 import android.health.connect.aidl.IAggregateRecordsResponseCallback;
 import android.health.connect.aidl.IApplicationInfoResponseCallback;
+import android.health.connect.aidl.IChangeLogsListener;
 import android.health.connect.aidl.IChangeLogsResponseCallback;
 import android.health.connect.aidl.IDataStagingFinishedCallback;
 import android.health.connect.aidl.IEmptyResponseCallback;
@@ -130,6 +131,7 @@ import com.android.server.healthconnect.permission.DataPermissionEnforcer;
 import com.android.server.healthconnect.permission.FirstGrantTimeManager;
 import com.android.server.healthconnect.permission.HealthConnectPermissionHelper;
 import com.android.server.healthconnect.storage.AutoDeleteService;
+import com.android.server.healthconnect.storage.ChangeLogsSubscriptionManager;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.datatypehelpers.AccessLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
@@ -233,6 +235,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
     public void onUserSwitching(UserHandle currentForegroundUser) {
         mCurrentForegroundUser = currentForegroundUser;
         mBackupRestore.setupForUser(currentForegroundUser);
+        // Listeners of the previous user can no longer read the change logs.
+        ChangeLogsSubscriptionManager.getInstance().unregisterAllListeners();
     }
 
     @Override
@@ -323,8 +327,9 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                         final List<RecordInternal<?>> recordInternals = recordsParcel.getRecords();
                         builder.setNumberOfRecords(recordInternals.size());
                         throwExceptionIfDataSyncInProgress();
-                        mDataPermissionEnforcer.enforceRecordsWritePermissions(
-                                recordInternals, attributionSource);
+                        Map<String, Boolean> extraWritePermissionStateMapping =
+                                mDataPermissionEnforcer.enforceRecordsWritePermissions(
+                                        recordInternals, attributionSource);
                         boolean isInForeground = mAppOpsManagerLocal.isUidInForeground(uid);
                         tryAcquireApiCallQuota(
                                 uid, QuotaCategory.QUOTA_CATEGORY_WRITE, isInForeground, builder);
@@ -335,9 +340,7 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                                         recordInternals,
                                         mContext,
                                         /* isInsertRequest */ true,
-                                        mDataPermissionEnforcer
-                                                .collectExtraWritePermissionStateMapping(
-                                                        recordInternals, attributionSource));
+                                        extraWritePermissionStateMapping);
                         List<String> uuids = mTransactionManager.insertAll(insertRequest);
                         tryAndReturnResult(callback, uuids, builder);
 
@@ -375,7 +378,10 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                false);
+                false,
+                /* isReadOnly= */ false,
+                HealthConnectRoundRobinScheduler.getCostOfRecords(
+                        recordsParcel.getRecords().size()));
     }
 
     private void postInsertTasks(
@@ -479,7 +485,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                holdsDataManagementPermission);
+                holdsDataManagementPermission,
+                /* isReadOnly= */ true);
     }
 
     /**
@@ -571,18 +578,12 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                                                     enforceSelfRead.get(),
                                                     extraReadPermsToGrantState));
                             builder.setNumberOfRecords(readRecordsResponse.first.size());
+                            // The page token also holds the sort order of the result, see
+                            // PageTokenUtils, for the next read request to have the same order.
                             long pageToken =
                                     request.getRecordIdFiltersParcel() == null
                                             ? readRecordsResponse.second
                                             : DEFAULT_LONG;
-                            if (pageToken != DEFAULT_LONG) {
-                                // pagetoken is used here to store sorting order of the result.
-                                // An even pagetoken indicate ascending and Odd page token indicate
-                                // descending sort order. This detail from page token will be used
-                                // in next read request to have same sort order.
-                                pageToken =
-                                        request.isAscending() ? pageToken * 2 : pageToken * 2 + 1;
-                            }
 
                             if (Constants.DEBUG) {
                                 Slog.d(TAG, "pageToken: " + pageToken);
@@ -597,11 +598,17 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                             boolean requiresLogging =
                                     !holdsDataManagementPermission && !enforceSelfRead.get();
                             if (requiresLogging) {
-                                Trace.traceBegin(
-                                        TRACE_TAG_READ_SUBTASKS, TAG_READ.concat("AddAccessLog"));
-                                AccessLogsHelper.getInstance()
-                                        .addAccessLog(packageName, recordTypes, READ);
-                                Trace.traceEnd(TRACE_TAG_READ_SUBTASKS);
+                                // Reads run on the read only lanes, hence the access log is
+                                // written by the internal task executor instead.
+                                HealthConnectThreadScheduler.scheduleInternalTask(
+                                        () -> {
+                                            Trace.traceBegin(
+                                                    TRACE_TAG_READ_SUBTASKS,
+                                                    TAG_READ.concat("AddAccessLog"));
+                                            AccessLogsHelper.getInstance()
+                                                    .addAccessLog(packageName, recordTypes, READ);
+                                            Trace.traceEnd(TRACE_TAG_READ_SUBTASKS);
+                                        });
                             }
                             callback.onResult(
                                     new ReadRecordsResponseParcel(
@@ -667,7 +674,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                holdsDataManagementPermission);
+                holdsDataManagementPermission,
+                /* isReadOnly= */ true);
     }
 
     /**
@@ -706,8 +714,9 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                         final List<RecordInternal<?>> recordInternals = recordsParcel.getRecords();
                         builder.setNumberOfRecords(recordInternals.size());
                         throwExceptionIfDataSyncInProgress();
-                        mDataPermissionEnforcer.enforceRecordsWritePermissions(
-                                recordInternals, attributionSource);
+                        Map<String, Boolean> extraWritePermissionStateMapping =
+                                mDataPermissionEnforcer.enforceRecordsWritePermissions(
+                                        recordInternals, attributionSource);
                         boolean isInForeground = mAppOpsManagerLocal.isUidInForeground(uid);
                         tryAcquireApiCallQuota(
                                 uid, QuotaCategory.QUOTA_CATEGORY_WRITE, isInForeground, builder);
@@ -717,9 +726,7 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                                         recordInternals,
                                         mContext,
                                         /* isInsertRequest */ false,
-                                        mDataPermissionEnforcer
-                                                .collectExtraWritePermissionStateMapping(
-                                                        recordInternals, attributionSource));
+                                        extraWritePermissionStateMapping);
                         mTransactionManager.updateAll(request);
                         tryAndReturnResult(callback, builder);
                         finishDataDeliveryWriteRecords(recordInternals, attributionSource);
@@ -769,7 +776,10 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                false);
+                false,
+                /* isReadOnly= */ false,
+                HealthConnectRoundRobinScheduler.getCostOfRecords(
+                        recordsParcel.getRecords().size()));
     }
 
     /**
@@ -943,6 +953,76 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                 false);
     }
 
+    /**
+     * @hide
+     * @see HealthConnectManager#registerChangeLogsListener
+     */
+    @Override
+    public void registerChangeLogsListener(
+            @NonNull AttributionSource attributionSource,
+            @NonNull String token,
+            @NonNull IChangeLogsListener listener,
+            @NonNull IEmptyResponseCallback callback) {
+        final int uid = Binder.getCallingUid();
+        final UserHandle userHandle = Binder.getCallingUserHandle();
+        HealthConnectThreadScheduler.schedule(
+                mContext,
+                () -> {
+                    try {
+                        enforceIsForegroundUser(userHandle);
+                        verifyPackageNameFromUid(uid, attributionSource);
+                        throwExceptionIfDataSyncInProgress();
+                        ChangeLogsRequestHelper.TokenRequest changeLogsTokenRequest =
+                                ChangeLogsRequestHelper.getRequest(
+                                        attributionSource.getPackageName(), token);
+                        mDataPermissionEnforcer.enforceRecordIdsReadPermissions(
+                                changeLogsTokenRequest.getRecordTypes(), attributionSource);
+                        ChangeLogsSubscriptionManager.getInstance()
+                                .registerListener(
+                                        attributionSource.getPackageName(),
+                                        changeLogsTokenRequest,
+                                        listener,
+                                        ChangeLogsHelper.getInstance().getLatestRowId());
+                        callback.onResult();
+                    } catch (IllegalArgumentException illegalArgumentException) {
+                        Slog.e(TAG, "IllegalArgumentException: ", illegalArgumentException);
+                        tryAndThrowException(
+                                callback,
+                                illegalArgumentException,
+                                HealthConnectException.ERROR_INVALID_ARGUMENT);
+                    } catch (SQLiteException sqLiteException) {
+                        Slog.e(TAG, "SQLiteException: ", sqLiteException);
+                        tryAndThrowException(
+                                callback, sqLiteException, HealthConnectException.ERROR_IO);
+                    } catch (SecurityException securityException) {
+                        Slog.e(TAG, "SecurityException: ", securityException);
+                        tryAndThrowException(callback, securityException, ERROR_SECURITY);
+                    } catch (HealthConnectException healthConnectException) {
+                        Slog.e(TAG, "HealthConnectException: ", healthConnectException);
+                        tryAndThrowException(
+                                callback,
+                                healthConnectException,
+                                healthConnectException.getErrorCode());
+                    } catch (Exception exception) {
+                        Slog.e(TAG, "Exception: ", exception);
+                        tryAndThrowException(callback, exception, ERROR_INTERNAL);
+                    }
+                },
+                uid,
+                false);
+    }
+
+    /**
+     * @hide
+     * @see HealthConnectManager#unregisterChangeLogsListener
+     */
+    @Override
+    public void unregisterChangeLogsListener(
+            @NonNull AttributionSource attributionSource, @NonNull IChangeLogsListener listener) {
+        verifyPackageNameFromUid(Binder.getCallingUid(), attributionSource);
+        ChangeLogsSubscriptionManager.getInstance().unregisterListener(listener);
+    }
+
     /**
      * API to delete records based on {@code request}
      *
@@ -1663,6 +1743,15 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
         return mBackupRestore.getAllBackupFileNames(forDeviceToDevice);
     }
 
+    /**
+     * @see HealthConnectManager#onBackupDelivered
+     */
+    @Override
+    public void onBackupDelivered() {
+        mContext.enforceCallingPermission(HEALTH_CONNECT_BACKUP_INTER_AGENT_PERMISSION, null);
+        mBackupRestore.onBackupDelivered();
+    }
+
     /**
      * @see HealthConnectManager#deleteAllStagedRemoteData
      */
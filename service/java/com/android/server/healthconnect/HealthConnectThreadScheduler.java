@@ -19,15 +19,21 @@ package com.android.server.healthconnect;
 import android.annotation.NonNull;
 import android.app.ActivityManager;
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Slog;
 
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A scheduler class to schedule task on the most relevant thread-pool.
@@ -43,13 +49,45 @@ public final class HealthConnectThreadScheduler {
     private static final long KEEP_ALIVE_TIME_SHARED = 60L;
     private static final int NUM_EXECUTOR_THREADS_CONTROLLER = 1;
     private static final long KEEP_ALIVE_TIME_CONTROLLER = 60L;
+    private static final int NUM_EXECUTOR_THREADS_AGGREGATION = 3;
+    private static final long KEEP_ALIVE_TIME_AGGREGATION = 60L;
+    private static final long KEEP_ALIVE_TIME_READ = 60L;
+    private static final int MAX_NUM_EXECUTOR_THREADS_READ = 8;
+
+    /** Lane of foreground client tasks which write to the database. */
+    public static final int LANE_FOREGROUND_WRITE = 0;
+    /** Lane of foreground client tasks which only read from the database. */
+    public static final int LANE_FOREGROUND_READ = 1;
+    /** Lane of background client tasks which write to the database. */
+    public static final int LANE_BACKGROUND_WRITE = 2;
+    /** Lane of background client tasks which only read from the database. */
+    public static final int LANE_BACKGROUND_READ = 3;
+
+    private static final int NUM_LANES = 4;
 
     // Scheduler to run the tasks in a RR fashion based on client package names.
     private static final HealthConnectRoundRobinScheduler
             HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER =
                     new HealthConnectRoundRobinScheduler();
+    // Scheduler to run the read only tasks in a RR fashion based on client package names.
+    private static final HealthConnectRoundRobinScheduler
+            HEALTH_CONNECT_BACKGROUND_READ_ROUND_ROBIN_SCHEDULER =
+                    new HealthConnectRoundRobinScheduler();
     private static final String TAG = "HealthConnectScheduler";
 
+    private static final QueueMetrics[] QUEUE_METRICS = new QueueMetrics[NUM_LANES];
+
+    static {
+        for (int lane = 0; lane < NUM_LANES; lane++) {
+            QUEUE_METRICS[lane] = new QueueMetrics();
+        }
+    }
+
+    private static volatile int sNumExecutorThreadsForegroundRead =
+            HealthConnectDeviceConfigManager.FOREGROUND_READ_THREAD_COUNT_DEFAULT_FLAG_VALUE;
+    private static volatile int sNumExecutorThreadsBackgroundRead =
+            HealthConnectDeviceConfigManager.BACKGROUND_READ_THREAD_COUNT_DEFAULT_FLAG_VALUE;
+
     // Executor to run HC background tasks
     @VisibleForTesting
     static volatile ThreadPoolExecutor sBackgroundThreadExecutor =
@@ -86,6 +124,17 @@ public final class HealthConnectThreadScheduler {
                     KEEP_ALIVE_TIME_CONTROLLER,
                     TimeUnit.SECONDS,
                     new LinkedBlockingQueue<>());
+    // Executor to run the aggregations of a client request in parallel with each other
+    @VisibleForTesting
+    static volatile ThreadPoolExecutor sAggregationExecutor = createAggregationExecutor();
+    // Executor to run HC read only tasks for foreground clients
+    @VisibleForTesting
+    static volatile ThreadPoolExecutor sForegroundReadExecutor =
+            createReadExecutor(sNumExecutorThreadsForegroundRead);
+    // Executor to run HC read only tasks for background clients
+    @VisibleForTesting
+    static volatile ThreadPoolExecutor sBackgroundReadExecutor =
+            createReadExecutor(sNumExecutorThreadsBackgroundRead);
 
     public static void resetThreadPools() {
         sInternalBackgroundExecutor =
@@ -119,16 +168,42 @@ public final class HealthConnectThreadScheduler {
                         KEEP_ALIVE_TIME_CONTROLLER,
                         TimeUnit.SECONDS,
                         new LinkedBlockingQueue<>());
+
+        sAggregationExecutor = createAggregationExecutor();
+        sForegroundReadExecutor = createReadExecutor(sNumExecutorThreadsForegroundRead);
+        sBackgroundReadExecutor = createReadExecutor(sNumExecutorThreadsBackgroundRead);
         HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.resume();
+        HEALTH_CONNECT_BACKGROUND_READ_ROUND_ROBIN_SCHEDULER.resume();
     }
 
     static void shutdownThreadPools() {
         HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.killTasksAndPauseScheduler();
+        HEALTH_CONNECT_BACKGROUND_READ_ROUND_ROBIN_SCHEDULER.killTasksAndPauseScheduler();
 
         sInternalBackgroundExecutor.shutdownNow();
         sBackgroundThreadExecutor.shutdownNow();
         sForegroundExecutor.shutdownNow();
         sControllerExecutor.shutdownNow();
+        sAggregationExecutor.shutdownNow();
+        sForegroundReadExecutor.shutdownNow();
+        sBackgroundReadExecutor.shutdownNow();
+    }
+
+    /**
+     * Updates the number of threads running read only client tasks. Writes stay on a single thread
+     * per lane, as the database only allows one writer at a time.
+     */
+    static void updateReadThreadCounts(int foregroundThreadCount, int backgroundThreadCount) {
+        sNumExecutorThreadsForegroundRead = getValidReadThreadCount(foregroundThreadCount);
+        sNumExecutorThreadsBackgroundRead = getValidReadThreadCount(backgroundThreadCount);
+        setPoolSize(sForegroundReadExecutor, sNumExecutorThreadsForegroundRead);
+        setPoolSize(sBackgroundReadExecutor, sNumExecutorThreadsBackgroundRead);
+    }
+
+    /** Returns the queue metrics of the given lane, e.g. {@link #LANE_FOREGROUND_READ}. */
+    @NonNull
+    public static QueueMetrics getQueueMetrics(int lane) {
+        return QUEUE_METRICS[lane];
     }
 
     /** Schedules the task on the executor dedicated for performing internal tasks */
@@ -136,6 +211,51 @@ public final class HealthConnectThreadScheduler {
         sInternalBackgroundExecutor.execute(getSafeRunnable(task));
     }
 
+    /**
+     * Runs the given aggregation tasks in parallel and waits for all of them to finish. The first
+     * task is run on the calling thread, the others on the executor dedicated for aggregations.
+     *
+     * @return results of the tasks, in the same order as the tasks
+     * @throws RuntimeException thrown by any of the tasks, in which case the remaining tasks are
+     *     cancelled
+     */
+    public static <T> List<T> runAggregationTasks(@NonNull List<Callable<T>> tasks) {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (int i = 1; i < tasks.size(); i++) {
+                futures.add(sAggregationExecutor.submit(tasks.get(i)));
+            }
+
+            List<T> results = new ArrayList<>(tasks.size());
+            if (!tasks.isEmpty()) {
+                results.add(tasks.get(0).call());
+            }
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(/* mayInterruptIfRunning= */ true);
+            }
+        }
+    }
+
     /** Schedules the task on the executor dedicated for performing controller tasks */
     static void scheduleControllerTask(Runnable task) {
         sControllerExecutor.execute(getSafeRunnable(task));
@@ -143,44 +263,118 @@ public final class HealthConnectThreadScheduler {
 
     /** Schedules the task on the best possible executor based on the parameters */
     static void schedule(Context context, @NonNull Runnable task, int uid, boolean isController) {
+        schedule(context, task, uid, isController, /* isReadOnly= */ false);
+    }
+
+    /**
+     * Schedules the task on the best possible executor based on the parameters. Read only tasks are
+     * run on separate executors, which can run several tasks at once.
+     */
+    static void schedule(
+            Context context,
+            @NonNull Runnable task,
+            int uid,
+            boolean isController,
+            boolean isReadOnly) {
+        schedule(context, task, uid, isController, isReadOnly, /* cost= */ 1);
+    }
+
+    /**
+     * Schedules the task on the best possible executor based on the parameters. Background tasks
+     * of a higher {@code cost} are delayed in favour of other clients, see {@link
+     * HealthConnectRoundRobinScheduler#getCostOfRecords}.
+     */
+    static void schedule(
+            Context context,
+            @NonNull Runnable task,
+            int uid,
+            boolean isController,
+            boolean isReadOnly,
+            int cost) {
         if (isController) {
             sControllerExecutor.execute(getSafeRunnable(task));
             return;
         }
 
         if (isUidInForeground(context, uid)) {
-            sForegroundExecutor.execute(
+            int lane = isReadOnly ? LANE_FOREGROUND_READ : LANE_FOREGROUND_WRITE;
+            ThreadPoolExecutor executor =
+                    isReadOnly ? sForegroundReadExecutor : sForegroundExecutor;
+            executor.execute(
                     getSafeRunnable(
-                            () -> {
-                                if (!isUidInForeground(context, uid)) {
-                                    // The app is no longer in foreground so move the task to
-                                    // background thread. This is because foreground thread should
-                                    // only be used by the foreground app and since the request of
-                                    // this task is no longer in foreground we don't want it to
-                                    // consume foreground resource anymore.
-                                    HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.addTask(
-                                            uid, task);
-                                    sBackgroundThreadExecutor.execute(
-                                            () ->
-                                                    HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER
-                                                            .getNextTask()
-                                                            .run());
-                                    return;
-                                }
-
-                                task.run();
-                            }));
+                            QUEUE_METRICS[lane].track(
+                                    () -> {
+                                        if (!isUidInForeground(context, uid)) {
+                                            // The app is no longer in foreground so move the task
+                                            // to background thread. This is because foreground
+                                            // thread should only be used by the foreground app and
+                                            // since the request of this task is no longer in
+                                            // foreground we don't want it to consume foreground
+                                            // resource anymore.
+                                            scheduleInBackground(task, uid, isReadOnly, cost);
+                                            return;
+                                        }
+
+                                        task.run();
+                                    })));
         } else {
-            HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.addTask(uid, task);
-            sBackgroundThreadExecutor.execute(
-                    getSafeRunnable(
-                            () ->
-                                    HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER
-                                            .getNextTask()
-                                            .run()));
+            scheduleInBackground(task, uid, isReadOnly, cost);
         }
     }
 
+    private static void scheduleInBackground(
+            Runnable task, int uid, boolean isReadOnly, int cost) {
+        HealthConnectRoundRobinScheduler roundRobinScheduler =
+                isReadOnly
+                        ? HEALTH_CONNECT_BACKGROUND_READ_ROUND_ROBIN_SCHEDULER
+                        : HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER;
+        ThreadPoolExecutor executor =
+                isReadOnly ? sBackgroundReadExecutor : sBackgroundThreadExecutor;
+        int lane = isReadOnly ? LANE_BACKGROUND_READ : LANE_BACKGROUND_WRITE;
+        roundRobinScheduler.addTask(uid, QUEUE_METRICS[lane].track(task), cost);
+        executor.execute(getSafeRunnable(() -> roundRobinScheduler.getNextTask().run()));
+    }
+
+    private static ThreadPoolExecutor createReadExecutor(int threadCount) {
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        threadCount,
+                        threadCount,
+                        KEEP_ALIVE_TIME_READ,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static int getValidReadThreadCount(int threadCount) {
+        return Math.max(1, Math.min(threadCount, MAX_NUM_EXECUTOR_THREADS_READ));
+    }
+
+    private static void setPoolSize(ThreadPoolExecutor executor, int threadCount) {
+        // The maximum pool size can't be below the core pool size at any point.
+        if (threadCount > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threadCount);
+            executor.setCorePoolSize(threadCount);
+        } else {
+            executor.setCorePoolSize(threadCount);
+            executor.setMaximumPoolSize(threadCount);
+        }
+    }
+
+    private static ThreadPoolExecutor createAggregationExecutor() {
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        NUM_EXECUTOR_THREADS_AGGREGATION,
+                        NUM_EXECUTOR_THREADS_AGGREGATION,
+                        KEEP_ALIVE_TIME_AGGREGATION,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>());
+        // Aggregations are bursty, don't keep the threads around when there are none.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     private static boolean isUidInForeground(Context context, int uid) {
         ActivityManager activityManager = context.getSystemService(ActivityManager.class);
         Objects.requireNonNull(activityManager);
@@ -209,4 +403,47 @@ public final class HealthConnectThreadScheduler {
             }
         };
     }
+
+    /** Metrics of the tasks scheduled on one lane, e.g. to tune the number of threads. */
+    public static final class QueueMetrics {
+        private final AtomicLong mScheduledTaskCount = new AtomicLong();
+        private final AtomicLong mStartedTaskCount = new AtomicLong();
+        private final AtomicLong mTotalQueueTimeMillis = new AtomicLong();
+        private final AtomicLong mMaxQueueTimeMillis = new AtomicLong();
+
+        private QueueMetrics() {}
+
+        /** Returns the number of tasks scheduled on the lane. */
+        public long getScheduledTaskCount() {
+            return mScheduledTaskCount.get();
+        }
+
+        /** Returns the number of tasks scheduled on the lane which are yet to start. */
+        public long getQueuedTaskCount() {
+            return mScheduledTaskCount.get() - mStartedTaskCount.get();
+        }
+
+        /** Returns the average time tasks waited to start, in milliseconds. */
+        public long getAverageQueueTimeMillis() {
+            long startedTaskCount = mStartedTaskCount.get();
+            return startedTaskCount == 0 ? 0 : mTotalQueueTimeMillis.get() / startedTaskCount;
+        }
+
+        /** Returns the longest time a task waited to start, in milliseconds. */
+        public long getMaxQueueTimeMillis() {
+            return mMaxQueueTimeMillis.get();
+        }
+
+        Runnable track(Runnable task) {
+            mScheduledTaskCount.incrementAndGet();
+            final long scheduledTime = SystemClock.elapsedRealtime();
+            return () -> {
+                long queueTime = SystemClock.elapsedRealtime() - scheduledTime;
+                mStartedTaskCount.incrementAndGet();
+                mTotalQueueTimeMillis.addAndGet(queueTime);
+                mMaxQueueTimeMillis.accumulateAndGet(queueTime, Math::max);
+                task.run();
+            };
+        }
+    }
 }
@@ -18,6 +18,9 @@ package com.android.server.healthconnect.backuprestore;
 
 import static android.health.connect.Constants.DEFAULT_INT;
 import static android.health.connect.Constants.DEFAULT_LONG;
+import static android.health.connect.Constants.DEFAULT_PAGE_SIZE;
+import static android.health.connect.Constants.DELETE;
+import static android.health.connect.Constants.UPSERT;
 import static android.health.connect.HealthConnectDataState.RESTORE_ERROR_FETCHING_DATA;
 import static android.health.connect.HealthConnectDataState.RESTORE_ERROR_NONE;
 import static android.health.connect.HealthConnectDataState.RESTORE_ERROR_UNKNOWN;
@@ -47,14 +50,12 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.health.connect.HealthConnectDataState;
 import android.health.connect.HealthConnectException;
 import android.health.connect.HealthConnectManager.DataDownloadState;
-import android.health.connect.ReadRecordsRequestUsingFilters;
 import android.health.connect.aidl.IDataStagingFinishedCallback;
-import android.health.connect.datatypes.Record;
 import android.health.connect.internal.datatypes.RecordInternal;
-import android.health.connect.internal.datatypes.utils.RecordMapper;
 import android.health.connect.restore.BackupFileNamesSet;
 import android.health.connect.restore.StageRemoteDataException;
 import android.health.connect.restore.StageRemoteDataRequest;
@@ -62,12 +63,12 @@ import android.os.Binder;
 import android.os.ParcelFileDescriptor;
 import android.os.PersistableBundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
-import android.util.Pair;
 import android.util.Slog;
 
 import com.android.internal.annotations.GuardedBy;
@@ -79,7 +80,11 @@ import com.android.server.healthconnect.permission.GrantTimeXmlHelper;
 import com.android.server.healthconnect.permission.UserGrantTimeState;
 import com.android.server.healthconnect.storage.HealthConnectDatabase;
 import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.DeviceInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
@@ -87,6 +92,7 @@ import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
 import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.utils.FilesUtil;
 import com.android.server.healthconnect.utils.RunnableWithThrowable;
 
@@ -94,6 +100,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.file.FileSystems;
@@ -101,11 +109,16 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -156,6 +169,13 @@ public final class BackupRestore {
     private static final String DATA_MERGING_RETRY_CANCELLED_KEY =
             "data_merging_retry_cancelled_key";
 
+    // Share of the staged records merged, in percent, and when merging last made progress.
+    @VisibleForTesting
+    static final String DATA_MERGING_PROGRESS_KEY = "data_merging_progress_key";
+
+    @VisibleForTesting
+    static final String DATA_MERGING_PROGRESS_TIME_KEY = "data_merging_progress_time_key";
+
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({
             INTERNAL_RESTORE_STATE_UNKNOWN,
@@ -175,6 +195,20 @@ public final class BackupRestore {
     @VisibleForTesting
     static final String GRANT_TIME_FILE_NAME = "health-permissions-first-grant-times.xml";
 
+    // Row id of the last change log covered by the last backup of the records delivered, and when
+    // it was taken. Incremental backups hold the changes after it.
+    @VisibleForTesting static final String BACKUP_WATERMARK_KEY = "backup_watermark_key";
+    @VisibleForTesting static final String BACKUP_WATERMARK_TIME_KEY = "backup_watermark_time_key";
+    // Same as the above for the last backup sent, until it's delivered.
+    private static final String PENDING_BACKUP_WATERMARK_KEY = "pending_backup_watermark_key";
+    private static final String PENDING_BACKUP_WATERMARK_TIME_KEY =
+            "pending_backup_watermark_time_key";
+    // Watermark of the last staged incremental backup merged, from which a merge which stopped
+    // before the last one resumes.
+    @VisibleForTesting
+    static final String MERGED_INCREMENTAL_BACKUP_WATERMARK_KEY =
+            "merged_incremental_backup_watermark_key";
+
     private static final String TAG = "HealthConnectBackupRestore";
     private final ReentrantReadWriteLock mStatesLock = new ReentrantReadWriteLock(true);
     private final FirstGrantTimeManager mFirstGrantTimeManager;
@@ -182,8 +216,8 @@ public final class BackupRestore {
 
     private final Context mStagedDbContext;
     private final Context mContext;
-    private final Map<Long, String> mStagedPackageNamesByAppIds = new ArrayMap<>();
     private final Object mMergingLock = new Object();
+    private final BackupMetrics mBackupMetrics = new BackupMetrics();
 
     @GuardedBy("mMergingLock")
     private HealthConnectDatabase mStagedDatabase;
@@ -335,13 +369,27 @@ public final class BackupRestore {
         Map<String, ParcelFileDescriptor> pfdsByFileName =
                 stageRemoteDataRequest.getPfdsByFileName();
 
-        var backupFilesByFileNames = getBackupFilesByFileNames(userHandle);
+        String databaseName =
+                TransactionManager.getInitialisedInstance().getDatabasePath().getName();
+        long startTime = SystemClock.elapsedRealtime();
+        // Changes logged after this are sent again by the next incremental backup, even if they
+        // are in the snapshot.
+        long snapshotWatermark = ChangeLogsHelper.getInstance().getLatestRowId();
+        var backupFilesByFileNames =
+                getBackupFilesByFileNames(userHandle, pfdsByFileName.keySet());
         pfdsByFileName.forEach(
                 (fileName, pfd) -> {
-                    Path sourceFilePath = backupFilesByFileNames.get(fileName).toPath();
                     try (FileOutputStream outputStream =
                             new FileOutputStream(pfd.getFileDescriptor())) {
-                        Files.copy(sourceFilePath, outputStream);
+                        if (IncrementalBackup.isIncrementalBackupFileName(fileName)) {
+                            writeIncrementalBackup(outputStream);
+                            return;
+                        }
+                        File sourceFile = backupFilesByFileNames.get(fileName);
+                        Files.copy(sourceFile.toPath(), outputStream);
+                        if (fileName.equals(databaseName)) {
+                            onDatabaseBackedUp(sourceFile.length(), snapshotWatermark, startTime);
+                        }
                     } catch (IOException | SecurityException e) {
                         Slog.e(TAG, "Failed to send " + fileName + " for backup", e);
                     } finally {
@@ -352,6 +400,43 @@ public final class BackupRestore {
                         }
                     }
                 });
+
+        // The snapshot of the database is only kept until it is sent.
+        File databaseSnapshot = backupFilesByFileNames.get(databaseName);
+        if (databaseSnapshot != null) {
+            databaseSnapshot.delete();
+        }
+    }
+
+    /**
+     * Advances the backup watermark to the one of the last backup sent, now that it's delivered.
+     * Until then, incremental backups keep holding the changes of the backups which may have
+     * failed to upload.
+     */
+    public void onBackupDelivered() {
+        String watermark =
+                PreferenceHelper.getInstance().getPreference(PENDING_BACKUP_WATERMARK_KEY);
+        String watermarkTime =
+                PreferenceHelper.getInstance().getPreference(PENDING_BACKUP_WATERMARK_TIME_KEY);
+        if (watermark == null
+                || watermark.isEmpty()
+                || watermarkTime == null
+                || watermarkTime.isEmpty()) {
+            return;
+        }
+
+        HashMap<String, String> preferences = new HashMap<>();
+        preferences.put(BACKUP_WATERMARK_KEY, watermark);
+        preferences.put(BACKUP_WATERMARK_TIME_KEY, watermarkTime);
+        preferences.put(PENDING_BACKUP_WATERMARK_KEY, "");
+        preferences.put(PENDING_BACKUP_WATERMARK_TIME_KEY, "");
+        PreferenceHelper.getInstance().insertOrReplacePreferencesTransaction(preferences);
+    }
+
+    /** Returns the size and duration of the backups. */
+    @NonNull
+    public BackupMetrics getBackupMetrics() {
+        return mBackupMetrics;
     }
 
     /** Get the file names of all the files that are transported during backup / restore. */
@@ -384,6 +469,7 @@ public final class BackupRestore {
             mStagedDbContext.deleteDatabase(HealthConnectDatabase.getName());
             mStagedDatabase = null;
             FilesUtil.deleteDir(getStagedRemoteDataDirectoryForUser(userHandle.getIdentifier()));
+            PreferenceHelper.getInstance().removeKey(MERGED_INCREMENTAL_BACKUP_WATERMARK_KEY);
         }
         setDataDownloadState(DATA_DOWNLOAD_STATE_UNKNOWN, true /* force */);
         setInternalRestoreState(INTERNAL_RESTORE_STATE_UNKNOWN, true /* force */);
@@ -582,18 +668,31 @@ public final class BackupRestore {
 
         setInternalRestoreState(INTERNAL_RESTORE_STATE_MERGING_IN_PROGRESS, false);
         mergeGrantTimes();
-        mergeDatabase();
+        if (!mergeDatabase()) {
+            // The staged data left is merged by the next attempt.
+            setInternalRestoreState(INTERNAL_RESTORE_STATE_STAGING_DONE, true /* force */);
+            return;
+        }
         setInternalRestoreState(INTERNAL_RESTORE_STATE_MERGING_DONE, false);
     }
 
-    private Map<String, File> getBackupFilesByFileNames(UserHandle userHandle) {
+    private Map<String, File> getBackupFilesByFileNames(
+            UserHandle userHandle, Set<String> fileNames) {
         ArrayMap<String, File> backupFilesByFileNames = new ArrayMap<>();
 
-        File databasePath = TransactionManager.getInitialisedInstance().getDatabasePath();
-        backupFilesByFileNames.put(databasePath.getName(), databasePath);
-
         File backupDataDir = getBackupDataDirectoryForUser(userHandle.getIdentifier());
         backupDataDir.mkdirs();
+
+        // The live database file can change while it is copied, and misses the last commits until
+        // the write-ahead log is checkpointed, so a snapshot is sent instead.
+        String databaseName =
+                TransactionManager.getInitialisedInstance().getDatabasePath().getName();
+        if (fileNames.contains(databaseName)) {
+            File databaseSnapshot = new File(backupDataDir, databaseName);
+            TransactionManager.getInitialisedInstance().snapshotTo(databaseSnapshot);
+            backupFilesByFileNames.put(databaseName, databaseSnapshot);
+        }
+
         File grantTimeFile = new File(backupDataDir, GRANT_TIME_FILE_NAME);
         try {
             grantTimeFile.createNewFile();
@@ -607,6 +706,99 @@ public final class BackupRestore {
         return backupFilesByFileNames;
     }
 
+    private void onDatabaseBackedUp(long sizeBytes, long watermark, long startTime) {
+        setPendingBackupWatermark(watermark);
+        long durationMillis = SystemClock.elapsedRealtime() - startTime;
+        mBackupMetrics.onFullBackup(sizeBytes, durationMillis);
+        Slog.i(TAG, "Database backup of " + sizeBytes + " bytes took " + durationMillis + " ms");
+    }
+
+    /**
+     * Writes the records changed since the last backup delivered into {@code outputStream}, see
+     * {@link IncrementalBackup}. Nothing is written if these changes are unknown, e.g. if the change
+     * logs since the last backup were deleted, in which case the database needs to be backed up.
+     */
+    private void writeIncrementalBackup(OutputStream outputStream) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+        long fromWatermark = getBackupWatermark();
+        if (fromWatermark == DEFAULT_LONG) {
+            Slog.w(TAG, "No incremental backup as the changes since the last backup are unknown.");
+            return;
+        }
+
+        TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
+        long toWatermark = ChangeLogsHelper.getInstance().getLatestRowId();
+        Map<Integer, Map<Integer, Set<UUID>>> changedUuids =
+                ChangeLogsHelper.getInstance().getChangedUuids(fromWatermark, toWatermark);
+        IncrementalBackup.Writer writer =
+                new IncrementalBackup.Writer(
+                        outputStream,
+                        transactionManager.getDatabaseVersion(),
+                        fromWatermark,
+                        toWatermark);
+        for (var entry : changedUuids.getOrDefault(DELETE, Collections.emptyMap()).entrySet()) {
+            writer.writeDeletes(entry.getKey(), entry.getValue());
+        }
+        int recordCount = 0;
+        for (var entry : changedUuids.getOrDefault(UPSERT, Collections.emptyMap()).entrySet()) {
+            List<UUID> uuids = new ArrayList<>(entry.getValue());
+            for (int start = 0; start < uuids.size(); start += DEFAULT_PAGE_SIZE) {
+                List<UUID> pageUuids =
+                        uuids.subList(start, Math.min(start + DEFAULT_PAGE_SIZE, uuids.size()));
+                // Records deleted since are not found, and in the deletes of the next backup.
+                List<RecordInternal<?>> records =
+                        transactionManager.readRecords(
+                                new ReadTransactionRequest(
+                                        Map.of(entry.getKey(), pageUuids), DEFAULT_LONG));
+                writer.writeRecords(records);
+                recordCount += records.size();
+            }
+        }
+        long sizeBytes = writer.finish();
+        setPendingBackupWatermark(toWatermark);
+
+        long durationMillis = SystemClock.elapsedRealtime() - startTime;
+        mBackupMetrics.onIncrementalBackup(sizeBytes, durationMillis, recordCount);
+        Slog.i(
+                TAG,
+                "Incremental backup of "
+                        + recordCount
+                        + " records, "
+                        + sizeBytes
+                        + " bytes, took "
+                        + durationMillis
+                        + " ms");
+    }
+
+    private long getBackupWatermark() {
+        String watermark = PreferenceHelper.getInstance().getPreference(BACKUP_WATERMARK_KEY);
+        String watermarkTime =
+                PreferenceHelper.getInstance().getPreference(BACKUP_WATERMARK_TIME_KEY);
+        if (watermark == null || watermarkTime == null) {
+            return DEFAULT_LONG;
+        }
+
+        // Change logs are deleted after a while, whether they were backed up or not.
+        Instant oldestChangeLogTime =
+                Instant.now()
+                        .minus(
+                                ChangeLogsRequestHelper.DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS - 1,
+                                ChronoUnit.DAYS);
+        if (Instant.ofEpochMilli(Long.parseLong(watermarkTime)).isBefore(oldestChangeLogTime)) {
+            return DEFAULT_LONG;
+        }
+        return Long.parseLong(watermark);
+    }
+
+    /** Sets the watermark of the backup sent, which becomes the backup watermark once delivered. */
+    private void setPendingBackupWatermark(long watermark) {
+        HashMap<String, String> preferences = new HashMap<>();
+        preferences.put(PENDING_BACKUP_WATERMARK_KEY, String.valueOf(watermark));
+        preferences.put(
+                PENDING_BACKUP_WATERMARK_TIME_KEY, String.valueOf(Instant.now().toEpochMilli()));
+        PreferenceHelper.getInstance().insertOrReplacePreferencesTransaction(preferences);
+    }
+
     @DataDownloadState private int getDataDownloadState() {
         mStatesLock.readLock().lock();
         try {
@@ -818,7 +1010,15 @@ public final class BackupRestore {
 
     private void executeMergingTimeoutJob() {
         @InternalRestoreState int internalRestoreState = getInternalRestoreState();
-        if (internalRestoreState == INTERNAL_RESTORE_STATE_MERGING_IN_PROGRESS) {
+        if (internalRestoreState == INTERNAL_RESTORE_STATE_MERGING_IN_PROGRESS
+                && hasMergingProgressedSinceTimeoutScheduled()) {
+            Slog.i(TAG, "Merging still in progress, restarting its timeout");
+            PreferenceHelper.getInstance()
+                    .insertOrReplacePreference(DATA_MERGING_TIMEOUT_KEY, "");
+            PreferenceHelper.getInstance()
+                    .insertOrReplacePreference(DATA_MERGING_TIMEOUT_CANCELLED_KEY, "");
+            scheduleMergingTimeoutJob();
+        } else if (internalRestoreState == INTERNAL_RESTORE_STATE_MERGING_IN_PROGRESS) {
             Slog.i(TAG, "Executing merging timeout job");
             setInternalRestoreState(INTERNAL_RESTORE_STATE_MERGING_DONE, false);
             setDataRestoreError(RESTORE_ERROR_UNKNOWN);
@@ -951,12 +1151,16 @@ public final class BackupRestore {
                 mCurrentForegroundUser, userGrantTimeState);
     }
 
-    private void mergeDatabase() {
+    /**
+     * Returns whether all the staged data was merged. Otherwise the staged db and the incremental
+     * backups left are kept for the next attempt.
+     */
+    private boolean mergeDatabase() {
         synchronized (mMergingLock) {
             if (!mStagedDbContext.getDatabasePath(HealthConnectDatabase.getName()).exists()) {
                 Slog.i(TAG, "No staged db found.");
                 // no db was staged
-                return;
+                return true;
             }
 
             // We never read from the staged db if the module version is behind the staged db
@@ -965,146 +1169,179 @@ public final class BackupRestore {
             // present in the staged db.
 
             // We are sure to migrate the db now, so prepare
-            prepInternalDataPerStagedDb();
+            Map<Long, Long> appInfoIds = prepInternalDataPerStagedDb();
+            Map<Long, Long> deviceInfoIds;
+            try (Cursor cursor =
+                    read(new ReadTableRequest(DeviceInfoHelper.getInstance().getTableName()))) {
+                deviceInfoIds = DeviceInfoHelper.getInstance().getOrInsertDeviceInfoIds(cursor);
+            }
+            long baseWatermark = getLatestChangeLogRowId(getStagedDatabase());
+            String mergedWatermark =
+                    PreferenceHelper.getInstance()
+                            .getPreference(MERGED_INCREMENTAL_BACKUP_WATERMARK_KEY);
+            if (mergedWatermark != null) {
+                baseWatermark = Math.max(baseWatermark, Long.parseLong(mergedWatermark));
+            }
 
-            // Go through each record type and migrate all records of that type.
-            var recordTypeMap = RecordMapper.getInstance().getRecordIdToExternalRecordClassMap();
-            for (var recordTypeMapEntry : recordTypeMap.entrySet()) {
-                mergeRecordsOfType(recordTypeMapEntry.getKey(), recordTypeMapEntry.getValue());
+            // Copy the records of all types, and the tables they own, into the existing
+            // healthconnect db.
+            List<Integer> mergedRecordTypes =
+                    new StagedDatabaseMerger(
+                                    getStagedDatabase().getWritableDatabase(),
+                                    TransactionManager.getInitialisedInstance().getDatabasePath(),
+                                    appInfoIds,
+                                    deviceInfoIds)
+                            .merge(
+                                    RecordHelperProvider.getInstance().getRecordHelpers().values(),
+                                    this::onMergingProgress);
+            ActivityDateHelper.getInstance().reSyncByRecordTypeIds(mergedRecordTypes);
+            AppInfoHelper.getInstance().syncAppInfoRecordTypesUsed();
+
+            // Then apply the changes made after the staged db was backed up.
+            if (!mergeIncrementalBackups(baseWatermark)) {
+                return false;
             }
 
             // Delete the staged db as we are done merging.
             Slog.i(TAG, "Deleting staged db after merging.");
             mStagedDbContext.deleteDatabase(HealthConnectDatabase.getName());
             mStagedDatabase = null;
+            PreferenceHelper.getInstance().removeKey(MERGED_INCREMENTAL_BACKUP_WATERMARK_KEY);
+            return true;
         }
     }
 
-    private <T extends Record> void mergeRecordsOfType(int recordType, Class<T> recordTypeClass) {
-        RecordHelper<?> recordHelper =
-                RecordHelperProvider.getInstance().getRecordHelper(recordType);
-        // Read all the records of the given type from the staged db and insert them into the
-        // existing healthconnect db.
-        long token = DEFAULT_LONG;
-        do {
-            var recordsToMergeAndToken = getRecordsToMerge(recordTypeClass, token, recordHelper);
-            if (recordsToMergeAndToken.first.isEmpty()) {
-                break;
-            }
-            Slog.d(TAG, "Found record to merge: " + recordsToMergeAndToken.first.getClass());
-            // Using null package name for making insertion for two reasons:
-            // 1. we don't want to update the logs for this package.
-            // 2. we don't want to update the package name in the records as they already have the
-            //    correct package name.
-            UpsertTransactionRequest upsertTransactionRequest =
-                    new UpsertTransactionRequest(
-                            null /* packageName */,
-                            recordsToMergeAndToken.first,
-                            mContext,
-                            true /* isInsertRequest */,
-                            true /* skipPackageNameAndLogs */);
-            TransactionManager.getInitialisedInstance()
-                    .insertAll(upsertTransactionRequest.getUpsertRequests());
+    private void onMergingProgress(long mergedRecordCount, long totalRecordCount) {
+        long progress = totalRecordCount == 0 ? 100 : mergedRecordCount * 100 / totalRecordCount;
+        HashMap<String, String> preferences = new HashMap<>();
+        preferences.put(DATA_MERGING_PROGRESS_KEY, Long.toString(progress));
+        preferences.put(
+                DATA_MERGING_PROGRESS_TIME_KEY, Long.toString(Instant.now().toEpochMilli()));
+        PreferenceHelper.getInstance().insertOrReplacePreferencesTransaction(preferences);
+        Slog.d(TAG, "Merged " + mergedRecordCount + " of " + totalRecordCount + " records");
+    }
 
-            token = DEFAULT_LONG;
-            if (recordsToMergeAndToken.second != DEFAULT_LONG) {
-                token = recordsToMergeAndToken.second * 2;
-            }
-        } while (token != DEFAULT_LONG);
-
-        // Once all the records of this type have been merged we can delete the table.
-
-        // Passing -1 for startTime and endTime as we don't want to have time based filtering in the
-        // final query.
-        Slog.d(TAG, "Deleting table for: " + recordTypeClass);
-        DeleteTableRequest deleteTableRequest =
-                recordHelper.getDeleteTableRequest(
-                        null /* packageFilters */,
-                        DEFAULT_LONG /* startTime */,
-                        DEFAULT_LONG /* endTime */,
-                        false /* useLocalTimeFilter */);
-        getStagedDatabase().getWritableDatabase().execSQL(deleteTableRequest.getDeleteCommand());
+    /**
+     * Returns whether merging made progress since the merging timeout job was scheduled, in which
+     * case it's not stuck, just merging lots of records.
+     */
+    private boolean hasMergingProgressedSinceTimeoutScheduled() {
+        String progressTimeStr =
+                PreferenceHelper.getInstance().getPreference(DATA_MERGING_PROGRESS_TIME_KEY);
+        String startTimeStr =
+                PreferenceHelper.getInstance().getPreference(DATA_MERGING_TIMEOUT_KEY);
+        if (progressTimeStr == null
+                || progressTimeStr.trim().isEmpty()
+                || startTimeStr == null
+                || startTimeStr.trim().isEmpty()) {
+            return false;
+        }
+        return Long.parseLong(progressTimeStr) > Long.parseLong(startTimeStr);
     }
 
-    private <T extends Record> Pair<List<RecordInternal<?>>, Long> getRecordsToMerge(
-            Class<T> recordTypeClass, long requestToken, RecordHelper<?> recordHelper) {
-        ReadRecordsRequestUsingFilters<T> readRecordsRequest =
-                new ReadRecordsRequestUsingFilters.Builder<>(recordTypeClass)
-                        .setAscending(true)
-                        .setPageSize(2000)
-                        .setPageToken(requestToken)
-                        .build();
-
-        Map<String, Boolean> extraReadPermsMapping = new ArrayMap<>();
-        List<String> extraReadPerms = recordHelper.getExtraReadPermissions();
-        for (var extraReadPerm : extraReadPerms) {
-            extraReadPermsMapping.put(extraReadPerm, true);
-        }
-
-        // Working with startDateAccess of -1 as we don't want to have time based filtering in the
-        // query.
-        ReadTransactionRequest readTransactionRequest =
-                new ReadTransactionRequest(
-                        null,
-                        readRecordsRequest.toReadRecordsRequestParcel(),
-                        DEFAULT_LONG /* startDateAccess */,
-                        false,
-                        extraReadPermsMapping);
-
-        List<RecordInternal<?>> recordInternalList;
-        long token = DEFAULT_LONG;
-        ReadTableRequest readTableRequest = readTransactionRequest.getReadRequests().get(0);
-        try (Cursor cursor = read(readTableRequest)) {
-            recordInternalList =
-                    recordHelper.getInternalRecords(
-                            cursor, readTableRequest.getPageSize(), mStagedPackageNamesByAppIds);
-            String startTimeColumnName = recordHelper.getStartTimeColumnName();
-
-            populateInternalRecordsWithExtraData(recordInternalList, readTableRequest);
-
-            // Get the token for the next read request.
-            if (cursor.moveToNext()) {
-                token = getCursorLong(cursor, startTimeColumnName);
+    /**
+     * Applies the staged incremental backups which chain from {@code baseWatermark}, the last
+     * change log of the staged db or of the last incremental backup merged, and deletes them.
+     *
+     * <p>Each backup is applied in one transaction, together with its watermark. If one can't be
+     * applied, it and the backups after it are kept for the next attempt, as they can't be applied
+     * without its changes.
+     *
+     * @return whether all the backups of the chain were applied
+     */
+    private boolean mergeIncrementalBackups(long baseWatermark) {
+        File[] files =
+                getStagedRemoteDataDirectoryForUser(mCurrentForegroundUser.getIdentifier())
+                        .listFiles(
+                                (dir, name) -> IncrementalBackup.isIncrementalBackupFileName(name));
+        if (files == null || files.length == 0) {
+            return true;
+        }
+
+        TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
+        int currentDbVersion = transactionManager.getDatabaseVersion();
+        for (File file : IncrementalBackup.getChain(baseWatermark, Arrays.asList(files))) {
+            try (InputStream inputStream = new FileInputStream(file)) {
+                IncrementalBackup.Reader reader = new IncrementalBackup.Reader(inputStream);
+                IncrementalBackup.Header header = reader.getHeader();
+                if (header.getDatabaseVersion() > currentDbVersion) {
+                    Slog.i(TAG, "Module needs upgrade for merging " + file.getName());
+                    setDataRestoreError(RESTORE_ERROR_VERSION_DIFF);
+                    return false;
+                }
+                Slog.i(TAG, "Merging incremental backup " + file.getName());
+                transactionManager.runAsTransaction(
+                        db -> {
+                            reader.readSections(new IncrementalBackupMerger(mContext));
+                            PreferenceHelper.getInstance()
+                                    .insertOrReplacePreference(
+                                            MERGED_INCREMENTAL_BACKUP_WATERMARK_KEY,
+                                            String.valueOf(header.getToWatermark()));
+                        });
+            } catch (IOException | SQLiteException e) {
+                Slog.e(TAG, "Failed to merge " + file.getName(), e);
+                // Apps added by the rolled back transaction aren't in the db.
+                AppInfoHelper.getInstance().clearCache();
+                setDataRestoreError(RESTORE_ERROR_UNKNOWN);
+                return false;
             }
+            file.delete();
         }
-        return Pair.create(recordInternalList, token);
-    }
 
-    private Cursor read(ReadTableRequest request) {
-        synchronized (mMergingLock) {
-            return mStagedDatabase.getReadableDatabase().rawQuery(request.getReadCommand(), null);
+        // The backups left are either covered by the ones applied, or after a gap in the chain.
+        Slog.i(TAG, "Deleting staged incremental backups after merging.");
+        for (File file : files) {
+            file.delete();
         }
+        return true;
     }
 
-    private void populateInternalRecordsWithExtraData(
-            List<RecordInternal<?>> records, ReadTableRequest request) {
-        if (request.getExtraReadRequests() == null) {
-            return;
+    private static long getLatestChangeLogRowId(HealthConnectDatabase database) {
+        try (Cursor cursor =
+                database.getReadableDatabase()
+                        .rawQuery(
+                                StorageUtils.getMaxPrimaryKeyQuery(ChangeLogsHelper.TABLE_NAME),
+                                null)) {
+            cursor.moveToFirst();
+            return getCursorLong(cursor, RecordHelper.PRIMARY_COLUMN_NAME);
         }
-        for (ReadTableRequest extraDataRequest : request.getExtraReadRequests()) {
-            Cursor cursorExtraData = read(extraDataRequest);
-            request.getRecordHelper()
-                    .updateInternalRecordsWithExtraFields(
-                            records, cursorExtraData, extraDataRequest.getTableName());
+    }
+
+    private Cursor read(ReadTableRequest request) {
+        synchronized (mMergingLock) {
+            return mStagedDatabase.getReadableDatabase().rawQuery(request.getReadCommand(), null);
         }
     }
 
-    private void prepInternalDataPerStagedDb() {
+    /**
+     * Adds the apps of the staged db, which are not installed, to the health db, and returns the
+     * app ids of the staged db mapped to the ones of the health db.
+     */
+    private Map<Long, Long> prepInternalDataPerStagedDb() {
+        Map<Long, Long> appInfoIds = new ArrayMap<>();
         try (Cursor cursor = read(new ReadTableRequest(AppInfoHelper.TABLE_NAME))) {
             while (cursor.moveToNext()) {
                 long rowId = getCursorLong(cursor, RecordHelper.PRIMARY_COLUMN_NAME);
                 String packageName = getCursorString(cursor, AppInfoHelper.PACKAGE_COLUMN_NAME);
                 String appName = getCursorString(cursor, AppInfoHelper.APPLICATION_COLUMN_NAME);
                 byte[] icon = getCursorBlob(cursor, AppInfoHelper.APP_ICON_COLUMN_NAME);
-                mStagedPackageNamesByAppIds.put(rowId, packageName);
 
                 // If this package is not installed on the target device and is not present in the
                 // health db, then fill the health db with the info from source db.
                 AppInfoHelper.getInstance()
                         .addOrUpdateAppInfoIfNotInstalled(
                                 mContext, packageName, appName, icon, false /* onlyReplace */);
+                try {
+                    appInfoIds.put(
+                            rowId,
+                            AppInfoHelper.getInstance()
+                                    .getOrInsertAppInfoId(packageName, mContext));
+                } catch (IllegalArgumentException e) {
+                    Slog.e(TAG, "Skipping records of " + packageName, e);
+                }
             }
         }
+        return appInfoIds;
     }
 
     @VisibleForTesting
@@ -1117,6 +1354,123 @@ public final class BackupRestore {
         }
     }
 
+    /** Applies the content of incremental backups to the health connect db. */
+    @VisibleForTesting
+    static final class IncrementalBackupMerger implements IncrementalBackup.Consumer {
+        private final Context mContext;
+        private final Set<String> mKnownPackageNames = new ArraySet<>();
+
+        IncrementalBackupMerger(@NonNull Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public void onDeletes(int recordType, @NonNull List<UUID> uuids) {
+            TransactionManager.getInitialisedInstance()
+                    .deleteWithoutChangeLogs(
+                            List.of(
+                                    RecordHelperProvider.getInstance()
+                                            .getRecordHelper(recordType)
+                                            .getDeleteTableRequest(uuids)));
+        }
+
+        @Override
+        public void onRecords(@NonNull List<RecordInternal<?>> records) {
+            Map<Integer, List<UUID>> uuidsByRecordType = new ArrayMap<>();
+            for (RecordInternal<?> record : records) {
+                // Apps which wrote records after the staged db was backed up are not in it.
+                if (mKnownPackageNames.add(record.getPackageName())) {
+                    AppInfoHelper.getInstance()
+                            .addOrUpdateAppInfoIfNotInstalled(
+                                    mContext,
+                                    record.getPackageName(),
+                                    record.getAppName(),
+                                    null /* icon */,
+                                    false /* onlyUpdate */);
+                }
+                uuidsByRecordType
+                        .computeIfAbsent(record.getRecordType(), recordType -> new ArrayList<>())
+                        .add(record.getUuid());
+            }
+
+            UpsertTransactionRequest upsertTransactionRequest =
+                    new UpsertTransactionRequest(
+                            null /* packageName */,
+                            records,
+                            mContext,
+                            false /* isInsertRequest */,
+                            true /* skipPackageNameAndLogs */);
+            TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
+            // Records replace the ones with the same uuids, including their child rows. Both are
+            // committed together, so that a failure in between doesn't lose the records.
+            transactionManager.runAsTransaction(
+                    db -> {
+                        uuidsByRecordType.forEach(this::onDeletes);
+                        transactionManager.insertAll(
+                                upsertTransactionRequest.getUpsertRequests(),
+                                upsertTransactionRequest.getPreferencesToCommit());
+                    });
+            ActivityDateHelper.getInstance().insertRecordDate(records);
+        }
+    }
+
+    /** Size of the backups sent and time taken to write them. */
+    public static final class BackupMetrics {
+        private long mLastFullBackupSizeBytes;
+        private long mLastFullBackupDurationMillis;
+        private long mLastIncrementalBackupSizeBytes;
+        private long mLastIncrementalBackupDurationMillis;
+        private int mLastIncrementalBackupRecordCount;
+        private int mFullBackupCount;
+        private int mIncrementalBackupCount;
+
+        private BackupMetrics() {}
+
+        /** Returns the size of the last snapshot of the database sent. */
+        public synchronized long getLastFullBackupSizeBytes() {
+            return mLastFullBackupSizeBytes;
+        }
+
+        public synchronized long getLastFullBackupDurationMillis() {
+            return mLastFullBackupDurationMillis;
+        }
+
+        public synchronized long getLastIncrementalBackupSizeBytes() {
+            return mLastIncrementalBackupSizeBytes;
+        }
+
+        public synchronized long getLastIncrementalBackupDurationMillis() {
+            return mLastIncrementalBackupDurationMillis;
+        }
+
+        /** Returns the number of records, excluding deletes, in the last incremental backup. */
+        public synchronized int getLastIncrementalBackupRecordCount() {
+            return mLastIncrementalBackupRecordCount;
+        }
+
+        public synchronized int getFullBackupCount() {
+            return mFullBackupCount;
+        }
+
+        public synchronized int getIncrementalBackupCount() {
+            return mIncrementalBackupCount;
+        }
+
+        private synchronized void onFullBackup(long sizeBytes, long durationMillis) {
+            mLastFullBackupSizeBytes = sizeBytes;
+            mLastFullBackupDurationMillis = durationMillis;
+            mFullBackupCount++;
+        }
+
+        private synchronized void onIncrementalBackup(
+                long sizeBytes, long durationMillis, int recordCount) {
+            mLastIncrementalBackupSizeBytes = sizeBytes;
+            mLastIncrementalBackupDurationMillis = durationMillis;
+            mLastIncrementalBackupRecordCount = recordCount;
+            mIncrementalBackupCount++;
+        }
+    }
+
     /**
      * {@link Context} for the staged health connect db.
      *
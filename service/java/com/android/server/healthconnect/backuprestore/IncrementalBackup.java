@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.backuprestore;
+
+import android.annotation.NonNull;
+import android.health.connect.datatypes.RecordTypeIdentifier;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.utils.ParcelRecordConverter;
+import android.os.Parcel;
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Streamed format of the incremental backups of the records.
+ *
+ * <p>An incremental backup holds the records changed after a watermark, the row id of the last
+ * change log covered by the previous backup, up to the last change log when it was taken. It
+ * starts with a header holding the database version and both watermarks, followed by sections of
+ * deleted uuids of a record type, and of records as they were when the backup was taken, which
+ * replace the records with the same uuids. Deletes are written before the records, so that a
+ * record deleted and inserted again with the same uuid is restored.
+ *
+ * <p>Records are written in the dictionary-encoded format of {@link RecordInternal}, one string
+ * table per section, so a backup can only be read by a module with the same or a later database
+ * version.
+ *
+ * @hide
+ */
+public final class IncrementalBackup {
+    /** Prefix of the names of the files holding incremental backups. */
+    public static final String FILE_NAME_PREFIX = "health_connect_changes";
+
+    private static final String TAG = "HealthConnectIncrementalBackup";
+    // "HCIB"
+    private static final int MAGIC = 0x48434942;
+    private static final int FORMAT_VERSION = 1;
+    private static final int SECTION_END = 0;
+    private static final int SECTION_DELETES = 1;
+    private static final int SECTION_RECORDS = 2;
+    // Bounds the memory allocated for a section of a corrupted file.
+    private static final int MAX_SECTION_SIZE_BYTES = 64 * 1024 * 1024;
+
+    private IncrementalBackup() {}
+
+    /** Returns whether {@code fileName} is the name of an incremental backup. */
+    public static boolean isIncrementalBackupFileName(@NonNull String fileName) {
+        return fileName.startsWith(FILE_NAME_PREFIX);
+    }
+
+    /**
+     * Returns the incremental backups of {@code files} to apply on top of a backup covering the
+     * change logs up to {@code baseWatermark}, in the order to apply them.
+     *
+     * <p>Backups already covered are skipped. The chain stops at the first gap, as the backups
+     * after it would leave the records changed in the gap out of date.
+     */
+    @NonNull
+    public static List<File> getChain(long baseWatermark, @NonNull Collection<File> files) {
+        List<Header> headers = new ArrayList<>(files.size());
+        for (File file : files) {
+            try (InputStream inputStream = new FileInputStream(file)) {
+                headers.add(new Reader(inputStream).getHeader().withFile(file));
+            } catch (IOException e) {
+                Slog.e(TAG, "Skipping invalid incremental backup " + file.getName(), e);
+            }
+        }
+        headers.sort(
+                Comparator.comparingLong(Header::getFromWatermark)
+                        .thenComparingLong(Header::getToWatermark));
+
+        List<File> chain = new ArrayList<>(headers.size());
+        long watermark = baseWatermark;
+        for (Header header : headers) {
+            if (header.getToWatermark() <= watermark) {
+                continue;
+            }
+            if (header.getFromWatermark() > watermark) {
+                Slog.w(
+                        TAG,
+                        "Missing changes after "
+                                + watermark
+                                + ", skipping backups from "
+                                + header.getFromWatermark());
+                break;
+            }
+            chain.add(header.mFile);
+            watermark = header.getToWatermark();
+        }
+        return chain;
+    }
+
+    /** Receives the content of an incremental backup, see {@link Reader#readSections}. */
+    public interface Consumer {
+        /** Called with uuids of records of type {@code recordType} which were deleted. */
+        void onDeletes(@RecordTypeIdentifier.RecordType int recordType, @NonNull List<UUID> uuids);
+
+        /** Called with records which were inserted or updated. */
+        void onRecords(@NonNull List<RecordInternal<?>> records);
+    }
+
+    /** Header of an incremental backup. */
+    public static final class Header {
+        private final int mDatabaseVersion;
+        private final long mFromWatermark;
+        private final long mToWatermark;
+        private final File mFile;
+
+        private Header(int databaseVersion, long fromWatermark, long toWatermark, File file) {
+            mDatabaseVersion = databaseVersion;
+            mFromWatermark = fromWatermark;
+            mToWatermark = toWatermark;
+            mFile = file;
+        }
+
+        /** Returns the version of the database the backup was taken from. */
+        public int getDatabaseVersion() {
+            return mDatabaseVersion;
+        }
+
+        /** Returns the row id of the last change log covered by the previous backup. */
+        public long getFromWatermark() {
+            return mFromWatermark;
+        }
+
+        /** Returns the row id of the last change log covered by this backup. */
+        public long getToWatermark() {
+            return mToWatermark;
+        }
+
+        private Header withFile(File file) {
+            return new Header(mDatabaseVersion, mFromWatermark, mToWatermark, file);
+        }
+    }
+
+    /** Writes an incremental backup. The caller owns, and closes, the output stream. */
+    public static final class Writer {
+        private final DataOutputStream mOutputStream;
+
+        public Writer(
+                @NonNull OutputStream outputStream,
+                int databaseVersion,
+                long fromWatermark,
+                long toWatermark)
+                throws IOException {
+            mOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+            mOutputStream.writeInt(MAGIC);
+            mOutputStream.writeInt(FORMAT_VERSION);
+            mOutputStream.writeInt(databaseVersion);
+            mOutputStream.writeLong(fromWatermark);
+            mOutputStream.writeLong(toWatermark);
+        }
+
+        /** Writes that the records of type {@code recordType} with {@code uuids} were deleted. */
+        public void writeDeletes(
+                @RecordTypeIdentifier.RecordType int recordType, @NonNull Collection<UUID> uuids)
+                throws IOException {
+            if (uuids.isEmpty()) {
+                return;
+            }
+            mOutputStream.writeInt(SECTION_DELETES);
+            mOutputStream.writeInt(recordType);
+            mOutputStream.writeInt(uuids.size());
+            for (UUID uuid : uuids) {
+                mOutputStream.writeLong(uuid.getMostSignificantBits());
+                mOutputStream.writeLong(uuid.getLeastSignificantBits());
+            }
+        }
+
+        /** Writes {@code records}, which replace the records with the same uuids. */
+        public void writeRecords(@NonNull List<RecordInternal<?>> records) throws IOException {
+            if (records.isEmpty()) {
+                return;
+            }
+            Map<String, Integer> stringIndexes = new ArrayMap<>();
+            for (RecordInternal<?> record : records) {
+                record.addSharedStringsTo(stringIndexes);
+            }
+            String[] strings = new String[stringIndexes.size()];
+            for (Map.Entry<String, Integer> entry : stringIndexes.entrySet()) {
+                strings[entry.getValue()] = entry.getKey();
+            }
+
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeStringArray(strings);
+                parcel.writeInt(records.size());
+                for (RecordInternal<?> record : records) {
+                    parcel.writeInt(record.getRecordType());
+                    record.writeToParcel(parcel, stringIndexes);
+                }
+                byte[] bytes = parcel.marshall();
+                mOutputStream.writeInt(SECTION_RECORDS);
+                mOutputStream.writeInt(bytes.length);
+                mOutputStream.write(bytes);
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        /** Ends the backup, and returns its size. */
+        public long finish() throws IOException {
+            mOutputStream.writeInt(SECTION_END);
+            mOutputStream.flush();
+            return mOutputStream.size();
+        }
+    }
+
+    /** Reads an incremental backup. The caller owns, and closes, the input stream. */
+    public static final class Reader {
+        private final DataInputStream mInputStream;
+        private final Header mHeader;
+
+        public Reader(@NonNull InputStream inputStream) throws IOException {
+            mInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+            if (mInputStream.readInt() != MAGIC) {
+                throw new IOException("Not an incremental backup");
+            }
+            int formatVersion = mInputStream.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported incremental backup format: " + formatVersion);
+            }
+            mHeader =
+                    new Header(
+                            mInputStream.readInt(),
+                            mInputStream.readLong(),
+                            mInputStream.readLong(),
+                            null);
+        }
+
+        @NonNull
+        public Header getHeader() {
+            return mHeader;
+        }
+
+        /** Reads the sections of the backup into {@code consumer}, in the order written. */
+        public void readSections(@NonNull Consumer consumer) throws IOException {
+            while (true) {
+                int section = mInputStream.readInt();
+                switch (section) {
+                    case SECTION_END:
+                        return;
+                    case SECTION_DELETES:
+                        readDeletes(consumer);
+                        break;
+                    case SECTION_RECORDS:
+                        readRecords(consumer);
+                        break;
+                    default:
+                        throw new IOException("Invalid section: " + section);
+                }
+            }
+        }
+
+        private void readDeletes(Consumer consumer) throws IOException {
+            int recordType = mInputStream.readInt();
+            int count = mInputStream.readInt();
+            if (count < 0 || count > MAX_SECTION_SIZE_BYTES / 16) {
+                throw new IOException("Invalid number of deletes: " + count);
+            }
+            List<UUID> uuids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                uuids.add(new UUID(mInputStream.readLong(), mInputStream.readLong()));
+            }
+            consumer.onDeletes(recordType, uuids);
+        }
+
+        private void readRecords(Consumer consumer) throws IOException {
+            int length = mInputStream.readInt();
+            if (length < 0 || length > MAX_SECTION_SIZE_BYTES) {
+                throw new IOException("Invalid section size: " + length);
+            }
+            byte[] bytes = new byte[length];
+            mInputStream.readFully(bytes);
+
+            Parcel parcel = Parcel.obtain();
+            List<RecordInternal<?>> records;
+            try {
+                parcel.unmarshall(bytes, 0, length);
+                parcel.setDataPosition(0);
+                List<String> strings = Arrays.asList(parcel.createStringArray());
+                int count = parcel.readInt();
+                records = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int recordType = parcel.readInt();
+                    records.add(
+                            ParcelRecordConverter.getInstance()
+                                    .getRecord(parcel, recordType, strings));
+                }
+            } catch (InstantiationException
+                    | IllegalAccessException
+                    | NoSuchMethodException
+                    | InvocationTargetException
+                    | RuntimeException e) {
+                throw new IOException("Invalid records section", e);
+            } finally {
+                parcel.recycle();
+            }
+            consumer.onRecords(records);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.backuprestore;
+
+import static android.health.connect.Constants.PARENT_KEY;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.DEVICE_INFO_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.UUID_COLUMN_NAME;
+
+import android.annotation.NonNull;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
+import com.android.server.healthconnect.storage.request.CreateTableRequest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the records of a staged db into the health connect db with set-based statements.
+ *
+ * <p>The health connect db is attached to the connection of the staged db, rather than the other
+ * way around, as attaching a db turns off write-ahead logging on the connection it's attached to.
+ * App and device ids of the staged db are remapped to the ids of the health connect db through
+ * temp tables, and the records are copied with {@code INSERT OR IGNORE ... SELECT}, so records
+ * with a uuid or dedupe hash already present are kept as they are. Child tables, such as the
+ * samples of series records, are copied for the records inserted only, with their parent key
+ * remapped to the new row ids.
+ *
+ * <p>Records are copied in chunks of row ids, each in its own transaction, so that writes to the
+ * health connect db are not blocked for long. Chunks are sized by the rows they copy, the rows of
+ * child tables included, as a single series record can have thousands of samples. The staged
+ * records of a table are deleted once the table is merged, so a merge interrupted midway resumes
+ * with the tables left.
+ *
+ * @hide
+ */
+public final class StagedDatabaseMerger {
+    private static final String TAG = "HealthConnectStagedMerger";
+    private static final String LIVE_SCHEMA = "live";
+    private static final String APP_IDS_TABLE = "temp.merge_app_ids";
+    private static final String DEVICE_IDS_TABLE = "temp.merge_device_ids";
+    private static final String ROW_IDS_TABLE = "temp.merge_row_ids";
+    private static final String STAGED_ID_COLUMN_NAME = "staged_id";
+    private static final String LIVE_ID_COLUMN_NAME = "live_id";
+    // Value of the hidden column of table_xinfo for columns which are not generated.
+    private static final int NOT_HIDDEN = 0;
+    private static final int DEFAULT_MAX_CHUNK_ROWS = 5000;
+
+    /** Receives the progress of a merge. */
+    public interface ProgressListener {
+        /** Called after each chunk of records is merged. */
+        void onProgress(long mergedRecordCount, long totalRecordCount);
+    }
+
+    private final SQLiteDatabase mStagedDatabase;
+    private final File mLiveDatabasePath;
+    private final Map<Long, Long> mAppInfoIds;
+    private final Map<Long, Long> mDeviceInfoIds;
+    private final int mMaxChunkRows;
+    private long mMergedRecordCount;
+    private long mTotalRecordCount;
+
+    /**
+     * @param stagedDatabase writable staged db, to which the health connect db gets attached
+     * @param liveDatabasePath path of the health connect db
+     * @param appInfoIds app ids of the staged db mapped to the ones of the health connect db.
+     *     Records of apps not mapped are skipped.
+     * @param deviceInfoIds device ids of the staged db mapped to the ones of the health connect db
+     */
+    public StagedDatabaseMerger(
+            @NonNull SQLiteDatabase stagedDatabase,
+            @NonNull File liveDatabasePath,
+            @NonNull Map<Long, Long> appInfoIds,
+            @NonNull Map<Long, Long> deviceInfoIds) {
+        this(stagedDatabase, liveDatabasePath, appInfoIds, deviceInfoIds, DEFAULT_MAX_CHUNK_ROWS);
+    }
+
+    @VisibleForTesting
+    StagedDatabaseMerger(
+            @NonNull SQLiteDatabase stagedDatabase,
+            @NonNull File liveDatabasePath,
+            @NonNull Map<Long, Long> appInfoIds,
+            @NonNull Map<Long, Long> deviceInfoIds,
+            int maxChunkRows) {
+        mStagedDatabase = stagedDatabase;
+        mLiveDatabasePath = liveDatabasePath;
+        mAppInfoIds = appInfoIds;
+        mDeviceInfoIds = deviceInfoIds;
+        mMaxChunkRows = maxChunkRows;
+    }
+
+    /**
+     * Merges the staged records of {@code recordHelpers}, and returns the types of the records
+     * inserted into the health connect db.
+     */
+    @NonNull
+    public List<Integer> merge(
+            @NonNull Collection<RecordHelper<?>> recordHelpers,
+            @NonNull ProgressListener listener) {
+        // The rollup triggers of the staged db would only slow down the deletes of staged records.
+        dropTriggers();
+
+        mMergedRecordCount = 0;
+        mTotalRecordCount = 0;
+        for (RecordHelper<?> recordHelper : recordHelpers) {
+            mTotalRecordCount +=
+                    DatabaseUtils.queryNumEntries(
+                            mStagedDatabase, recordHelper.getCreateTableRequest().getTableName());
+        }
+        Slog.i(TAG, "Merging " + mTotalRecordCount + " staged records");
+
+        List<Integer> mergedRecordTypes = new ArrayList<>();
+        mStagedDatabase.execSQL(
+                "ATTACH DATABASE ? AS " + LIVE_SCHEMA, new Object[] {mLiveDatabasePath.getPath()});
+        try {
+            createIdTables();
+            for (RecordHelper<?> recordHelper : recordHelpers) {
+                if (mergeTable(recordHelper.getCreateTableRequest(), listener)) {
+                    mergedRecordTypes.add(recordHelper.getRecordIdentifier());
+                }
+            }
+        } finally {
+            dropIdTables();
+            mStagedDatabase.execSQL("DETACH DATABASE " + LIVE_SCHEMA);
+        }
+        return mergedRecordTypes;
+    }
+
+    private boolean mergeTable(CreateTableRequest request, ProgressListener listener) {
+        String tableName = request.getTableName();
+        String insertRecords = getInsertRecordsCommand(tableName);
+        List<String> childTableNames = new ArrayList<>();
+        List<String> insertChildren = new ArrayList<>();
+        for (CreateTableRequest childRequest : request.getChildTableRequests()) {
+            childTableNames.add(childRequest.getTableName());
+            insertChildren.add(getInsertChildrenCommand(childRequest.getTableName()));
+        }
+        String selectChunkRows = getSelectChunkRowsCommand(tableName, childTableNames);
+
+        boolean isAnyInserted = false;
+        long lastRowId = 0;
+        while (true) {
+            // Only reads the staged db, so it's kept out of the transaction, which locks the health
+            // connect db too.
+            long[] chunk = getChunk(selectChunkRows, lastRowId);
+            long chunkEnd = chunk[0];
+            long chunkSize = chunk[1];
+            if (chunkSize == 0) {
+                break;
+            }
+            Object[] range = new Object[] {lastRowId, chunkEnd};
+
+            mStagedDatabase.beginTransaction();
+            try {
+                long liveMaxRowId =
+                        DatabaseUtils.longForQuery(
+                                mStagedDatabase,
+                                "SELECT IFNULL(MAX("
+                                        + PRIMARY_COLUMN_NAME
+                                        + "), 0) FROM "
+                                        + getLiveTable(tableName),
+                                null);
+                mStagedDatabase.execSQL(insertRecords, range);
+                isAnyInserted |=
+                        DatabaseUtils.longForQuery(mStagedDatabase, "SELECT changes()", null) > 0;
+
+                if (!insertChildren.isEmpty()) {
+                    mapInsertedRowIds(tableName, range, liveMaxRowId);
+                    for (String insertChild : insertChildren) {
+                        mStagedDatabase.execSQL(insertChild);
+                    }
+                }
+                mStagedDatabase.setTransactionSuccessful();
+
+                lastRowId = chunkEnd;
+                mMergedRecordCount += chunkSize;
+            } finally {
+                mStagedDatabase.endTransaction();
+            }
+            listener.onProgress(mMergedRecordCount, mTotalRecordCount);
+        }
+
+        // The child tables are cleared through their foreign keys.
+        Slog.d(TAG, "Deleting staged records of " + tableName);
+        mStagedDatabase.execSQL("DELETE FROM main." + tableName);
+        return isAnyInserted;
+    }
+
+    /**
+     * Returns the last row id and the number of records of the chunk after {@code lastRowId}, which
+     * copies at most {@link #mMaxChunkRows} rows, the rows of child tables included. A record with
+     * more rows than that is copied in a chunk of its own.
+     */
+    private long[] getChunk(String selectChunkRows, long lastRowId) {
+        long chunkEnd = lastRowId;
+        long chunkSize = 0;
+        long chunkRows = 0;
+        try (Cursor cursor =
+                mStagedDatabase.rawQuery(
+                        selectChunkRows, new String[] {String.valueOf(lastRowId)})) {
+            while (cursor.moveToNext()) {
+                long rows = cursor.getLong(1);
+                if (chunkSize > 0 && chunkRows + rows > mMaxChunkRows) {
+                    break;
+                }
+                chunkEnd = cursor.getLong(0);
+                chunkSize++;
+                chunkRows += rows;
+            }
+        }
+        return new long[] {chunkEnd, chunkSize};
+    }
+
+    /**
+     * Returns the query of the row ids of the staged records after a row id, each with the number
+     * of rows it copies. The child tables are indexed on their parent key through their foreign
+     * key, so the rows of a record are counted without a scan.
+     */
+    private String getSelectChunkRowsCommand(String tableName, List<String> childTableNames) {
+        StringBuilder rows = new StringBuilder("1");
+        for (String childTableName : childTableNames) {
+            rows.append(" + (SELECT COUNT(*) FROM main.")
+                    .append(childTableName)
+                    .append(" c WHERE c.")
+                    .append(PARENT_KEY)
+                    .append(" = s.")
+                    .append(PRIMARY_COLUMN_NAME)
+                    .append(')');
+        }
+        // No record copies less than one row, so there are never more than mMaxChunkRows records.
+        return "SELECT s."
+                + PRIMARY_COLUMN_NAME
+                + ", "
+                + rows
+                + " FROM main."
+                + tableName
+                + " s WHERE s."
+                + PRIMARY_COLUMN_NAME
+                + " > ? ORDER BY s."
+                + PRIMARY_COLUMN_NAME
+                + " LIMIT "
+                + mMaxChunkRows;
+    }
+
+    private String getInsertRecordsCommand(String tableName) {
+        List<String> columns = getColumns(tableName);
+        List<String> values = new ArrayList<>(columns.size());
+        for (String column : columns) {
+            switch (column) {
+                case APP_INFO_ID_COLUMN_NAME:
+                    values.add("a." + LIVE_ID_COLUMN_NAME);
+                    break;
+                case DEVICE_INFO_ID_COLUMN_NAME:
+                    values.add("d." + LIVE_ID_COLUMN_NAME);
+                    break;
+                default:
+                    values.add("s." + column);
+            }
+        }
+        return "INSERT OR IGNORE INTO "
+                + getLiveTable(tableName)
+                + " ("
+                + String.join(", ", columns)
+                + ") SELECT "
+                + String.join(", ", values)
+                + " FROM main."
+                + tableName
+                + " s JOIN "
+                + APP_IDS_TABLE
+                + " a ON s."
+                + APP_INFO_ID_COLUMN_NAME
+                + " = a."
+                + STAGED_ID_COLUMN_NAME
+                + " LEFT JOIN "
+                + DEVICE_IDS_TABLE
+                + " d ON s."
+                + DEVICE_INFO_ID_COLUMN_NAME
+                + " = d."
+                + STAGED_ID_COLUMN_NAME
+                + " WHERE s."
+                + PRIMARY_COLUMN_NAME
+                + " > ? AND s."
+                + PRIMARY_COLUMN_NAME
+                + " <= ? ORDER BY s."
+                + PRIMARY_COLUMN_NAME;
+    }
+
+    private String getInsertChildrenCommand(String tableName) {
+        List<String> columns = getColumns(tableName);
+        List<String> values = new ArrayList<>(columns.size());
+        for (String column : columns) {
+            values.add(column.equals(PARENT_KEY) ? "r." + LIVE_ID_COLUMN_NAME : "c." + column);
+        }
+        return "INSERT INTO "
+                + getLiveTable(tableName)
+                + " ("
+                + String.join(", ", columns)
+                + ") SELECT "
+                + String.join(", ", values)
+                + " FROM main."
+                + tableName
+                + " c JOIN "
+                + ROW_IDS_TABLE
+                + " r ON c."
+                + PARENT_KEY
+                + " = r."
+                + STAGED_ID_COLUMN_NAME;
+    }
+
+    /**
+     * Maps the row ids of the staged records in {@code range} to the ones they were inserted with.
+     * Records which were ignored, as already present, have no row id above {@code liveMaxRowId}.
+     */
+    private void mapInsertedRowIds(String tableName, Object[] range, long liveMaxRowId) {
+        mStagedDatabase.execSQL("DELETE FROM " + ROW_IDS_TABLE);
+        mStagedDatabase.execSQL(
+                "INSERT INTO "
+                        + ROW_IDS_TABLE
+                        + " SELECT s."
+                        + PRIMARY_COLUMN_NAME
+                        + ", l."
+                        + PRIMARY_COLUMN_NAME
+                        + " FROM main."
+                        + tableName
+                        + " s JOIN "
+                        + getLiveTable(tableName)
+                        + " l ON l."
+                        + UUID_COLUMN_NAME
+                        + " = s."
+                        + UUID_COLUMN_NAME
+                        + " WHERE s."
+                        + PRIMARY_COLUMN_NAME
+                        + " > ? AND s."
+                        + PRIMARY_COLUMN_NAME
+                        + " <= ? AND l."
+                        + PRIMARY_COLUMN_NAME
+                        + " > "
+                        + liveMaxRowId,
+                range);
+    }
+
+    /**
+     * Returns the columns to copy of the staged table {@code tableName}, which are also present in
+     * the health connect db. Row ids are assigned on insert, and generated columns computed.
+     */
+    private List<String> getColumns(String tableName) {
+        List<String> liveColumns = getStoredColumns(LIVE_SCHEMA, tableName);
+        List<String> columns = new ArrayList<>();
+        for (String column : getStoredColumns("main", tableName)) {
+            if (!column.equals(PRIMARY_COLUMN_NAME) && liveColumns.contains(column)) {
+                columns.add(column);
+            }
+        }
+        return columns;
+    }
+
+    private List<String> getStoredColumns(String schema, String tableName) {
+        List<String> columns = new ArrayList<>();
+        try (Cursor cursor =
+                mStagedDatabase.rawQuery(
+                        "PRAGMA " + schema + ".table_xinfo(" + tableName + ")", null)) {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            int hiddenIndex = cursor.getColumnIndexOrThrow("hidden");
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(hiddenIndex) == NOT_HIDDEN) {
+                    columns.add(cursor.getString(nameIndex));
+                }
+            }
+        }
+        return columns;
+    }
+
+    private void createIdTables() {
+        for (String table : List.of(APP_IDS_TABLE, DEVICE_IDS_TABLE, ROW_IDS_TABLE)) {
+            mStagedDatabase.execSQL(
+                    "CREATE TABLE IF NOT EXISTS "
+                            + table
+                            + " ("
+                            + STAGED_ID_COLUMN_NAME
+                            + " INTEGER PRIMARY KEY, "
+                            + LIVE_ID_COLUMN_NAME
+                            + " INTEGER NOT NULL)");
+        }
+        insertIds(APP_IDS_TABLE, mAppInfoIds);
+        insertIds(DEVICE_IDS_TABLE, mDeviceInfoIds);
+    }
+
+    private void insertIds(String table, Map<Long, Long> ids) {
+        mStagedDatabase.beginTransaction();
+        try {
+            mStagedDatabase.execSQL("DELETE FROM " + table);
+            for (Map.Entry<Long, Long> entry : ids.entrySet()) {
+                mStagedDatabase.execSQL(
+                        "INSERT INTO " + table + " VALUES (?, ?)",
+                        new Object[] {entry.getKey(), entry.getValue()});
+            }
+            mStagedDatabase.setTransactionSuccessful();
+        } finally {
+            mStagedDatabase.endTransaction();
+        }
+    }
+
+    private void dropIdTables() {
+        for (String table : List.of(APP_IDS_TABLE, DEVICE_IDS_TABLE, ROW_IDS_TABLE)) {
+            mStagedDatabase.execSQL("DROP TABLE IF EXISTS " + table);
+        }
+    }
+
+    private void dropTriggers() {
+        List<String> triggers = new ArrayList<>();
+        try (Cursor cursor =
+                mStagedDatabase.rawQuery(
+                        "SELECT name FROM main.sqlite_master WHERE type = 'trigger'", null)) {
+            while (cursor.moveToNext()) {
+                triggers.add(cursor.getString(0));
+            }
+        }
+        for (String trigger : triggers) {
+            mStagedDatabase.execSQL("DROP TRIGGER IF EXISTS main." + trigger);
+        }
+    }
+
+    private static String getLiveTable(String tableName) {
+        return LIVE_SCHEMA + "." + tableName;
+    }
+}
@@ -28,25 +28,36 @@ import android.health.connect.migration.MigrationPayload;
 import android.health.connect.migration.PermissionMigrationPayload;
 import android.health.connect.migration.PriorityMigrationPayload;
 import android.health.connect.migration.RecordMigrationPayload;
+import android.os.SystemClock;
 import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Pair;
+import android.util.Slog;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.server.healthconnect.permission.FirstGrantTimeManager;
 import com.android.server.healthconnect.permission.HealthConnectPermissionHelper;
 import com.android.server.healthconnect.storage.AutoDeleteService;
+import com.android.server.healthconnect.storage.BatchInsertEngine;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.DeviceInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.HealthDataCategoryPriorityHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.MigrationEntityHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -57,8 +68,15 @@ import java.util.stream.Stream;
  */
 public final class DataMigrationManager {
 
+    private static final String TAG = "HealthConnectDataMigration";
     private static final Object sLock = new Object();
 
+    @GuardedBy("sLock")
+    private static long sMigratedEntityCount;
+
+    @GuardedBy("sLock")
+    private static long sMigrationTimeMillis;
+
     private final Context mUserContext;
     private final TransactionManager mTransactionManager;
     private final HealthConnectPermissionHelper mPermissionHelper;
@@ -99,35 +117,78 @@ public final class DataMigrationManager {
     /**
      * Parses and applies the provided migration entities.
      *
+     * <p>The entities are applied as one batch: already migrated entity ids are looked up with one
+     * query, records are inserted table by table using compiled statements, and the activity dates
+     * of the inserted records are inserted once per batch.
+     *
      * @param entities a collection of {@link MigrationEntity} to be applied.
      */
     public void apply(@NonNull Collection<MigrationEntity> entities) throws EntityWriteException {
         synchronized (sLock) {
+            final long startTimeMillis = SystemClock.elapsedRealtime();
+            final Map<String, String> preferencesToCommit = new ArrayMap<>();
             mTransactionManager.runAsTransaction(
                     db -> {
                         // Grab the lock again to make sure error-prone is happy, and so that tests
                         // break if the following code is run asynchronously
                         synchronized (sLock) {
-                            for (MigrationEntity entity : entities) {
-                                migrateEntity(db, entity);
-                            }
+                            migrateEntities(db, entities, preferencesToCommit);
                         }
                     });
+            PreferenceHelper.getInstance().onPreferencesCommitted(preferencesToCommit);
+            logProgress(entities.size(), SystemClock.elapsedRealtime() - startTimeMillis);
         }
     }
 
-    /** Migrates the provided {@link MigrationEntity}. Must be called inside a DB transaction. */
+    /**
+     * Migrates the provided batch of entities. Must be called inside a DB transaction.
+     *
+     * @param preferencesToCommit populated with the preferences committed by the transaction
+     */
     @GuardedBy("sLock")
-    private void migrateEntity(@NonNull SQLiteDatabase db, @NonNull MigrationEntity entity)
+    private void migrateEntities(
+            @NonNull SQLiteDatabase db,
+            @NonNull Collection<MigrationEntity> entities,
+            @NonNull Map<String, String> preferencesToCommit)
+            throws EntityWriteException {
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(db)) {
+            final Set<String> migratedEntityIds = getMigratedEntityIds(db, entities);
+            final Map<String, List<PendingRecord>> recordsByTable = new LinkedHashMap<>();
+
+            for (MigrationEntity entity : entities) {
+                final PendingRecord record =
+                        migrateEntity(insertEngine, entity, migratedEntityIds);
+                if (record != null) {
+                    recordsByTable
+                            .computeIfAbsent(
+                                    record.mRequest.getTable(), (table) -> new ArrayList<>())
+                            .add(record);
+                }
+            }
+
+            insertRecords(insertEngine, recordsByTable, preferencesToCommit);
+        }
+    }
+
+    /**
+     * Migrates the provided {@link MigrationEntity}, except for records which are only parsed and
+     * returned to be inserted along with the other records of the batch.
+     */
+    @GuardedBy("sLock")
+    @Nullable
+    private PendingRecord migrateEntity(
+            @NonNull BatchInsertEngine insertEngine,
+            @NonNull MigrationEntity entity,
+            @NonNull Set<String> migratedEntityIds)
             throws EntityWriteException {
         try {
-            if (checkEntityForDuplicates(db, entity)) {
-                return;
+            if (checkEntityForDuplicates(insertEngine, entity, migratedEntityIds)) {
+                return null;
             }
 
             final MigrationPayload payload = entity.getPayload();
             if (payload instanceof RecordMigrationPayload) {
-                migrateRecord(db, (RecordMigrationPayload) payload);
+                return parseRecord(entity.getEntityId(), (RecordMigrationPayload) payload);
             } else if (payload instanceof PermissionMigrationPayload) {
                 migratePermissions((PermissionMigrationPayload) payload);
             } else if (payload instanceof AppInfoMigrationPayload) {
@@ -139,23 +200,55 @@ public final class DataMigrationManager {
             } else {
                 throw new IllegalArgumentException("Unsupported payload type: " + payload);
             }
+            return null;
         } catch (RuntimeException e) {
             throw new EntityWriteException(entity.getEntityId(), e);
         }
     }
 
+    /**
+     * Inserts the parsed records table by table, so that consecutive inserts reuse the same
+     * compiled statement, then inserts the distinct activity dates of the inserted records and the
+     * preferences the record helpers require along with them.
+     */
     @GuardedBy("sLock")
-    private void migrateRecord(
-            @NonNull SQLiteDatabase db, @NonNull RecordMigrationPayload payload) {
-        long recordRowId = mTransactionManager.insertOrIgnore(db, parseRecord(payload));
-        if (recordRowId != -1) {
-            mTransactionManager.insertOrIgnore(
-                    db, mActivityDateHelper.getUpsertTableRequest(payload.getRecordInternal()));
+    private void insertRecords(
+            @NonNull BatchInsertEngine insertEngine,
+            @NonNull Map<String, List<PendingRecord>> recordsByTable,
+            @NonNull Map<String, String> preferencesToCommit)
+            throws EntityWriteException {
+        // Maps each activity date to the first entity it was inserted for, to report errors.
+        final Map<Pair<Integer, Long>, String> activityDates = new ArrayMap<>();
+        for (List<PendingRecord> records : recordsByTable.values()) {
+            for (PendingRecord record : records) {
+                try {
+                    if (mTransactionManager.insertOrIgnore(insertEngine, record.mRequest) != -1) {
+                        activityDates.putIfAbsent(record.mActivityDate, record.mEntityId);
+                        preferencesToCommit.putAll(record.mPreferences);
+                    }
+                } catch (RuntimeException e) {
+                    throw new EntityWriteException(record.mEntityId, e);
+                }
+            }
+        }
+
+        for (Map.Entry<Pair<Integer, Long>, String> activityDate : activityDates.entrySet()) {
+            try {
+                mTransactionManager.insertOrIgnore(
+                        insertEngine,
+                        mActivityDateHelper.getUpsertTableRequest(
+                                activityDate.getKey().first, activityDate.getKey().second));
+            } catch (RuntimeException e) {
+                throw new EntityWriteException(activityDate.getValue(), e);
+            }
         }
+
+        mTransactionManager.insertOrReplacePreferences(insertEngine, preferencesToCommit);
     }
 
     @NonNull
-    private UpsertTableRequest parseRecord(@NonNull RecordMigrationPayload payload) {
+    private PendingRecord parseRecord(
+            @NonNull String entityId, @NonNull RecordMigrationPayload payload) {
         final RecordInternal<?> record = payload.getRecordInternal();
         mAppInfoHelper.populateAppInfoId(record, mUserContext, false);
         mDeviceInfoHelper.populateDeviceInfoId(record);
@@ -164,9 +257,14 @@ public final class DataMigrationManager {
             StorageUtils.addNameBasedUUIDTo(record);
         }
 
-        return mRecordHelperProvider
-                .getRecordHelper(record.getRecordType())
-                .getUpsertTableRequest(record);
+        final RecordHelper<?> recordHelper =
+                mRecordHelperProvider.getRecordHelper(record.getRecordType());
+        final UpsertTableRequest request = recordHelper.getUpsertTableRequest(record);
+        return new PendingRecord(
+                entityId,
+                request,
+                new Pair<>(record.getRecordType(), record.getLocalDate().toEpochDay()),
+                recordHelper.getPreferencesToCommitWith(request));
     }
 
     @GuardedBy("sLock")
@@ -218,9 +316,34 @@ public final class DataMigrationManager {
                 true /* onlyReplace */);
     }
 
+    /**
+     * Returns the ids of the entities of the batch that were already migrated, with one query for
+     * the whole batch.
+     *
+     * <p>Entities with the following payload types are exempt from deduplication checks: {@link
+     * RecordMigrationPayload}.
+     */
+    @GuardedBy("sLock")
+    @NonNull
+    private Set<String> getMigratedEntityIds(
+            @NonNull SQLiteDatabase db, @NonNull Collection<MigrationEntity> entities) {
+        final List<String> entityIds = new ArrayList<>();
+        for (MigrationEntity entity : entities) {
+            if (!(entity.getPayload() instanceof RecordMigrationPayload)) {
+                entityIds.add(entity.getEntityId());
+            }
+        }
+
+        if (entityIds.isEmpty()) {
+            return new ArraySet<>();
+        }
+
+        return new ArraySet<>(mMigrationEntityHelper.getExistingEntityIds(db, entityIds));
+    }
+
     /**
      * Checks the provided entity for duplicates by {@code entityId}. Modifies {@link
-     * MigrationEntityHelper} table as a side effect.
+     * MigrationEntityHelper} table and {@code migratedEntityIds} as a side effect.
      *
      * <p>Entities with the following payload types are exempt from deduplication checks (the result
      * is always {@code false}): {@link RecordMigrationPayload}.
@@ -230,27 +353,66 @@ public final class DataMigrationManager {
      */
     @GuardedBy("sLock")
     private boolean checkEntityForDuplicates(
-            @NonNull SQLiteDatabase db, @NonNull MigrationEntity entity) {
+            @NonNull BatchInsertEngine insertEngine,
+            @NonNull MigrationEntity entity,
+            @NonNull Set<String> migratedEntityIds) {
         final MigrationPayload payload = entity.getPayload();
 
         if (payload instanceof RecordMigrationPayload) {
             return false; // Do not deduplicate records by entityId
         }
 
-        return !insertEntityIdIfNotPresent(db, entity.getEntityId());
+        final String entityId = entity.getEntityId();
+        if (!migratedEntityIds.add(entityId)) {
+            return true; // Migrated before, or earlier in the same batch
+        }
+
+        mTransactionManager.insertOrIgnore(
+                insertEngine, mMigrationEntityHelper.getInsertRequest(entityId));
+        return false;
     }
 
-    /**
-     * Inserts the provided {@code entity} into the database if it doesn't exist yet. Used for data
-     * deduplication.
-     *
-     * @return {@code true} if inserted successfully, {@code false} otherwise.
-     */
     @GuardedBy("sLock")
-    private boolean insertEntityIdIfNotPresent(
-            @NonNull SQLiteDatabase db, @NonNull String entityId) {
-        final UpsertTableRequest request = mMigrationEntityHelper.getInsertRequest(entityId);
-        return mTransactionManager.insertOrIgnore(db, request) != -1;
+    private static void logProgress(int entityCount, long elapsedTimeMillis) {
+        sMigratedEntityCount += entityCount;
+        sMigrationTimeMillis += elapsedTimeMillis;
+        Slog.i(
+                TAG,
+                "Migrated "
+                        + entityCount
+                        + " entities in "
+                        + elapsedTimeMillis
+                        + " ms ("
+                        + getEntitiesPerSecond(entityCount, elapsedTimeMillis)
+                        + " entities/s), "
+                        + sMigratedEntityCount
+                        + " in total ("
+                        + getEntitiesPerSecond(sMigratedEntityCount, sMigrationTimeMillis)
+                        + " entities/s)");
+    }
+
+    private static long getEntitiesPerSecond(long entityCount, long elapsedTimeMillis) {
+        return entityCount * 1000 / Math.max(elapsedTimeMillis, 1);
+    }
+
+    /** A parsed record waiting to be inserted with the other records of its batch. */
+    private static final class PendingRecord {
+        final String mEntityId;
+        final UpsertTableRequest mRequest;
+        // Record type and epoch day of the record, for the activity date table.
+        final Pair<Integer, Long> mActivityDate;
+        final Map<String, String> mPreferences;
+
+        PendingRecord(
+                @NonNull String entityId,
+                @NonNull UpsertTableRequest request,
+                @NonNull Pair<Integer, Long> activityDate,
+                @NonNull Map<String, String> preferences) {
+            mEntityId = entityId;
+            mRequest = request;
+            mActivityDate = activityDate;
+            mPreferences = preferences;
+        }
     }
 
     /** Indicates an error during entity migration. */
@@ -97,8 +97,12 @@ public class DataPermissionEnforcer {
     /**
      * Enforces that caller has all write permissions to write given records. Includes permissions
      * for writing optional extra data if it's present in given records.
+     *
+     * <p>Returns the grant state of the extra write permissions of the records, see {@link
+     * #collectExtraWritePermissionStateMapping}. Each permission is checked once for the request,
+     * as the records of a batch mostly need the same few permissions.
      */
-    public void enforceRecordsWritePermissions(
+    public Map<String, Boolean> enforceRecordsWritePermissions(
             List<RecordInternal<?>> recordInternals, AttributionSource attributionSource) {
         Map<Integer, Set<String>> recordTypeIdToExtraPerms = new ArrayMap<>();
 
@@ -117,20 +121,33 @@ public class DataPermissionEnforcer {
                     .addAll(recordHelper.getRequiredExtraWritePermissions(recordInternal));
         }
 
+        // Decisions of this request only, so that every request notes the app ops it uses.
+        Map<String, Boolean> permissionDecisions = new ArrayMap<>();
+
         // Check main write permissions for given recordIds
-        enforceRecordIdWritePermissionInternal(
-                recordTypeIdToExtraPerms.keySet().stream().toList(), attributionSource);
+        for (Integer recordTypeId : recordTypeIdToExtraPerms.keySet()) {
+            String permissionName =
+                    HealthPermissions.getHealthWritePermission(
+                            RecordTypePermissionCategoryMapper
+                                    .getHealthPermissionCategoryForRecordType(recordTypeId));
+            if (!isPermissionGranted(permissionName, attributionSource, permissionDecisions)) {
+                throwPermissionException(
+                        permissionName, recordTypeId, /* isReadPermission= */ false);
+            }
+        }
 
         // Check extra write permissions for given records
         for (Integer recordTypeId : recordTypeIdToExtraPerms.keySet()) {
             for (String permissionName : recordTypeIdToExtraPerms.get(recordTypeId)) {
-                enforceRecordPermission(
-                        permissionName,
-                        attributionSource,
-                        recordTypeId,
-                        /* isReadPermission= */ false);
+                if (!isPermissionGranted(permissionName, attributionSource, permissionDecisions)) {
+                    throwPermissionException(
+                            permissionName, recordTypeId, /* isReadPermission= */ false);
+                }
             }
         }
+
+        return collectExtraWritePermissionStateMapping(
+                recordInternals, attributionSource, permissionDecisions);
     }
 
     /** Enforces that caller has any of given permissions. */
@@ -164,16 +181,28 @@ public class DataPermissionEnforcer {
         return mapping;
     }
 
-    public Map<String, Boolean> collectExtraWritePermissionStateMapping(
-            List<RecordInternal<?>> recordInternals, AttributionSource attributionSource) {
+    /**
+     * Collects extra write permissions of the types of given records to their grant state. Used to
+     * not overwrite extra data if caller doesn't have corresponding permission.
+     */
+    private Map<String, Boolean> collectExtraWritePermissionStateMapping(
+            List<RecordInternal<?>> recordInternals,
+            AttributionSource attributionSource,
+            Map<String, Boolean> permissionDecisions) {
         Map<String, Boolean> mapping = new ArrayMap<>();
+        Set<Integer> recordTypeIds = new ArraySet<>();
         for (RecordInternal<?> recordInternal : recordInternals) {
             int recordTypeId = recordInternal.getRecordType();
+            if (!recordTypeIds.add(recordTypeId)) {
+                continue;
+            }
             RecordHelper<?> recordHelper =
                     RecordHelperProvider.getInstance().getRecordHelper(recordTypeId);
 
             for (String permName : recordHelper.getExtraWritePermissions()) {
-                mapping.put(permName, isPermissionGranted(permName, attributionSource));
+                mapping.put(
+                        permName,
+                        isPermissionGranted(permName, attributionSource, permissionDecisions));
             }
         }
         return mapping;
@@ -197,22 +226,43 @@ public class DataPermissionEnforcer {
             int recordTypeId,
             boolean isReadPermission) {
         if (!isPermissionGranted(permissionName, attributionSource)) {
-            String prohibitedAction =
-                    isReadPermission ? "to read to record type" : " to write to record type ";
-            throw new SecurityException(
-                    "Caller doesn't have "
-                            + permissionName
-                            + prohibitedAction
-                            + RecordMapper.getInstance()
-                                    .getRecordIdToExternalRecordClassMap()
-                                    .get(recordTypeId));
+            throwPermissionException(permissionName, recordTypeId, isReadPermission);
         }
     }
 
+    private static void throwPermissionException(
+            String permissionName, int recordTypeId, boolean isReadPermission) {
+        String prohibitedAction =
+                isReadPermission ? "to read to record type" : " to write to record type ";
+        throw new SecurityException(
+                "Caller doesn't have "
+                        + permissionName
+                        + prohibitedAction
+                        + RecordMapper.getInstance()
+                                .getRecordIdToExternalRecordClassMap()
+                                .get(recordTypeId));
+    }
+
     private boolean isPermissionGranted(
             String permissionName, AttributionSource attributionSource) {
         return mPermissionManager.checkPermissionForStartDataDelivery(
                         permissionName, attributionSource, null)
                 == PERMISSION_GRANTED;
     }
+
+    /**
+     * Same as {@link #isPermissionGranted}, but reuses {@code permissionDecisions}, the decisions
+     * already made for the same request.
+     */
+    private boolean isPermissionGranted(
+            String permissionName,
+            AttributionSource attributionSource,
+            Map<String, Boolean> permissionDecisions) {
+        Boolean isGranted = permissionDecisions.get(permissionName);
+        if (isGranted == null) {
+            isGranted = isPermissionGranted(permissionName, attributionSource);
+            permissionDecisions.put(permissionName, isGranted);
+        }
+        return isGranted;
+    }
 }
@@ -16,18 +16,28 @@
 
 package com.android.server.healthconnect.storage;
 
+import android.annotation.NonNull;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import com.android.server.healthconnect.storage.datatypehelpers.AccessLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 
-import java.util.ArrayList;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
 import java.util.List;
 
 /**
@@ -39,6 +49,7 @@ public class AutoDeleteService {
     private static final String AUTO_DELETE_DURATION_RECORDS_KEY =
             "auto_delete_duration_records_key";
     private static final String TAG = "HealthConnectAutoDelete";
+    private static final int AUTO_DELETE_CHUNK_SIZE = 5000;
 
     /** Gets auto delete period for automatically deleting record entries */
     public static int getRecordRetentionPeriodInDays() {
@@ -55,25 +66,42 @@ public class AutoDeleteService {
                 .insertOrReplacePreference(AUTO_DELETE_DURATION_RECORDS_KEY, String.valueOf(days));
     }
 
-    /** Starts the Auto Deletion process. */
-    public static void startAutoDelete() {
+    /**
+     * Starts the Auto Deletion process. Stale records are deleted until {@code cancellationSignal}
+     * is cancelled, e.g. when the job is stopped, and the ones left are deleted by the next run.
+     */
+    public static void startAutoDelete(@NonNull CancellationSignal cancellationSignal) {
+        startAutoDelete(cancellationSignal, Clock.systemUTC());
+    }
+
+    /**
+     * Same as {@link #startAutoDelete(CancellationSignal)}, with activity dates re-synced as of
+     * {@code clock}.
+     */
+    @VisibleForTesting
+    public static void startAutoDelete(
+            @NonNull CancellationSignal cancellationSignal, @NonNull Clock clock) {
         try {
             // Only do transactional operations here - as this job might get cancelled for several
             // reasons, such as: User switch, low battery etc.
-            deleteStaleRecordEntries();
+            deleteStaleRecordEntries(cancellationSignal);
+            if (cancellationSignal.isCanceled()) {
+                // The steps below are done by the next run, once it has deleted the records left.
+                return;
+            }
             deleteStaleChangeLogEntries();
             deleteStaleAccessLogEntries();
             // Update the recordTypesUsed by packages if required after the deletion of records.
             AppInfoHelper.getInstance().syncAppInfoRecordTypesUsed();
-            // Re-sync activity dates table
-            ActivityDateHelper.getInstance().reSyncForAllRecords();
+            // Re-sync activity dates table for the days records were deleted from.
+            reSyncActivityDatesOfStaleRecords(clock);
         } catch (Exception e) {
             Slog.e(TAG, "Auto delete run failed", e);
             // Don't rethrow as that will crash system_server
         }
     }
 
-    private static void deleteStaleRecordEntries() {
+    private static void deleteStaleRecordEntries(CancellationSignal cancellationSignal) {
         String recordAutoDeletePeriodString =
                 PreferenceHelper.getInstance().getPreference(AUTO_DELETE_DURATION_RECORDS_KEY);
         int recordAutoDeletePeriod =
@@ -82,20 +110,8 @@ public class AutoDeleteService {
                         : Integer.parseInt(recordAutoDeletePeriodString);
         if (recordAutoDeletePeriod != 0) {
             // 0 represents that no period is set,to delete only if not 0 else don't do anything
-            List<DeleteTableRequest> deleteTableRequests = new ArrayList<>();
-            RecordHelperProvider.getInstance()
-                    .getRecordHelpers()
-                    .values()
-                    .forEach(
-                            (recordHelper) -> {
-                                DeleteTableRequest request =
-                                        recordHelper.getDeleteRequestForAutoDelete(
-                                                recordAutoDeletePeriod);
-                                deleteTableRequests.add(request);
-                            });
             try {
-                TransactionManager.getInitialisedInstance()
-                        .deleteWithoutChangeLogs(deleteTableRequests);
+                deleteStaleRecordEntriesInChunks(recordAutoDeletePeriod, cancellationSignal);
             } catch (Exception exception) {
                 Slog.e(TAG, "Auto delete for records failed", exception);
                 // Don't rethrow as that will crash system_server
@@ -103,6 +119,61 @@ public class AutoDeleteService {
         }
     }
 
+    /**
+     * Deletes the stale records of each record type by chunks of at most {@link
+     * #AUTO_DELETE_CHUNK_SIZE} records, each in its own transaction, so that the database isn't
+     * locked for the whole deletion and other writes can run between chunks.
+     *
+     * <p>Stops between chunks once {@code cancellationSignal} is cancelled. No position is saved
+     * for the next run: the deleted records are gone, so it finds the stale records left with an
+     * index search on the start time of each record type.
+     */
+    private static void deleteStaleRecordEntriesInChunks(
+            int recordAutoDeletePeriod, CancellationSignal cancellationSignal) {
+        TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
+        long startTime = SystemClock.elapsedRealtime();
+        long deletedCount = 0;
+        int chunkCount = 0;
+        for (RecordHelper<?> recordHelper :
+                RecordHelperProvider.getInstance().getRecordHelpers().values()) {
+            DeleteTableRequest request =
+                    recordHelper.getDeleteRequestForAutoDelete(recordAutoDeletePeriod);
+            int chunkDeletedCount = AUTO_DELETE_CHUNK_SIZE;
+            while (chunkDeletedCount == AUTO_DELETE_CHUNK_SIZE
+                    && !cancellationSignal.isCanceled()) {
+                chunkDeletedCount =
+                        transactionManager.deleteWithoutChangeLogs(
+                                request, AUTO_DELETE_CHUNK_SIZE);
+                deletedCount += chunkDeletedCount;
+                chunkCount++;
+            }
+        }
+
+        Slog.i(
+                TAG,
+                "Auto deleted "
+                        + deletedCount
+                        + " records in "
+                        + chunkCount
+                        + " chunks, took "
+                        + (SystemClock.elapsedRealtime() - startTime)
+                        + " ms"
+                        + (cancellationSignal.isCanceled() ? ", stopped before the end" : ""));
+    }
+
+    private static void reSyncActivityDatesOfStaleRecords(Clock clock) {
+        int recordAutoDeletePeriod = getRecordRetentionPeriodInDays();
+        if (recordAutoDeletePeriod == 0) {
+            return;
+        }
+
+        // Records are deleted by start time, so their local dates are at most a day after the UTC
+        // date of the latest start time deleted. Dates after that are unchanged.
+        Instant deletedBefore = clock.instant().minus(recordAutoDeletePeriod, ChronoUnit.DAYS);
+        long maxEpochDay = LocalDate.ofInstant(deletedBefore, ZoneOffset.UTC).toEpochDay() + 1;
+        ActivityDateHelper.getInstance().reSyncForAllRecords(maxEpochDay);
+    }
+
     private static void deleteStaleChangeLogEntries() {
         try {
             TransactionManager.getInitialisedInstance()
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import android.annotation.NonNull;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.ArrayMap;
+
+import com.android.server.healthconnect.storage.request.ChildTableRowsRequest;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Inserts {@link UpsertTableRequest}s using one compiled INSERT statement per table, conflict
+ * algorithm and column set. Values are bound straight from the request into the cached statement,
+ * so repeated rows of the same shape (e.g. series samples) are neither re-parsed nor re-planned by
+ * SQLite.
+ *
+ * <p>An instance is meant to be created right after {@link SQLiteDatabase#beginTransaction()} and
+ * closed before the transaction ends, so that the rows it inserts are committed together. Its
+ * statements stay valid outside of a transaction too, where each insert is committed on its own.
+ *
+ * @hide
+ */
+public final class BatchInsertEngine implements AutoCloseable {
+    // Indexed by the SQLiteDatabase.CONFLICT_* constants.
+    private static final String[] CONFLICT_VALUES =
+            new String[] {
+                "", " OR ROLLBACK", " OR ABORT", " OR FAIL", " OR IGNORE", " OR REPLACE"
+            };
+
+    private final SQLiteDatabase mDb;
+    private final ArrayMap<String, List<InsertShape>> mShapesByTable = new ArrayMap<>();
+    private final ArrayMap<String, SQLiteStatement> mChildTableRowsStatements = new ArrayMap<>();
+
+    public BatchInsertEngine(@NonNull SQLiteDatabase db) {
+        Objects.requireNonNull(db);
+        mDb = db;
+    }
+
+    /**
+     * Groups {@code requests} by their table, keeping the relative order of the requests within a
+     * table. Requests of the same table are then executed back to back against the same cached
+     * statements.
+     */
+    @NonNull
+    public static Map<String, List<UpsertTableRequest>> groupByTable(
+            @NonNull List<UpsertTableRequest> requests) {
+        Map<String, List<UpsertTableRequest>> requestsByTable = new LinkedHashMap<>();
+        for (UpsertTableRequest request : requests) {
+            requestsByTable
+                    .computeIfAbsent(request.getTable(), (table) -> new ArrayList<>())
+                    .add(request);
+        }
+        return requestsByTable;
+    }
+
+    /**
+     * Inserts the row of {@code request}, equivalent of {@link
+     * SQLiteDatabase#insertWithOnConflict}.
+     *
+     * @return the row ID of the newly inserted row, or -1 if no row was inserted.
+     */
+    public long insert(@NonNull UpsertTableRequest request, int conflictAlgorithm) {
+        final ContentValues contentValues = request.getContentValues();
+        if (contentValues.isEmpty()) {
+            return mDb.insertWithOnConflict(
+                    request.getTable(), null, contentValues, conflictAlgorithm);
+        }
+
+        final InsertShape shape = getShape(request.getTable(), contentValues, conflictAlgorithm);
+        shape.bind(contentValues);
+        return shape.mStatement.executeInsert();
+    }
+
+    /**
+     * Inserts the row of {@code request}, throwing on any constraint violation. Equivalent of
+     * {@link SQLiteDatabase#insertOrThrow}.
+     */
+    public long insertOrThrow(@NonNull UpsertTableRequest request) {
+        return insert(request, SQLiteDatabase.CONFLICT_NONE);
+    }
+
+    /**
+     * Inserts the {@link ChildTableRowsRequest}s of {@code request} with {@code parentRowId} as
+     * their parent key, each through the statement cached for its table.
+     */
+    public void insertChildTableRows(@NonNull UpsertTableRequest request, long parentRowId) {
+        for (ChildTableRowsRequest rowsRequest : request.getChildTableRowsRequests()) {
+            String command = rowsRequest.getInsertCommand();
+            SQLiteStatement statement = mChildTableRowsStatements.get(command);
+            if (statement == null) {
+                statement = mDb.compileStatement(command);
+                mChildTableRowsStatements.put(command, statement);
+            }
+            rowsRequest.insert(statement, parentRowId);
+        }
+    }
+
+    /** Releases all the compiled statements held by this engine. */
+    @Override
+    public void close() {
+        for (int i = 0; i < mShapesByTable.size(); i++) {
+            for (InsertShape shape : mShapesByTable.valueAt(i)) {
+                shape.mStatement.close();
+            }
+        }
+        mShapesByTable.clear();
+        for (int i = 0; i < mChildTableRowsStatements.size(); i++) {
+            mChildTableRowsStatements.valueAt(i).close();
+        }
+        mChildTableRowsStatements.clear();
+    }
+
+    @NonNull
+    private InsertShape getShape(
+            @NonNull String table, @NonNull ContentValues contentValues, int conflictAlgorithm) {
+        List<InsertShape> shapes = mShapesByTable.get(table);
+        if (shapes == null) {
+            shapes = new ArrayList<>(1);
+            mShapesByTable.put(table, shapes);
+        }
+
+        for (int i = 0; i < shapes.size(); i++) {
+            InsertShape shape = shapes.get(i);
+            if (shape.matches(contentValues, conflictAlgorithm)) {
+                return shape;
+            }
+        }
+
+        InsertShape shape = new InsertShape(table, contentValues.keySet(), conflictAlgorithm);
+        shapes.add(shape);
+        return shape;
+    }
+
+    /** A compiled INSERT statement for a given table, column set and conflict algorithm. */
+    private final class InsertShape {
+        private final String[] mColumns;
+        private final int mConflictAlgorithm;
+        private final SQLiteStatement mStatement;
+
+        InsertShape(@NonNull String table, @NonNull Set<String> columns, int conflictAlgorithm) {
+            mColumns = columns.toArray(new String[0]);
+            mConflictAlgorithm = conflictAlgorithm;
+
+            StringBuilder sql = new StringBuilder("INSERT");
+            sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+            sql.append(" INTO ").append(table).append(" (");
+            for (int i = 0; i < mColumns.length; i++) {
+                sql.append(i > 0 ? "," : "").append(mColumns[i]);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < mColumns.length; i++) {
+                sql.append(i > 0 ? ",?" : "?");
+            }
+            sql.append(')');
+            mStatement = mDb.compileStatement(sql.toString());
+        }
+
+        boolean matches(@NonNull ContentValues contentValues, int conflictAlgorithm) {
+            if (mConflictAlgorithm != conflictAlgorithm
+                    || mColumns.length != contentValues.size()) {
+                return false;
+            }
+
+            for (String column : mColumns) {
+                if (!contentValues.containsKey(column)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void bind(@NonNull ContentValues contentValues) {
+            for (int i = 0; i < mColumns.length; i++) {
+                // Bind indexes are 1-based
+                DatabaseUtils.bindObjectToProgram(
+                        mStatement, i + 1, contentValues.get(mColumns[i]));
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import android.annotation.NonNull;
+import android.health.connect.HealthConnectException;
+import android.health.connect.aidl.IChangeLogsListener;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Pair;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the change log listeners registered by apps, and signals them when change logs matching
+ * the filters of their token are committed, so that they don't need to poll for changes.
+ *
+ * <p>Listeners are only signalled, and read the changes themselves with the latest token they
+ * have, which keeps the permission and foreground checks of reading the change logs in one place.
+ * Changes committed within {@link #COALESCE_DELAY_MILLIS} of each other are signalled once.
+ *
+ * @hide
+ */
+public final class ChangeLogsSubscriptionManager {
+    private static final String TAG = "HealthConnectChangeLogsSubscription";
+
+    @VisibleForTesting static final long COALESCE_DELAY_MILLIS = 1000;
+    @VisibleForTesting static final int MAX_LISTENERS_PER_PACKAGE = 10;
+
+    private static ChangeLogsSubscriptionManager sChangeLogsSubscriptionManager;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final Map<IBinder, Subscription> mSubscriptions = new ArrayMap<>();
+
+    // Read without the lock, so that commits don't contend on it when nobody is listening.
+    private volatile int mSubscriptionCount;
+
+    private final ScheduledExecutorService mExecutor;
+
+    @VisibleForTesting
+    ChangeLogsSubscriptionManager(@NonNull ScheduledExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Registers {@code listener} to be signalled of the change logs committed after {@code
+     * tokenRequest} for its record types and packages. The listener is signalled right away if
+     * there are change logs after the token already.
+     *
+     * @throws HealthConnectException if {@code packageName} has too many listeners registered
+     */
+    public void registerListener(
+            @NonNull String packageName,
+            @NonNull ChangeLogsRequestHelper.TokenRequest tokenRequest,
+            @NonNull IChangeLogsListener listener,
+            long latestChangeLogRowId) {
+        Objects.requireNonNull(packageName);
+        Objects.requireNonNull(tokenRequest);
+        Objects.requireNonNull(listener);
+
+        IBinder binder = listener.asBinder();
+        Subscription subscription = new Subscription(packageName, tokenRequest, listener);
+        synchronized (mLock) {
+            int packageListenerCount = 0;
+            for (Subscription existing : mSubscriptions.values()) {
+                if (existing.mPackageName.equals(packageName) && existing.mBinder != binder) {
+                    packageListenerCount++;
+                }
+            }
+            if (packageListenerCount >= MAX_LISTENERS_PER_PACKAGE) {
+                throw new HealthConnectException(
+                        HealthConnectException.ERROR_RATE_LIMIT_EXCEEDED,
+                        "Too many change logs listeners registered by " + packageName);
+            }
+
+            try {
+                binder.linkToDeath(subscription, /* flags= */ 0);
+            } catch (RemoteException e) {
+                // The listener is already dead, nothing to register.
+                return;
+            }
+            Subscription previous = mSubscriptions.put(binder, subscription);
+            if (previous != null) {
+                binder.unlinkToDeath(previous, /* flags= */ 0);
+            }
+            mSubscriptionCount = mSubscriptions.size();
+
+            // Only compares the row ids, so this can signal changes of other record types, which
+            // costs the listener a read of no change logs.
+            if (latestChangeLogRowId > tokenRequest.getRowIdChangeLogs()) {
+                scheduleSignalLocked(subscription);
+            }
+        }
+    }
+
+    /** Unregisters {@code listener}, if it was registered. */
+    public void unregisterListener(@NonNull IChangeLogsListener listener) {
+        removeSubscription(listener.asBinder());
+    }
+
+    /** Unregisters all the listeners, e.g. when the foreground user changes. */
+    public void unregisterAllListeners() {
+        synchronized (mLock) {
+            for (Subscription subscription : mSubscriptions.values()) {
+                subscription.mBinder.unlinkToDeath(subscription, /* flags= */ 0);
+            }
+            mSubscriptions.clear();
+            mSubscriptionCount = 0;
+        }
+    }
+
+    /**
+     * Signals the listeners interested in the change logs inserted by {@code changeLogRequests}.
+     * Must be called once the transaction inserting them is committed.
+     */
+    public void onChangeLogsCommitted(@NonNull List<UpsertTableRequest> changeLogRequests) {
+        if (mSubscriptionCount == 0 || changeLogRequests.isEmpty()) {
+            return;
+        }
+
+        Set<Pair<Integer, String>> changes = new ArraySet<>(changeLogRequests.size());
+        AppInfoHelper appInfoHelper = AppInfoHelper.getInstance();
+        for (UpsertTableRequest request : changeLogRequests) {
+            changes.add(
+                    new Pair<>(
+                            ChangeLogsHelper.getRecordType(request),
+                            appInfoHelper.getPackageName(ChangeLogsHelper.getAppId(request))));
+        }
+
+        synchronized (mLock) {
+            for (Subscription subscription : mSubscriptions.values()) {
+                if (!subscription.mSignalScheduled && subscription.matchesAny(changes)) {
+                    scheduleSignalLocked(subscription);
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int getListenerCount() {
+        return mSubscriptionCount;
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleSignalLocked(Subscription subscription) {
+        subscription.mSignalScheduled = true;
+        mExecutor.schedule(
+                () -> signal(subscription), COALESCE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void signal(Subscription subscription) {
+        synchronized (mLock) {
+            subscription.mSignalScheduled = false;
+            if (mSubscriptions.get(subscription.mBinder) != subscription) {
+                // Unregistered since the signal was scheduled.
+                return;
+            }
+        }
+
+        try {
+            subscription.mListener.onChangeLogsAvailable();
+        } catch (RemoteException e) {
+            Slog.w(TAG, "Unable to signal change logs to " + subscription.mPackageName, e);
+            removeSubscription(subscription.mBinder);
+        }
+    }
+
+    private void removeSubscription(IBinder binder) {
+        synchronized (mLock) {
+            Subscription subscription = mSubscriptions.remove(binder);
+            if (subscription != null) {
+                binder.unlinkToDeath(subscription, /* flags= */ 0);
+            }
+            mSubscriptionCount = mSubscriptions.size();
+        }
+    }
+
+    @NonNull
+    public static synchronized ChangeLogsSubscriptionManager getInstance() {
+        if (sChangeLogsSubscriptionManager == null) {
+            sChangeLogsSubscriptionManager =
+                    new ChangeLogsSubscriptionManager(
+                            Executors.newSingleThreadScheduledExecutor());
+        }
+
+        return sChangeLogsSubscriptionManager;
+    }
+
+    private final class Subscription implements IBinder.DeathRecipient {
+        final String mPackageName;
+        final IChangeLogsListener mListener;
+        final IBinder mBinder;
+        final Set<Integer> mRecordTypes;
+        final Set<String> mPackageNamesToFilter;
+
+        @GuardedBy("mLock")
+        boolean mSignalScheduled;
+
+        Subscription(
+                String packageName,
+                ChangeLogsRequestHelper.TokenRequest tokenRequest,
+                IChangeLogsListener listener) {
+            mPackageName = packageName;
+            mListener = listener;
+            mBinder = listener.asBinder();
+            mRecordTypes = new ArraySet<>(tokenRequest.getRecordTypes());
+            mPackageNamesToFilter = new ArraySet<>(tokenRequest.getPackageNamesToFilter());
+        }
+
+        /** Returns whether any of the (record type, package name) pairs passes the filters. */
+        boolean matchesAny(Set<Pair<Integer, String>> changes) {
+            for (Pair<Integer, String> change : changes) {
+                if ((mRecordTypes.isEmpty() || mRecordTypes.contains(change.first))
+                        && (mPackageNamesToFilter.isEmpty()
+                                || mPackageNamesToFilter.contains(change.second))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void binderDied() {
+            removeSubscription(mBinder);
+        }
+    }
+}
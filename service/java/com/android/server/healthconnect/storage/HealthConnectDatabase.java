@@ -18,13 +18,16 @@ package com.android.server.healthconnect.storage;
 
 import android.annotation.NonNull;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.server.healthconnect.migration.PriorityMigrationHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AccessLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper;
@@ -35,12 +38,14 @@ import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.utils.DropTableRequest;
+import com.android.server.healthconnect.storage.utils.PreparedStatements;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class to maintain the health connect DB. Actual operations are performed by {@link
@@ -52,16 +57,38 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
     public static final int DB_VERSION_UUID_BLOB = 9;
 
     public static final int DB_VERSION_GENERATED_LOCAL_TIME = 10;
+
+    public static final int DB_VERSION_PACKED_SERIES_SAMPLES = 11;
+
+    public static final int DB_VERSION_AGGREGATE_ROLLUPS = 12;
+
+    public static final int DB_VERSION_RECORD_INDEXES = 13;
     private static final String TAG = "HealthConnectDatabase";
-    private static final int DATABASE_VERSION = 10;
+    private static final int DATABASE_VERSION = 13;
     private static final String DATABASE_NAME = "healthconnect.db";
+    private static final String WAL_FILE_SUFFIX = "-wal";
+    // Truncates the log once copied, so that a large transaction doesn't leave a large file.
+    private static final String WAL_CHECKPOINT_COMMAND = "PRAGMA wal_checkpoint(TRUNCATE)";
+    private static final String VACUUM_INTO_COMMAND = "VACUUM INTO ?";
+    // Reader connections are mostly needed at peaks, such as when the dashboard is opened.
+    private static final long IDLE_CONNECTION_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
     @NonNull private final Collection<RecordHelper<?>> mRecordHelpers;
     private final Context mContext;
+    private final WalMetrics mWalMetrics = new WalMetrics();
 
     public HealthConnectDatabase(@NonNull Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mRecordHelpers = RecordHelperProvider.getInstance().getRecordHelpers().values();
         mContext = context;
+        setOpenParams(
+                new SQLiteDatabase.OpenParams.Builder()
+                        .setIdleConnectionTimeout(IDLE_CONNECTION_TIMEOUT_MILLIS)
+                        .build());
+        // With write-ahead logging, statements run outside of a transaction use a pool of reader
+        // connections, and see the last committed state while a transaction writes through the
+        // primary connection. The number of concurrent readers is bounded by the read threads of
+        // HealthConnectThreadScheduler.
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -69,6 +96,7 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         for (CreateTableRequest createTableRequest : getCreateTableRequests()) {
             createTable(db, createTableRequest);
         }
+        AggregateRollupHelper.getInstance().createTriggers(db);
     }
 
     @Override
@@ -80,6 +108,16 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         }
 
         mRecordHelpers.forEach(recordHelper -> recordHelper.onUpgrade(db, oldVersion, newVersion));
+        if (oldVersion < DB_VERSION_RECORD_INDEXES) {
+            // Runs after the record helpers, which add the generated local time columns indexed
+            // here. Indexes which already exist are skipped.
+            mRecordHelpers.forEach(
+                    recordHelper ->
+                            recordHelper
+                                    .getCreateTableRequest()
+                                    .getCreateIndexStatements()
+                                    .forEach(db::execSQL));
+        }
         DeviceInfoHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
         AppInfoHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
         ChangeLogsHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
@@ -90,6 +128,7 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         PriorityMigrationHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
         PreferenceHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
         AccessLogsHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
+        AggregateRollupHelper.getInstance().onUpgrade(oldVersion, newVersion, db);
     }
 
     @Override
@@ -97,6 +136,9 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         // Enforce FK constraints for DB writes as we want to enforce FK constraints on DB write.
         // This is also required for when we delete entries, for cascade to work
         db.setForeignKeyConstraintsEnabled(true);
+        // Every connection caches the statements it prepared. Keep as many as allowed, as queries
+        // bind their values and only differ by the record type and the filters used.
+        db.setMaxSqlCacheSize(PreparedStatements.STATEMENT_CACHE_SIZE);
     }
 
     @Override
@@ -108,6 +150,61 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         return mContext.getDatabasePath(DATABASE_NAME);
     }
 
+    /**
+     * Copies the content of the write-ahead log into the database file, and truncates the log.
+     *
+     * <p>SQLite checkpoints the log as it grows, but only as far as the oldest active reader, so
+     * this is also run when the device is idle.
+     */
+    public void checkpoint() {
+        long walSizeBytes = getWalFile().length();
+        long startTime = SystemClock.elapsedRealtime();
+        boolean completed;
+        try (Cursor cursor = getWritableDatabase().rawQuery(WAL_CHECKPOINT_COMMAND, null)) {
+            // The first column is 1 if a reader or writer prevented the checkpoint from completing.
+            completed = cursor.moveToFirst() && cursor.getInt(0) == 0;
+        }
+        long durationMillis = SystemClock.elapsedRealtime() - startTime;
+        mWalMetrics.onCheckpoint(walSizeBytes, durationMillis, completed);
+        Log.i(
+                TAG,
+                "WAL checkpoint of "
+                        + walSizeBytes
+                        + " bytes took "
+                        + durationMillis
+                        + " ms, completed: "
+                        + completed);
+    }
+
+    /**
+     * Writes a consistent copy of the database into {@code destination}, replacing it.
+     *
+     * <p>The copy is made through a separate read-only connection, which reads the last committed
+     * state like any reader of the write-ahead log, so writes are not blocked while it runs. The
+     * copy is also compacted, and doesn't need the log.
+     */
+    public void snapshotTo(@NonNull File destination) {
+        // VACUUM INTO fails if the destination exists.
+        destination.delete();
+        try (SQLiteDatabase db =
+                SQLiteDatabase.openDatabase(
+                        getDatabasePath(),
+                        new SQLiteDatabase.OpenParams.Builder()
+                                .addOpenFlags(SQLiteDatabase.OPEN_READONLY)
+                                .build())) {
+            db.execSQL(VACUUM_INTO_COMMAND, new Object[] {destination.getPath()});
+        }
+    }
+
+    @NonNull
+    public WalMetrics getWalMetrics() {
+        return mWalMetrics;
+    }
+
+    private File getWalFile() {
+        return new File(getDatabasePath().getPath() + WAL_FILE_SUFFIX);
+    }
+
     private void dropAllTables(SQLiteDatabase db) {
         List<String> allTables =
                 getCreateTableRequests().stream().map(CreateTableRequest::getTableName).toList();
@@ -134,6 +231,7 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         addCreateRequestsFor(MigrationEntityHelper.getInstance().getCreateTableRequest(), requests);
         addCreateRequestsFor(
                 PriorityMigrationHelper.getInstance().getCreateTableRequest(), requests);
+        addCreateRequestsFor(AggregateRollupHelper.getInstance().getCreateTableRequest(), requests);
 
         return requests;
     }
@@ -157,4 +255,53 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
     public static String getName() {
         return DATABASE_NAME;
     }
+
+    /** Size of the write-ahead log and duration of its checkpoints. */
+    public final class WalMetrics {
+        private long mLastCheckpointWalSizeBytes;
+        private long mLastCheckpointDurationMillis;
+        private long mMaxCheckpointDurationMillis;
+        private int mCheckpointCount;
+        private int mIncompleteCheckpointCount;
+
+        private WalMetrics() {}
+
+        /** Returns the current size of the write-ahead log. */
+        public long getWalSizeBytes() {
+            return getWalFile().length();
+        }
+
+        /** Returns the size of the write-ahead log when the last checkpoint started. */
+        public synchronized long getLastCheckpointWalSizeBytes() {
+            return mLastCheckpointWalSizeBytes;
+        }
+
+        public synchronized long getLastCheckpointDurationMillis() {
+            return mLastCheckpointDurationMillis;
+        }
+
+        public synchronized long getMaxCheckpointDurationMillis() {
+            return mMaxCheckpointDurationMillis;
+        }
+
+        public synchronized int getCheckpointCount() {
+            return mCheckpointCount;
+        }
+
+        /** Returns the number of checkpoints which were cut short by a reader or a writer. */
+        public synchronized int getIncompleteCheckpointCount() {
+            return mIncompleteCheckpointCount;
+        }
+
+        private synchronized void onCheckpoint(
+                long walSizeBytes, long durationMillis, boolean completed) {
+            mLastCheckpointWalSizeBytes = walSizeBytes;
+            mLastCheckpointDurationMillis = durationMillis;
+            mMaxCheckpointDurationMillis = Math.max(mMaxCheckpointDurationMillis, durationMillis);
+            mCheckpointCount++;
+            if (!completed) {
+                mIncompleteCheckpointCount++;
+            }
+        }
+    }
 }
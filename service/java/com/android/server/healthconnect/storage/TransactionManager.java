@@ -23,9 +23,9 @@ import static android.health.connect.HealthConnectException.ERROR_INTERNAL;
 
 import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
 import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -39,8 +39,11 @@ import android.os.UserHandle;
 import android.util.Pair;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.healthconnect.HealthConnectUserContext;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.request.AggregateTableRequest;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
@@ -49,18 +52,21 @@ import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
+import com.android.server.healthconnect.storage.utils.PreparedStatements;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
+import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.BiConsumer;
 
 /**
  * A class to handle all the DB transaction request from the clients. {@link TransactionManager}
@@ -75,6 +81,10 @@ public final class TransactionManager {
             mUserHandleToDatabaseMap = new ConcurrentHashMap<>();
     private static volatile TransactionManager sTransactionManager;
     private volatile HealthConnectDatabase mHealthConnectDatabase;
+    // Change logs inserted by the transactions of each thread, published once the outermost
+    // transaction is committed.
+    private final ThreadLocal<PendingChangeLogs> mPendingChangeLogs =
+            ThreadLocal.withInitial(PendingChangeLogs::new);
 
     private TransactionManager(@NonNull HealthConnectUserContext context) {
         mHealthConnectDatabase = new HealthConnectDatabase(context);
@@ -91,6 +101,7 @@ public final class TransactionManager {
 
         mHealthConnectDatabase =
                 mUserHandleToDatabaseMap.get(healthConnectUserContext.getCurrentUserHandle());
+        ChangeLogsHelper.getInstance().clearTailCache();
     }
 
     /**
@@ -107,40 +118,59 @@ public final class TransactionManager {
         }
 
         final SQLiteDatabase db = getWritableDb();
-        db.beginTransaction();
-        try {
-            for (UpsertTableRequest upsertRequest : request.getUpsertRequests()) {
-                insertOrReplaceRecord(db, upsertRequest);
-            }
-            for (UpsertTableRequest insertRequestsForChangeLog :
-                    request.getInsertRequestsForChangeLogs()) {
-                insertRecord(db, insertRequestsForChangeLog);
+        List<UpsertTableRequest> changeLogRequests = request.getInsertRequestsForChangeLogs();
+        long[] changeLogRowIds = null;
+        beginTransaction(db);
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(db)) {
+            // Records of the same type share the same statements, so insert them back to back.
+            for (List<UpsertTableRequest> tableRequests :
+                    BatchInsertEngine.groupByTable(request.getUpsertRequests()).values()) {
+                for (UpsertTableRequest upsertRequest : tableRequests) {
+                    insertOrReplaceRecord(db, insertEngine, upsertRequest);
+                }
             }
+            insertOrReplacePreferences(insertEngine, request.getPreferencesToCommit());
+            long[] rowIds = insertChangeLogs(insertEngine, changeLogRequests);
 
             for (UpsertTableRequest insertRequestsForAccessLogs : request.getAccessLogs()) {
-                insertRecord(db, insertRequestsForAccessLogs);
+                insertRecord(insertEngine, insertRequestsForAccessLogs);
             }
 
             db.setTransactionSuccessful();
+            changeLogRowIds = rowIds;
         } finally {
-            db.endTransaction();
+            endTransaction(db, changeLogRequests, changeLogRowIds);
         }
+        PreferenceHelper.getInstance().onPreferencesCommitted(request.getPreferencesToCommit());
 
         return request.getUUIdsInOrder();
     }
 
     /** Ignores if a record is already present. */
     public void insertAll(@NonNull List<UpsertTableRequest> requests) throws SQLiteException {
+        insertAll(requests, Collections.emptyMap());
+    }
+
+    /**
+     * Same as {@link #insertAll(List)}, but also inserts or replaces {@code preferencesToCommit} in
+     * the same transaction.
+     */
+    public void insertAll(
+            @NonNull List<UpsertTableRequest> requests,
+            @NonNull Map<String, String> preferencesToCommit)
+            throws SQLiteException {
         final SQLiteDatabase db = getWritableDb();
         db.beginTransaction();
-        try {
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(db)) {
             for (UpsertTableRequest request : requests) {
-                insertOrIgnore(db, request);
+                insertOrIgnore(insertEngine, request);
             }
+            insertOrReplacePreferences(insertEngine, preferencesToCommit);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
+        PreferenceHelper.getInstance().onPreferencesCommitted(preferencesToCommit);
     }
 
     /**
@@ -150,7 +180,16 @@ public final class TransactionManager {
      */
     public void insertOrReplaceAll(@NonNull List<UpsertTableRequest> upsertTableRequests)
             throws SQLiteException {
-        insertAll(upsertTableRequests, this::insertOrReplaceRecord);
+        final SQLiteDatabase db = getWritableDb();
+        db.beginTransaction();
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(db)) {
+            for (UpsertTableRequest upsertTableRequest : upsertTableRequests) {
+                insertOrReplaceRecord(db, insertEngine, upsertTableRequest);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /**
@@ -162,9 +201,9 @@ public final class TransactionManager {
     public void insertOrIgnoreOnConflict(@NonNull List<UpsertTableRequest> upsertTableRequests) {
         final SQLiteDatabase db = getWritableDb();
         db.beginTransaction();
-        try {
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(db)) {
             upsertTableRequests.forEach(
-                    (upsertTableRequest) -> insertOrIgnore(db, upsertTableRequest));
+                    (upsertTableRequest) -> insertOrIgnore(insertEngine, upsertTableRequest));
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
@@ -181,8 +220,10 @@ public final class TransactionManager {
      */
     public int deleteAll(@NonNull DeleteTransactionRequest request) throws SQLiteException {
         final SQLiteDatabase db = getWritableDb();
-        db.beginTransaction();
+        beginTransaction(db);
         int numberOfRecordsDeleted = 0;
+        List<UpsertTableRequest> changeLogRequests = Collections.emptyList();
+        long[] changeLogRowIds = null;
         try {
             for (DeleteTableRequest deleteTableRequest : request.getDeleteTableRequests()) {
                 if (deleteTableRequest.requiresRead()) {
@@ -190,7 +231,10 @@ public final class TransactionManager {
                     Delete request needs UUID before the entry can be
                     deleted, fetch and set it in {@code request}
                     */
-                    try (Cursor cursor = db.rawQuery(deleteTableRequest.getReadCommand(), null)) {
+                    List<Object> readBindArgs = new ArrayList<>();
+                    String readCommand = deleteTableRequest.getReadCommand(readBindArgs);
+                    try (Cursor cursor =
+                            PreparedStatements.rawQuery(db, readCommand, readBindArgs)) {
                         int numberOfUuidsToDelete = 0;
                         while (cursor.moveToNext()) {
                             numberOfUuidsToDelete++;
@@ -212,15 +256,19 @@ public final class TransactionManager {
                     }
                 }
                 numberOfRecordsDeleted += deleteTableRequest.getTotalNumberOfRecordsDeleted();
-                db.execSQL(deleteTableRequest.getDeleteCommand());
+                executeDelete(db, deleteTableRequest);
             }
 
-            request.getChangeLogUpsertRequests()
-                    .forEach((insertRequest) -> insertRecord(db, insertRequest));
+            changeLogRequests = request.getChangeLogUpsertRequests();
+            long[] rowIds;
+            try (BatchInsertEngine insertEngine = new BatchInsertEngine(db)) {
+                rowIds = insertChangeLogs(insertEngine, changeLogRequests);
+            }
 
             db.setTransactionSuccessful();
+            changeLogRowIds = rowIds;
         } finally {
-            db.endTransaction();
+            endTransaction(db, changeLogRequests, changeLogRowIds);
         }
         return numberOfRecordsDeleted;
     }
@@ -236,14 +284,44 @@ public final class TransactionManager {
         if (!aggregateTableRequest.getRecordHelper().isRecordOperationsEnabled()) {
             return;
         }
-        try (Cursor cursor = db.rawQuery(aggregateTableRequest.getAggregationCommand(), null);
+        if (aggregateTableRequest.canUseRollups()
+                && !hasInexactRollups(db, aggregateTableRequest)) {
+            List<Object> bindArgs = new ArrayList<>();
+            String command = aggregateTableRequest.getRollupAggregationCommand(bindArgs);
+            List<Object> metaDataBindArgs = new ArrayList<>();
+            String metaDataCommand =
+                    aggregateTableRequest.getCommandToFetchRollupMetadata(metaDataBindArgs);
+            try (Cursor cursor = PreparedStatements.rawQuery(db, command, bindArgs);
+                    Cursor metaDataCursor =
+                            PreparedStatements.rawQuery(db, metaDataCommand, metaDataBindArgs)) {
+                aggregateTableRequest.onRollupResultsFetched(cursor, metaDataCursor);
+            }
+            return;
+        }
+        List<Object> bindArgs = new ArrayList<>();
+        String command = aggregateTableRequest.getAggregationCommand(bindArgs);
+        List<Object> metaDataBindArgs = new ArrayList<>();
+        String metaDataCommand =
+                aggregateTableRequest.getCommandToFetchAggregateMetadata(metaDataBindArgs);
+        try (Cursor cursor = PreparedStatements.rawQuery(db, command, bindArgs);
                 Cursor metaDataCursor =
-                        db.rawQuery(
-                                aggregateTableRequest.getCommandToFetchAggregateMetadata(), null)) {
+                        PreparedStatements.rawQuery(db, metaDataCommand, metaDataBindArgs)) {
             aggregateTableRequest.onResultsFetched(cursor, metaDataCursor);
         }
     }
 
+    private static boolean hasInexactRollups(
+            SQLiteDatabase db, AggregateTableRequest aggregateTableRequest) {
+        List<Object> bindArgs = new ArrayList<>();
+        String command = aggregateTableRequest.getCommandToFindInexactRollups(bindArgs);
+        if (command == null) {
+            return false;
+        }
+        try (Cursor cursor = PreparedStatements.rawQuery(db, command, bindArgs)) {
+            return cursor.getCount() > 0;
+        }
+    }
+
     /**
      * Reads the records {@link RecordInternal} stored in the HealthConnect database.
      *
@@ -276,7 +354,7 @@ public final class TransactionManager {
 
     /**
      * Reads the records {@link RecordInternal} stored in the HealthConnect database and returns the
-     * max row_id as next page token.
+     * token of the next page, see {@link RecordHelper#getNextPageToken}.
      *
      * @param request a read request.
      * @return Pair containing records list read {@link RecordInternal} from the table and a next
@@ -301,12 +379,10 @@ public final class TransactionManager {
 
         try (Cursor cursor = read(readTableRequest)) {
             recordInternalList = helper.getInternalRecords(cursor, readTableRequest.getPageSize());
-            String startTimeColumnName = helper.getStartTimeColumnName();
-
             populateInternalRecordsWithExtraData(recordInternalList, readTableRequest);
-            if (cursor.moveToNext()) {
-                token = getCursorLong(cursor, startTimeColumnName);
-            }
+            token =
+                    helper.getNextPageToken(
+                            cursor, recordInternalList, readTableRequest.isAscending());
         }
         return Pair.create(recordInternalList, token);
     }
@@ -343,7 +419,13 @@ public final class TransactionManager {
      */
     public void update(@NonNull UpsertTableRequest request) {
         final SQLiteDatabase db = getWritableDb();
-        updateRecord(db, request);
+        db.beginTransaction();
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(db)) {
+            updateRecord(db, insertEngine, request);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /**
@@ -351,8 +433,8 @@ public final class TransactionManager {
      * HealthConnect database.
      *
      * <p>NOTE: PLEASE ONLY USE THIS FUNCTION IF YOU WANT TO UPSERT A SINGLE RECORD. PLEASE DON'T
-     * USE THIS FUNCTION INSIDE A FOR LOOP OR REPEATEDLY: The reason is that this function tries to
-     * insert a record out of a transaction and if you are trying to insert a record before or after
+     * USE THIS FUNCTION INSIDE A FOR LOOP OR REPEATEDLY: The reason is that this function inserts
+     * a record in its own transaction and if you are trying to insert a record before or after
      * opening up a transaction please rethink if you really want to use this function.
      *
      * <p>NOTE: INSERT + WITH_CONFLICT_REPLACE only works on unique columns, else in case of
@@ -363,16 +445,25 @@ public final class TransactionManager {
      */
     public long insertOrReplace(@NonNull UpsertTableRequest request) {
         final SQLiteDatabase db = getWritableDb();
-        return insertOrReplaceRecord(db, request);
+        db.beginTransaction();
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(db)) {
+            long rowId = insertOrReplaceRecord(db, insertEngine, request);
+            db.setTransactionSuccessful();
+            return rowId;
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /** Note: It is the responsibility of the caller to close the returned cursor */
     @NonNull
     public Cursor read(@NonNull ReadTableRequest request) {
+        List<Object> bindArgs = new ArrayList<>();
+        String command = request.getReadCommand(bindArgs);
         if (Constants.DEBUG) {
-            Slog.d(TAG, "Read query: " + request.getReadCommand());
+            Slog.d(TAG, "Read query: " + command + " with " + bindArgs.size() + " bind args");
         }
-        return getReadableDb().rawQuery(request.getReadCommand(), null);
+        return PreparedStatements.rawQuery(getReadableDb(), command, bindArgs);
     }
 
     public long getLastRowIdFor(String tableName) {
@@ -407,7 +498,7 @@ public final class TransactionManager {
 
     public void delete(DeleteTableRequest request) {
         final SQLiteDatabase db = getWritableDb();
-        db.execSQL(request.getDeleteCommand());
+        executeDelete(db, request);
     }
 
     /**
@@ -417,22 +508,24 @@ public final class TransactionManager {
      */
     public void updateAll(@NonNull UpsertTransactionRequest request) {
         final SQLiteDatabase db = getWritableDb();
-        db.beginTransaction();
-        try {
+        List<UpsertTableRequest> changeLogRequests = request.getInsertRequestsForChangeLogs();
+        long[] changeLogRowIds = null;
+        beginTransaction(db);
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(db)) {
             for (UpsertTableRequest upsertRequest : request.getUpsertRequests()) {
-                updateRecord(db, upsertRequest);
-            }
-            for (UpsertTableRequest insertRequestsForChangeLog :
-                    request.getInsertRequestsForChangeLogs()) {
-                insertRecord(db, insertRequestsForChangeLog);
+                updateRecord(db, insertEngine, upsertRequest);
             }
+            insertOrReplacePreferences(insertEngine, request.getPreferencesToCommit());
+            long[] rowIds = insertChangeLogs(insertEngine, changeLogRequests);
             for (UpsertTableRequest insertRequestsForAccessLogs : request.getAccessLogs()) {
-                insertRecord(db, insertRequestsForAccessLogs);
+                insertRecord(insertEngine, insertRequestsForAccessLogs);
             }
             db.setTransactionSuccessful();
+            changeLogRowIds = rowIds;
         } finally {
-            db.endTransaction();
+            endTransaction(db, changeLogRequests, changeLogRowIds);
         }
+        PreferenceHelper.getInstance().onPreferencesCommitted(request.getPreferencesToCommit());
     }
 
     /**
@@ -485,7 +578,7 @@ public final class TransactionManager {
         db.beginTransaction();
         try {
             for (DeleteTableRequest deleteTableRequest : deleteTableRequests) {
-                db.execSQL(deleteTableRequest.getDeleteCommand());
+                executeDelete(db, deleteTableRequest);
             }
             db.setTransactionSuccessful();
         } finally {
@@ -493,44 +586,82 @@ public final class TransactionManager {
         }
     }
 
-    public void onUserSwitching() {
-        mHealthConnectDatabase.close();
+    /**
+     * Deletes at most {@code limit} of the rows of {@code deleteTableRequest}, without adding
+     * change logs, and returns the number of rows deleted. Rows of other tables deleted on cascade
+     * are deleted in the same transaction but not counted.
+     */
+    public int deleteWithoutChangeLogs(@NonNull DeleteTableRequest deleteTableRequest, int limit) {
+        Objects.requireNonNull(deleteTableRequest);
+        List<Object> bindArgs = new ArrayList<>();
+        String deleteCommand = deleteTableRequest.getDeleteCommand(bindArgs, limit);
+        return PreparedStatements.executeUpdateDelete(getWritableDb(), deleteCommand, bindArgs);
     }
 
-    private void insertAll(
-            @NonNull List<UpsertTableRequest> upsertTableRequests,
-            @NonNull BiConsumer<SQLiteDatabase, UpsertTableRequest> insert) {
-        final SQLiteDatabase db = getWritableDb();
-        db.beginTransaction();
-        try {
-            upsertTableRequests.forEach(
-                    (upsertTableRequest) -> insert.accept(db, upsertTableRequest));
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
-        }
+    public void onUserSwitching() {
+        mHealthConnectDatabase.close();
+        ChangeLogsHelper.getInstance().clearTailCache();
     }
 
     public <E extends Throwable> void runAsTransaction(TransactionRunnable<E> task) throws E {
         final SQLiteDatabase db = getWritableDb();
-        db.beginTransaction();
+        beginTransaction(db);
+        boolean successful = false;
         try {
             task.run(db);
             db.setTransactionSuccessful();
+            successful = true;
         } finally {
-            db.endTransaction();
+            // Publishes the change logs of the transactions run by the task.
+            endTransaction(db, Collections.emptyList(), successful ? new long[0] : null);
         }
     }
 
     /** Assumes that caller will be closing {@code db} and handling the transaction if required */
     public long insertRecord(@NonNull SQLiteDatabase db, @NonNull UpsertTableRequest request) {
-        long rowId = db.insertOrThrow(request.getTable(), null, request.getContentValues());
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(db)) {
+            return insertRecord(insertEngine, request);
+        }
+    }
+
+    /**
+     * Inserts {@code request} and its child requests using the statements cached in {@code
+     * insertEngine}.
+     *
+     * <p>Assumes that caller is handling the transaction {@code insertEngine} was created in.
+     */
+    public long insertRecord(
+            @NonNull BatchInsertEngine insertEngine, @NonNull UpsertTableRequest request) {
+        long rowId = insertEngine.insertOrThrow(request);
         request.getChildTableRequests()
-                .forEach(childRequest -> insertRecord(db, childRequest.withParentKey(rowId)));
+                .forEach(
+                        childRequest ->
+                                insertRecord(insertEngine, childRequest.withParentKey(rowId)));
+        insertEngine.insertChildTableRows(request, rowId);
 
         return rowId;
     }
 
+    /**
+     * Inserts or replaces {@code preferences} in the transaction {@code insertEngine} was created
+     * in, so that they are committed together with the records they describe. The caller has to
+     * pass them to {@link PreferenceHelper#onPreferencesCommitted} once the transaction is
+     * committed.
+     */
+    public void insertOrReplacePreferences(
+            @NonNull BatchInsertEngine insertEngine, @NonNull Map<String, String> preferences) {
+        if (preferences.isEmpty()) {
+            return;
+        }
+
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+        preferences.forEach(
+                (key, value) ->
+                        insertEngine.insert(
+                                preferenceHelper.getUpsertTableRequest(key, value),
+                                SQLiteDatabase.CONFLICT_REPLACE));
+    }
+
     /**
      * Inserts the provided {@link UpsertTableRequest} into the database.
      *
@@ -539,22 +670,38 @@ public final class TransactionManager {
      * @return the row ID of the newly inserted row or <code>-1</code> if an error occurred.
      */
     public long insertOrIgnore(@NonNull SQLiteDatabase db, @NonNull UpsertTableRequest request) {
-        long rowId =
-                db.insertWithOnConflict(
-                        request.getTable(),
-                        null,
-                        request.getContentValues(),
-                        SQLiteDatabase.CONFLICT_IGNORE);
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(db)) {
+            return insertOrIgnore(insertEngine, request);
+        }
+    }
+
+    /**
+     * Same as {@link #insertOrIgnore(SQLiteDatabase, UpsertTableRequest)}, but uses the statements
+     * cached in {@code insertEngine}.
+     *
+     * @return the row ID of the newly inserted row or <code>-1</code> if an error occurred.
+     */
+    public long insertOrIgnore(
+            @NonNull BatchInsertEngine insertEngine, @NonNull UpsertTableRequest request) {
+        long rowId = insertEngine.insert(request, SQLiteDatabase.CONFLICT_IGNORE);
 
         if (rowId != -1) {
             request.getChildTableRequests()
-                    .forEach(childRequest -> insertRecord(db, childRequest.withParentKey(rowId)));
+                    .forEach(
+                            childRequest ->
+                                    insertRecord(insertEngine, childRequest.withParentKey(rowId)));
+            insertEngine.insertChildTableRows(request, rowId);
         }
 
         return rowId;
     }
 
-    /** Note: NEVER close this DB */
+    /**
+     * Note: NEVER close this DB
+     *
+     * <p>This is the same object as {@link #getWritableDb}, but statements run outside of a
+     * transaction use one of its reader connections, so they don't wait for ongoing writes.
+     */
     @NonNull
     private SQLiteDatabase getReadableDb() {
         SQLiteDatabase sqLiteDatabase = mHealthConnectDatabase.getReadableDatabase();
@@ -580,29 +727,37 @@ public final class TransactionManager {
         return mHealthConnectDatabase.getDatabasePath();
     }
 
+    /** Checkpoints the write-ahead log of the database, see {@link HealthConnectDatabase}. */
+    public void checkpoint() {
+        mHealthConnectDatabase.checkpoint();
+    }
+
+    /**
+     * Writes a consistent copy of the database into {@code destination}, without blocking writes.
+     */
+    public void snapshotTo(@NonNull File destination) {
+        mHealthConnectDatabase.snapshotTo(destination);
+    }
+
+    @NonNull
+    public HealthConnectDatabase.WalMetrics getWalMetrics() {
+        return mHealthConnectDatabase.getWalMetrics();
+    }
+
     public void updateTable(UpsertTableRequest upsertTableRequest) {
-        getWritableDb()
-                .update(
-                        upsertTableRequest.getTable(),
-                        upsertTableRequest.getContentValues(),
-                        upsertTableRequest.getUpdateWhereClauses().get(false),
-                        null);
+        executeUpdate(getWritableDb(), upsertTableRequest);
     }
 
     public int getDatabaseVersion() {
         return getReadableDb().getVersion();
     }
 
-    private void updateRecord(SQLiteDatabase db, UpsertTableRequest request) {
+    private void updateRecord(
+            SQLiteDatabase db, BatchInsertEngine insertEngine, UpsertTableRequest request) {
         // Perform an update operation where UUID and packageName (mapped by appInfoId) is same
         // as that of the update request.
         try {
-            long numberOfRowsUpdated =
-                    db.update(
-                            request.getTable(),
-                            request.getContentValues(),
-                            request.getUpdateWhereClauses().get(/* withWhereKeyword */ false),
-                            /* WHERE args */ null);
+            long numberOfRowsUpdated = executeUpdate(db, request);
 
             // throw an exception if the no row was updated, i.e. the uuid with corresponding
             // app_id_info for this request is not found in the table.
@@ -613,7 +768,7 @@ public final class TransactionManager {
                                         request.getContentValues()));
             }
         } catch (SQLiteConstraintException e) {
-            try (Cursor cursor = db.rawQuery(request.getReadRequest().getReadCommand(), null)) {
+            try (Cursor cursor = readUpsertRow(db, request.getReadRequest())) {
                 cursor.moveToFirst();
                 throw new IllegalArgumentException(
                         StorageUtils.getConflictErrorMessageForRecord(
@@ -625,15 +780,14 @@ public final class TransactionManager {
             return;
         }
 
-        try (Cursor cursor =
-                db.rawQuery(request.getReadRequestUsingUpdateClause().getReadCommand(), null)) {
+        try (Cursor cursor = readUpsertRow(db, request.getReadRequestUsingUpdateClause())) {
             if (!cursor.moveToFirst()) {
                 throw new HealthConnectException(
                         ERROR_INTERNAL, "Expected to read an entry for update, but none found");
             }
             final long rowId = StorageUtils.getCursorLong(cursor, request.getRowIdColName());
             deleteChildTableRequest(request, rowId, db);
-            insertChildTableRequest(request, rowId, db);
+            insertChildTableRequest(request, rowId, insertEngine);
         }
     }
 
@@ -661,44 +815,40 @@ public final class TransactionManager {
      * <p>Note: This function updates rather than the traditional delete + insert in SQLite
      */
     private long insertOrReplaceRecord(
-            @NonNull SQLiteDatabase db, @NonNull UpsertTableRequest request) {
+            @NonNull SQLiteDatabase db,
+            @NonNull BatchInsertEngine insertEngine,
+            @NonNull UpsertTableRequest request) {
         try {
             if (request.getUniqueColumnsCount() == 0) {
                 throw new RuntimeException(
                         "insertOrReplaceRecord should only be called with unique columns set");
             }
 
-            long rowId =
-                    db.insertWithOnConflict(
-                            request.getTable(),
-                            null,
-                            request.getContentValues(),
-                            SQLiteDatabase.CONFLICT_FAIL);
-            insertChildTableRequest(request, rowId, db);
+            long rowId = insertEngine.insert(request, SQLiteDatabase.CONFLICT_FAIL);
+            insertChildTableRequest(request, rowId, insertEngine);
             return rowId;
         } catch (SQLiteConstraintException e) {
-            try (Cursor cursor = db.rawQuery(request.getReadRequest().getReadCommand(), null)) {
+            try (Cursor cursor = readUpsertRow(db, request.getReadRequest())) {
                 if (!cursor.moveToFirst()) {
                     throw new HealthConnectException(
                             ERROR_INTERNAL, "Conflict found, but couldn't read the entry.");
                 }
 
-                return updateEntriesIfRequired(db, request, cursor);
+                return updateEntriesIfRequired(db, insertEngine, request, cursor);
             }
         }
     }
 
     private long updateEntriesIfRequired(
-            SQLiteDatabase db, UpsertTableRequest request, Cursor cursor) {
+            SQLiteDatabase db,
+            BatchInsertEngine insertEngine,
+            UpsertTableRequest request,
+            Cursor cursor) {
         if (!request.requiresUpdate(cursor, request)) {
             return -1;
         }
 
-        db.update(
-                request.getTable(),
-                request.getContentValues(),
-                request.getUpdateWhereClauses().get(/* withWhereKeyword */ false),
-                /* WHERE args */ null);
+        executeUpdate(db, request);
         if (cursor.getColumnIndex(request.getRowIdColName()) == -1) {
             // The table is not explicitly using row_ids hence returning -1 here is ok, as
             // the rowid is of no use to this table.
@@ -708,27 +858,139 @@ public final class TransactionManager {
         }
         final long rowId = StorageUtils.getCursorLong(cursor, request.getRowIdColName());
         deleteChildTableRequest(request, rowId, db);
-        insertChildTableRequest(request, rowId, db);
+        insertChildTableRequest(request, rowId, insertEngine);
 
         return rowId;
     }
 
+    private long[] insertChangeLogs(
+            BatchInsertEngine insertEngine, List<UpsertTableRequest> changeLogRequests) {
+        long[] rowIds = new long[changeLogRequests.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = insertRecord(insertEngine, changeLogRequests.get(i));
+        }
+        return rowIds;
+    }
+
+    private void beginTransaction(SQLiteDatabase db) {
+        db.beginTransaction();
+        mPendingChangeLogs.get().mTransactionDepth++;
+    }
+
+    /**
+     * Ends the transaction of {@code db} started by {@link #beginTransaction}. Change logs are only
+     * committed with the outermost transaction, so the ones inserted by nested transactions are
+     * kept until then, and all are published to the change logs cache and listeners once the
+     * outermost transaction is committed.
+     *
+     * @param changeLogRowIds row ids of {@code changeLogRequests}, or {@code null} if the
+     *     transaction wasn't successful
+     */
+    private void endTransaction(
+            SQLiteDatabase db,
+            List<UpsertTableRequest> changeLogRequests,
+            @Nullable long[] changeLogRowIds) {
+        PendingChangeLogs pendingChangeLogs = mPendingChangeLogs.get();
+        pendingChangeLogs.add(changeLogRequests, changeLogRowIds);
+        if (--pendingChangeLogs.mTransactionDepth > 0) {
+            db.endTransaction();
+            return;
+        }
+        mPendingChangeLogs.remove();
+        if (!pendingChangeLogs.mSuccessful || pendingChangeLogs.mRequests.isEmpty()) {
+            db.endTransaction();
+            return;
+        }
+
+        // The write lock of the database is held until the commit, so change logs are added to
+        // the cache in row id order without holding another lock while committing.
+        ChangeLogsHelper changeLogsHelper = ChangeLogsHelper.getInstance();
+        long[] rowIds = pendingChangeLogs.getRowIds();
+        changeLogsHelper.onChangeLogsCommitting(pendingChangeLogs.mRequests, rowIds);
+        boolean committed = false;
+        try {
+            db.endTransaction();
+            // Still in a transaction when started by another class, and then only committed with
+            // it, which isn't tracked.
+            committed = !db.inTransaction();
+        } finally {
+            if (committed) {
+                changeLogsHelper.onChangeLogsCommitted(rowIds);
+            } else {
+                changeLogsHelper.clearTailCache();
+            }
+        }
+        if (committed) {
+            ChangeLogsSubscriptionManager.getInstance()
+                    .onChangeLogsCommitted(pendingChangeLogs.mRequests);
+        }
+    }
+
+    private static void executeDelete(SQLiteDatabase db, DeleteTableRequest request) {
+        List<Object> bindArgs = new ArrayList<>();
+        String command = request.getDeleteCommand(bindArgs);
+        PreparedStatements.executeUpdateDelete(db, command, bindArgs);
+    }
+
+    private static int executeUpdate(SQLiteDatabase db, UpsertTableRequest request) {
+        List<Object> bindArgs = new ArrayList<>();
+        String command = request.getUpdateCommand(bindArgs);
+        return PreparedStatements.executeUpdateDelete(db, command, bindArgs);
+    }
+
+    private static Cursor readUpsertRow(SQLiteDatabase db, ReadTableRequest request) {
+        List<Object> bindArgs = new ArrayList<>();
+        String command = request.getReadCommand(bindArgs);
+        return PreparedStatements.rawQuery(db, command, bindArgs);
+    }
+
     private void deleteChildTableRequest(
             UpsertTableRequest request, long rowId, SQLiteDatabase db) {
         for (String childTable : request.getAllChildTablesToDelete()) {
-            DeleteTableRequest deleteTableRequest =
-                    new DeleteTableRequest(childTable).setId(PARENT_KEY, String.valueOf(rowId));
-            db.execSQL(deleteTableRequest.getDeleteCommand());
+            executeDelete(
+                    db,
+                    new DeleteTableRequest(childTable)
+                            .setWhereClauses(
+                                    new WhereClauses().addWhereEqualsClause(PARENT_KEY, rowId)));
         }
     }
 
     private void insertChildTableRequest(
-            UpsertTableRequest request, long rowId, SQLiteDatabase db) {
+            UpsertTableRequest request, long rowId, BatchInsertEngine insertEngine) {
         for (UpsertTableRequest childTableRequest : request.getChildTableRequests()) {
-            db.insertOrThrow(
-                    childTableRequest.withParentKey(rowId).getTable(),
-                    null,
-                    childTableRequest.getContentValues());
+            insertEngine.insertOrThrow(childTableRequest.withParentKey(rowId));
+        }
+        insertEngine.insertChildTableRows(request, rowId);
+    }
+
+    /** Change logs inserted by the transactions of a thread, until the outermost one ends. */
+    private static final class PendingChangeLogs {
+        private final List<UpsertTableRequest> mRequests = new ArrayList<>();
+        private final List<long[]> mRowIds = new ArrayList<>();
+        private int mTransactionDepth;
+        private boolean mSuccessful = true;
+
+        void add(List<UpsertTableRequest> requests, @Nullable long[] rowIds) {
+            if (rowIds == null) {
+                // A failed nested transaction rolls back the outermost one.
+                mSuccessful = false;
+                return;
+            }
+            mRequests.addAll(requests);
+            mRowIds.add(rowIds);
+        }
+
+        long[] getRowIds() {
+            if (mRowIds.size() == 1) {
+                return mRowIds.get(0);
+            }
+            long[] rowIds = new long[mRequests.size()];
+            int index = 0;
+            for (long[] transactionRowIds : mRowIds) {
+                System.arraycopy(transactionRowIds, 0, rowIds, index, transactionRowIds.length);
+                index += transactionRowIds.length;
+            }
+            return rowIds;
         }
     }
 
@@ -752,4 +1014,12 @@ public final class TransactionManager {
 
         return sTransactionManager;
     }
+
+    /** Closes the databases of all users and clears the instance. */
+    @VisibleForTesting
+    public static synchronized void clearInstanceForTest() {
+        mUserHandleToDatabaseMap.values().forEach(HealthConnectDatabase::close);
+        mUserHandleToDatabaseMap.clear();
+        sTransactionManager = null;
+    }
 }
@@ -21,12 +21,14 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMAR
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.health.connect.datatypes.Record;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.internal.datatypes.utils.RecordMapper;
+import android.util.ArraySet;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.TransactionManager;
@@ -41,7 +43,6 @@ import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
@@ -109,41 +110,71 @@ public final class ActivityDateHelper {
                         .setDistinctClause(true));
     }
 
-    public void reSyncForAllRecords() {
-        List<Integer> recordTypeIds =
-                RecordMapper.getInstance().getRecordIdToExternalRecordClassMap().keySet().stream()
-                        .toList();
-
-        reSyncByRecordTypeIds(recordTypeIds);
+    /**
+     * Re-syncs the dates on or before {@code maxEpochDay} for all record types, e.g. after the
+     * records before that day were auto deleted. The dates after it are left as they are.
+     */
+    public void reSyncForAllRecords(long maxEpochDay) {
+        reSyncByRecordTypeIds(getAllRecordTypeIds(), maxEpochDay);
     }
 
     public void reSyncByRecordTypeIds(List<Integer> recordTypeIds) {
-        List<UpsertTableRequest> upsertTableRequests = new ArrayList<>();
-        final TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
-
-        DeleteTableRequest deleteTableRequest =
-                new DeleteTableRequest(TABLE_NAME)
-                        .setIds(
-                                RECORD_TYPE_ID_COLUMN_NAME,
-                                recordTypeIds.stream().map(String::valueOf).toList());
-
-        // Fetch updated dates from respective record table and update the activity dates cache.
-        HashMap<Integer, List<Long>> recordTypeIdToEpochDays =
-                fetchUpdatedDates(recordTypeIds, transactionManager);
-
-        recordTypeIdToEpochDays.forEach(
-                (recordTypeId, epochDays) ->
-                        epochDays.forEach(
-                                (epochDay) ->
-                                        upsertTableRequests.add(
-                                                getUpsertTableRequest(recordTypeId, epochDay))));
+        reSyncByRecordTypeIds(recordTypeIds, /* maxEpochDay= */ null);
+    }
 
+    /**
+     * Replaces the dates of the given record types, on or before {@code maxEpochDay} if not null,
+     * with the distinct dates of their records. Dates are copied within the database, so that the
+     * records don't need to be read.
+     */
+    private void reSyncByRecordTypeIds(List<Integer> recordTypeIds, @Nullable Long maxEpochDay) {
+        final TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
         transactionManager.runAsTransaction(
                 db -> {
-                    db.execSQL(deleteTableRequest.getDeleteCommand());
-                    upsertTableRequests.forEach(
-                            upsertTableRequest ->
-                                    transactionManager.insertOrIgnore(db, upsertTableRequest));
+                    // Callers pass the record type of every record they changed.
+                    for (int recordTypeId : new ArraySet<>(recordTypeIds)) {
+                        RecordHelper<?> recordHelper =
+                                RecordHelperProvider.getInstance().getRecordHelper(recordTypeId);
+                        String dateColumnName = recordHelper.getPeriodGroupByColumnName();
+
+                        List<Object> bindArgs = new ArrayList<>();
+                        WhereClauses datesWhereClauses =
+                                new WhereClauses()
+                                        .addWhereInIntsClause(
+                                                RECORD_TYPE_ID_COLUMN_NAME, List.of(recordTypeId));
+                        if (maxEpochDay != null) {
+                            datesWhereClauses.addWhereLessThanOrEqualClause(
+                                    EPOCH_DAYS_COLUMN_NAME, maxEpochDay);
+                        }
+                        db.execSQL(
+                                "DELETE FROM "
+                                        + TABLE_NAME
+                                        + datesWhereClauses.get(
+                                                /* withWhereKeyword= */ true, bindArgs),
+                                bindArgs.toArray());
+
+                        bindArgs.clear();
+                        bindArgs.add(recordTypeId);
+                        WhereClauses recordsWhereClauses = new WhereClauses();
+                        if (maxEpochDay != null) {
+                            recordsWhereClauses.addWhereLessThanOrEqualClause(
+                                    dateColumnName, maxEpochDay);
+                        }
+                        db.execSQL(
+                                "INSERT OR IGNORE INTO "
+                                        + TABLE_NAME
+                                        + " ("
+                                        + EPOCH_DAYS_COLUMN_NAME
+                                        + ", "
+                                        + RECORD_TYPE_ID_COLUMN_NAME
+                                        + ") SELECT DISTINCT "
+                                        + dateColumnName
+                                        + ", ? FROM "
+                                        + recordHelper.getMainTableName()
+                                        + recordsWhereClauses.get(
+                                                /* withWhereKeyword= */ true, bindArgs),
+                                bindArgs.toArray());
+                    }
                 });
     }
 
@@ -155,29 +186,9 @@ public final class ActivityDateHelper {
                 new Pair<>(RECORD_TYPE_ID_COLUMN_NAME, INTEGER_NOT_NULL));
     }
 
-    private HashMap<Integer, List<Long>> fetchUpdatedDates(
-            List<Integer> recordTypeIds, TransactionManager transactionManager) {
-
-        ReadTableRequest request;
-        RecordHelper<?> recordHelper;
-        HashMap<Integer, List<Long>> recordTypeIdToEpochDays = new HashMap<>();
-        for (int recordTypeId : recordTypeIds) {
-            recordHelper = RecordHelperProvider.getInstance().getRecordHelper(recordTypeId);
-            request =
-                    new ReadTableRequest(recordHelper.getMainTableName())
-                            .setColumnNames(List.of(recordHelper.getPeriodGroupByColumnName()))
-                            .setDistinctClause(true);
-            try (Cursor cursor = transactionManager.read(request)) {
-                List<Long> distinctDates = new ArrayList<>();
-                while (cursor.moveToNext()) {
-                    long epochDay =
-                            getCursorLong(cursor, recordHelper.getPeriodGroupByColumnName());
-                    distinctDates.add(epochDay);
-                }
-                recordTypeIdToEpochDays.put(recordTypeId, distinctDates);
-            }
-        }
-        return recordTypeIdToEpochDays;
+    private static List<Integer> getAllRecordTypeIds() {
+        return RecordMapper.getInstance().getRecordIdToExternalRecordClassMap().keySet().stream()
+                .toList();
     }
 
     @NonNull
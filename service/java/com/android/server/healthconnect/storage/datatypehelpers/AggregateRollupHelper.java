@@ -0,0 +1,613 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.AggregationType.AVG;
+import static android.health.connect.datatypes.AggregationType.COUNT;
+import static android.health.connect.datatypes.AggregationType.MAX;
+import static android.health.connect.datatypes.AggregationType.MIN;
+import static android.health.connect.datatypes.AggregationType.SUM;
+
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_AGGREGATE_ROLLUPS;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER_NOT_NULL;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.TEXT_NOT_NULL;
+
+import android.annotation.NonNull;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.datatypes.AggregationType;
+import android.health.connect.internal.datatypes.utils.AggregationTypeIdMapper;
+import android.util.ArrayMap;
+import android.util.Pair;
+import android.util.Slog;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.AggregateParams;
+import com.android.server.healthconnect.storage.request.CreateTableRequest;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maintains pre-aggregated rollups of record values per record type, value column, app and hour
+ * bucket, used to answer aligned aggregations without scanning the record tables.
+ *
+ * <p>Rollups are kept up to date by triggers on the record tables, hence every write to a record
+ * table updates its rollups in the same transaction. Buckets exist both for the physical and the
+ * local start time of records, matching the two time columns aggregations can filter on.
+ *
+ * <p>Removing a row which could have been the minimum, maximum or latest end time of its bucket
+ * marks the bucket as stale instead of recomputing it from the record table, so that deletes don't
+ * run a query per deleted row. Stale buckets are only used for sums and counts until they are
+ * refreshed by {@link #refreshStaleRollups}.
+ *
+ * <p>Only values stored on the main table of a record type and aggregated without priorities are
+ * rolled up, see {@link #getRollupColumnNames}.
+ *
+ * @hide
+ */
+public final class AggregateRollupHelper {
+    public static final String TABLE_NAME = "aggregate_rollup_table";
+    public static final String RECORD_TYPE_COLUMN_NAME = "record_type";
+    public static final String VALUE_COLUMN_COLUMN_NAME = "value_column";
+    public static final String TIME_BASIS_COLUMN_NAME = "time_basis";
+    public static final String BUCKET_START_COLUMN_NAME = "bucket_start";
+    public static final String VALUE_SUM_COLUMN_NAME = "value_sum";
+    public static final String VALUE_MIN_COLUMN_NAME = "value_min";
+    public static final String VALUE_MAX_COLUMN_NAME = "value_max";
+    public static final String VALUE_COUNT_COLUMN_NAME = "value_count";
+    public static final String ROW_COUNT_COLUMN_NAME = "row_count";
+    public static final String MAX_END_TIME_COLUMN_NAME = "max_end_time";
+    public static final String ZONE_OFFSET_COLUMN_NAME = "zone_offset";
+    public static final String STALE_COLUMN_NAME = "stale";
+
+    public static final int TIME_BASIS_PHYSICAL = 0;
+    public static final int TIME_BASIS_LOCAL = 1;
+    public static final long BUCKET_DURATION_MILLIS = 60 * 60 * 1000;
+
+    private static final String TAG = "HealthConnectRollup";
+    private static final List<String> UNIQUE_COLUMNS =
+            List.of(
+                    RECORD_TYPE_COLUMN_NAME,
+                    VALUE_COLUMN_COLUMN_NAME,
+                    TIME_BASIS_COLUMN_NAME,
+                    BUCKET_START_COLUMN_NAME,
+                    APP_INFO_ID_COLUMN_NAME);
+    private static volatile AggregateRollupHelper sAggregateRollupHelper;
+
+    private volatile Map<Integer, List<String>> mRollupColumnNames;
+
+    private AggregateRollupHelper() {}
+
+    @NonNull
+    public CreateTableRequest getCreateTableRequest() {
+        return new CreateTableRequest(TABLE_NAME, getColumnInfo())
+                .addUniqueConstraints(UNIQUE_COLUMNS);
+    }
+
+    /** Creates the triggers maintaining the rollups. Called after all the tables are created. */
+    public void createTriggers(@NonNull SQLiteDatabase db) {
+        forEachRolledUpHelper(
+                (helper, columns) -> {
+                    for (String command : getCreateTriggerCommands(helper, columns)) {
+                        db.execSQL(command);
+                    }
+                });
+    }
+
+    /** Upgrades the database to the latest version. */
+    public void onUpgrade(int oldVersion, int newVersion, @NonNull SQLiteDatabase db) {
+        if (oldVersion < DB_VERSION_AGGREGATE_ROLLUPS) {
+            HealthConnectDatabase.createTable(db, getCreateTableRequest());
+            createTriggers(db);
+            forEachRolledUpHelper(
+                    (helper, columns) -> {
+                        for (String command : getBackfillCommands(helper, columns)) {
+                            db.execSQL(command);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Recomputes the minimum, maximum and latest end time of the stale buckets from the record
+     * tables, one query per bucket.
+     */
+    public void refreshStaleRollups() {
+        TransactionManager.getInitialisedInstance()
+                .runAsTransaction(
+                        db ->
+                                forEachRolledUpHelper(
+                                        (helper, columns) -> {
+                                            for (String command :
+                                                    getRefreshCommands(helper, columns)) {
+                                                db.execSQL(command);
+                                            }
+                                        }));
+    }
+
+    /** Returns whether values of {@code columnName} of {@code recordType} are rolled up. */
+    public boolean hasRollupsFor(int recordType, @NonNull String columnName) {
+        return getRollupColumnNames()
+                .getOrDefault(recordType, Collections.emptyList())
+                .contains(columnName);
+    }
+
+    /**
+     * Returns the main table columns rolled up for each record type. These are the columns of all
+     * the aggregations which are computed in SQL, i.e. not derived and without priorities.
+     */
+    @NonNull
+    Map<Integer, List<String>> getRollupColumnNames() {
+        if (mRollupColumnNames != null) {
+            return mRollupColumnNames;
+        }
+
+        Map<Integer, List<String>> rollupColumnNames = new ArrayMap<>();
+        for (AggregationType<?> aggregationType :
+                AggregationTypeIdMapper.getInstance().getAggregationTypes()) {
+            if (aggregationType.getApplicableRecordTypeIds().size() != 1) {
+                continue;
+            }
+
+            int recordType = aggregationType.getApplicableRecordTypeIds().get(0);
+            int operationType = aggregationType.getAggregateOperationType();
+            if (!isSqlOperation(operationType)
+                    || StorageUtils.supportsPriority(recordType, operationType)
+                    || StorageUtils.isDerivedType(recordType)) {
+                continue;
+            }
+
+            RecordHelper<?> helper = RecordHelperProvider.getInstance().getRecordHelper(recordType);
+            if (!helper.supportsAggregateRollups()) {
+                continue;
+            }
+
+            AggregateParams params = helper.getAggregateParams(aggregationType);
+            if (params == null
+                    || params.getJoin() != null
+                    || params.getColumnsToFetch().size() != 1
+                    || !helper.getMainTableName().equals(params.getTableName())) {
+                continue;
+            }
+
+            List<String> columns =
+                    rollupColumnNames.computeIfAbsent(recordType, (type) -> new ArrayList<>());
+            String column = params.getColumnsToFetch().get(0);
+            if (!columns.contains(column)) {
+                columns.add(column);
+            }
+        }
+
+        mRollupColumnNames = rollupColumnNames;
+        return rollupColumnNames;
+    }
+
+    private void forEachRolledUpHelper(RolledUpHelperConsumer consumer) {
+        RecordHelperProvider recordHelperProvider = RecordHelperProvider.getInstance();
+        getRollupColumnNames()
+                .forEach(
+                        (recordType, columns) ->
+                                consumer.accept(
+                                        recordHelperProvider.getRecordHelper(recordType),
+                                        columns));
+    }
+
+    @NonNull
+    private static List<String> getCreateTriggerCommands(
+            @NonNull RecordHelper<?> helper, @NonNull List<String> columns) {
+        StringBuilder onInsert = new StringBuilder();
+        StringBuilder onDelete = new StringBuilder();
+        for (String column : columns) {
+            for (int timeBasis : new int[] {TIME_BASIS_PHYSICAL, TIME_BASIS_LOCAL}) {
+                onInsert.append(getAddRowCommand(helper, column, timeBasis)).append("; ");
+                onDelete.append(getRemoveRowCommands(helper, column, timeBasis));
+            }
+        }
+
+        String table = helper.getMainTableName();
+        return List.of(
+                getCreateTriggerCommand(table, "insert", "INSERT", onInsert.toString()),
+                getCreateTriggerCommand(table, "delete", "DELETE", onDelete.toString()),
+                getCreateTriggerCommand(
+                        table,
+                        "update",
+                        "UPDATE OF " + String.join(", ", getUpdateTriggerColumns(helper, columns)),
+                        onDelete.toString() + onInsert));
+    }
+
+    /**
+     * Returns the columns whose update can change the rollups of {@code columns}, so that updates
+     * of other columns, e.g. metadata only, don't recompute them. Local times are generated from
+     * the times and zone offsets, and an update only names the columns it sets.
+     */
+    @NonNull
+    private static List<String> getUpdateTriggerColumns(
+            @NonNull RecordHelper<?> helper, @NonNull List<String> columns) {
+        List<String> updateColumns = new ArrayList<>(columns);
+        updateColumns.add(APP_INFO_ID_COLUMN_NAME);
+        updateColumns.add(helper.getStartTimeColumnName());
+        updateColumns.add(helper.getZoneOffsetColumnName());
+        if (helper.getEndTimeColumnName() != null) {
+            updateColumns.add(helper.getEndTimeColumnName());
+            updateColumns.add(helper.getEndZoneOffsetColumnName());
+        }
+        return updateColumns;
+    }
+
+    private static String getCreateTriggerCommand(
+            String table, String nameSuffix, String event, String body) {
+        String command =
+                "CREATE TRIGGER IF NOT EXISTS "
+                        + table
+                        + "_rollup_"
+                        + nameSuffix
+                        + " AFTER "
+                        + event
+                        + " ON "
+                        + table
+                        + " BEGIN "
+                        + body
+                        + "END";
+        Slog.d(TAG, "Create trigger: " + command);
+        return command;
+    }
+
+    /** Adds the NEW row of a record table to its bucket. */
+    private static String getAddRowCommand(
+            RecordHelper<?> helper, String column, int timeBasis) {
+        String time = "NEW." + getTimeColumnName(helper, timeBasis);
+        String value = "NEW." + column;
+        String endTime = getEndTimeColumnName(helper, timeBasis);
+        return "INSERT INTO "
+                + TABLE_NAME
+                + " ("
+                + String.join(", ", getColumnNames())
+                + ") SELECT "
+                + helper.getRecordIdentifier()
+                + ", '"
+                + column
+                + "', "
+                + timeBasis
+                + ", "
+                + getBucketStart(time)
+                + ", NEW."
+                + APP_INFO_ID_COLUMN_NAME
+                + ", "
+                + value
+                + ", "
+                + value
+                + ", "
+                + value
+                + ", "
+                + value
+                + " IS NOT NULL, 1, "
+                + (endTime == null ? "NULL" : "NEW." + endTime)
+                + ", NEW."
+                + helper.getZoneOffsetColumnName()
+                + ", 0 WHERE "
+                + time
+                + " >= 0 ON CONFLICT ("
+                + String.join(", ", UNIQUE_COLUMNS)
+                + ") DO UPDATE SET "
+                + VALUE_SUM_COLUMN_NAME
+                + " = COALESCE("
+                + VALUE_SUM_COLUMN_NAME
+                + " + excluded."
+                + VALUE_SUM_COLUMN_NAME
+                + ", "
+                + VALUE_SUM_COLUMN_NAME
+                + ", excluded."
+                + VALUE_SUM_COLUMN_NAME
+                + "), "
+                + VALUE_MIN_COLUMN_NAME
+                + " = COALESCE(MIN("
+                + VALUE_MIN_COLUMN_NAME
+                + ", excluded."
+                + VALUE_MIN_COLUMN_NAME
+                + "), "
+                + VALUE_MIN_COLUMN_NAME
+                + ", excluded."
+                + VALUE_MIN_COLUMN_NAME
+                + "), "
+                + VALUE_MAX_COLUMN_NAME
+                + " = COALESCE(MAX("
+                + VALUE_MAX_COLUMN_NAME
+                + ", excluded."
+                + VALUE_MAX_COLUMN_NAME
+                + "), "
+                + VALUE_MAX_COLUMN_NAME
+                + ", excluded."
+                + VALUE_MAX_COLUMN_NAME
+                + "), "
+                + VALUE_COUNT_COLUMN_NAME
+                + " = "
+                + VALUE_COUNT_COLUMN_NAME
+                + " + excluded."
+                + VALUE_COUNT_COLUMN_NAME
+                + ", "
+                + ROW_COUNT_COLUMN_NAME
+                + " = "
+                + ROW_COUNT_COLUMN_NAME
+                + " + 1, "
+                + MAX_END_TIME_COLUMN_NAME
+                + " = MAX("
+                + MAX_END_TIME_COLUMN_NAME
+                + ", excluded."
+                + MAX_END_TIME_COLUMN_NAME
+                + "), "
+                + ZONE_OFFSET_COLUMN_NAME
+                + " = excluded."
+                + ZONE_OFFSET_COLUMN_NAME;
+    }
+
+    /**
+     * Removes the OLD row of a record table from its bucket. Sums and counts are decremented, the
+     * bucket is dropped once empty and marked as stale if the removed row could have been its
+     * minimum, maximum or latest end time.
+     */
+    private static String getRemoveRowCommands(
+            RecordHelper<?> helper, String column, int timeBasis) {
+        String time = "OLD." + getTimeColumnName(helper, timeBasis);
+        String value = "OLD." + column;
+        String endTimeColumn = getEndTimeColumnName(helper, timeBasis);
+        String endTime = endTimeColumn == null ? "NULL" : "OLD." + endTimeColumn;
+        String bucketWhere =
+                " WHERE "
+                        + time
+                        + " >= 0 AND "
+                        + getBucketWhere(helper, column, timeBasis)
+                        + " AND "
+                        + BUCKET_START_COLUMN_NAME
+                        + " = "
+                        + getBucketStart(time)
+                        + " AND "
+                        + APP_INFO_ID_COLUMN_NAME
+                        + " = OLD."
+                        + APP_INFO_ID_COLUMN_NAME;
+
+        return "UPDATE "
+                + TABLE_NAME
+                + " SET "
+                + VALUE_SUM_COLUMN_NAME
+                + " = "
+                + VALUE_SUM_COLUMN_NAME
+                + " - IFNULL("
+                + value
+                + ", 0), "
+                + VALUE_COUNT_COLUMN_NAME
+                + " = "
+                + VALUE_COUNT_COLUMN_NAME
+                + " - ("
+                + value
+                + " IS NOT NULL), "
+                + ROW_COUNT_COLUMN_NAME
+                + " = "
+                + ROW_COUNT_COLUMN_NAME
+                + " - 1, "
+                + STALE_COLUMN_NAME
+                + " = ("
+                + STALE_COLUMN_NAME
+                + " OR "
+                + value
+                + " <= "
+                + VALUE_MIN_COLUMN_NAME
+                + " OR "
+                + value
+                + " >= "
+                + VALUE_MAX_COLUMN_NAME
+                + " OR "
+                + endTime
+                + " >= "
+                + MAX_END_TIME_COLUMN_NAME
+                + ") IS 1"
+                + bucketWhere
+                + "; DELETE FROM "
+                + TABLE_NAME
+                + bucketWhere
+                + " AND "
+                + ROW_COUNT_COLUMN_NAME
+                + " <= 0; ";
+    }
+
+    /** Returns commands recomputing the stale buckets of {@code helper} from its records. */
+    @NonNull
+    private static List<String> getRefreshCommands(
+            @NonNull RecordHelper<?> helper, @NonNull List<String> columns) {
+        List<String> commands = new ArrayList<>();
+        for (String column : columns) {
+            for (int timeBasis : new int[] {TIME_BASIS_PHYSICAL, TIME_BASIS_LOCAL}) {
+                String timeColumn = getTimeColumnName(helper, timeBasis);
+                String endTimeColumn = getEndTimeColumnName(helper, timeBasis);
+                String bucketStart = TABLE_NAME + "." + BUCKET_START_COLUMN_NAME;
+                commands.add(
+                        "UPDATE "
+                                + TABLE_NAME
+                                + " SET ("
+                                + VALUE_MIN_COLUMN_NAME
+                                + ", "
+                                + VALUE_MAX_COLUMN_NAME
+                                + ", "
+                                + MAX_END_TIME_COLUMN_NAME
+                                + ", "
+                                + STALE_COLUMN_NAME
+                                + ") = (SELECT MIN("
+                                + column
+                                + "), MAX("
+                                + column
+                                + "), MAX("
+                                + (endTimeColumn == null ? "NULL" : endTimeColumn)
+                                + "), 0 FROM "
+                                + helper.getMainTableName()
+                                + " WHERE "
+                                + APP_INFO_ID_COLUMN_NAME
+                                + " = "
+                                + TABLE_NAME
+                                + "."
+                                + APP_INFO_ID_COLUMN_NAME
+                                + " AND "
+                                + timeColumn
+                                + " >= "
+                                + bucketStart
+                                + " AND "
+                                + timeColumn
+                                + " < "
+                                + bucketStart
+                                + " + "
+                                + BUCKET_DURATION_MILLIS
+                                + ") WHERE "
+                                + STALE_COLUMN_NAME
+                                + " = 1 AND "
+                                + getBucketWhere(helper, column, timeBasis));
+            }
+        }
+        return commands;
+    }
+
+    /** Returns the condition matching the buckets of {@code column} of {@code helper}. */
+    private static String getBucketWhere(RecordHelper<?> helper, String column, int timeBasis) {
+        return RECORD_TYPE_COLUMN_NAME
+                + " = "
+                + helper.getRecordIdentifier()
+                + " AND "
+                + VALUE_COLUMN_COLUMN_NAME
+                + " = '"
+                + column
+                + "' AND "
+                + TIME_BASIS_COLUMN_NAME
+                + " = "
+                + timeBasis;
+    }
+
+    /** Returns commands populating the rollups from the existing records. */
+    @NonNull
+    private static List<String> getBackfillCommands(
+            @NonNull RecordHelper<?> helper, @NonNull List<String> columns) {
+        List<String> commands = new ArrayList<>();
+        for (String column : columns) {
+            for (int timeBasis : new int[] {TIME_BASIS_PHYSICAL, TIME_BASIS_LOCAL}) {
+                String time = getTimeColumnName(helper, timeBasis);
+                String endTime = getEndTimeColumnName(helper, timeBasis);
+                commands.add(
+                        "INSERT OR IGNORE INTO "
+                                + TABLE_NAME
+                                + " ("
+                                + String.join(", ", getColumnNames())
+                                + ") SELECT "
+                                + helper.getRecordIdentifier()
+                                + ", '"
+                                + column
+                                + "', "
+                                + timeBasis
+                                + ", "
+                                + getBucketStart(time)
+                                + " AS bucket, "
+                                + APP_INFO_ID_COLUMN_NAME
+                                + ", SUM("
+                                + column
+                                + "), MIN("
+                                + column
+                                + "), MAX("
+                                + column
+                                + "), COUNT("
+                                + column
+                                + "), COUNT(*), MAX("
+                                + (endTime == null ? "NULL" : endTime)
+                                + "), MAX("
+                                + helper.getZoneOffsetColumnName()
+                                + "), 0 FROM "
+                                + helper.getMainTableName()
+                                + " WHERE "
+                                + time
+                                + " >= 0 GROUP BY bucket, "
+                                + APP_INFO_ID_COLUMN_NAME);
+            }
+        }
+        return commands;
+    }
+
+    private static String getTimeColumnName(RecordHelper<?> helper, int timeBasis) {
+        return timeBasis == TIME_BASIS_LOCAL
+                ? helper.getLocalStartTimeColumnName()
+                : helper.getStartTimeColumnName();
+    }
+
+    private static String getEndTimeColumnName(RecordHelper<?> helper, int timeBasis) {
+        return timeBasis == TIME_BASIS_LOCAL
+                ? helper.getLocalEndTimeColumnName()
+                : helper.getEndTimeColumnName();
+    }
+
+    private static String getBucketStart(String time) {
+        return "(" + time + " - " + time + " % " + BUCKET_DURATION_MILLIS + ")";
+    }
+
+    private static boolean isSqlOperation(int operationType) {
+        return operationType == SUM
+                || operationType == MIN
+                || operationType == MAX
+                || operationType == AVG
+                || operationType == COUNT;
+    }
+
+    private static List<String> getColumnNames() {
+        List<String> columnNames = new ArrayList<>();
+        for (Pair<String, String> columnInfo : getColumnInfo()) {
+            columnNames.add(columnInfo.first);
+        }
+        return columnNames;
+    }
+
+    @NonNull
+    private static List<Pair<String, String>> getColumnInfo() {
+        List<Pair<String, String>> columnInfo = new ArrayList<>();
+        columnInfo.add(new Pair<>(RECORD_TYPE_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(VALUE_COLUMN_COLUMN_NAME, TEXT_NOT_NULL));
+        columnInfo.add(new Pair<>(TIME_BASIS_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(BUCKET_START_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(APP_INFO_ID_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(VALUE_SUM_COLUMN_NAME, REAL));
+        columnInfo.add(new Pair<>(VALUE_MIN_COLUMN_NAME, REAL));
+        columnInfo.add(new Pair<>(VALUE_MAX_COLUMN_NAME, REAL));
+        columnInfo.add(new Pair<>(VALUE_COUNT_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(ROW_COUNT_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(new Pair<>(MAX_END_TIME_COLUMN_NAME, INTEGER));
+        columnInfo.add(new Pair<>(ZONE_OFFSET_COLUMN_NAME, INTEGER));
+        columnInfo.add(new Pair<>(STALE_COLUMN_NAME, INTEGER_NOT_NULL));
+        return columnInfo;
+    }
+
+    @NonNull
+    public static synchronized AggregateRollupHelper getInstance() {
+        if (sAggregateRollupHelper == null) {
+            sAggregateRollupHelper = new AggregateRollupHelper();
+        }
+
+        return sAggregateRollupHelper;
+    }
+
+    private interface RolledUpHelperConsumer {
+        void accept(RecordHelper<?> helper, List<String> columns);
+    }
+}
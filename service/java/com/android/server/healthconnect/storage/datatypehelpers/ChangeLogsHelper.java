@@ -37,6 +37,7 @@ import android.health.connect.changelog.ChangeLogsRequest;
 import android.health.connect.changelog.ChangeLogsResponse.DeletedLog;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.TransactionManager;
@@ -51,9 +52,12 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -72,6 +76,8 @@ public final class ChangeLogsHelper {
     private static final int NUM_COLS = 5;
     private static volatile ChangeLogsHelper sChangeLogsHelper;
 
+    private final ChangeLogsTailCache mTailCache = new ChangeLogsTailCache();
+
     private ChangeLogsHelper() {}
 
     public DeleteTableRequest getDeleteRequestForAutoDelete() {
@@ -99,25 +105,38 @@ public final class ChangeLogsHelper {
             ChangeLogsRequestHelper.TokenRequest changeLogTokenRequest,
             ChangeLogsRequest changeLogsRequest) {
         long token = changeLogTokenRequest.getRowIdChangeLogs();
+        List<Long> appIds =
+                changeLogTokenRequest.getPackageNamesToFilter().isEmpty()
+                        ? Collections.emptyList()
+                        : AppInfoHelper.getInstance()
+                                .getAppInfoIds(changeLogTokenRequest.getPackageNamesToFilter());
+        int pageSize = changeLogsRequest.getPageSize();
+
+        List<ChangeLogsTailCache.Entry> cachedRows =
+                mTailCache.getRowsAfter(
+                        token,
+                        new ArraySet<>(changeLogTokenRequest.getRecordTypes()),
+                        appIds.isEmpty() ? null : new ArraySet<>(appIds),
+                        pageSize);
+        if (cachedRows != null) {
+            return getChangeLogsFromCachedRows(
+                    cachedRows, changeLogTokenRequest, changeLogsRequest);
+        }
+
         WhereClauses whereClause =
-                new WhereClauses()
-                        .addWhereGreaterThanClause(PRIMARY_COLUMN_NAME, String.valueOf(token));
+                new WhereClauses().addWhereGreaterThanClause(PRIMARY_COLUMN_NAME, token);
         if (!changeLogTokenRequest.getRecordTypes().isEmpty()) {
             whereClause.addWhereInIntsClause(
                     RECORD_TYPE_COLUMN_NAME, changeLogTokenRequest.getRecordTypes());
         }
 
-        if (!changeLogTokenRequest.getPackageNamesToFilter().isEmpty()) {
-            whereClause.addWhereInLongsClause(
-                    APP_ID_COLUMN_NAME,
-                    AppInfoHelper.getInstance()
-                            .getAppInfoIds(changeLogTokenRequest.getPackageNamesToFilter()));
+        if (!appIds.isEmpty()) {
+            whereClause.addWhereInLongsClause(APP_ID_COLUMN_NAME, appIds);
         }
 
         // In setLimit(pagesize) method size will be set to pageSize + 1,so that if number of
         // records returned is more than pageSize we know there are more records available to return
         // for the next read.
-        int pageSize = changeLogsRequest.getPageSize();
         final ReadTableRequest readTableRequest =
                 new ReadTableRequest(TABLE_NAME).setWhereClause(whereClause).setLimit(pageSize);
 
@@ -137,6 +156,153 @@ public final class ChangeLogsHelper {
             }
         }
 
+        return getChangeLogsResponse(
+                operationToChangeLogMap,
+                nextChangesToken,
+                hasMoreRecords,
+                changeLogTokenRequest,
+                changeLogsRequest);
+    }
+
+    /**
+     * Adds the change logs inserted by {@code changeLogRequests} to the cache of the latest change
+     * logs. Must be called before the transaction inserting them is committed, while it holds the
+     * write lock of the database, and followed by {@link #onChangeLogsCommitted} once committed or
+     * {@link #clearTailCache} if not.
+     *
+     * @param rowIds row ids of the inserted change logs, in the same order as {@code
+     *     changeLogRequests}
+     */
+    public void onChangeLogsCommitting(
+            @NonNull List<UpsertTableRequest> changeLogRequests, @NonNull long[] rowIds) {
+        List<ChangeLogsTailCache.Entry> entries = new ArrayList<>(changeLogRequests.size());
+        for (int i = 0; i < changeLogRequests.size(); i++) {
+            ContentValues contentValues = changeLogRequests.get(i).getContentValues();
+            entries.add(
+                    new ChangeLogsTailCache.Entry(
+                            rowIds[i],
+                            contentValues.getAsInteger(RECORD_TYPE_COLUMN_NAME),
+                            contentValues.getAsLong(APP_ID_COLUMN_NAME),
+                            contentValues.getAsInteger(OPERATION_TYPE_COLUMN_NAME),
+                            contentValues.getAsLong(TIME_COLUMN_NAME),
+                            StorageUtils.convertBytesToUUIDs(
+                                    contentValues.getAsByteArray(UUIDS_COLUMN_NAME))));
+        }
+        // Nested transactions end before the transactions they are nested in.
+        entries.sort(Comparator.comparingLong(entry -> entry.mRowId));
+        mTailCache.onRowsCommitting(entries);
+    }
+
+    /**
+     * Makes the change logs with {@code rowIds} added by {@link #onChangeLogsCommitting} available
+     * once the transaction inserting them is committed.
+     */
+    public void onChangeLogsCommitted(@NonNull long[] rowIds) {
+        if (rowIds.length == 0) {
+            return;
+        }
+        // The row ids of nested transactions aren't necessarily in order, but no other
+        // transaction could insert change logs in between.
+        long firstRowId = rowIds[0];
+        long lastRowId = rowIds[0];
+        for (long rowId : rowIds) {
+            firstRowId = Math.min(firstRowId, rowId);
+            lastRowId = Math.max(lastRowId, rowId);
+        }
+        mTailCache.onRowsCommitted(firstRowId, lastRowId);
+    }
+
+    /** Drops the cached change logs, e.g. when the database of another user is used. */
+    public void clearTailCache() {
+        mTailCache.clear();
+    }
+
+    /** Returns the cache of the latest change logs, to read its metrics. */
+    @NonNull
+    public ChangeLogsTailCache getTailCache() {
+        return mTailCache;
+    }
+
+    /** Returns the record type of the change log inserted by {@code request}. */
+    @RecordTypeIdentifier.RecordType
+    public static int getRecordType(@NonNull UpsertTableRequest request) {
+        return request.getContentValues().getAsInteger(RECORD_TYPE_COLUMN_NAME);
+    }
+
+    /** Returns the app info id of the change log inserted by {@code request}. */
+    public static long getAppId(@NonNull UpsertTableRequest request) {
+        return request.getContentValues().getAsLong(APP_ID_COLUMN_NAME);
+    }
+
+    public long getLatestRowId() {
+        return TransactionManager.getInitialisedInstance().getLastRowIdFor(TABLE_NAME);
+    }
+
+    /**
+     * Returns the uuids of the records changed by the change logs after {@code afterRowId} up to
+     * {@code upToRowId}, by operation type and record type.
+     */
+    @NonNull
+    public Map<Integer, Map<Integer, Set<UUID>>> getChangedUuids(long afterRowId, long upToRowId) {
+        ReadTableRequest readTableRequest =
+                new ReadTableRequest(TABLE_NAME)
+                        .setWhereClause(
+                                new WhereClauses()
+                                        .addWhereGreaterThanClause(PRIMARY_COLUMN_NAME, afterRowId)
+                                        .addWhereLessThanOrEqualClause(
+                                                PRIMARY_COLUMN_NAME, upToRowId));
+        Map<Integer, Map<Integer, Set<UUID>>> changedUuids = new ArrayMap<>();
+        try (Cursor cursor = TransactionManager.getInitialisedInstance().read(readTableRequest)) {
+            while (cursor.moveToNext()) {
+                changedUuids
+                        .computeIfAbsent(
+                                getCursorInt(cursor, OPERATION_TYPE_COLUMN_NAME),
+                                operationType -> new ArrayMap<>())
+                        .computeIfAbsent(
+                                getCursorInt(cursor, RECORD_TYPE_COLUMN_NAME),
+                                recordType -> new ArraySet<>())
+                        .addAll(StorageUtils.getCursorUUIDList(cursor, UUIDS_COLUMN_NAME));
+            }
+        }
+        return changedUuids;
+    }
+
+    private static ChangeLogsResponse getChangeLogsFromCachedRows(
+            List<ChangeLogsTailCache.Entry> rows,
+            ChangeLogsRequestHelper.TokenRequest changeLogTokenRequest,
+            ChangeLogsRequest changeLogsRequest) {
+        Map<Integer, ChangeLogs> operationToChangeLogMap = new ArrayMap<>();
+        long nextChangesToken = DEFAULT_LONG;
+        boolean hasMoreRecords = false;
+        int count = 0;
+        for (ChangeLogsTailCache.Entry row : rows) {
+            if (count >= changeLogsRequest.getPageSize()) {
+                hasMoreRecords = true;
+                break;
+            }
+            operationToChangeLogMap.putIfAbsent(
+                    row.mOperationType, new ChangeLogs(row.mOperationType, row.mTime));
+            operationToChangeLogMap
+                    .get(row.mOperationType)
+                    .addUUIDs(row.mRecordType, row.mAppId, row.mUuids);
+            count += row.mUuids.size();
+            nextChangesToken = row.mRowId;
+        }
+
+        return getChangeLogsResponse(
+                operationToChangeLogMap,
+                nextChangesToken,
+                hasMoreRecords,
+                changeLogTokenRequest,
+                changeLogsRequest);
+    }
+
+    private static ChangeLogsResponse getChangeLogsResponse(
+            Map<Integer, ChangeLogs> operationToChangeLogMap,
+            long nextChangesToken,
+            boolean hasMoreRecords,
+            ChangeLogsRequestHelper.TokenRequest changeLogTokenRequest,
+            ChangeLogsRequest changeLogsRequest) {
         String nextToken =
                 nextChangesToken != DEFAULT_LONG
                         ? ChangeLogsRequestHelper.getNextPageToken(
@@ -146,10 +312,6 @@ public final class ChangeLogsHelper {
         return new ChangeLogsResponse(operationToChangeLogMap, nextToken, hasMoreRecords);
     }
 
-    public long getLatestRowId() {
-        return TransactionManager.getInitialisedInstance().getLastRowIdFor(TABLE_NAME);
-    }
-
     private int addChangeLogs(Cursor cursor, Map<Integer, ChangeLogs> changeLogs) {
         @RecordTypeIdentifier.RecordType
         int recordType = getCursorInt(cursor, RECORD_TYPE_COLUMN_NAME);
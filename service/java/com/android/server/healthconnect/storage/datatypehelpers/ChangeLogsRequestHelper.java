@@ -57,7 +57,7 @@ import java.util.List;
  * @hide
  */
 public final class ChangeLogsRequestHelper {
-    static final int DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS = 32;
+    public static final int DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS = 32;
     private static final String TABLE_NAME = "change_log_request_table";
     private static final String PACKAGES_TO_FILTERS_COLUMN_NAME = "packages_to_filter";
     private static final String RECORD_TYPES_COLUMN_NAME = "record_types";
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.health.connect.accesslog.AccessLog.OperationType;
+import android.health.connect.datatypes.RecordTypeIdentifier;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Ring buffer of the most recently committed rows of the change logs table, so that change logs
+ * requests with a recent token can be served without reading and decoding the rows again.
+ *
+ * <p>The cache holds every row after {@code mWindowStartRowId} up to {@code mLastRowId}, bounded by
+ * both the number of rows and the number of uuids they hold. Rows are added by the writers before
+ * committing, while they hold the write lock of the database, so in row id order, and are only
+ * returned once committed up to {@code mLastCommittedRowId}, see {@link
+ * com.android.server.healthconnect.storage.TransactionManager}.
+ *
+ * @hide
+ */
+public final class ChangeLogsTailCache {
+    @VisibleForTesting static final int DEFAULT_MAX_ROWS = 1024;
+    @VisibleForTesting static final int DEFAULT_MAX_UUIDS = 20_000;
+    private static final long NO_ROW_ID = -1;
+
+    private final int mMaxUuids;
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final Entry[] mEntries;
+
+    @GuardedBy("mLock")
+    private int mFirstIndex;
+
+    @GuardedBy("mLock")
+    private int mSize;
+
+    @GuardedBy("mLock")
+    private int mUuidCount;
+
+    @GuardedBy("mLock")
+    private long mWindowStartRowId = NO_ROW_ID;
+
+    @GuardedBy("mLock")
+    private long mLastRowId = NO_ROW_ID;
+
+    @GuardedBy("mLock")
+    private long mLastCommittedRowId = NO_ROW_ID;
+
+    @GuardedBy("mLock")
+    private long mHitCount;
+
+    @GuardedBy("mLock")
+    private long mMissCount;
+
+    ChangeLogsTailCache() {
+        this(DEFAULT_MAX_ROWS, DEFAULT_MAX_UUIDS);
+    }
+
+    @VisibleForTesting
+    ChangeLogsTailCache(int maxRows, int maxUuids) {
+        mEntries = new Entry[maxRows];
+        mMaxUuids = maxUuids;
+    }
+
+    /**
+     * Adds the change logs rows {@code entries} before the transaction inserting them is
+     * committed. Rows must be added in the order they were inserted, and aren't returned until
+     * {@link #onRowsCommitted} is called.
+     */
+    void onRowsCommitting(@NonNull List<Entry> entries) {
+        synchronized (mLock) {
+            for (Entry entry : entries) {
+                if (mLastRowId == NO_ROW_ID || entry.mRowId != mLastRowId + 1) {
+                    // Nothing is known of the rows before, e.g. as the cache was just created,
+                    // some rows were written without being added or a transaction was rolled
+                    // back.
+                    clearLocked();
+                    mWindowStartRowId = entry.mRowId - 1;
+                    mLastCommittedRowId = entry.mRowId - 1;
+                }
+                if (mSize == mEntries.length) {
+                    evictFirstLocked();
+                }
+                mEntries[(mFirstIndex + mSize) % mEntries.length] = entry;
+                mSize++;
+                mUuidCount += entry.mUuids.size();
+                mLastRowId = entry.mRowId;
+            }
+            while (mUuidCount > mMaxUuids && mSize > 1) {
+                evictFirstLocked();
+            }
+        }
+    }
+
+    /**
+     * Makes the rows from {@code firstRowId} to {@code lastRowId} added by {@link
+     * #onRowsCommitting} available, once the transaction inserting them is committed. Rows that
+     * were dropped since they were added are ignored.
+     */
+    void onRowsCommitted(long firstRowId, long lastRowId) {
+        synchronized (mLock) {
+            for (int i = findFirstIndexAfterLocked(firstRowId - 1); i < mSize; i++) {
+                Entry entry = getLocked(i);
+                if (entry.mRowId > lastRowId) {
+                    break;
+                }
+                entry.mCommitted = true;
+            }
+            // Transactions can finish committing out of order, the rows of a transaction are only
+            // returned once the rows before them are committed too.
+            for (int i = findFirstIndexAfterLocked(mLastCommittedRowId); i < mSize; i++) {
+                Entry entry = getLocked(i);
+                if (!entry.mCommitted) {
+                    break;
+                }
+                mLastCommittedRowId = entry.mRowId;
+            }
+        }
+    }
+
+    /**
+     * Returns the committed rows after {@code afterRowId} passing the filters, until the rows hold
+     * {@code pageSize} uuids plus one more row if any, or {@code null} if the rows after {@code
+     * afterRowId} aren't all cached. Like the change logs table is read, at most {@code pageSize}
+     * plus one rows are returned.
+     *
+     * @param recordTypes record types to return, or all if empty
+     * @param appIds app ids to return, or all if {@code null}
+     */
+    @Nullable
+    List<Entry> getRowsAfter(
+            long afterRowId,
+            @NonNull Set<Integer> recordTypes,
+            @Nullable Set<Long> appIds,
+            int pageSize) {
+        synchronized (mLock) {
+            if (mLastRowId == NO_ROW_ID
+                    || afterRowId < mWindowStartRowId
+                    || afterRowId > mLastCommittedRowId) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+
+            List<Entry> rows = new ArrayList<>();
+            int uuidCount = 0;
+            for (int i = findFirstIndexAfterLocked(afterRowId); i < mSize; i++) {
+                Entry entry = getLocked(i);
+                if (entry.mRowId > mLastCommittedRowId) {
+                    break;
+                }
+                if (!recordTypes.isEmpty() && !recordTypes.contains(entry.mRecordType)) {
+                    continue;
+                }
+                if (appIds != null && !appIds.contains(entry.mAppId)) {
+                    continue;
+                }
+                rows.add(entry);
+                if (uuidCount >= pageSize || rows.size() > pageSize) {
+                    break;
+                }
+                uuidCount += entry.mUuids.size();
+            }
+            return rows;
+        }
+    }
+
+    /** Removes all the rows, e.g. when the database is replaced. */
+    void clear() {
+        synchronized (mLock) {
+            clearLocked();
+        }
+    }
+
+    /** Returns the number of change logs requests served from the cache. */
+    public long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    /** Returns the number of change logs requests with a token before the cached rows. */
+    public long getMissCount() {
+        synchronized (mLock) {
+            return mMissCount;
+        }
+    }
+
+    /** Returns the number of rows currently cached. */
+    public int getRowCount() {
+        synchronized (mLock) {
+            return mSize;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void evictFirstLocked() {
+        Entry first = mEntries[mFirstIndex];
+        mEntries[mFirstIndex] = null;
+        mFirstIndex = (mFirstIndex + 1) % mEntries.length;
+        mSize--;
+        mUuidCount -= first.mUuids.size();
+        mWindowStartRowId = first.mRowId;
+    }
+
+    @GuardedBy("mLock")
+    private Entry getLocked(int index) {
+        return mEntries[(mFirstIndex + index) % mEntries.length];
+    }
+
+    /** Returns the index of the first row after {@code rowId}, or {@code mSize} if none. */
+    @GuardedBy("mLock")
+    private int findFirstIndexAfterLocked(long rowId) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getLocked(middle).mRowId <= rowId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @GuardedBy("mLock")
+    private void clearLocked() {
+        for (int i = 0; i < mEntries.length; i++) {
+            mEntries[i] = null;
+        }
+        mFirstIndex = 0;
+        mSize = 0;
+        mUuidCount = 0;
+        mWindowStartRowId = NO_ROW_ID;
+        mLastRowId = NO_ROW_ID;
+        mLastCommittedRowId = NO_ROW_ID;
+    }
+
+    /** A row of the change logs table. */
+    static final class Entry {
+        final long mRowId;
+        @RecordTypeIdentifier.RecordType final int mRecordType;
+        final long mAppId;
+        @OperationType.OperationTypes final int mOperationType;
+        final long mTime;
+        final List<UUID> mUuids;
+
+        // Guarded by the lock of the cache holding the entry.
+        boolean mCommitted;
+
+        Entry(
+                long rowId,
+                @RecordTypeIdentifier.RecordType int recordType,
+                long appId,
+                @OperationType.OperationTypes int operationType,
+                long time,
+                @NonNull List<UUID> uuids) {
+            mRowId = rowId;
+            mRecordType = recordType;
+            mAppId = appId;
+            mOperationType = operationType;
+            mTime = time;
+            mUuids = uuids;
+        }
+    }
+}
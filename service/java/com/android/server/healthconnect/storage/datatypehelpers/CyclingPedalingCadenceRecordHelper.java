@@ -22,16 +22,17 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.getCur
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.CyclingPedalingCadenceRecordInternal;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
 
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
+
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
 
@@ -41,14 +42,11 @@ import java.util.UUID;
  * @hide
  */
 public class CyclingPedalingCadenceRecordHelper
-        extends SeriesRecordHelper<
-                CyclingPedalingCadenceRecordInternal,
-                CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample> {
+        extends SeriesRecordHelper<CyclingPedalingCadenceRecordInternal> {
     public static final int NUM_LOCAL_COLUMNS = 1;
     private static final String TABLE_NAME = "CyclingPedalingCadenceRecordTable";
     private static final String SERIES_TABLE_NAME = "cycling_pedaling_cadence_record_table";
     private static final String REVOLUTIONS_PER_MINUTE_COLUMN_NAME = "revolutions_per_minute";
-    private static final String EPOCH_MILLIS_COLUMN_NAME = "epoch_millis";
 
     public CyclingPedalingCadenceRecordHelper() {
         super(RecordTypeIdentifier.RECORD_TYPE_CYCLING_PEDALING_CADENCE);
@@ -76,30 +74,49 @@ public class CyclingPedalingCadenceRecordHelper
     @Override
     void populateSpecificValues(
             @NonNull Cursor seriesTableCursor, CyclingPedalingCadenceRecordInternal record) {
-        HashSet<CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample>
-                cyclingPedalingCadenceRecordSampleSet = new HashSet<>();
+        record.clearSamples();
         UUID uuid = getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME);
         do {
-            cyclingPedalingCadenceRecordSampleSet.add(
-                    new CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample(
-                            getCursorDouble(seriesTableCursor, REVOLUTIONS_PER_MINUTE_COLUMN_NAME),
-                            getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME)));
+            record.addSample(
+                    getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME),
+                    getCursorDouble(seriesTableCursor, REVOLUTIONS_PER_MINUTE_COLUMN_NAME));
         } while (seriesTableCursor.moveToNext()
                 && uuid.equals(getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME)));
         // In case we hit another record, move the cursor back to read next record in outer
         // RecordHelper#getInternalRecords loop.
         seriesTableCursor.moveToPrevious();
-        record.setSamples(cyclingPedalingCadenceRecordSampleSet);
     }
 
     @Override
-    void populateSampleTo(
-            ContentValues contentValues,
-            CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample
-                    cyclingPedalingCadenceRecord) {
-        contentValues.put(
-                REVOLUTIONS_PER_MINUTE_COLUMN_NAME,
-                cyclingPedalingCadenceRecord.getRevolutionsPerMinute());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, cyclingPedalingCadenceRecord.getEpochMillis());
+    String getSampleValueColumnName() {
+        return REVOLUTIONS_PER_MINUTE_COLUMN_NAME;
+    }
+
+    @Override
+    void bindSampleValue(
+            SQLiteStatement statement,
+            int bindIndex,
+            CyclingPedalingCadenceRecordInternal record,
+            int sample) {
+        statement.bindDouble(bindIndex, record.getSampleValue(sample));
+    }
+
+    @Override
+    final int getPackedValueKind() {
+        return SeriesSamplesCodec.VALUE_KIND_DOUBLE;
+    }
+
+    @Override
+    final void addSampleTo(
+            SeriesSamplesCodec.Encoder encoder,
+            CyclingPedalingCadenceRecordInternal record,
+            int index) {
+        encoder.add(record.getSampleEpochMillis(index), record.getSampleValue(index));
+    }
+
+    @Override
+    final void addSampleFrom(
+            SeriesSamplesCodec.Decoder decoder, CyclingPedalingCadenceRecordInternal record) {
+        record.addSample(decoder.getEpochMillis(), decoder.getDoubleValue());
     }
 }
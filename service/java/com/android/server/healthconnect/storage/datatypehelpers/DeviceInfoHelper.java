@@ -31,6 +31,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.health.connect.datatypes.Device.DeviceType;
 import android.health.connect.internal.datatypes.RecordInternal;
+import android.util.ArrayMap;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.TransactionManager;
@@ -88,6 +89,27 @@ public class DeviceInfoHelper {
         recordInternal.setDeviceInfoId(rowId);
     }
 
+    /**
+     * Returns the ids of the devices read by {@code cursor} from the device info table of another
+     * db, e.g. a staged one, mapped to the ids of the same devices in this db. Devices not present
+     * yet are inserted.
+     */
+    @NonNull
+    public Map<Long, Long> getOrInsertDeviceInfoIds(@NonNull Cursor cursor) {
+        Map<Long, Long> deviceInfoIds = new ArrayMap<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            DeviceInfo deviceInfo =
+                    new DeviceInfo(
+                            getCursorString(cursor, MANUFACTURER_COLUMN_NAME),
+                            getCursorString(cursor, MODEL_COLUMN_NAME),
+                            getCursorInt(cursor, DEVICE_TYPE_COLUMN_NAME));
+            deviceInfoIds.put(
+                    getCursorLong(cursor, RecordHelper.PRIMARY_COLUMN_NAME),
+                    insertIfNotPresent(deviceInfo));
+        }
+        return deviceInfoIds;
+    }
+
     /**
      * Populates record with manufacturer, model and deviceType values
      *
@@ -321,9 +321,7 @@ public final class ExerciseSessionRecordHelper
         }
 
         WhereClauses whereClause =
-                new WhereClauses()
-                        .addWhereInClauseWithoutQuotes(
-                                UUID_COLUMN_NAME, StorageUtils.getListOfHexString(uuids));
+                new WhereClauses().addWhereInUuidsClause(UUID_COLUMN_NAME, uuids);
         whereClause.addWhereLaterThanTimeClause(getStartTimeColumnName(), startDateAccess);
         return List.of(getRouteReadRequest(whereClause));
     }
@@ -22,12 +22,9 @@ import static android.health.connect.datatypes.AggregationType.AggregationTypeId
 import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.HEART_RATE_RECORD_MEASUREMENTS_COUNT;
 
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import android.health.connect.AggregateResult;
 import android.health.connect.datatypes.AggregationType;
 import android.health.connect.datatypes.RecordTypeIdentifier;
@@ -36,13 +33,12 @@ import android.util.Pair;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.healthconnect.storage.request.AggregateParams;
-import com.android.server.healthconnect.storage.utils.SqlJoin;
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.UUID;
+import java.util.function.BiConsumer;
 
 /**
  * Helper class for HeartRateRecord.
@@ -50,14 +46,12 @@ import java.util.UUID;
  * @hide
  */
 public class HeartRateRecordHelper
-        extends SeriesRecordHelper<
-                HeartRateRecordInternal, HeartRateRecordInternal.HeartRateSample> {
+        extends SeriesRecordHelper<HeartRateRecordInternal> {
 
     @VisibleForTesting public static final String TABLE_NAME = "heart_rate_record_table";
     public static final int NUM_LOCAL_COLUMNS = 2;
     private static final String SERIES_TABLE_NAME = "heart_rate_record_series_table";
     private static final String BEATS_PER_MINUTE_COLUMN_NAME = "beats_per_minute";
-    private static final String EPOCH_MILLIS_COLUMN_NAME = "epoch_millis";
 
     public HeartRateRecordHelper() {
         super(RecordTypeIdentifier.RECORD_TYPE_HEART_RATE);
@@ -92,15 +86,7 @@ public class HeartRateRecordHelper
             case HEART_RATE_RECORD_BPM_MIN:
             case HEART_RATE_RECORD_BPM_AVG:
             case HEART_RATE_RECORD_MEASUREMENTS_COUNT:
-                return new AggregateParams(
-                                SERIES_TABLE_NAME,
-                                Collections.singletonList(BEATS_PER_MINUTE_COLUMN_NAME))
-                        .setJoin(
-                                new SqlJoin(
-                                        SERIES_TABLE_NAME,
-                                        TABLE_NAME,
-                                        PARENT_KEY_COLUMN_NAME,
-                                        PRIMARY_COLUMN_NAME));
+                return getSeriesAggregateParams(BEATS_PER_MINUTE_COLUMN_NAME);
             default:
                 return null;
         }
@@ -121,25 +107,71 @@ public class HeartRateRecordHelper
 
     @Override
     void populateSpecificValues(Cursor seriesTableCursor, HeartRateRecordInternal record) {
-        HashSet<HeartRateRecordInternal.HeartRateSample> heartRateSamplesSet = new HashSet<>();
-        UUID uuid = getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME);
+        populateSamples(
+                seriesTableCursor,
+                record,
+                seriesTableCursor.getColumnIndex(UUID_COLUMN_NAME),
+                seriesTableCursor.getColumnIndex(BEATS_PER_MINUTE_COLUMN_NAME),
+                seriesTableCursor.getColumnIndex(EPOCH_MILLIS_COLUMN_NAME));
+    }
+
+    @Override
+    BiConsumer<Cursor, HeartRateRecordInternal> getSpecificValuesReader(Cursor cursor) {
+        int uuidIndex = cursor.getColumnIndex(UUID_COLUMN_NAME);
+        int beatsPerMinuteIndex = cursor.getColumnIndex(BEATS_PER_MINUTE_COLUMN_NAME);
+        int epochMillisIndex = cursor.getColumnIndex(EPOCH_MILLIS_COLUMN_NAME);
+        return (seriesTableCursor, record) ->
+                populateSamples(
+                        seriesTableCursor,
+                        record,
+                        uuidIndex,
+                        beatsPerMinuteIndex,
+                        epochMillisIndex);
+    }
+
+    private static void populateSamples(
+            Cursor seriesTableCursor,
+            HeartRateRecordInternal record,
+            int uuidIndex,
+            int beatsPerMinuteIndex,
+            int epochMillisIndex) {
+        record.clearSamples();
+        byte[] uuid = seriesTableCursor.getBlob(uuidIndex);
         do {
-            heartRateSamplesSet.add(
-                    new HeartRateRecordInternal.HeartRateSample(
-                            getCursorInt(seriesTableCursor, BEATS_PER_MINUTE_COLUMN_NAME),
-                            getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME)));
+            record.addSample(
+                    seriesTableCursor.getLong(epochMillisIndex),
+                    seriesTableCursor.getInt(beatsPerMinuteIndex));
         } while (seriesTableCursor.moveToNext()
-                && uuid.equals(getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME)));
+                && Arrays.equals(uuid, seriesTableCursor.getBlob(uuidIndex)));
         // In case we hit another record, move the cursor back to read next record in outer
         // RecordHelper#getInternalRecords loop.
         seriesTableCursor.moveToPrevious();
-        record.setSamples(heartRateSamplesSet);
     }
 
     @Override
-    final void populateSampleTo(
-            ContentValues contentValues, HeartRateRecordInternal.HeartRateSample heartRateSample) {
-        contentValues.put(BEATS_PER_MINUTE_COLUMN_NAME, heartRateSample.getBeatsPerMinute());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, heartRateSample.getEpochMillis());
+    final String getSampleValueColumnName() {
+        return BEATS_PER_MINUTE_COLUMN_NAME;
+    }
+
+    @Override
+    final void bindSampleValue(
+            SQLiteStatement statement, int bindIndex, HeartRateRecordInternal record, int sample) {
+        statement.bindLong(bindIndex, record.getSampleBeatsPerMinute(sample));
+    }
+
+    @Override
+    final int getPackedValueKind() {
+        return SeriesSamplesCodec.VALUE_KIND_INTEGER;
+    }
+
+    @Override
+    final void addSampleTo(
+            SeriesSamplesCodec.Encoder encoder, HeartRateRecordInternal record, int index) {
+        encoder.add(record.getSampleEpochMillis(index), record.getSampleBeatsPerMinute(index));
+    }
+
+    @Override
+    final void addSampleFrom(SeriesSamplesCodec.Decoder decoder, HeartRateRecordInternal record) {
+        record.addSample(decoder.getEpochMillis(), (int) decoder.getLongValue());
     }
 }
@@ -42,6 +42,7 @@ import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.BiConsumer;
 
 /**
  * Parent class for all helper classes for the Instant type records
@@ -176,6 +177,18 @@ public abstract class InstantRecordHelper<T extends InstantRecordInternal<?>>
         populateSpecificRecordValue(cursor, instantRecordInternal);
     }
 
+    @Override
+    @NonNull
+    final BiConsumer<Cursor, T> getRecordValueReader(@NonNull Cursor cursor) {
+        int zoneOffsetIndex = cursor.getColumnIndex(ZONE_OFFSET_COLUMN_NAME);
+        int timeIndex = cursor.getColumnIndex(TIME_COLUMN_NAME);
+        return (rowCursor, instantRecordInternal) -> {
+            instantRecordInternal.setZoneOffset(rowCursor.getInt(zoneOffsetIndex));
+            instantRecordInternal.setTime(rowCursor.getLong(timeIndex));
+            populateSpecificRecordValue(rowCursor, instantRecordInternal);
+        };
+    }
+
     abstract void populateSpecificRecordValue(@NonNull Cursor cursor, @NonNull T recordInternal);
 
     /**
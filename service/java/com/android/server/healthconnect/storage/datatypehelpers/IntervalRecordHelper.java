@@ -41,6 +41,7 @@ import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.BiConsumer;
 
 /**
  * Parent class for all the Interval type records
@@ -199,14 +200,45 @@ public abstract class IntervalRecordHelper<T extends IntervalRecordInternal<?>>
         populateSpecificRecordValue(cursor, recordInternal);
     }
 
+    @Override
+    @NonNull
+    final BiConsumer<Cursor, T> getRecordValueReader(@NonNull Cursor cursor) {
+        int startTimeIndex = cursor.getColumnIndex(START_TIME_COLUMN_NAME);
+        int startZoneOffsetIndex = cursor.getColumnIndex(START_ZONE_OFFSET_COLUMN_NAME);
+        int endTimeIndex = cursor.getColumnIndex(END_TIME_COLUMN_NAME);
+        int endZoneOffsetIndex = cursor.getColumnIndex(END_ZONE_OFFSET_COLUMN_NAME);
+        BiConsumer<Cursor, T> specificRecordValueReader = getSpecificRecordValueReader(cursor);
+        return (rowCursor, recordInternal) -> {
+            recordInternal.setStartTime(rowCursor.getLong(startTimeIndex));
+            recordInternal.setStartZoneOffset(rowCursor.getInt(startZoneOffsetIndex));
+            recordInternal.setEndTime(rowCursor.getLong(endTimeIndex));
+            recordInternal.setEndZoneOffset(rowCursor.getInt(endZoneOffsetIndex));
+            specificRecordValueReader.accept(rowCursor, recordInternal);
+        };
+    }
+
     /** This implementation should populate record with datatype specific values from the table. */
     abstract void populateSpecificRecordValue(@NonNull Cursor cursor, @NonNull T recordInternal);
 
+    /**
+     * Returns a function doing the same as {@link #populateSpecificRecordValue} for the rows of
+     * {@code cursor}, see {@link #getRecordValueReader}.
+     */
+    @NonNull
+    BiConsumer<Cursor, T> getSpecificRecordValueReader(@NonNull Cursor cursor) {
+        return this::populateSpecificRecordValue;
+    }
+
     @Override
     final String getZoneOffsetColumnName() {
         return START_ZONE_OFFSET_COLUMN_NAME;
     }
 
+    @Override
+    final String getEndZoneOffsetColumnName() {
+        return END_ZONE_OFFSET_COLUMN_NAME;
+    }
+
     abstract void populateSpecificContentValues(
             @NonNull ContentValues contentValues, @NonNull T intervalRecordInternal);
 
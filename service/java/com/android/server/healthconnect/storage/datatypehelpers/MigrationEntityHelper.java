@@ -20,10 +20,13 @@ import static com.android.server.healthconnect.storage.datatypehelpers.RecordHel
 import static com.android.server.healthconnect.storage.request.UpsertTableRequest.TYPE_STRING;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMARY;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.TEXT_NOT_NULL_UNIQUE;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorString;
 
 import android.annotation.NonNull;
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.util.ArraySet;
 import android.util.Pair;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -31,9 +34,13 @@ import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.utils.PreparedStatements;
+import com.android.server.healthconnect.storage.utils.WhereClauses;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 /**
  * A class to help with the DB transaction for storing migration entity identifiers, user for
@@ -49,6 +56,8 @@ public final class MigrationEntityHelper {
             Collections.singletonList(new Pair<>(COLUMN_ENTITY_ID, TYPE_STRING));
     private static final Object sGetInstanceLock = new Object();
     private static final int DB_VERSION_TABLE_CREATED = 3;
+    // Stays well below the maximum number of bind arguments of a statement.
+    private static final int MAX_ENTITY_IDS_PER_QUERY = 500;
 
     private static volatile MigrationEntityHelper sInstance;
 
@@ -80,6 +89,38 @@ public final class MigrationEntityHelper {
         return new UpsertTableRequest(TABLE_NAME, values, UNIQUE_COLUMN_INFO);
     }
 
+    /**
+     * Returns the entity ids among {@code entityIds} that are already stored, using one query per
+     * {@link #MAX_ENTITY_IDS_PER_QUERY} ids.
+     *
+     * <p>Assumes that caller will be closing {@code db} and handling the transaction if required.
+     */
+    @NonNull
+    public Set<String> getExistingEntityIds(
+            @NonNull SQLiteDatabase db, @NonNull List<String> entityIds) {
+        final Set<String> existingEntityIds = new ArraySet<>();
+        for (int start = 0; start < entityIds.size(); start += MAX_ENTITY_IDS_PER_QUERY) {
+            final List<String> chunk =
+                    entityIds.subList(
+                            start, Math.min(start + MAX_ENTITY_IDS_PER_QUERY, entityIds.size()));
+            final List<Object> bindArgs = new ArrayList<>(chunk.size());
+            final String sql =
+                    "SELECT "
+                            + COLUMN_ENTITY_ID
+                            + " FROM "
+                            + TABLE_NAME
+                            + new WhereClauses()
+                                    .addWhereInClause(COLUMN_ENTITY_ID, chunk)
+                                    .get(/* withWhereKeyword= */ true, bindArgs);
+            try (Cursor cursor = PreparedStatements.rawQuery(db, sql, bindArgs)) {
+                while (cursor.moveToNext()) {
+                    existingEntityIds.add(getCursorString(cursor, COLUMN_ENTITY_ID));
+                }
+            }
+        }
+        return existingEntityIds;
+    }
+
     /** Returns a shared instance of {@link MigrationEntityHelper}. */
     @NonNull
     public static MigrationEntityHelper getInstance() {
@@ -27,8 +27,8 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.getCur
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
 import android.annotation.NonNull;
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import android.health.connect.AggregateResult;
 import android.health.connect.datatypes.AggregationType;
 import android.health.connect.datatypes.RecordTypeIdentifier;
@@ -36,11 +36,9 @@ import android.health.connect.internal.datatypes.PowerRecordInternal;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.request.AggregateParams;
-import com.android.server.healthconnect.storage.utils.SqlJoin;
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
 
@@ -50,12 +48,11 @@ import java.util.UUID;
  * @hide
  */
 public class PowerRecordHelper
-        extends SeriesRecordHelper<PowerRecordInternal, PowerRecordInternal.PowerRecordSample> {
+        extends SeriesRecordHelper<PowerRecordInternal> {
     public static final int NUM_LOCAL_COLUMNS = 1;
     private static final String TABLE_NAME = "PowerRecordTable";
     private static final String SERIES_TABLE_NAME = "power_record_table";
     private static final String POWER_COLUMN_NAME = "power";
-    private static final String EPOCH_MILLIS_COLUMN_NAME = "epoch_millis";
 
     public PowerRecordHelper() {
         super(RecordTypeIdentifier.RECORD_TYPE_POWER);
@@ -88,14 +85,7 @@ public class PowerRecordHelper
             case POWER_RECORD_POWER_MIN:
             case POWER_RECORD_POWER_MAX:
             case POWER_RECORD_POWER_AVG:
-                return new AggregateParams(
-                                SERIES_TABLE_NAME, Collections.singletonList(POWER_COLUMN_NAME))
-                        .setJoin(
-                                new SqlJoin(
-                                        SERIES_TABLE_NAME,
-                                        TABLE_NAME,
-                                        PARENT_KEY_COLUMN_NAME,
-                                        PRIMARY_COLUMN_NAME));
+                return getSeriesAggregateParams(POWER_COLUMN_NAME);
             default:
                 return null;
         }
@@ -116,25 +106,43 @@ public class PowerRecordHelper
     /** Populates the {@code record} with values specific to datatype */
     @Override
     void populateSpecificValues(@NonNull Cursor seriesTableCursor, PowerRecordInternal record) {
-        HashSet<PowerRecordInternal.PowerRecordSample> powerRecordSampleSet = new HashSet<>();
+        record.clearSamples();
         UUID uuid = getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME);
         do {
-            powerRecordSampleSet.add(
-                    new PowerRecordInternal.PowerRecordSample(
-                            getCursorDouble(seriesTableCursor, POWER_COLUMN_NAME),
-                            getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME)));
+            record.addSample(
+                    getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME),
+                    getCursorDouble(seriesTableCursor, POWER_COLUMN_NAME));
         } while (seriesTableCursor.moveToNext()
                 && uuid.equals(getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME)));
         // In case we hit another record, move the cursor back to read next record in outer
         // RecordHelper#getInternalRecords loop.
         seriesTableCursor.moveToPrevious();
-        record.setSamples(powerRecordSampleSet);
     }
 
     @Override
-    void populateSampleTo(
-            ContentValues contentValues, PowerRecordInternal.PowerRecordSample powerRecord) {
-        contentValues.put(POWER_COLUMN_NAME, powerRecord.getPower());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, powerRecord.getEpochMillis());
+    String getSampleValueColumnName() {
+        return POWER_COLUMN_NAME;
+    }
+
+    @Override
+    void bindSampleValue(
+            SQLiteStatement statement, int bindIndex, PowerRecordInternal record, int sample) {
+        statement.bindDouble(bindIndex, record.getSampleValue(sample));
+    }
+
+    @Override
+    final int getPackedValueKind() {
+        return SeriesSamplesCodec.VALUE_KIND_DOUBLE;
+    }
+
+    @Override
+    final void addSampleTo(
+            SeriesSamplesCodec.Encoder encoder, PowerRecordInternal record, int index) {
+        encoder.add(record.getSampleEpochMillis(index), record.getSampleValue(index));
+    }
+
+    @Override
+    final void addSampleFrom(SeriesSamplesCodec.Decoder decoder, PowerRecordInternal record) {
+        record.addSample(decoder.getEpochMillis(), decoder.getDoubleValue());
     }
 }
@@ -60,12 +60,26 @@ public final class PreferenceHelper {
     /** Note: Overrides existing preference (if it exists) with the new value */
     public synchronized void insertOrReplacePreference(String key, String value) {
         TransactionManager.getInitialisedInstance()
-                .insertOrReplace(
-                        new UpsertTableRequest(
-                                TABLE_NAME, getContentValues(key, value), UNIQUE_COLUMN_INFO));
+                .insertOrReplace(getUpsertTableRequest(key, value));
         getPreferences().put(key, value);
     }
 
+    /**
+     * Returns a request inserting or replacing {@code key}, for callers that commit it in their own
+     * transaction. {@link #onPreferencesCommitted} has to be called once it's committed.
+     */
+    @NonNull
+    public UpsertTableRequest getUpsertTableRequest(String key, String value) {
+        return new UpsertTableRequest(TABLE_NAME, getContentValues(key, value), UNIQUE_COLUMN_INFO);
+    }
+
+    /** Updates the cache with preferences committed using {@link #getUpsertTableRequest}. */
+    public synchronized void onPreferencesCommitted(Map<String, String> keyValues) {
+        if (!keyValues.isEmpty()) {
+            getPreferences().putAll(keyValues);
+        }
+    }
+
     /** Removes key entry from the table */
     public synchronized void removeKey(String id) {
         TransactionManager.getInitialisedInstance()
@@ -77,13 +91,7 @@ public final class PreferenceHelper {
     public synchronized void insertOrReplacePreferencesTransaction(
             HashMap<String, String> keyValues) {
         List<UpsertTableRequest> requests = new ArrayList<>();
-        keyValues.forEach(
-                (key, value) ->
-                        requests.add(
-                                new UpsertTableRequest(
-                                        TABLE_NAME,
-                                        getContentValues(key, value),
-                                        UNIQUE_COLUMN_INFO)));
+        keyValues.forEach((key, value) -> requests.add(getUpsertTableRequest(key, value)));
         TransactionManager.getInitialisedInstance().insertOrReplaceAll(requests);
         getPreferences().putAll(keyValues);
     }
@@ -27,10 +27,6 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.BLOB_U
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMARY_AUTOINCREMENT;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.TEXT_NULL;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorString;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getDedupeByteBuffer;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.supportsPriority;
 
@@ -52,16 +48,17 @@ import androidx.annotation.Nullable;
 
 import com.android.server.healthconnect.storage.request.AggregateParams;
 import com.android.server.healthconnect.storage.request.AggregateTableRequest;
+import com.android.server.healthconnect.storage.request.ChildTableRowsRequest;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import com.android.server.healthconnect.storage.utils.OrderByClause;
+import com.android.server.healthconnect.storage.utils.PageTokenUtils;
 import com.android.server.healthconnect.storage.utils.SqlJoin;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
-import java.lang.reflect.InvocationTargetException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
@@ -71,6 +68,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -85,7 +84,7 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
     public static final String APP_INFO_ID_COLUMN_NAME = "app_info_id";
     public static final String LAST_MODIFIED_TIME_COLUMN_NAME = "last_modified_time";
     private static final String CLIENT_RECORD_VERSION_COLUMN_NAME = "client_record_version";
-    private static final String DEVICE_INFO_ID_COLUMN_NAME = "device_info_id";
+    public static final String DEVICE_INFO_ID_COLUMN_NAME = "device_info_id";
     private static final String RECORDING_METHOD_COLUMN_NAME = "recording_method";
     private static final String DEDUPE_HASH_COLUMN_NAME = "dedupe_hash";
     private static final List<Pair<String, Integer>> UNIQUE_COLUMNS_INFO =
@@ -193,17 +192,45 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
      */
     @NonNull
     public final CreateTableRequest getCreateTableRequest() {
-        return new CreateTableRequest(getMainTableName(), getColumnInfo())
-                .addForeignKey(
-                        DeviceInfoHelper.getInstance().getTableName(),
-                        Collections.singletonList(DEVICE_INFO_ID_COLUMN_NAME),
-                        Collections.singletonList(PRIMARY_COLUMN_NAME))
-                .addForeignKey(
-                        AppInfoHelper.TABLE_NAME,
-                        Collections.singletonList(APP_INFO_ID_COLUMN_NAME),
-                        Collections.singletonList(PRIMARY_COLUMN_NAME))
-                .setChildTableRequests(getChildTableCreateRequests())
-                .setGeneratedColumnInfo(getGeneratedColumnInfo());
+        CreateTableRequest createTableRequest =
+                new CreateTableRequest(getMainTableName(), getColumnInfo())
+                        .addForeignKey(
+                                DeviceInfoHelper.getInstance().getTableName(),
+                                Collections.singletonList(DEVICE_INFO_ID_COLUMN_NAME),
+                                Collections.singletonList(PRIMARY_COLUMN_NAME))
+                        .addForeignKey(
+                                AppInfoHelper.TABLE_NAME,
+                                Collections.singletonList(APP_INFO_ID_COLUMN_NAME),
+                                Collections.singletonList(PRIMARY_COLUMN_NAME))
+                        .setChildTableRequests(getChildTableCreateRequests())
+                        .setGeneratedColumnInfo(getGeneratedColumnInfo());
+        getIndexedColumns().forEach(createTableRequest::createIndexOn);
+        return createTableRequest;
+    }
+
+    /**
+     * Returns the columns of the indexes of the main table, on top of the ones created for the
+     * foreign keys.
+     *
+     * <ul>
+     *   <li>start time: reads and aggregations over all apps, which filter on a range of start
+     *       time and order by it, and auto delete.
+     *   <li>app info id and start time: the same for reads restricted to some apps, including
+     *       apps reading their own data, and for deletes of an app's data.
+     *   <li>local start time: reads, aggregations and deletes with a local time filter.
+     *   <li>local date: {@link ActivityDateHelper}, which reads the distinct local dates from this
+     *       index only.
+     * </ul>
+     *
+     * <p>{@code QueryPlanTest} checks that each of these indexes is used.
+     */
+    @NonNull
+    List<List<String>> getIndexedColumns() {
+        return List.of(
+                List.of(getStartTimeColumnName()),
+                List.of(APP_INFO_ID_COLUMN_NAME, getStartTimeColumnName()),
+                List.of(getLocalStartTimeColumnName()),
+                List.of(getPeriodGroupByColumnName()));
     }
 
     public UpsertTableRequest getUpsertTableRequest(RecordInternal<?> recordInternal) {
@@ -257,13 +284,25 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                                         return newClientRecordVersion >= clientRecordVersion;
                                     }
                                 })
-                        .setChildTableRequests(getChildTableUpsertRequests((T) recordInternal))
+                        .setChildTableRequests(
+                                getChildTableUpsertRequests((T) recordInternal, upsertValues))
+                        .setChildTableRowsRequests(
+                                getChildTableRowsRequests((T) recordInternal, upsertValues))
                         .setHelper(this)
                         .setExtraWritePermissionsStateMapping(extraWritePermissionToStateMap);
         Trace.traceEnd(TRACE_TAG_RECORD_HELPER);
         return upsertTableRequest;
     }
 
+    /**
+     * Returns the preferences to insert or replace in the same transaction as {@code request},
+     * for helpers whose reads depend on what has been written so far.
+     */
+    @NonNull
+    public Map<String, String> getPreferencesToCommitWith(@NonNull UpsertTableRequest request) {
+        return Collections.emptyMap();
+    }
+
     /* Updates upsert content values based on extra permissions state. */
     protected void updateUpsertValuesIfRequired(
             @NonNull ContentValues values,
@@ -315,6 +354,7 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                                 request, packageName, enforceSelfRead, startDateAccess))
                 .setOrderBy(getOrderByClause(request))
                 .setLimit(getLimitSize(request))
+                .setAscending(request.isAscending())
                 .setRecordHelper(this)
                 .setExtraReadRequests(
                         getExtraDataReadRequests(
@@ -349,8 +389,7 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                 .setJoinClause(getJoinForReadRequest())
                 .setWhereClause(
                         new WhereClauses()
-                                .addWhereInClauseWithoutQuotes(
-                                        UUID_COLUMN_NAME, StorageUtils.getListOfHexString(uuids))
+                                .addWhereInUuidsClause(UUID_COLUMN_NAME, uuids)
                                 .addWhereLaterThanTimeClause(
                                         getStartTimeColumnName(), startDateAccess))
                 .setRecordHelper(this)
@@ -393,109 +432,69 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
         return getInternalRecords(cursor, requestSize, null);
     }
 
-    /** Returns List of Internal records from the cursor */
+    /**
+     * Returns up to {@code requestSize} internal records from the cursor. The cursor is left on the
+     * last row of the last record, see {@link #getNextPageToken}.
+     */
     @SuppressWarnings("unchecked")
     public List<RecordInternal<?>> getInternalRecords(
             Cursor cursor, int requestSize, Map<Long, String> packageNamesByAppIds) {
         Trace.traceBegin(TRACE_TAG_RECORD_HELPER, TAG_RECORD_HELPER.concat("GetInternalRecords"));
         List<RecordInternal<?>> recordInternalList = new ArrayList<>();
 
-        int count = 0;
-        long prevStartTime = DEFAULT_LONG;
-        long currentStartTime = DEFAULT_LONG;
-        int tempCount = 0;
-        List<RecordInternal<?>> tempList = new ArrayList<>();
-        while (cursor.moveToNext()) {
-            try {
-                T record =
-                        (T)
-                                RecordMapper.getInstance()
-                                        .getRecordIdToInternalRecordClassMap()
-                                        .get(getRecordIdentifier())
-                                        .getConstructor()
-                                        .newInstance();
-                record.setUuid(getCursorUUID(cursor, UUID_COLUMN_NAME));
-                record.setLastModifiedTime(getCursorLong(cursor, LAST_MODIFIED_TIME_COLUMN_NAME));
-                record.setClientRecordId(getCursorString(cursor, CLIENT_RECORD_ID_COLUMN_NAME));
-                record.setClientRecordVersion(
-                        getCursorLong(cursor, CLIENT_RECORD_VERSION_COLUMN_NAME));
-                record.setRecordingMethod(getCursorInt(cursor, RECORDING_METHOD_COLUMN_NAME));
-                record.setRowId(getCursorInt(cursor, PRIMARY_COLUMN_NAME));
-                long deviceInfoId = getCursorLong(cursor, DEVICE_INFO_ID_COLUMN_NAME);
-                DeviceInfoHelper.getInstance().populateRecordWithValue(deviceInfoId, record);
-                long appInfoId = getCursorLong(cursor, APP_INFO_ID_COLUMN_NAME);
-                AppInfoHelper.getInstance()
-                        .populateRecordWithValue(appInfoId, record, packageNamesByAppIds);
-                populateRecordValue(cursor, record);
-
-                prevStartTime = currentStartTime;
-                currentStartTime = getCursorLong(cursor, getStartTimeColumnName());
-                if (prevStartTime == DEFAULT_LONG || prevStartTime == currentStartTime) {
-                    // Fetch and add records with same startTime to tempList
-                    tempList.add(record);
-                    tempCount++;
-                } else {
-                    if (count == 0) {
-                        // items in tempList having startTime same as the first record from cursor
-                        // is added to final list.
-                        // This makes sure that we return at least 1 record if the count of
-                        // records with startTime same as second record exceeds requestSize.
-                        recordInternalList.addAll(tempList);
-                        count = tempCount;
-                        tempList.clear();
-                        tempCount = 0;
-                        if (count >= requestSize) {
-                            // startTime of current record should be fetched for pageToken
-                            cursor.moveToPrevious();
-                            break;
-                        }
-                        tempList.add(record);
-                        tempCount = 1;
-                    } else if (tempCount + count <= requestSize) {
-                        // Makes sure after adding records in tempList with same starTime
-                        // the count does not exceed requestSize
-                        recordInternalList.addAll(tempList);
-                        count += tempCount;
-                        tempList.clear();
-                        tempCount = 0;
-                        if (count >= requestSize) {
-                            // After adding records if count is equal to requestSize then startTime
-                            // of current fetched record should be the next page token.
-                            cursor.moveToPrevious();
-                            break;
-                        }
-                        tempList.add(record);
-                        tempCount = 1;
-                    } else {
-                        // If adding records in tempList makes count > requestSize, then ignore temp
-                        // list and startTime of records in temp list should be the next page token.
-                        tempList.clear();
-                        int lastposition = cursor.getPosition();
-                        cursor.moveToPosition(lastposition - 2);
-                        break;
-                    }
-                }
-            } catch (InstantiationException
-                    | IllegalAccessException
-                    | NoSuchMethodException
-                    | InvocationTargetException exception) {
-                throw new IllegalArgumentException(exception);
-            }
-        }
-        if (!tempList.isEmpty()) {
-            if (tempCount + count <= requestSize) {
-                // If reached end of cursor while fetching records then add it to final list
-                recordInternalList.addAll(tempList);
-            } else {
-                // If reached end of cursor while fetching and adding it will exceed requestSize
-                // then ignore them,startTime of the last record will be pageToken for next read.
-                cursor.moveToPosition(cursor.getCount() - 2);
-            }
+        // Resolve the columns and the record constructor once, rather than for every row.
+        Supplier<T> recordSupplier =
+                (Supplier<T>)
+                        RecordMapper.getInstance()
+                                .getRecordIdToInternalRecordSupplierMap()
+                                .get(getRecordIdentifier());
+        int uuidIndex = cursor.getColumnIndex(UUID_COLUMN_NAME);
+        int lastModifiedTimeIndex = cursor.getColumnIndex(LAST_MODIFIED_TIME_COLUMN_NAME);
+        int clientRecordIdIndex = cursor.getColumnIndex(CLIENT_RECORD_ID_COLUMN_NAME);
+        int clientRecordVersionIndex = cursor.getColumnIndex(CLIENT_RECORD_VERSION_COLUMN_NAME);
+        int recordingMethodIndex = cursor.getColumnIndex(RECORDING_METHOD_COLUMN_NAME);
+        int rowIdIndex = cursor.getColumnIndex(PRIMARY_COLUMN_NAME);
+        int deviceInfoIdIndex = cursor.getColumnIndex(DEVICE_INFO_ID_COLUMN_NAME);
+        int appInfoIdIndex = cursor.getColumnIndex(APP_INFO_ID_COLUMN_NAME);
+        BiConsumer<Cursor, T> recordValueReader = getRecordValueReader(cursor);
+        // Records are read in (start time, row id) order, so a page ends after any record, even
+        // one sharing its start time with the next one, see getNextPageToken.
+        while (recordInternalList.size() < requestSize && cursor.moveToNext()) {
+            T record = recordSupplier.get();
+            record.setUuid(StorageUtils.convertBytesToUUID(cursor.getBlob(uuidIndex)));
+            record.setLastModifiedTime(cursor.getLong(lastModifiedTimeIndex));
+            record.setClientRecordId(cursor.getString(clientRecordIdIndex));
+            record.setClientRecordVersion(cursor.getLong(clientRecordVersionIndex));
+            record.setRecordingMethod(cursor.getInt(recordingMethodIndex));
+            record.setRowId(cursor.getInt(rowIdIndex));
+            long deviceInfoId = cursor.getLong(deviceInfoIdIndex);
+            DeviceInfoHelper.getInstance().populateRecordWithValue(deviceInfoId, record);
+            long appInfoId = cursor.getLong(appInfoIdIndex);
+            AppInfoHelper.getInstance()
+                    .populateRecordWithValue(appInfoId, record, packageNamesByAppIds);
+            recordValueReader.accept(cursor, record);
+            recordInternalList.add(record);
         }
         Trace.traceEnd(TRACE_TAG_RECORD_HELPER);
         return recordInternalList;
     }
 
+    /**
+     * Returns the token of the page after {@code records}, read from {@code cursor} by {@link
+     * #getInternalRecords}, or {@code DEFAULT_LONG} if there are no more records.
+     */
+    public long getNextPageToken(
+            Cursor cursor, List<RecordInternal<?>> records, boolean isAscending) {
+        if (records.isEmpty() || cursor.isAfterLast() || cursor.isLast()) {
+            return DEFAULT_LONG;
+        }
+
+        return PageTokenUtils.encode(
+                StorageUtils.getCursorLong(cursor, getStartTimeColumnName()),
+                records.get(records.size() - 1).getRowId(),
+                isAscending);
+    }
+
     /** Returns is the read of this record type is enabled */
     public boolean isRecordOperationsEnabled() {
         return true;
@@ -525,7 +524,7 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
 
     public DeleteTableRequest getDeleteTableRequest(List<UUID> ids) {
         return new DeleteTableRequest(getMainTableName(), getRecordIdentifier())
-                .setIds(UUID_COLUMN_NAME, StorageUtils.getListOfHexString(ids))
+                .setUuids(UUID_COLUMN_NAME, ids)
                 .setRequiresUuId(UUID_COLUMN_NAME)
                 .setEnforcePackageCheck(APP_INFO_ID_COLUMN_NAME, UUID_COLUMN_NAME);
     }
@@ -591,14 +590,50 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
      */
     abstract void populateRecordValue(@NonNull Cursor cursor, @NonNull T recordInternal);
 
+    /**
+     * Returns a function populating records with the values of the current row of {@code cursor},
+     * like {@link #populateRecordValue}. Datatypes read in bulk override this to resolve their
+     * column indices once for the cursor instead of for every row.
+     */
+    @NonNull
+    BiConsumer<Cursor, T> getRecordValueReader(@NonNull Cursor cursor) {
+        return this::populateRecordValue;
+    }
+
     List<UpsertTableRequest> getChildTableUpsertRequests(T record) {
         return Collections.emptyList();
     }
 
+    /**
+     * Returns the child table requests of {@code record}, given the {@code mainTableValues} that
+     * are going to be written for it.
+     */
+    List<UpsertTableRequest> getChildTableUpsertRequests(
+            T record, @NonNull ContentValues mainTableValues) {
+        return getChildTableUpsertRequests(record);
+    }
+
+    /**
+     * Returns the child table rows of {@code record} that are bound straight from the record, see
+     * {@link ChildTableRowsRequest}, given the {@code mainTableValues} written for it.
+     */
+    List<ChildTableRowsRequest> getChildTableRowsRequests(
+            T record, @NonNull ContentValues mainTableValues) {
+        return Collections.emptyList();
+    }
+
     SqlJoin getJoinForReadRequest() {
         return null;
     }
 
+    /**
+     * Returns whether the aggregated values of this record type can be pre-aggregated by {@link
+     * AggregateRollupHelper}.
+     */
+    boolean supportsAggregateRollups() {
+        return true;
+    }
+
     private int getLimitSize(ReadRecordsRequestParcel request) {
         if (request.getRecordIdFiltersParcel() == null) {
             return request.getPageSize();
@@ -629,18 +664,6 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
             WhereClauses clauses =
                     new WhereClauses().addWhereInLongsClause(APP_INFO_ID_COLUMN_NAME, appIds);
 
-            if (request.getPageToken() != DEFAULT_LONG) {
-                // Since pageToken passed contains detail of sort order. Actual token value for read
-                // is calculated back from the requested pageToken based on sort order.
-                if (request.isAscending()) {
-                    clauses.addWhereGreaterThanOrEqualClause(
-                            getStartTimeColumnName(), request.getPageToken() / 2);
-                } else {
-                    clauses.addWhereLessThanOrEqualClause(
-                            getStartTimeColumnName(), (request.getPageToken() - 1) / 2);
-                }
-            }
-
             if (request.usesLocalTimeFilter()) {
                 clauses.addWhereGreaterThanOrEqualClause(getStartTimeColumnName(), startDateAccess);
                 clauses.addWhereBetweenClause(
@@ -652,6 +675,27 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                         getStartTimeColumnName(), startDateAccess, request.getEndTime());
             }
 
+            long pageToken = request.getPageToken();
+            if (PageTokenUtils.isRowToken(pageToken)) {
+                // Added last, for the row of the token to be looked up among the readable rows.
+                clauses.addWhereAfterRowClause(
+                        getMainTableName(),
+                        getStartTimeColumnName(),
+                        PRIMARY_COLUMN_NAME,
+                        PageTokenUtils.getRowId(pageToken),
+                        PageTokenUtils.getFallbackStartTime(pageToken),
+                        request.isAscending());
+            } else if (pageToken != DEFAULT_LONG) {
+                // Token of an older version, holding the start time of the next record.
+                if (request.isAscending()) {
+                    clauses.addWhereGreaterThanOrEqualClause(
+                            getStartTimeColumnName(), PageTokenUtils.getStartTime(pageToken));
+                } else {
+                    clauses.addWhereLessThanOrEqualClause(
+                            getStartTimeColumnName(), PageTokenUtils.getStartTime(pageToken));
+                }
+            }
+
             return clauses;
         }
 
@@ -662,10 +706,7 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                                 (recordIdFilter) ->
                                         StorageUtils.getUUIDFor(recordIdFilter, packageName))
                         .collect(Collectors.toList());
-        WhereClauses whereClauses =
-                new WhereClauses()
-                        .addWhereInClauseWithoutQuotes(
-                                UUID_COLUMN_NAME, StorageUtils.getListOfHexString(ids));
+        WhereClauses whereClauses = new WhereClauses().addWhereInUuidsClause(UUID_COLUMN_NAME, ids);
 
         if (enforceSelfRead) {
             long id = AppInfoHelper.getInstance().getAppInfoId(packageName);
@@ -682,10 +723,18 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
 
     abstract String getZoneOffsetColumnName();
 
+    String getEndZoneOffsetColumnName() {
+        return null;
+    }
+
     private OrderByClause getOrderByClause(ReadRecordsRequestParcel request) {
         OrderByClause orderByClause = new OrderByClause();
         if (request.getRecordIdFiltersParcel() == null) {
-            orderByClause.addOrderByClause(getStartTimeColumnName(), request.isAscending());
+            // The row id breaks ties between records with the same start time, so that pages can
+            // resume right after any record.
+            orderByClause
+                    .addOrderByClause(getStartTimeColumnName(), request.isAscending())
+                    .addOrderByClause(PRIMARY_COLUMN_NAME, request.isAscending());
         }
         return orderByClause;
     }
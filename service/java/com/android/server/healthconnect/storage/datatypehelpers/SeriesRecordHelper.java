@@ -18,28 +18,53 @@ package com.android.server.healthconnect.storage.datatypehelpers;
 
 import static android.health.connect.Constants.PARENT_KEY;
 
+import static com.android.server.healthconnect.storage.HealthConnectDatabase.DB_VERSION_PACKED_SERIES_SAMPLES;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.BLOB;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
 
 import android.annotation.NonNull;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.SeriesRecordInternal;
 import android.util.Pair;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.healthconnect.HealthConnectDeviceConfigManager;
+import com.android.server.healthconnect.storage.request.AggregateParams;
+import com.android.server.healthconnect.storage.request.AlterTableRequest;
+import com.android.server.healthconnect.storage.request.ChildTableRowsRequest;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
 import com.android.server.healthconnect.storage.utils.SqlJoin;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
 /** @hide */
-abstract class SeriesRecordHelper<
-                T extends SeriesRecordInternal<?, ?>, U extends SeriesRecordInternal.Sample>
+abstract class SeriesRecordHelper<T extends SeriesRecordInternal<?, ?>>
         extends IntervalRecordHelper<T> {
     protected static final String PARENT_KEY_COLUMN_NAME = PARENT_KEY;
+    protected static final String EPOCH_MILLIS_COLUMN_NAME = "epoch_millis";
+
+    /**
+     * Main table column holding all the samples of a record encoded by {@link SeriesSamplesCodec}.
+     * When set, the record has no rows in the series table.
+     */
+    @VisibleForTesting static final String PACKED_SAMPLES_COLUMN_NAME = "packed_samples";
+
+    // Set once any series record has been written in the packed format, so that aggregations keep
+    // reading packed samples even if the flag is turned off again.
+    @VisibleForTesting
+    static final String PACKED_SAMPLES_WRITTEN_PREFERENCE_KEY =
+            "packed_series_samples_written";
 
     SeriesRecordHelper(@RecordTypeIdentifier.RecordType int recordIdentifier) {
         super(recordIdentifier);
@@ -56,53 +81,199 @@ abstract class SeriesRecordHelper<
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    final List<UpsertTableRequest> getChildTableUpsertRequests(@NonNull T record) {
-        List<? extends SeriesRecordInternal.Sample> samples = record.getSamples().stream().toList();
-        List<UpsertTableRequest> requests = new ArrayList<>(samples.size());
-        samples.forEach(
-                (sample -> {
-                    ContentValues contentValues = new ContentValues();
-                    populateSampleTo(contentValues, (U) sample);
-                    requests.add(
-                            new UpsertTableRequest(getSeriesDataTableName(), contentValues)
-                                    .setParentColumnForChildTables(PARENT_KEY_COLUMN_NAME));
-                }));
-
-        return requests;
-    }
-
-    /** Returns the INNER JOIN clause for querying from the table for series datatype */
+    public void onUpgrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
+        super.onUpgrade(db, oldVersion, newVersion);
+        try {
+            if (oldVersion < DB_VERSION_PACKED_SERIES_SAMPLES) {
+                db.execSQL(
+                        new AlterTableRequest(
+                                        getMainTableName(),
+                                        Collections.singletonList(
+                                                new Pair<>(PACKED_SAMPLES_COLUMN_NAME, BLOB)))
+                                .getAlterTableAddColumnsCommand());
+            }
+        } catch (SQLException sqlException) {
+            // Ignore this means the field exists. This is possible via module rollback followed by
+            // an upgrade
+        }
+    }
+
+    /**
+     * Returns the rows of the series table of {@code record}, bound straight from its sample
+     * arrays into one statement, unless its samples are packed in {@code mainTableValues}.
+     */
+    @Override
+    final List<ChildTableRowsRequest> getChildTableRowsRequests(
+            @NonNull T record, @NonNull ContentValues mainTableValues) {
+        if (mainTableValues.get(PACKED_SAMPLES_COLUMN_NAME) != null) {
+            // All the samples are already stored in the main table row.
+            return Collections.emptyList();
+        }
+
+        return Collections.singletonList(
+                new ChildTableRowsRequest(
+                        getSeriesDataTableName(),
+                        PARENT_KEY_COLUMN_NAME,
+                        List.of(EPOCH_MILLIS_COLUMN_NAME, getSampleValueColumnName()),
+                        record.getSampleCount(),
+                        (statement, sample, firstIndex) -> {
+                            statement.bindLong(firstIndex, record.getSampleEpochMillis(sample));
+                            bindSampleValue(statement, firstIndex + 1, record, sample);
+                        }));
+    }
+
+    /**
+     * Returns the join clause for querying from the table for series datatype. Once samples have
+     * been written in the packed format this is a LEFT JOIN, as records with packed samples have
+     * no rows in the series table. Otherwise it stays an inner join, so that a record without any
+     * sample rows is skipped rather than failing the read.
+     */
     @Override
     final SqlJoin getJoinForReadRequest() {
-        return new SqlJoin(
-                getMainTableName(),
-                getSeriesDataTableName(),
-                PRIMARY_COLUMN_NAME,
-                PARENT_KEY_COLUMN_NAME);
+        SqlJoin join =
+                new SqlJoin(
+                        getMainTableName(),
+                        getSeriesDataTableName(),
+                        PRIMARY_COLUMN_NAME,
+                        PARENT_KEY_COLUMN_NAME);
+        if (isPackedSamplesReadRequired()) {
+            join.setJoinType(SqlJoin.SQL_JOIN_LEFT);
+        }
+
+        return join;
+    }
+
+    /** Samples live in the series table or are packed, neither of which rollups cover. */
+    @Override
+    final boolean supportsAggregateRollups() {
+        return false;
     }
 
     @Override
     final void populateSpecificContentValues(
             @NonNull ContentValues contentValues, @NonNull T record) {
-        // Empty as we don't want to populate any additional in the main table
+        if (!HealthConnectDeviceConfigManager.getInitialisedInstance()
+                .isPackedSeriesSamplesEnabled()) {
+            // Explicitly clear the column, so that an update of a packed record doesn't keep the
+            // stale samples.
+            contentValues.putNull(PACKED_SAMPLES_COLUMN_NAME);
+            return;
+        }
+
+        int size = record.getSampleCount();
+        SeriesSamplesCodec.Encoder encoder =
+                new SeriesSamplesCodec.Encoder(getPackedValueKind(), size);
+        for (int i = 0; i < size; i++) {
+            addSampleTo(encoder, record, i);
+        }
+        contentValues.put(PACKED_SAMPLES_COLUMN_NAME, encoder.toByteArray());
+    }
+
+    /**
+     * Records that packed samples have been written in the transaction that writes the first of
+     * them, so that a crash can't leave packed rows behind without the preference.
+     */
+    @Override
+    @NonNull
+    public final Map<String, String> getPreferencesToCommitWith(
+            @NonNull UpsertTableRequest request) {
+        if (request.getContentValues().get(PACKED_SAMPLES_COLUMN_NAME) == null
+                || PreferenceHelper.getInstance()
+                                .getPreference(PACKED_SAMPLES_WRITTEN_PREFERENCE_KEY)
+                        != null) {
+            return Collections.emptyMap();
+        }
+
+        return Collections.singletonMap(
+                PACKED_SAMPLES_WRITTEN_PREFERENCE_KEY, String.valueOf(true));
     }
 
     /** Populates record with datatype specific details */
     @Override
     final void populateSpecificRecordValue(@NonNull Cursor cursor, @NonNull T record) {
-        populateSpecificValues(cursor, record);
+        populateSamples(
+                cursor,
+                record,
+                cursor.getColumnIndex(PACKED_SAMPLES_COLUMN_NAME),
+                cursor.getColumnIndex(EPOCH_MILLIS_COLUMN_NAME),
+                this::populateSpecificValues);
+    }
+
+    @Override
+    @NonNull
+    final BiConsumer<Cursor, T> getSpecificRecordValueReader(@NonNull Cursor cursor) {
+        int packedSamplesIndex = cursor.getColumnIndex(PACKED_SAMPLES_COLUMN_NAME);
+        int epochMillisIndex = cursor.getColumnIndex(EPOCH_MILLIS_COLUMN_NAME);
+        BiConsumer<Cursor, T> specificValuesReader = getSpecificValuesReader(cursor);
+        return (rowCursor, record) ->
+                populateSamples(
+                        rowCursor,
+                        record,
+                        packedSamplesIndex,
+                        epochMillisIndex,
+                        specificValuesReader);
+    }
+
+    private void populateSamples(
+            @NonNull Cursor cursor,
+            @NonNull T record,
+            int packedSamplesIndex,
+            int epochMillisIndex,
+            @NonNull BiConsumer<Cursor, T> specificValuesReader) {
+        byte[] packedSamples = cursor.getBlob(packedSamplesIndex);
+        if (packedSamples != null) {
+            SeriesSamplesCodec.Decoder decoder = new SeriesSamplesCodec.Decoder(packedSamples);
+            record.clearSamples();
+            record.ensureSampleCapacity(decoder.size());
+            while (decoder.moveToNext()) {
+                addSampleFrom(decoder, record);
+            }
+            record.compactSamples();
+            return;
+        }
+
+        if (cursor.isNull(epochMillisIndex)) {
+            // No rows in the series table for this record.
+            record.clearSamples();
+            return;
+        }
+
+        specificValuesReader.accept(cursor, record);
+        record.compactSamples();
     }
 
     /**
-     * A typical series data type should not use the main table to store any of its data, and should
-     * instead implement get addition table related functions. Hence, an empty final function
+     * Series data types store their samples in the additional table, or packed in a single column
+     * of the main table. Hence, a final function.
+     *
+     * <p>The packed samples column is added to existing tables in {@link #onUpgrade}.
      */
     @NonNull
     final List<Pair<String, String>> getIntervalRecordColumnInfo() {
-        // We don't want to populate anything additional in the main table. Series data types use
-        // additional table to store all the data.
-        return Collections.emptyList();
+        return Collections.singletonList(new Pair<>(PACKED_SAMPLES_COLUMN_NAME, BLOB));
+    }
+
+    /**
+     * Returns {@link AggregateParams} aggregating {@code valueColumnName} of the series table.
+     * Once samples have been written in the packed format the aggregation is done over the main
+     * table, so that both packed records and records with rows in the series table are covered.
+     */
+    @NonNull
+    final AggregateParams getSeriesAggregateParams(@NonNull String valueColumnName) {
+        if (!isPackedSamplesReadRequired()) {
+            return new AggregateParams(
+                            getSeriesDataTableName(), Collections.singletonList(valueColumnName))
+                    .setJoin(
+                            new SqlJoin(
+                                    getSeriesDataTableName(),
+                                    getMainTableName(),
+                                    PARENT_KEY_COLUMN_NAME,
+                                    PRIMARY_COLUMN_NAME));
+        }
+
+        return new AggregateParams(getMainTableName(), Collections.singletonList(valueColumnName))
+                .setJoin(getJoinForReadRequest())
+                .setPackedSamplesColumnName(PACKED_SAMPLES_COLUMN_NAME);
     }
 
     /**
@@ -118,8 +289,45 @@ abstract class SeriesRecordHelper<
     /** Populates the {@code record} with values specific to dataytpe */
     abstract void populateSpecificValues(@NonNull Cursor cursor, T record);
 
-    /** Puts the {@code sample} to the {@code contentValues} */
-    abstract void populateSampleTo(@NonNull ContentValues contentValues, @NonNull U sample);
+    /**
+     * Returns a function doing the same as {@link #populateSpecificValues} for the rows of {@code
+     * cursor}, see {@link #getRecordValueReader}.
+     */
+    @NonNull
+    BiConsumer<Cursor, T> getSpecificValuesReader(@NonNull Cursor cursor) {
+        return this::populateSpecificValues;
+    }
+
+    /** Returns the series table column holding the value of each sample. */
+    @NonNull
+    abstract String getSampleValueColumnName();
+
+    /**
+     * Binds the value of the sample of {@code record} at {@code sample} to {@code statement} at
+     * {@code bindIndex}.
+     */
+    abstract void bindSampleValue(
+            @NonNull SQLiteStatement statement, int bindIndex, @NonNull T record, int sample);
+
+    /** Returns the {@link SeriesSamplesCodec} value kind of the samples of this datatype. */
+    abstract int getPackedValueKind();
+
+    /** Adds the sample of {@code record} at {@code index} to the packed samples {@code encoder}. */
+    abstract void addSampleTo(
+            @NonNull SeriesSamplesCodec.Encoder encoder, @NonNull T record, int index);
+
+    /** Adds the current sample of the packed samples {@code decoder} to {@code record}. */
+    abstract void addSampleFrom(@NonNull SeriesSamplesCodec.Decoder decoder, @NonNull T record);
+
+    private static boolean isPackedSamplesReadRequired() {
+        if (HealthConnectDeviceConfigManager.getInitialisedInstance()
+                .isPackedSeriesSamplesEnabled()) {
+            return true;
+        }
+
+        return PreferenceHelper.getInstance().getPreference(PACKED_SAMPLES_WRITTEN_PREFERENCE_KEY)
+                != null;
+    }
 
     @NonNull
     private List<Pair<String, String>> getSeriesTableColumnInfo() {
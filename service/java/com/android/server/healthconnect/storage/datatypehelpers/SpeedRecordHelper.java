@@ -23,16 +23,16 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.getCur
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
 import android.annotation.NonNull;
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.SpeedRecordInternal;
 import android.util.Pair;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
 
@@ -42,13 +42,12 @@ import java.util.UUID;
  * @hide
  */
 public class SpeedRecordHelper
-        extends SeriesRecordHelper<SpeedRecordInternal, SpeedRecordInternal.SpeedRecordSample> {
+        extends SeriesRecordHelper<SpeedRecordInternal> {
 
     @VisibleForTesting public static final String TABLE_NAME = "SpeedRecordTable";
     public static final int NUM_LOCAL_COLUMNS = 1;
     private static final String SERIES_TABLE_NAME = "speed_record_table";
     private static final String SPEED_COLUMN_NAME = "speed";
-    private static final String EPOCH_MILLIS_COLUMN_NAME = "epoch_millis";
 
     public SpeedRecordHelper() {
         super(RecordTypeIdentifier.RECORD_TYPE_SPEED);
@@ -75,25 +74,43 @@ public class SpeedRecordHelper
     /** Populates the {@code record} with values specific to datatype */
     @Override
     void populateSpecificValues(@NonNull Cursor seriesTableCursor, SpeedRecordInternal record) {
-        HashSet<SpeedRecordInternal.SpeedRecordSample> speedRecordSampleSet = new HashSet<>();
+        record.clearSamples();
         UUID uuid = getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME);
         do {
-            speedRecordSampleSet.add(
-                    new SpeedRecordInternal.SpeedRecordSample(
-                            getCursorDouble(seriesTableCursor, SPEED_COLUMN_NAME),
-                            getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME)));
+            record.addSample(
+                    getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME),
+                    getCursorDouble(seriesTableCursor, SPEED_COLUMN_NAME));
         } while (seriesTableCursor.moveToNext()
                 && uuid.equals(getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME)));
         // In case we hit another record, move the cursor back to read next record in outer
         // RecordHelper#getInternalRecords loop.
         seriesTableCursor.moveToPrevious();
-        record.setSamples(speedRecordSampleSet);
     }
 
     @Override
-    void populateSampleTo(
-            ContentValues contentValues, SpeedRecordInternal.SpeedRecordSample speedRecord) {
-        contentValues.put(SPEED_COLUMN_NAME, speedRecord.getSpeed());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, speedRecord.getEpochMillis());
+    String getSampleValueColumnName() {
+        return SPEED_COLUMN_NAME;
+    }
+
+    @Override
+    void bindSampleValue(
+            SQLiteStatement statement, int bindIndex, SpeedRecordInternal record, int sample) {
+        statement.bindDouble(bindIndex, record.getSampleValue(sample));
+    }
+
+    @Override
+    final int getPackedValueKind() {
+        return SeriesSamplesCodec.VALUE_KIND_DOUBLE;
+    }
+
+    @Override
+    final void addSampleTo(
+            SeriesSamplesCodec.Encoder encoder, SpeedRecordInternal record, int index) {
+        encoder.add(record.getSampleEpochMillis(index), record.getSampleValue(index));
+    }
+
+    @Override
+    final void addSampleFrom(SeriesSamplesCodec.Decoder decoder, SpeedRecordInternal record) {
+        record.addSample(decoder.getEpochMillis(), decoder.getDoubleValue());
     }
 }
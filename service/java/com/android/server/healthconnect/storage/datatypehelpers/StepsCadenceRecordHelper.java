@@ -23,14 +23,15 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.getCur
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
 import android.annotation.NonNull;
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.StepsCadenceRecordInternal;
 import android.util.Pair;
 
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
+
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
 
@@ -40,13 +41,11 @@ import java.util.UUID;
  * @hide
  */
 public class StepsCadenceRecordHelper
-        extends SeriesRecordHelper<
-                StepsCadenceRecordInternal, StepsCadenceRecordInternal.StepsCadenceRecordSample> {
+        extends SeriesRecordHelper<StepsCadenceRecordInternal> {
     public static final int NUM_LOCAL_COLUMNS = 2;
     private static final String TABLE_NAME = "StepsCadenceRecordTable";
     private static final String SERIES_TABLE_NAME = "steps_cadence_record_table";
     private static final String RATE_COLUMN_NAME = "rate";
-    private static final String EPOCH_MILLIS_COLUMN_NAME = "epoch_millis";
 
     public StepsCadenceRecordHelper() {
         super(RecordTypeIdentifier.RECORD_TYPE_STEPS_CADENCE);
@@ -73,27 +72,47 @@ public class StepsCadenceRecordHelper
     @Override
     void populateSpecificValues(
             @NonNull Cursor seriesTableCursor, StepsCadenceRecordInternal record) {
-        HashSet<StepsCadenceRecordInternal.StepsCadenceRecordSample> stepsCadenceRecordSampleSet =
-                new HashSet<>();
+        record.clearSamples();
         UUID uuid = getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME);
         do {
-            stepsCadenceRecordSampleSet.add(
-                    new StepsCadenceRecordInternal.StepsCadenceRecordSample(
-                            getCursorDouble(seriesTableCursor, RATE_COLUMN_NAME),
-                            getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME)));
+            record.addSample(
+                    getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME),
+                    getCursorDouble(seriesTableCursor, RATE_COLUMN_NAME));
         } while (seriesTableCursor.moveToNext()
                 && uuid.equals(getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME)));
         // In case we hit another record, move the cursor back to read next record in outer
         // RecordHelper#getInternalRecords loop.
         seriesTableCursor.moveToPrevious();
-        record.setSamples(stepsCadenceRecordSampleSet);
     }
 
     @Override
-    void populateSampleTo(
-            ContentValues contentValues,
-            StepsCadenceRecordInternal.StepsCadenceRecordSample stepsCadenceRecord) {
-        contentValues.put(RATE_COLUMN_NAME, stepsCadenceRecord.getRate());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, stepsCadenceRecord.getEpochMillis());
+    String getSampleValueColumnName() {
+        return RATE_COLUMN_NAME;
+    }
+
+    @Override
+    void bindSampleValue(
+            SQLiteStatement statement,
+            int bindIndex,
+            StepsCadenceRecordInternal record,
+            int sample) {
+        statement.bindDouble(bindIndex, record.getSampleValue(sample));
+    }
+
+    @Override
+    final int getPackedValueKind() {
+        return SeriesSamplesCodec.VALUE_KIND_DOUBLE;
+    }
+
+    @Override
+    final void addSampleTo(
+            SeriesSamplesCodec.Encoder encoder, StepsCadenceRecordInternal record, int index) {
+        encoder.add(record.getSampleEpochMillis(index), record.getSampleValue(index));
+    }
+
+    @Override
+    final void addSampleFrom(
+            SeriesSamplesCodec.Decoder decoder, StepsCadenceRecordInternal record) {
+        record.addSample(decoder.getEpochMillis(), decoder.getDoubleValue());
     }
 }
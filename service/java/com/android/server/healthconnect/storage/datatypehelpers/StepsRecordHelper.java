@@ -35,6 +35,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.BiConsumer;
 
 /**
  * Helper class for StepsRecord.
@@ -75,6 +76,13 @@ public final class StepsRecordHelper extends IntervalRecordHelper<StepsRecordInt
         recordInternal.setCount(getCursorInt(cursor, COUNT_COLUMN_NAME));
     }
 
+    @Override
+    @NonNull
+    BiConsumer<Cursor, StepsRecordInternal> getSpecificRecordValueReader(@NonNull Cursor cursor) {
+        int countIndex = cursor.getColumnIndex(COUNT_COLUMN_NAME);
+        return (rowCursor, recordInternal) -> recordInternal.setCount(rowCursor.getInt(countIndex));
+    }
+
     @Override
     void populateSpecificContentValues(
             @NonNull ContentValues contentValues, @NonNull StepsRecordInternal stepsRecord) {
@@ -31,7 +31,6 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
 
 import java.time.ZoneOffset;
-import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -45,6 +44,8 @@ public abstract class AggregationRecordData implements Comparable<AggregationRec
     private int mPriority;
     private long mLastModifiedTime;
     private ZoneOffset mStartTimeZoneOffset;
+    // Position in the heap of open intervals of PriorityRecordsAggregator.
+    private int mHeapIndex = -1;
 
     long getStartTime() {
         return mRecordStartTime;
@@ -66,12 +67,20 @@ public abstract class AggregationRecordData implements Comparable<AggregationRec
         return mStartTimeZoneOffset;
     }
 
+    int getHeapIndex() {
+        return mHeapIndex;
+    }
+
+    void setHeapIndex(int heapIndex) {
+        mHeapIndex = heapIndex;
+    }
+
     protected UUID readUuid(Cursor cursor) {
         return StorageUtils.getCursorUUID(cursor, UUID_COLUMN_NAME);
     }
 
     void populateAggregationData(
-            Cursor cursor, boolean useLocalTime, Map<Long, Integer> appIdToPriority) {
+            Cursor cursor, boolean useLocalTime, AppIdPriorityMap appIdToPriority) {
         mRecordStartTime =
                 StorageUtils.getCursorLong(
                         cursor,
@@ -85,22 +94,10 @@ public abstract class AggregationRecordData implements Comparable<AggregationRec
         mLastModifiedTime = StorageUtils.getCursorLong(cursor, LAST_MODIFIED_TIME_COLUMN_NAME);
         mStartTimeZoneOffset = StorageUtils.getZoneOffset(cursor, START_ZONE_OFFSET_COLUMN_NAME);
         mPriority =
-                appIdToPriority.getOrDefault(
-                        StorageUtils.getCursorLong(cursor, APP_INFO_ID_COLUMN_NAME),
-                        Integer.MIN_VALUE);
+                appIdToPriority.get(StorageUtils.getCursorLong(cursor, APP_INFO_ID_COLUMN_NAME));
         populateSpecificAggregationData(cursor, useLocalTime);
     }
 
-    AggregationTimestamp getStartTimestamp() {
-        return new AggregationTimestamp(AggregationTimestamp.INTERVAL_START, getStartTime())
-                .setParentData(this);
-    }
-
-    AggregationTimestamp getEndTimestamp() {
-        return new AggregationTimestamp(AggregationTimestamp.INTERVAL_END, getEndTime())
-                .setParentData(this);
-    }
-
     @VisibleForTesting
     AggregationRecordData setData(
             long startTime, long endTime, int priority, long lastModifiedTime) {
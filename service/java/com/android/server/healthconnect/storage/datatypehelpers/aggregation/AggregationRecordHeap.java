@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers.aggregation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Array backed binary min-heap of {@link AggregationRecordData}.
+ *
+ * @hide
+ */
+final class AggregationRecordHeap {
+    /** Orders records by start time, then by {@link AggregationRecordData#compareTo}. */
+    static final Comparator<AggregationRecordData> START_TIME_ORDER =
+            (a, b) -> {
+                int compare = Long.compare(a.getStartTime(), b.getStartTime());
+                return compare != 0 ? compare : a.compareTo(b);
+            };
+
+    /** Orders records by end time, then by {@link AggregationRecordData#compareTo}. */
+    static final Comparator<AggregationRecordData> END_TIME_ORDER =
+            (a, b) -> {
+                int compare = Long.compare(a.getEndTime(), b.getEndTime());
+                return compare != 0 ? compare : a.compareTo(b);
+            };
+
+    /** Orders records from the highest to the lowest priority. */
+    static final Comparator<AggregationRecordData> HIGHEST_PRIORITY_FIRST_ORDER =
+            (a, b) -> b.compareTo(a);
+
+    private final Comparator<AggregationRecordData> mComparator;
+    private final boolean mTrackIndices;
+    private AggregationRecordData[] mHeap = new AggregationRecordData[16];
+    private int mSize;
+
+    /**
+     * Creates a heap ordered by the given comparator. If {@code trackIndices} is set, records store
+     * their position in the heap so they can be removed, hence they must be in at most one such
+     * heap at a time.
+     */
+    AggregationRecordHeap(Comparator<AggregationRecordData> comparator, boolean trackIndices) {
+        mComparator = comparator;
+        mTrackIndices = trackIndices;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /** Returns the record at the given position of the backing array, in no particular order. */
+    AggregationRecordData get(int index) {
+        return mHeap[index];
+    }
+
+    AggregationRecordData peek() {
+        return mSize == 0 ? null : mHeap[0];
+    }
+
+    /** Returns whether the first record of the heap is equal to the given one in heap order. */
+    boolean peekEquals(AggregationRecordData data) {
+        return mSize > 0 && mComparator.compare(mHeap[0], data) == 0;
+    }
+
+    /** Returns whether the given record is in the heap, only supported if indices are tracked. */
+    boolean contains(AggregationRecordData data) {
+        int index = data.getHeapIndex();
+        return index >= 0 && index < mSize && mHeap[index] == data;
+    }
+
+    void add(AggregationRecordData data) {
+        if (mSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mSize * 2);
+        }
+        siftUp(mSize++, data);
+    }
+
+    AggregationRecordData poll() {
+        if (mSize == 0) {
+            return null;
+        }
+
+        AggregationRecordData first = mHeap[0];
+        removeAt(0);
+        return first;
+    }
+
+    /** Removes the given record, only supported if indices are tracked. */
+    void remove(AggregationRecordData data) {
+        removeAt(data.getHeapIndex());
+    }
+
+    private void removeAt(int index) {
+        setHeapIndex(mHeap[index], -1);
+        AggregationRecordData last = mHeap[--mSize];
+        mHeap[mSize] = null;
+        if (index == mSize) {
+            return;
+        }
+
+        siftDown(index, last);
+        if (mHeap[index] == last) {
+            siftUp(index, last);
+        }
+    }
+
+    private void siftUp(int index, AggregationRecordData data) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (mComparator.compare(data, mHeap[parent]) >= 0) {
+                break;
+            }
+            place(index, mHeap[parent]);
+            index = parent;
+        }
+        place(index, data);
+    }
+
+    private void siftDown(int index, AggregationRecordData data) {
+        int half = mSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < mSize && mComparator.compare(mHeap[child + 1], mHeap[child]) < 0) {
+                child++;
+            }
+            if (mComparator.compare(data, mHeap[child]) <= 0) {
+                break;
+            }
+            place(index, mHeap[child]);
+            index = child;
+        }
+        place(index, data);
+    }
+
+    private void place(int index, AggregationRecordData data) {
+        mHeap[index] = data;
+        setHeapIndex(data, index);
+    }
+
+    private void setHeapIndex(AggregationRecordData data, int index) {
+        if (mTrackIndices) {
+            data.setHeapIndex(index);
+        }
+    }
+}
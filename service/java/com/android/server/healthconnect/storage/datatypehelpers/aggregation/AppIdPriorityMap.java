@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers.aggregation;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps app ids to their priority without boxing, apps with higher priority get higher values.
+ *
+ * @hide
+ */
+final class AppIdPriorityMap {
+    /** Priority of apps which are not in the priority list. */
+    static final int NO_PRIORITY = Integer.MIN_VALUE;
+
+    private final long[] mAppIds;
+    private final int[] mPriorities;
+
+    AppIdPriorityMap(List<Long> appIdPriorityList) {
+        int size = appIdPriorityList.size();
+        long[] appIds = new long[size];
+        for (int i = 0; i < size; i++) {
+            appIds[i] = appIdPriorityList.get(i);
+        }
+        Arrays.sort(appIds);
+        int uniqueSize = 0;
+        for (int i = 0; i < size; i++) {
+            if (uniqueSize == 0 || appIds[uniqueSize - 1] != appIds[i]) {
+                appIds[uniqueSize++] = appIds[i];
+            }
+        }
+
+        mAppIds = Arrays.copyOf(appIds, uniqueSize);
+        mPriorities = new int[uniqueSize];
+        for (int i = 0; i < size; i++) {
+            // Apps earlier in the list get higher values.
+            mPriorities[Arrays.binarySearch(mAppIds, appIdPriorityList.get(i))] = size - i;
+        }
+    }
+
+    /** Returns the priority of the given app, or {@link #NO_PRIORITY} if it has none. */
+    int get(long appId) {
+        int index = Arrays.binarySearch(mAppIds, appId);
+        return index >= 0 ? mPriorities[index] : NO_PRIORITY;
+    }
+}
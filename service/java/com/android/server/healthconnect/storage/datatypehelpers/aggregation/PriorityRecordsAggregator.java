@@ -28,36 +28,52 @@ import static android.health.connect.datatypes.AggregationType.AggregationTypeId
 import android.database.Cursor;
 import android.health.connect.Constants;
 import android.health.connect.datatypes.AggregationType;
-import android.util.ArrayMap;
 import android.util.Slog;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.healthconnect.storage.request.AggregateParams;
 
 import java.time.ZoneOffset;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeSet;
 
 /**
  * Aggregates records with priorities.
  *
+ * <p>Sweeps over the timestamps of the group splits and of the record intervals in time order.
+ * Between every two consecutive timestamps the open interval with the highest priority is
+ * accounted for. Pending timestamps are kept in heaps of record data instead of separate timestamp
+ * objects, and results are kept in primitive arrays, so aggregating does not allocate per
+ * timestamp.
+ *
  * @hide
  */
 public class PriorityRecordsAggregator {
     static final String TAG = "HealthPriorityRecordsAggregator";
-
-    private final List<Long> mGroupSplits;
-    private final Map<Long, Integer> mAppIdToPriority;
-    private final Map<Integer, Double> mGroupToAggregationResult;
-    private final Map<Integer, ZoneOffset> mGroupToFirstZoneOffset;
+    // Types of the timestamps the sweep goes over.
+    private static final int NO_TIMESTAMP = -1;
+    private static final int GROUP_BORDER = 0;
+    private static final int INTERVAL_START = 1;
+    private static final int INTERVAL_END = 2;
+
+    private final long[] mGroupSplits;
+    private final AppIdPriorityMap mAppIdToPriority;
+    private final double[] mGroupToAggregationResult;
+    private final boolean[] mGroupHasAggregationResult;
+    private final ZoneOffset[] mGroupToFirstZoneOffset;
     private final int mNumberOfGroups;
     private int mCurrentGroup = -1;
     private long mLatestPopulatedStart = -1;
     @AggregationType.AggregationTypeIdentifier private final int mAggregationType;
 
-    private final TreeSet<AggregationTimestamp> mTimestampsBuffer;
-    private final TreeSet<AggregationRecordData> mOpenIntervals;
+    // Timestamps buffer: group splits which are not yet scanned, followed by the start and end
+    // timestamps of the records read so far.
+    private int mNextGroupSplitIndex;
+    private final AggregationRecordHeap mPendingStarts;
+    private final AggregationRecordHeap mPendingEnds;
+    private int mPendingTimestampsCount;
+
+    private final AggregationRecordHeap mOpenIntervals;
 
     private final AggregateParams.PriorityAggregationExtraParams mExtraParams;
 
@@ -69,26 +85,34 @@ public class PriorityRecordsAggregator {
             @AggregationType.AggregationTypeIdentifier int aggregationType,
             AggregateParams.PriorityAggregationExtraParams extraParams,
             boolean useLocalTime) {
-        mGroupSplits = groupSplits;
+        mGroupSplits = new long[groupSplits.size()];
+        for (int i = 0; i < mGroupSplits.length; i++) {
+            mGroupSplits[i] = groupSplits.get(i);
+        }
         mAggregationType = aggregationType;
         mExtraParams = extraParams;
-        mAppIdToPriority = new ArrayMap<>();
-        for (int i = 0; i < appIdPriorityList.size(); i++) {
-            // Add to the map with -index, so app with higher priority has higher value in the map.
-            mAppIdToPriority.put(appIdPriorityList.get(i), appIdPriorityList.size() - i);
-        }
+        mAppIdToPriority = new AppIdPriorityMap(appIdPriorityList);
         mUseLocalTime = useLocalTime;
-        mTimestampsBuffer = new TreeSet<>();
-        mNumberOfGroups = mGroupSplits.size() - 1;
-        mGroupToFirstZoneOffset = new ArrayMap<>(mNumberOfGroups);
-        mOpenIntervals = new TreeSet<>();
-        mGroupToAggregationResult = new ArrayMap<>(mGroupSplits.size());
+        mNumberOfGroups = mGroupSplits.length - 1;
+        mGroupToAggregationResult = new double[Math.max(mNumberOfGroups, 0)];
+        mGroupHasAggregationResult = new boolean[mGroupToAggregationResult.length];
+        mGroupToFirstZoneOffset = new ZoneOffset[mGroupToAggregationResult.length];
+        mPendingStarts =
+                new AggregationRecordHeap(
+                        AggregationRecordHeap.START_TIME_ORDER, /* trackIndices= */ false);
+        mPendingEnds =
+                new AggregationRecordHeap(
+                        AggregationRecordHeap.END_TIME_ORDER, /* trackIndices= */ false);
+        mOpenIntervals =
+                new AggregationRecordHeap(
+                        AggregationRecordHeap.HIGHEST_PRIORITY_FIRST_ORDER,
+                        /* trackIndices= */ true);
 
         if (Constants.DEBUG) {
             Slog.d(
                     TAG,
                     "Aggregation request for splits: "
-                            + mGroupSplits
+                            + groupSplits
                             + " with priorities: "
                             + appIdPriorityList);
         }
@@ -98,26 +122,37 @@ public class PriorityRecordsAggregator {
     public void calculateAggregation(Cursor cursor) {
         initialiseTimestampsBuffer(cursor);
         populateTimestampBuffer(cursor);
-        AggregationTimestamp scanPoint, nextPoint;
-        while (mTimestampsBuffer.size() > 1) {
-            scanPoint = mTimestampsBuffer.pollFirst();
-            nextPoint = mTimestampsBuffer.first();
-            if (scanPoint.getType() == AggregationTimestamp.GROUP_BORDER) {
+        long scanTime;
+        while (mPendingTimestampsCount > 1) {
+            int scanType = getFirstTimestampType();
+            if (scanType == GROUP_BORDER) {
+                scanTime = mGroupSplits[mNextGroupSplitIndex++];
                 mCurrentGroup += 1;
-            } else if (scanPoint.getType() == AggregationTimestamp.INTERVAL_START) {
-                mOpenIntervals.add(scanPoint.getParentData());
-            } else if (scanPoint.getType() == AggregationTimestamp.INTERVAL_END) {
-                mOpenIntervals.remove(scanPoint.getParentData());
+            } else if (scanType == INTERVAL_START) {
+                AggregationRecordData data = mPendingStarts.poll();
+                scanTime = data.getStartTime();
+                openInterval(data);
+                dropDuplicates(mPendingStarts, data);
+            } else if (scanType == INTERVAL_END) {
+                AggregationRecordData data = mPendingEnds.poll();
+                scanTime = data.getEndTime();
+                closeInterval(data);
+                dropDuplicates(mPendingEnds, data);
             } else {
                 throw new UnsupportedOperationException(
-                        "Unknown aggregation timestamp type: " + scanPoint.getType());
+                        "Unknown aggregation timestamp type: " + scanType);
             }
-            updateAggregationResult(scanPoint, nextPoint);
+            mPendingTimestampsCount--;
+            if (mPendingTimestampsCount == 0) {
+                // Only duplicates of the last timestamp were left.
+                break;
+            }
+            updateAggregationResult(scanTime, getTimestampTime(getFirstTimestampType()));
             populateTimestampBuffer(cursor);
         }
 
         if (Constants.DEBUG) {
-            Slog.d(TAG, "Aggregation result: " + mGroupToAggregationResult.toString());
+            Slog.d(TAG, "Aggregation result: " + Arrays.toString(mGroupToAggregationResult));
         }
     }
 
@@ -126,13 +161,13 @@ public class PriorityRecordsAggregator {
         // record, we added to the buffer later overlapping records and the first non-overlapping
         // record. It guarantees that the aggregation score can be calculated correctly for any
         // timestamp within the earliest record interval.
-        if (mTimestampsBuffer.first().getType() != AggregationTimestamp.INTERVAL_START) {
+        if (getFirstTimestampType() != INTERVAL_START) {
             return;
         }
 
         // Add record timestamps to buffer until latest buffer record do not overlap with earliest
         // buffer record.
-        long expansionBorder = mTimestampsBuffer.first().getParentData().getEndTime();
+        long expansionBorder = mPendingStarts.peek().getEndTime();
         if (Constants.DEBUG) {
             Slog.d(
                     TAG,
@@ -150,31 +185,21 @@ public class PriorityRecordsAggregator {
                 Slog.d(TAG, "Updated buffer with : " + data);
             }
         }
-
-        if (Constants.DEBUG) {
-            Slog.d(TAG, "Timestamps buffer: " + mTimestampsBuffer);
-        }
     }
 
     private void initialiseTimestampsBuffer(Cursor cursor) {
-        for (Long groupSplit : mGroupSplits) {
-            mTimestampsBuffer.add(
-                    new AggregationTimestamp(AggregationTimestamp.GROUP_BORDER, groupSplit));
-        }
+        mPendingTimestampsCount = mGroupSplits.length;
 
         if (cursor.moveToNext()) {
             readNewDataAndAddToBuffer(cursor);
         }
-
-        if (Constants.DEBUG) {
-            Slog.d(TAG, "Initialised aggregation buffer: " + mTimestampsBuffer);
-        }
     }
 
     private AggregationRecordData readNewDataAndAddToBuffer(Cursor cursor) {
         AggregationRecordData data = readNewData(cursor);
-        mTimestampsBuffer.add(data.getStartTimestamp());
-        mTimestampsBuffer.add(data.getEndTimestamp());
+        mPendingStarts.add(data);
+        mPendingEnds.add(data);
+        mPendingTimestampsCount += 2;
         return data;
     }
 
@@ -185,14 +210,80 @@ public class PriorityRecordsAggregator {
         return data;
     }
 
+    /**
+     * Returns the type of the earliest pending timestamp, or {@link #NO_TIMESTAMP} if there is
+     * none. Timestamps at the same time are ordered: group border, interval start, interval end.
+     */
+    private int getFirstTimestampType() {
+        int type = NO_TIMESTAMP;
+        long time = 0;
+        if (mNextGroupSplitIndex < mGroupSplits.length) {
+            type = GROUP_BORDER;
+            time = mGroupSplits[mNextGroupSplitIndex];
+        }
+        if (!mPendingStarts.isEmpty()
+                && (type == NO_TIMESTAMP || mPendingStarts.peek().getStartTime() < time)) {
+            type = INTERVAL_START;
+            time = mPendingStarts.peek().getStartTime();
+        }
+        if (!mPendingEnds.isEmpty()
+                && (type == NO_TIMESTAMP || mPendingEnds.peek().getEndTime() < time)) {
+            type = INTERVAL_END;
+        }
+        return type;
+    }
+
+    private long getTimestampTime(int type) {
+        return switch (type) {
+            case GROUP_BORDER -> mGroupSplits[mNextGroupSplitIndex];
+            case INTERVAL_START -> mPendingStarts.peek().getStartTime();
+            case INTERVAL_END -> mPendingEnds.peek().getEndTime();
+            default -> throw new IllegalStateException("No pending timestamps");
+        };
+    }
+
+    private void openInterval(AggregationRecordData data) {
+        if (!mOpenIntervals.contains(data)) {
+            mOpenIntervals.add(data);
+        }
+    }
+
+    private void closeInterval(AggregationRecordData data) {
+        if (mOpenIntervals.contains(data)) {
+            mOpenIntervals.remove(data);
+        }
+    }
+
+    /**
+     * Drops pending timestamps equal to the one just scanned, so timestamps of equal records are
+     * scanned only once. Either of equal records may be open, so all of them are closed on end.
+     */
+    private void dropDuplicates(AggregationRecordHeap timestamps, AggregationRecordData data) {
+        while (timestamps.peekEquals(data)) {
+            AggregationRecordData duplicate = timestamps.poll();
+            if (timestamps == mPendingEnds) {
+                closeInterval(duplicate);
+            }
+            mPendingTimestampsCount--;
+        }
+    }
+
     /** Returns result for the given group */
     public Double getResultForGroup(Integer groupNumber) {
-        return mGroupToAggregationResult.get(groupNumber);
+        if (groupNumber < 0
+                || groupNumber >= mGroupHasAggregationResult.length
+                || !mGroupHasAggregationResult[groupNumber]) {
+            return null;
+        }
+        return mGroupToAggregationResult[groupNumber];
     }
 
     /** Returns start time zone offset for the given group */
     public ZoneOffset getZoneOffsetForGroup(Integer groupNumber) {
-        return mGroupToFirstZoneOffset.get(groupNumber);
+        if (groupNumber < 0 || groupNumber >= mGroupToFirstZoneOffset.length) {
+            return null;
+        }
+        return mGroupToFirstZoneOffset[groupNumber];
     }
 
     private AggregationRecordData createAggregationRecordData() {
@@ -214,17 +305,16 @@ public class PriorityRecordsAggregator {
         };
     }
 
-    private void updateAggregationResult(
-            AggregationTimestamp startPoint, AggregationTimestamp endPoint) {
+    private void updateAggregationResult(long startTime, long endTime) {
         if (Constants.DEBUG) {
             Slog.d(
                     TAG,
                     "Updating result for group "
                             + mCurrentGroup
                             + " for interval: ("
-                            + startPoint.getTime()
+                            + startTime
                             + ", "
-                            + endPoint.getTime()
+                            + endTime
                             + ")");
         }
 
@@ -235,32 +325,28 @@ public class PriorityRecordsAggregator {
             return;
         }
 
-        if (!mGroupToAggregationResult.containsKey(mCurrentGroup)) {
-            mGroupToAggregationResult.put(mCurrentGroup, 0.0d);
-        }
-
+        AggregationRecordData highestPriorityInterval = mOpenIntervals.peek();
         if (Constants.DEBUG) {
-            Slog.d(TAG, "Update result with: " + mOpenIntervals.last());
+            Slog.d(TAG, "Update result with: " + highestPriorityInterval);
         }
 
-        mGroupToAggregationResult.put(
-                mCurrentGroup,
-                mGroupToAggregationResult.get(mCurrentGroup)
-                        + mOpenIntervals
-                                .last()
-                                .getResultOnInterval(startPoint.getTime(), endPoint.getTime()));
-
-        if (mCurrentGroup >= 0
-                && !mGroupToFirstZoneOffset.containsKey(mCurrentGroup)
-                && !mOpenIntervals.isEmpty()) {
-            mGroupToFirstZoneOffset.put(mCurrentGroup, getZoneOffsetOfEarliestOpenInterval());
+        if (!mGroupHasAggregationResult[mCurrentGroup]) {
+            mGroupHasAggregationResult[mCurrentGroup] = true;
+            mGroupToFirstZoneOffset[mCurrentGroup] = getZoneOffsetOfEarliestOpenInterval();
         }
+        mGroupToAggregationResult[mCurrentGroup] +=
+                highestPriorityInterval.getResultOnInterval(startTime, endTime);
     }
 
     private ZoneOffset getZoneOffsetOfEarliestOpenInterval() {
-        AggregationRecordData earliestInterval = mOpenIntervals.first();
-        for (AggregationRecordData data : mOpenIntervals) {
-            if (data.getStartTime() < earliestInterval.getStartTime()) {
+        AggregationRecordData earliestInterval = null;
+        for (int i = 0; i < mOpenIntervals.size(); i++) {
+            AggregationRecordData data = mOpenIntervals.get(i);
+            // On equal start times, prefer the interval with the lowest priority.
+            if (earliestInterval == null
+                    || data.getStartTime() < earliestInterval.getStartTime()
+                    || (data.getStartTime() == earliestInterval.getStartTime()
+                            && data.compareTo(earliestInterval) < 0)) {
                 earliestInterval = data;
             }
         }
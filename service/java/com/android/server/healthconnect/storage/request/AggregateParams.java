@@ -46,6 +46,9 @@ public class AggregateParams {
 
     private String mTimeOffsetColumnName;
 
+    // Column holding packed series samples, null if samples are only stored as separate rows.
+    private String mPackedSamplesColumnName;
+
     private PriorityAggregationExtraParams mPriorityAggregationExtraParams;
 
     public AggregateParams(String tableName, List<String> columnsToFetch, String timeColumnName) {
@@ -100,12 +103,25 @@ public class AggregateParams {
         return mTimeOffsetColumnName;
     }
 
+    public String getPackedSamplesColumnName() {
+        return mPackedSamplesColumnName;
+    }
+
     /** Sets join type. */
     public AggregateParams setJoin(SqlJoin join) {
         mJoin = join;
         return this;
     }
 
+    /**
+     * Sets the column holding packed series samples. Rows with this column set are aggregated by
+     * decoding the samples, other rows by their value column.
+     */
+    public AggregateParams setPackedSamplesColumnName(String packedSamplesColumnName) {
+        mPackedSamplesColumnName = packedSamplesColumnName;
+        return this;
+    }
+
     public AggregateParams setTimeColumnName(String columnName) {
         mTimeColumnName = columnName;
         return this;
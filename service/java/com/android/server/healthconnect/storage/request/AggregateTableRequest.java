@@ -26,6 +26,7 @@ import static com.android.server.healthconnect.storage.datatypehelpers.RecordHel
 
 import android.annotation.NonNull;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.health.connect.AggregateResult;
 import android.health.connect.Constants;
 import android.health.connect.LocalTimeRangeFilter;
@@ -37,10 +38,12 @@ import android.util.Pair;
 import android.util.Slog;
 
 import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.aggregation.PriorityRecordsAggregator;
 import com.android.server.healthconnect.storage.utils.OrderByClause;
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
 import com.android.server.healthconnect.storage.utils.SqlJoin;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
@@ -48,7 +51,9 @@ import com.android.server.healthconnect.storage.utils.WhereClauses;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.Period;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -72,6 +77,8 @@ public class AggregateTableRequest {
     // null for other records.
     private final String mEndTimeColumnName;
     private final SqlJoin mSqlJoin;
+    private final String mPackedSamplesColumnName;
+    private final String mTimeOffsetColumnName;
     private List<Long> mPackageFilters;
     private long mStartTime = DEFAULT_TIME;
     private long mEndTime = DEFAULT_TIME;
@@ -82,6 +89,9 @@ public class AggregateTableRequest {
     private final AggregateParams.PriorityAggregationExtraParams mPriorityParams;
     private final boolean mUseLocalTime;
     private List<Long> mTimeSplits;
+    // Length of every group but the last one, which may be cut at the end of the time range. Only
+    // set when grouping by duration.
+    private long mGroupByDurationMillis;
 
     public AggregateTableRequest(
             AggregateParams params,
@@ -96,8 +106,10 @@ public class AggregateTableRequest {
         mSqlJoin = params.getJoin();
         mPriorityParams = params.getPriorityAggregationExtraParams();
         mEndTimeColumnName = params.getExtraTimeColumnName();
+        mPackedSamplesColumnName = params.getPackedSamplesColumnName();
+        mTimeOffsetColumnName = params.getTimeOffsetColumnName();
         mAdditionalColumnsToFetch = new ArrayList<>();
-        mAdditionalColumnsToFetch.add(params.getTimeOffsetColumnName());
+        mAdditionalColumnsToFetch.add(mTimeOffsetColumnName);
         mAdditionalColumnsToFetch.add(mTimeColumnName);
         if (mEndTimeColumnName != null) {
             mAdditionalColumnsToFetch.add(mEndTimeColumnName);
@@ -133,11 +145,15 @@ public class AggregateTableRequest {
         return aggregateResults;
     }
 
-    /** Returns SQL statement to get data origins for the aggregation operation */
-    public String getCommandToFetchAggregateMetadata() {
+    /**
+     * Returns SQL statement to get data origins for the aggregation operation. Its values are
+     * appended to {@code bindArgs}, see {@link WhereClauses#get(boolean, List)}.
+     */
+    public String getCommandToFetchAggregateMetadata(@NonNull List<Object> bindArgs) {
         final StringBuilder builder = new StringBuilder("SELECT DISTINCT ");
         builder.append(APP_INFO_ID_COLUMN_NAME).append(", ");
-        return appendAggregateCommand(builder, /* isMetadata= */ true);
+        return appendAggregateCommand(
+                builder, /* isMetadata= */ true, /* aggregateInSql= */ false, bindArgs);
     }
 
     /** Returns name of the main time column (start time for Interval, time for Instant records) */
@@ -150,9 +166,12 @@ public class AggregateTableRequest {
         return mUseLocalTime;
     }
 
-    /** Returns SQL statement to perform aggregation operation */
+    /**
+     * Returns SQL statement to perform aggregation operation. Its values are appended to {@code
+     * bindArgs}, see {@link WhereClauses#get(boolean, List)}.
+     */
     @NonNull
-    public String getAggregationCommand() {
+    public String getAggregationCommand(@NonNull List<Object> bindArgs) {
         final StringBuilder builder = new StringBuilder("SELECT ");
         String aggCommand;
         boolean usingPriority =
@@ -160,10 +179,13 @@ public class AggregateTableRequest {
                                 mRecordHelper.getRecordIdentifier(),
                                 mAggregationType.getAggregateOperationType())
                         || StorageUtils.isDerivedType(mRecordHelper.getRecordIdentifier());
-        if (usingPriority) {
+        if (usingPriority || mPackedSamplesColumnName != null) {
             for (String columnName : mColumnNamesToAggregate) {
                 builder.append(columnName).append(", ");
             }
+            if (mPackedSamplesColumnName != null) {
+                builder.append(mPackedSamplesColumnName).append(", ");
+            }
         } else {
             aggCommand = getSqlCommandFor(mAggregationType.getAggregateOperationType());
 
@@ -184,7 +206,212 @@ public class AggregateTableRequest {
             }
         }
 
-        return appendAggregateCommand(builder, usingPriority);
+        return appendAggregateCommand(
+                builder, usingPriority, mPackedSamplesColumnName == null, bindArgs);
+    }
+
+    /**
+     * Returns whether this request can be answered from the {@link AggregateRollupHelper} rollups,
+     * i.e. it is aggregated in SQL over a rolled up column and all its group boundaries are
+     * aligned to rollup buckets.
+     */
+    public boolean canUseRollups() {
+        if (mTimeSplits == null
+                || mSqlJoin != null
+                || mPackedSamplesColumnName != null
+                || mColumnNamesToAggregate.size() != 1
+                || StorageUtils.isDerivedType(mRecordHelper.getRecordIdentifier())
+                || StorageUtils.supportsPriority(
+                        mRecordHelper.getRecordIdentifier(),
+                        mAggregationType.getAggregateOperationType())) {
+            return false;
+        }
+
+        for (long split : mTimeSplits) {
+            if (split < 0 || split % AggregateRollupHelper.BUCKET_DURATION_MILLIS != 0) {
+                return false;
+            }
+        }
+
+        return AggregateRollupHelper.getInstance()
+                .hasRollupsFor(mRecordHelper.getRecordIdentifier(), mColumnNamesToAggregate.get(0));
+    }
+
+    /**
+     * Returns SQL statement finding rollups which can't answer this request exactly, or null if
+     * there are none to look for. These are rollups of records which start before the time range
+     * of this request but end within it, which are matched by the raw aggregation but not by the
+     * rollups of the time range, and for minimums and maximums, stale rollups of the time range.
+     */
+    public String getCommandToFindInexactRollups(@NonNull List<Object> bindArgs) {
+        List<String> commands = new ArrayList<>(2);
+        if (mEndTimeColumnName != null) {
+            commands.add(
+                    getSelectRollupBucketCommand(
+                            getRollupWhereClauses()
+                                    .addWhereLessThanClause(
+                                            AggregateRollupHelper.BUCKET_START_COLUMN_NAME,
+                                            mTimeSplits.get(0))
+                                    .addWhereGreaterThanOrEqualClause(
+                                            AggregateRollupHelper.MAX_END_TIME_COLUMN_NAME,
+                                            mTimeSplits.get(0)),
+                            bindArgs));
+        }
+        int operationType = mAggregationType.getAggregateOperationType();
+        if (operationType == MIN || operationType == MAX) {
+            commands.add(
+                    getSelectRollupBucketCommand(
+                            getRollupRangeWhereClauses()
+                                    .addWhereGreaterThanClause(
+                                            AggregateRollupHelper.STALE_COLUMN_NAME, 0),
+                            bindArgs));
+        }
+        if (commands.isEmpty()) {
+            return null;
+        }
+
+        return String.join(" UNION ALL ", commands) + " LIMIT 1";
+    }
+
+    /** Returns SQL statement to read the rollups covering this request. */
+    public String getRollupAggregationCommand(@NonNull List<Object> bindArgs) {
+        return "SELECT "
+                + String.join(
+                        ", ",
+                        AggregateRollupHelper.BUCKET_START_COLUMN_NAME,
+                        AggregateRollupHelper.VALUE_SUM_COLUMN_NAME,
+                        AggregateRollupHelper.VALUE_MIN_COLUMN_NAME,
+                        AggregateRollupHelper.VALUE_MAX_COLUMN_NAME,
+                        AggregateRollupHelper.VALUE_COUNT_COLUMN_NAME,
+                        AggregateRollupHelper.ZONE_OFFSET_COLUMN_NAME)
+                + " FROM "
+                + AggregateRollupHelper.TABLE_NAME
+                + getRollupRangeWhereClauses().get(/* withWhereKeyword= */ true, bindArgs)
+                + " ORDER BY "
+                + AggregateRollupHelper.BUCKET_START_COLUMN_NAME;
+    }
+
+    /** Returns SQL statement to get data origins from the rollups covering this request. */
+    public String getCommandToFetchRollupMetadata(@NonNull List<Object> bindArgs) {
+        return "SELECT DISTINCT "
+                + APP_INFO_ID_COLUMN_NAME
+                + " FROM "
+                + AggregateRollupHelper.TABLE_NAME
+                + getRollupRangeWhereClauses().get(/* withWhereKeyword= */ true, bindArgs);
+    }
+
+    /**
+     * Populates the results from the rollups read by {@link #getRollupAggregationCommand}. The
+     * rollups are merged per group and passed to the record helper in the same shape as the
+     * results of the SQL aggregation.
+     */
+    public void onRollupResultsFetched(Cursor cursor, Cursor metaDataCursor) {
+        final String valueColumnName = mColumnNamesToAggregate.get(0);
+        final double[] sum = new double[mGroupBySize];
+        final double[] min = new double[mGroupBySize];
+        final double[] max = new double[mGroupBySize];
+        final long[] valueCount = new long[mGroupBySize];
+        final boolean[] hasRows = new boolean[mGroupBySize];
+        final Integer[] zoneOffsets = new Integer[mGroupBySize];
+
+        while (cursor.moveToNext()) {
+            long bucketStart = cursor.getLong(0);
+            int group = Collections.binarySearch(mTimeSplits, bucketStart);
+            // Buckets are aligned to the splits, so a bucket not on a split is within the group of
+            // the split before it.
+            group = group >= 0 ? group : -group - 2;
+            if (group < 0 || group >= mGroupBySize) {
+                continue;
+            }
+
+            if (!hasRows[group]) {
+                hasRows[group] = true;
+                zoneOffsets[group] = cursor.isNull(5) ? null : cursor.getInt(5);
+            }
+            long bucketValueCount = cursor.getLong(4);
+            if (bucketValueCount == 0) {
+                continue;
+            }
+
+            double bucketMin = cursor.getDouble(2);
+            double bucketMax = cursor.getDouble(3);
+            if (valueCount[group] == 0) {
+                min[group] = bucketMin;
+                max[group] = bucketMax;
+            } else {
+                min[group] = Math.min(min[group], bucketMin);
+                max[group] = Math.max(max[group], bucketMax);
+            }
+            sum[group] += cursor.getDouble(1);
+            valueCount[group] += bucketValueCount;
+        }
+
+        MatrixCursor results =
+                new MatrixCursor(
+                        new String[] {
+                            valueColumnName, mTimeOffsetColumnName, GROUP_BY_COLUMN_NAME
+                        });
+        for (int group = 0; group < mGroupBySize; group++) {
+            if (!hasRows[group]) {
+                continue;
+            }
+
+            Object value = null;
+            if (valueCount[group] > 0) {
+                value =
+                        switch (mAggregationType.getAggregateOperationType()) {
+                            case MIN -> min[group];
+                            case MAX -> max[group];
+                            case AVG -> sum[group] / valueCount[group];
+                            case SUM -> sum[group];
+                            case COUNT -> valueCount[group];
+                            default -> null;
+                        };
+            } else if (mAggregationType.getAggregateOperationType() == COUNT) {
+                value = 0L;
+            }
+            results.addRow(new Object[] {value, zoneOffsets[group], group});
+        }
+
+        try (results) {
+            processNoPrioritiesRequest(results);
+        }
+        updateResultWithDataOriginPackageNames(metaDataCursor);
+    }
+
+    private static String getSelectRollupBucketCommand(
+            WhereClauses whereClauses, List<Object> bindArgs) {
+        return "SELECT "
+                + AggregateRollupHelper.BUCKET_START_COLUMN_NAME
+                + " FROM "
+                + AggregateRollupHelper.TABLE_NAME
+                + whereClauses.get(/* withWhereKeyword= */ true, bindArgs);
+    }
+
+    private WhereClauses getRollupWhereClauses() {
+        return new WhereClauses()
+                .addWhereInIntsClause(
+                        AggregateRollupHelper.RECORD_TYPE_COLUMN_NAME,
+                        List.of(mRecordHelper.getRecordIdentifier()))
+                .addWhereEqualsClause(
+                        AggregateRollupHelper.VALUE_COLUMN_COLUMN_NAME,
+                        mColumnNamesToAggregate.get(0))
+                .addWhereInIntsClause(
+                        AggregateRollupHelper.TIME_BASIS_COLUMN_NAME,
+                        List.of(
+                                mUseLocalTime
+                                        ? AggregateRollupHelper.TIME_BASIS_LOCAL
+                                        : AggregateRollupHelper.TIME_BASIS_PHYSICAL))
+                .addWhereInLongsClause(APP_INFO_ID_COLUMN_NAME, mPackageFilters);
+    }
+
+    private WhereClauses getRollupRangeWhereClauses() {
+        return getRollupWhereClauses()
+                .addWhereGreaterThanOrEqualClause(
+                        AggregateRollupHelper.BUCKET_START_COLUMN_NAME, mTimeSplits.get(0))
+                .addWhereLessThanClause(
+                        AggregateRollupHelper.BUCKET_START_COLUMN_NAME,
+                        mTimeSplits.get(mTimeSplits.size() - 1));
     }
 
     public AggregateTableRequest setPackageFilter(
@@ -216,6 +443,7 @@ public class AggregateTableRequest {
             mTimeSplits = getGroupSplitsForPeriod(timeRangeFilter, period);
         } else if (duration != null) {
             mTimeSplits = getGroupSplitsForDuration(timeRangeFilter, duration);
+            mGroupByDurationMillis = duration.toMillis();
         } else {
             throw new IllegalArgumentException(
                     "Either aggregation period or duration should be not null");
@@ -239,6 +467,8 @@ public class AggregateTableRequest {
                 mRecordHelper.getRecordIdentifier(),
                 mAggregationType.getAggregateOperationType())) {
             processPriorityRequest(cursor);
+        } else if (mPackedSamplesColumnName != null) {
+            processPackedSamplesRequest(cursor);
         } else {
             processNoPrioritiesRequest(cursor);
         }
@@ -288,6 +518,81 @@ public class AggregateTableRequest {
         }
     }
 
+    /**
+     * Aggregates rows of series records, which either hold a single sample value or all the samples
+     * of a record packed by {@link SeriesSamplesCodec}. As with the SQL aggregation, samples are
+     * grouped by the time of their record.
+     */
+    private void processPackedSamplesRequest(Cursor cursor) {
+        final String valueColumnName = mColumnNamesToAggregate.get(0);
+        final int valueIndex = cursor.getColumnIndex(valueColumnName);
+        final int packedSamplesIndex = cursor.getColumnIndex(mPackedSamplesColumnName);
+        final int groupIndex = cursor.getColumnIndex(GROUP_BY_COLUMN_NAME);
+        final double[] min = new double[mGroupBySize];
+        final double[] max = new double[mGroupBySize];
+        final double[] sum = new double[mGroupBySize];
+        final long[] count = new long[mGroupBySize];
+        final ZoneOffset[] zoneOffsets = new ZoneOffset[mGroupBySize];
+
+        while (cursor.moveToNext()) {
+            int group = groupIndex == -1 ? 0 : cursor.getInt(groupIndex);
+            if ((groupIndex != -1 && cursor.isNull(groupIndex)) || group >= mGroupBySize) {
+                continue;
+            }
+
+            long samplesBefore = count[group];
+            if (!cursor.isNull(packedSamplesIndex)) {
+                SeriesSamplesCodec.Decoder decoder =
+                        new SeriesSamplesCodec.Decoder(cursor.getBlob(packedSamplesIndex));
+                while (decoder.moveToNext()) {
+                    accumulate(group, decoder.getDoubleValue(), min, max, sum, count);
+                }
+            } else if (!cursor.isNull(valueIndex)) {
+                accumulate(group, cursor.getDouble(valueIndex), min, max, sum, count);
+            }
+
+            if (samplesBefore == 0 && count[group] > 0) {
+                zoneOffsets[group] = StorageUtils.getZoneOffset(cursor, mTimeOffsetColumnName);
+            }
+        }
+
+        for (int group = 0; group < mGroupBySize; group++) {
+            if (count[group] == 0) {
+                continue;
+            }
+
+            double value =
+                    switch (mAggregationType.getAggregateOperationType()) {
+                        case MIN -> min[group];
+                        case MAX -> max[group];
+                        case AVG -> sum[group] / count[group];
+                        case SUM -> sum[group];
+                        case COUNT -> count[group];
+                        default -> throw new IllegalArgumentException(
+                                "Unsupported aggregation: "
+                                        + mAggregationType.getAggregateOperationType());
+                    };
+            AggregateResult<?> result =
+                    mAggregationType.getAggregateResultClass() == Long.class
+                            ? new AggregateResult<>((long) value)
+                            : new AggregateResult<>(value);
+            mAggregateResults.put(group, result.setZoneOffset(zoneOffsets[group]));
+        }
+    }
+
+    private static void accumulate(
+            int group, double value, double[] min, double[] max, double[] sum, long[] count) {
+        if (count[group] == 0) {
+            min[group] = value;
+            max[group] = value;
+        } else {
+            min[group] = Math.min(min[group], value);
+            max[group] = Math.max(max[group], value);
+        }
+        sum[group] += value;
+        count[group]++;
+    }
+
     private static String getSqlCommandFor(@AggregationType.AggregateOperationType int type) {
         return switch (type) {
             case MAX -> "MAX";
@@ -299,22 +604,38 @@ public class AggregateTableRequest {
         };
     }
 
-    private String appendAggregateCommand(StringBuilder builder, boolean isMetadata) {
+    private String appendAggregateCommand(
+            StringBuilder builder,
+            boolean isMetadata,
+            boolean aggregateInSql,
+            List<Object> bindArgs) {
         boolean useGroupBy = mGroupByColumnName != null && !isMetadata;
-        if (useGroupBy) {
+        if (useGroupBy && mGroupByDurationMillis > 0) {
+            // Groups have a fixed length, hence the group of a row can be computed directly
+            // instead of testing every group in turn.
+            builder.append(" CASE WHEN ")
+                    .append(mTimeColumnName)
+                    .append(" >= ? AND ")
+                    .append(mTimeColumnName)
+                    .append(" < ? THEN (")
+                    .append(mTimeColumnName)
+                    .append(" - ?) / ? END " + GROUP_BY_COLUMN_NAME + " ");
+            bindArgs.add(mTimeSplits.get(0));
+            bindArgs.add(mTimeSplits.get(mTimeSplits.size() - 1));
+            bindArgs.add(mTimeSplits.get(0));
+            bindArgs.add(mGroupByDurationMillis);
+        } else if (useGroupBy) {
             builder.append(" CASE ");
             int groupByIndex = 0;
             for (int i = 0; i < mTimeSplits.size() - 1; i++) {
                 builder.append(" WHEN ")
                         .append(mTimeColumnName)
-                        .append(" >= ")
-                        .append(mTimeSplits.get(i))
-                        .append(" AND ")
+                        .append(" >= ? AND ")
                         .append(mTimeColumnName)
-                        .append(" < ")
-                        .append(mTimeSplits.get(i + 1))
-                        .append(" THEN ")
+                        .append(" < ? THEN ")
                         .append(groupByIndex++);
+                bindArgs.add(mTimeSplits.get(i));
+                bindArgs.add(mTimeSplits.get(i + 1));
             }
             builder.append(" END " + GROUP_BY_COLUMN_NAME + " ");
         } else {
@@ -326,9 +647,9 @@ public class AggregateTableRequest {
             builder.append(mSqlJoin.getJoinCommand());
         }
 
-        builder.append(buildAggregationWhereCondition());
+        builder.append(buildAggregationWhereCondition(bindArgs));
 
-        if (useGroupBy) {
+        if (useGroupBy && aggregateInSql) {
             builder.append(" GROUP BY " + GROUP_BY_COLUMN_NAME);
         }
 
@@ -343,7 +664,7 @@ public class AggregateTableRequest {
         return builder.toString();
     }
 
-    private String buildAggregationWhereCondition() {
+    private String buildAggregationWhereCondition(List<Object> bindArgs) {
         WhereClauses whereClauses = new WhereClauses();
         whereClauses.addWhereInLongsClause(mPackageColumnName, mPackageFilters);
 
@@ -356,7 +677,7 @@ public class AggregateTableRequest {
         }
         whereClauses.addWhereLessThanClause(mTimeColumnName, mEndTime);
 
-        return whereClauses.get(/* withWhereKeyword= */ true);
+        return whereClauses.get(/* withWhereKeyword= */ true, bindArgs);
     }
 
     private void updateResultWithDataOriginPackageNames(Cursor metaDataCursor) {
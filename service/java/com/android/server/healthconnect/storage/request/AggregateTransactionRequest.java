@@ -27,6 +27,7 @@ import android.health.connect.datatypes.AggregationType;
 import android.health.connect.internal.datatypes.utils.AggregationTypeIdMapper;
 import android.util.ArrayMap;
 
+import com.android.server.healthconnect.HealthConnectThreadScheduler;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
@@ -37,6 +38,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
 
 /**
  * Refines aggregate request from what the client sent to a format that makes the most sense for the
@@ -99,11 +101,20 @@ public final class AggregateTransactionRequest {
      * @return Compute and return aggregations
      */
     public AggregateDataResponseParcel getAggregateDataResponseParcel() {
+        // Compute aggregations, they are independent from each other so run them in parallel
+        final TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
+        List<Callable<Void>> aggregationTasks = new ArrayList<>(mAggregateTableRequests.size());
+        for (AggregateTableRequest aggregateTableRequest : mAggregateTableRequests) {
+            aggregationTasks.add(
+                    () -> {
+                        transactionManager.populateWithAggregation(aggregateTableRequest);
+                        return null;
+                    });
+        }
+        HealthConnectThreadScheduler.runAggregationTasks(aggregationTasks);
+
         Map<AggregationType<?>, List<AggregateResult<?>>> results = new ArrayMap<>();
         for (AggregateTableRequest aggregateTableRequest : mAggregateTableRequests) {
-            // Compute aggregations
-            TransactionManager.getInitialisedInstance()
-                    .populateWithAggregation(aggregateTableRequest);
             results.put(
                     aggregateTableRequest.getAggregationType(),
                     aggregateTableRequest.getAggregateResults());
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.request;
+
+import android.annotation.NonNull;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Rows of a child table whose values are bound straight from their source into one compiled INSERT
+ * statement, e.g. the samples of a series record from its primitive arrays, rather than from a
+ * {@link UpsertTableRequest} and {@link android.content.ContentValues} per row.
+ *
+ * @hide
+ */
+public final class ChildTableRowsRequest {
+    /** Binds the values of the rows of a {@link ChildTableRowsRequest}. */
+    public interface RowBinder {
+        /**
+         * Binds the values of row {@code row} to {@code statement}, in the order of the columns of
+         * the request, starting at bind index {@code firstIndex}.
+         */
+        void bindRow(@NonNull SQLiteStatement statement, int row, int firstIndex);
+    }
+
+    private final String mTable;
+    private final String mParentColumn;
+    private final List<String> mColumns;
+    private final int mRowCount;
+    private final RowBinder mRowBinder;
+
+    public ChildTableRowsRequest(
+            @NonNull String table,
+            @NonNull String parentColumn,
+            @NonNull List<String> columns,
+            int rowCount,
+            @NonNull RowBinder rowBinder) {
+        Objects.requireNonNull(table);
+        Objects.requireNonNull(parentColumn);
+        Objects.requireNonNull(columns);
+        Objects.requireNonNull(rowBinder);
+
+        mTable = table;
+        mParentColumn = parentColumn;
+        mColumns = columns;
+        mRowCount = rowCount;
+        mRowBinder = rowBinder;
+    }
+
+    @NonNull
+    public String getTable() {
+        return mTable;
+    }
+
+    /** Returns the INSERT command of a row, with the parent key bound first. */
+    @NonNull
+    public String getInsertCommand() {
+        StringBuilder command = new StringBuilder("INSERT INTO ");
+        command.append(mTable).append(" (").append(mParentColumn);
+        for (String column : mColumns) {
+            command.append(',').append(column);
+        }
+        command.append(") VALUES (?");
+        for (int i = 0; i < mColumns.size(); i++) {
+            command.append(",?");
+        }
+        return command.append(')').toString();
+    }
+
+    /**
+     * Inserts all the rows with {@code parentRowId} as their parent key, using {@code statement}
+     * compiled from {@link #getInsertCommand()}.
+     */
+    public void insert(@NonNull SQLiteStatement statement, long parentRowId) {
+        for (int row = 0; row < mRowCount; row++) {
+            // Bind indexes are 1-based
+            statement.bindLong(1, parentRowId);
+            mRowBinder.bindRow(statement, row, 2);
+            statement.executeInsert();
+        }
+    }
+}
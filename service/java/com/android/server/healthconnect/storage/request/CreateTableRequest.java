@@ -39,12 +39,12 @@ import java.util.Objects;
 public final class CreateTableRequest {
     public static final String TAG = "HealthConnectCreate";
     public static final String FOREIGN_KEY_COMMAND = " FOREIGN KEY (";
-    private static final String CREATE_INDEX_COMMAND = "CREATE INDEX  idx_";
+    private static final String CREATE_INDEX_COMMAND = "CREATE INDEX IF NOT EXISTS idx_";
     private static final String CREATE_TABLE_COMMAND = "CREATE TABLE IF NOT EXISTS ";
     private static final String UNIQUE_COMMAND = "UNIQUE ( ";
     private final String mTableName;
     private final List<Pair<String, String>> mColumnInfo;
-    private final List<String> mColumnsToIndex = new ArrayList<>();
+    private final List<List<String>> mColumnsToIndex = new ArrayList<>();
     private final List<List<String>> mUniqueColumns = new ArrayList<>();
     private List<ForeignKey> mForeignKeys = new ArrayList<>();
     private List<CreateTableRequest> mChildTableRequests = Collections.emptyList();
@@ -72,7 +72,22 @@ public final class CreateTableRequest {
     public CreateTableRequest createIndexOn(@NonNull String columnName) {
         Objects.requireNonNull(columnName);
 
-        mColumnsToIndex.add(columnName);
+        mColumnsToIndex.add(Collections.singletonList(columnName));
+        return this;
+    }
+
+    /**
+     * Creates a composite index on the given columns, in the given order. The index can serve any
+     * query filtering on a prefix of the columns, with a range allowed on the last one used.
+     */
+    @NonNull
+    public CreateTableRequest createIndexOn(@NonNull List<String> columnNames) {
+        Objects.requireNonNull(columnNames);
+        if (columnNames.isEmpty()) {
+            throw new IllegalArgumentException("Index must have at least one column");
+        }
+
+        mColumnsToIndex.add(columnNames);
         return this;
     }
 
@@ -154,8 +169,8 @@ public final class CreateTableRequest {
         }
 
         if (!mColumnsToIndex.isEmpty()) {
-            for (String columnToIndex : mColumnsToIndex) {
-                result.add(getCreateIndexCommand(columnToIndex));
+            for (List<String> columnsToIndex : mColumnsToIndex) {
+                result.add(getCreateIndexCommand(columnsToIndex));
             }
         }
 
@@ -183,18 +198,9 @@ public final class CreateTableRequest {
                 + ")";
     }
 
-    private String getCreateIndexCommand(String columnName) {
-        Objects.requireNonNull(columnName);
-
-        return CREATE_INDEX_COMMAND
-                + mTableName
-                + "_"
-                + columnName
-                + " ON "
-                + mTableName
-                + "("
-                + columnName
-                + ")";
+    private String getCreateIndexCommand(List<String> columnNames) {
+        return getCreateIndexCommand(
+                mTableName + "_" + String.join("_", columnNames), columnNames);
     }
 
     public static final class GeneratedColumnInfo {
@@ -19,6 +19,8 @@ package com.android.server.healthconnect.storage.request;
 import static android.health.connect.Constants.DEFAULT_LONG;
 import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_UNKNOWN;
 
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
+
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.health.connect.Constants;
@@ -31,6 +33,7 @@ import com.android.server.healthconnect.storage.utils.WhereClauses;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.UUID;
 
 /**
  * No need to have delete-requests for child tables as ideally they should be following cascaded
@@ -53,6 +56,7 @@ public class DeleteTableRequest {
     private long mEndTime = DEFAULT_LONG;
     private boolean mRequiresUuId;
     private List<String> mIds;
+    private List<UUID> mUuids;
     private boolean mEnforcePackageCheck;
     private int mNumberOfUuidsToDelete;
     private WhereClauses mCustomWhereClauses;
@@ -98,6 +102,16 @@ public class DeleteTableRequest {
         return this;
     }
 
+    /** Sets the uuids to delete, stored as blobs in {@code uuidColumnName}. */
+    public DeleteTableRequest setUuids(@NonNull String uuidColumnName, @NonNull List<UUID> uuids) {
+        Objects.requireNonNull(uuids);
+        Objects.requireNonNull(uuidColumnName);
+
+        mUuids = uuids;
+        mIdColumnName = uuidColumnName;
+        return this;
+    }
+
     public DeleteTableRequest setId(@NonNull String idColumnName, @NonNull String id) {
         Objects.requireNonNull(id);
         Objects.requireNonNull(idColumnName);
@@ -107,6 +121,14 @@ public class DeleteTableRequest {
         return this;
     }
 
+    /** Sets the where clauses selecting the rows to delete, along with the other filters. */
+    public DeleteTableRequest setWhereClauses(@NonNull WhereClauses whereClauses) {
+        Objects.requireNonNull(whereClauses);
+
+        mCustomWhereClauses = whereClauses;
+        return this;
+    }
+
     public boolean requiresRead() {
         return mRequiresUuId || mEnforcePackageCheck;
     }
@@ -148,22 +170,62 @@ public class DeleteTableRequest {
         return "DELETE FROM " + mTableName + getWhereCommand();
     }
 
-    public String getReadCommand() {
-        return "SELECT "
-                + mIdColumnName
-                + ", "
-                + mPackageColumnName
+    /**
+     * Returns the delete statement with {@code ?} placeholders in place of the values, which are
+     * appended to {@code bindArgs} in order.
+     */
+    @NonNull
+    public String getDeleteCommand(@NonNull List<Object> bindArgs) {
+        return "DELETE FROM " + mTableName + buildWhereCommand(bindArgs);
+    }
+
+    /**
+     * Same as {@link #getDeleteCommand(List)}, but deletes at most {@code limit} of the rows, so
+     * that large deletes can be split in several statements.
+     */
+    @NonNull
+    public String getDeleteCommand(@NonNull List<Object> bindArgs, int limit) {
+        return "DELETE FROM "
+                + mTableName
+                + " WHERE "
+                + PRIMARY_COLUMN_NAME
+                + " IN (SELECT "
+                + PRIMARY_COLUMN_NAME
                 + " FROM "
                 + mTableName
-                + getWhereCommand();
+                + buildWhereCommand(bindArgs)
+                + " LIMIT "
+                + limit
+                + ")";
+    }
+
+    public String getReadCommand() {
+        return getReadCommandPrefix() + getWhereCommand();
+    }
+
+    /**
+     * Returns the statement reading the ids and packages of the records to delete, with {@code ?}
+     * placeholders in place of the values, which are appended to {@code bindArgs} in order.
+     */
+    public String getReadCommand(@NonNull List<Object> bindArgs) {
+        return getReadCommandPrefix() + buildWhereCommand(bindArgs);
     }
 
     public String getWhereCommand() {
+        return buildWhereCommand(/* bindArgs= */ null);
+    }
+
+    private String getReadCommandPrefix() {
+        return "SELECT " + mIdColumnName + ", " + mPackageColumnName + " FROM " + mTableName;
+    }
+
+    private String buildWhereCommand(@Nullable List<Object> bindArgs) {
         WhereClauses whereClauses =
                 Objects.isNull(mCustomWhereClauses) ? new WhereClauses() : mCustomWhereClauses;
         whereClauses.addWhereInLongsClause(mPackageColumnName, mPackageFilters);
         whereClauses.addWhereBetweenTimeClause(mTimeColumnName, mStartTime, mEndTime);
         whereClauses.addWhereInClauseWithoutQuotes(mIdColumnName, mIds);
+        whereClauses.addWhereInUuidsClause(mIdColumnName, mUuids);
 
         if (Constants.DEBUG) {
             Slog.d(
@@ -174,7 +236,7 @@ public class DeleteTableRequest {
                             + whereClauses.get(true));
         }
 
-        return whereClauses.get(true);
+        return bindArgs == null ? whereClauses.get(true) : whereClauses.get(true, bindArgs);
     }
 
     @NonNull
@@ -212,6 +274,6 @@ public class DeleteTableRequest {
         if (requiresRead()) {
             return mNumberOfUuidsToDelete;
         }
-        return mIds.size();
+        return mUuids != null ? mUuids.size() : mIds.size();
     }
 }
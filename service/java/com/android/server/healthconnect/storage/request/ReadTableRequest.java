@@ -54,6 +54,7 @@ public class ReadTableRequest {
     private OrderByClause mOrderByClause = new OrderByClause();
     private String mLimitClause = "";
     private int mPageSize = DEFAULT_PAGE_SIZE;
+    private boolean mIsAscending = true;
     private List<ReadTableRequest> mExtraReadRequests;
     private List<ReadTableRequest> mUnionReadRequests;
 
@@ -106,6 +107,20 @@ public class ReadTableRequest {
     /** Returns SQL statement to perform read operation. */
     @NonNull
     public String getReadCommand() {
+        return buildReadCommand(/* bindArgs= */ null);
+    }
+
+    /**
+     * Returns SQL statement to perform read operation, with {@code ?} placeholders in place of the
+     * values of its where clauses. The values are appended to {@code bindArgs} in order.
+     */
+    @NonNull
+    public String getReadCommand(@NonNull List<Object> bindArgs) {
+        Objects.requireNonNull(bindArgs);
+        return buildReadCommand(bindArgs);
+    }
+
+    private String buildReadCommand(@Nullable List<Object> bindArgs) {
         StringBuilder builder = new StringBuilder("SELECT ");
         if (mDistinct) {
             builder.append("DISTINCT ");
@@ -116,13 +131,21 @@ public class ReadTableRequest {
         builder.append(" FROM ");
         builder.append(mTableName);
 
-        builder.append(mWhereClauses.get(/* withWhereKeyword */ true));
+        // The union requests come first in the statement, so are bound first.
+        List<Object> readBindArgs = bindArgs == null ? null : new ArrayList<>();
+        builder.append(
+                bindArgs == null
+                        ? mWhereClauses.get(/* withWhereKeyword */ true)
+                        : mWhereClauses.get(/* withWhereKeyword */ true, readBindArgs));
         builder.append(mOrderByClause.getOrderBy());
         builder.append(mLimitClause);
 
         String readQuery = builder.toString();
         if (mJoinClause != null) {
-            readQuery = mJoinClause.getJoinWithQueryCommand(readQuery);
+            // The limit applies to the rows of this table, in the inner query. The join then needs
+            // the same order, so that the rows of a record stay together and pages stay stable.
+            readQuery =
+                    mJoinClause.getJoinWithQueryCommand(readQuery) + mOrderByClause.getOrderBy();
         }
 
         if (Constants.DEBUG) {
@@ -133,16 +156,18 @@ public class ReadTableRequest {
             builder = new StringBuilder();
             for (ReadTableRequest unionReadRequest : mUnionReadRequests) {
                 builder.append("SELECT * FROM (");
-                builder.append(unionReadRequest.getReadCommand());
+                builder.append(unionReadRequest.buildReadCommand(bindArgs));
                 builder.append(")");
                 builder.append(UNION_ALL);
             }
 
             builder.append(readQuery);
-
-            return builder.toString();
+            readQuery = builder.toString();
         }
 
+        if (bindArgs != null) {
+            bindArgs.addAll(readBindArgs);
+        }
         return readQuery;
     }
 
@@ -186,6 +211,18 @@ public class ReadTableRequest {
         return mPageSize;
     }
 
+    /** Sets whether the records are sorted in ascending order, for the next page token. */
+    @NonNull
+    public ReadTableRequest setAscending(boolean isAscending) {
+        mIsAscending = isAscending;
+        return this;
+    }
+
+    /** Returns whether the records are sorted in ascending order */
+    public boolean isAscending() {
+        return mIsAscending;
+    }
+
     private String getColumnsToFetch() {
         if (mColumnNames == null || mColumnNames.isEmpty()) {
             return "*";
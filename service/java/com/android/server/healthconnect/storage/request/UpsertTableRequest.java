@@ -27,7 +27,6 @@ import android.util.ArrayMap;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
-import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.lang.annotation.ElementType;
@@ -48,6 +47,7 @@ public class UpsertTableRequest {
     private ContentValues mContentValues;
     private final List<Pair<String, Integer>> mUniqueColumns;
     private List<UpsertTableRequest> mChildTableRequests = Collections.emptyList();
+    private List<ChildTableRowsRequest> mChildTableRowsRequests = Collections.emptyList();
     private String mParentCol;
     private long mRowId = INVALID_ROW_ID;
     private WhereClauses mWhereClausesForUpdate;
@@ -132,6 +132,21 @@ public class UpsertTableRequest {
         return this;
     }
 
+    /** Returns the child table rows to insert with this request, after its child requests. */
+    @NonNull
+    public List<ChildTableRowsRequest> getChildTableRowsRequests() {
+        return mChildTableRowsRequests;
+    }
+
+    @NonNull
+    public UpsertTableRequest setChildTableRowsRequests(
+            @NonNull List<ChildTableRowsRequest> childTableRowsRequests) {
+        Objects.requireNonNull(childTableRowsRequests);
+
+        mChildTableRowsRequests = childTableRowsRequests;
+        return this;
+    }
+
     @NonNull
     public WhereClauses getUpdateWhereClauses() {
         if (mWhereClausesForUpdate == null) {
@@ -148,6 +163,29 @@ public class UpsertTableRequest {
         return this;
     }
 
+    /**
+     * Returns the statement updating the row matching the update where clauses with the content
+     * values, with {@code ?} placeholders in place of all the values. The content values, then the
+     * values of the where clauses, are appended to {@code bindArgs} in order.
+     */
+    @NonNull
+    public String getUpdateCommand(@NonNull List<Object> bindArgs) {
+        Objects.requireNonNull(bindArgs);
+        if (mContentValues.isEmpty()) {
+            throw new IllegalArgumentException("Empty values");
+        }
+
+        StringBuilder builder = new StringBuilder("UPDATE ").append(mTable).append(" SET ");
+        boolean first = true;
+        for (String column : mContentValues.keySet()) {
+            builder.append(first ? "" : ", ").append(column).append(" = ?");
+            bindArgs.add(mContentValues.get(column));
+            first = false;
+        }
+        builder.append(getUpdateWhereClauses().get(/* withWhereKeyword= */ true, bindArgs));
+        return builder.toString();
+    }
+
     public ReadTableRequest getReadRequest() {
         return new ReadTableRequest(getTable()).setWhereClause(getReadWhereClauses());
     }
@@ -163,10 +201,11 @@ public class UpsertTableRequest {
         for (Pair<String, Integer> uniqueColumn : mUniqueColumns) {
             switch (uniqueColumn.second) {
                  case TYPE_BLOB -> readWhereClause.addWhereEqualsClause(
-                        uniqueColumn.first, StorageUtils.getHexString(
-                                mContentValues.getAsByteArray(uniqueColumn.first)));
-                 case TYPE_STRING -> readWhereClause.addWhereEqualsClause(
-                         uniqueColumn.first, mContentValues.getAsString(uniqueColumn.first));
+                        uniqueColumn.first, mContentValues.getAsByteArray(uniqueColumn.first));
+                 case TYPE_STRING -> readWhereClause.addWhereInClause(
+                         uniqueColumn.first,
+                         Collections.singletonList(
+                                 mContentValues.getAsString(uniqueColumn.first)));
                 default -> throw new UnsupportedOperationException(
                         "Unable to find type: " + uniqueColumn.second);
             }
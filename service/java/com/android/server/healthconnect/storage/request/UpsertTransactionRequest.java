@@ -60,6 +60,7 @@ public class UpsertTransactionRequest {
     @NonNull private final List<UpsertTableRequest> mUpsertRequests = new ArrayList<>();
     @NonNull private final String mPackageName;
     private final List<UpsertTableRequest> mAccessLogs = new ArrayList<>();
+    private final ArrayMap<String, String> mPreferencesToCommit = new ArrayMap<>();
     private final boolean mSkipPackageNameAndLogs;
     @RecordTypeIdentifier.RecordType Set<Integer> mRecordTypes = new ArraySet<>();
 
@@ -170,6 +171,12 @@ public class UpsertTransactionRequest {
         return insertChangeLogs.getUpsertTableRequests();
     }
 
+    /** Returns the preferences that have to be committed together with the upsert requests. */
+    @NonNull
+    public Map<String, String> getPreferencesToCommit() {
+        return mPreferencesToCommit;
+    }
+
     @NonNull
     public List<UpsertTableRequest> getUpsertRequests() {
         return mUpsertRequests;
@@ -185,10 +192,10 @@ public class UpsertTransactionRequest {
     private WhereClauses generateWhereClausesForUpdate(@NonNull RecordInternal<?> recordInternal) {
         WhereClauses whereClauseForUpdateRequest = new WhereClauses();
         whereClauseForUpdateRequest.addWhereEqualsClause(
-                RecordHelper.UUID_COLUMN_NAME, StorageUtils.getHexString(recordInternal.getUuid()));
+                RecordHelper.UUID_COLUMN_NAME,
+                StorageUtils.convertUUIDToBytes(recordInternal.getUuid()));
         whereClauseForUpdateRequest.addWhereEqualsClause(
-                RecordHelper.APP_INFO_ID_COLUMN_NAME,
-                /* expected args value */ String.valueOf(recordInternal.getAppInfoId()));
+                RecordHelper.APP_INFO_ID_COLUMN_NAME, recordInternal.getAppInfoId());
         return whereClauseForUpdateRequest;
     }
 
@@ -205,5 +212,6 @@ public class UpsertTransactionRequest {
         }
         request.setRecordInternal(recordInternal);
         mUpsertRequests.add(request);
+        mPreferencesToCommit.putAll(recordHelper.getPreferencesToCommitWith(request));
     }
 }
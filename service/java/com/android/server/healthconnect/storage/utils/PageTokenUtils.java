@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+/**
+ * Encodes the page tokens of record reads.
+ *
+ * <p>Records are read in (start time, row id) order, and a token points right after the last
+ * record of its page. Tokens have bit 62 set, and hold the row id of that record, its start time
+ * in minutes, and the sort order in the lowest bit, even for ascending, as the client reads it.
+ * They are never negative, as clients may loop while the token isn't {@code -1} or while it is
+ * non-negative. The exact start time is read back from the row, among the rows the caller can
+ * read, the one in minutes is only used if the record isn't found, in which case the next page
+ * may repeat records of that minute.
+ *
+ * <p>Tokens without bit 62 are the start time of the first record of the next page, doubled to
+ * hold the sort order, as returned by older versions. They are still accepted.
+ *
+ * @hide
+ */
+public final class PageTokenUtils {
+    private static final long MILLIS_PER_MINUTE = 60_000;
+    private static final int MINUTES_BITS = 30;
+    private static final long MAX_MINUTES = (1L << MINUTES_BITS) - 1;
+    // Above the 31 bits of the row id, the 30 bits of the minutes and the sort order bit, and far
+    // above any doubled start time.
+    private static final long ROW_TOKEN_FLAG = 1L << 62;
+
+    private PageTokenUtils() {}
+
+    /**
+     * Returns the token of the page after the record {@code rowId}, which starts at {@code
+     * startTime}.
+     */
+    public static long encode(long startTime, int rowId, boolean isAscending) {
+        if (rowId < 0) {
+            throw new IllegalArgumentException("Invalid row id: " + rowId);
+        }
+
+        long minutes = Math.min(Math.max(startTime / MILLIS_PER_MINUTE, 0), MAX_MINUTES);
+        long value = ((long) rowId << (MINUTES_BITS + 1)) | (minutes << 1) | (isAscending ? 0 : 1);
+        return ROW_TOKEN_FLAG | value;
+    }
+
+    /** Returns whether {@code token} points after a row, rather than at a start time. */
+    public static boolean isRowToken(long token) {
+        return (token & ROW_TOKEN_FLAG) != 0 && token > 0;
+    }
+
+    /** Returns whether the records of {@code token} are sorted in ascending order. */
+    public static boolean isAscending(long token) {
+        return token % 2 == 0;
+    }
+
+    /** Returns the row id of the last record before the page of a row {@code token}. */
+    public static int getRowId(long token) {
+        return (int) (getValue(token) >>> (MINUTES_BITS + 1));
+    }
+
+    /**
+     * Returns the start time to use for a row {@code token} if its record isn't found among the
+     * rows the caller can read. It is rounded so that no record after it gets skipped.
+     */
+    public static long getFallbackStartTime(long token) {
+        long startTime = ((getValue(token) >>> 1) & MAX_MINUTES) * MILLIS_PER_MINUTE;
+        return isAscending(token) ? startTime : startTime + MILLIS_PER_MINUTE - 1;
+    }
+
+    /** Returns the start time of the first record of the page of a start time {@code token}. */
+    public static long getStartTime(long token) {
+        return token >> 1;
+    }
+
+    private static long getValue(long token) {
+        return token & ~ROW_TOKEN_FLAG;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import android.annotation.NonNull;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs SQL statements with {@code ?} placeholders, binding each value with its own SQLite type.
+ *
+ * <p>{@link SQLiteDatabase#rawQuery(String, String[])} binds all values as strings, which don't
+ * match blob columns such as uuids, so queries are bound through a cursor factory instead.
+ *
+ * <p>Every connection caches the statements it prepared, keyed by their SQL text, so statements
+ * of the same shape only need to be parsed and planned once.
+ *
+ * @hide
+ */
+public final class PreparedStatements {
+    /**
+     * Number of prepared statements cached per connection. Reads, aggregations and deletes of the
+     * 38 record types have a few hundred shapes, so this is the maximum allowed.
+     */
+    public static final int STATEMENT_CACHE_SIZE = SQLiteDatabase.MAX_SQL_CACHE_SIZE;
+
+    private static final Stats sStats = new Stats(STATEMENT_CACHE_SIZE);
+
+    private PreparedStatements() {}
+
+    /**
+     * Runs the query {@code sql} with {@code bindArgs} bound to its placeholders. It is the
+     * responsibility of the caller to close the returned cursor.
+     */
+    @NonNull
+    public static Cursor rawQuery(
+            @NonNull SQLiteDatabase db, @NonNull String sql, @NonNull List<Object> bindArgs) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        // The query is prepared before the factory is called, and run when the cursor is read.
+        Cursor cursor =
+                db.rawQueryWithFactory(
+                        (database, driver, editTable, query) -> {
+                            bind(query, bindArgs);
+                            return new SQLiteCursor(driver, editTable, query);
+                        },
+                        sql,
+                        /* selectionArgs= */ null,
+                        /* editTable= */ null);
+        sStats.onPrepared(sql, SystemClock.elapsedRealtimeNanos() - startTime);
+        return cursor;
+    }
+
+    /**
+     * Runs the UPDATE or DELETE statement {@code sql} with {@code bindArgs} bound to its
+     * placeholders, and returns the number of rows changed.
+     */
+    public static int executeUpdateDelete(
+            @NonNull SQLiteDatabase db, @NonNull String sql, @NonNull List<Object> bindArgs) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        try (SQLiteStatement statement = db.compileStatement(sql)) {
+            sStats.onPrepared(sql, SystemClock.elapsedRealtimeNanos() - startTime);
+            bind(statement, bindArgs);
+            return statement.executeUpdateDelete();
+        }
+    }
+
+    @NonNull
+    public static Stats getStats() {
+        return sStats;
+    }
+
+    private static void bind(SQLiteProgram program, List<Object> bindArgs) {
+        for (int i = 0; i < bindArgs.size(); i++) {
+            // Placeholders are numbered from 1.
+            int index = i + 1;
+            Object value = bindArgs.get(i);
+            if (value == null) {
+                program.bindNull(index);
+            } else if (value instanceof byte[]) {
+                program.bindBlob(index, (byte[]) value);
+            } else if (value instanceof Double || value instanceof Float) {
+                program.bindDouble(index, ((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                program.bindLong(index, ((Number) value).longValue());
+            } else if (value instanceof Boolean) {
+                program.bindLong(index, (Boolean) value ? 1 : 0);
+            } else {
+                program.bindString(index, value.toString());
+            }
+        }
+    }
+
+    /**
+     * Hit ratio of the statement caches and time spent preparing statements.
+     *
+     * <p>The caches of the connections aren't observable, so hits are counted against a cache of
+     * the same size shared by all connections, which is accurate for a single connection.
+     */
+    public static final class Stats {
+        private final Map<String, Boolean> mRecentStatements;
+        private long mHitCount;
+        private long mMissCount;
+        private long mTotalPrepareTimeNanos;
+
+        @VisibleForTesting
+        Stats(int cacheSize) {
+            mRecentStatements =
+                    new LinkedHashMap<>(cacheSize, 0.75f, /* accessOrder= */ true) {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                            return size() > cacheSize;
+                        }
+                    };
+        }
+
+        public synchronized long getHitCount() {
+            return mHitCount;
+        }
+
+        public synchronized long getMissCount() {
+            return mMissCount;
+        }
+
+        /** Returns the ratio of statements found in the cache, or 0 if none was prepared. */
+        public synchronized double getHitRatio() {
+            long total = mHitCount + mMissCount;
+            return total == 0 ? 0 : (double) mHitCount / total;
+        }
+
+        /** Returns the average time to prepare, or to find in the cache, a statement. */
+        public synchronized long getAveragePrepareTimeMicros() {
+            long total = mHitCount + mMissCount;
+            return total == 0 ? 0 : mTotalPrepareTimeNanos / total / 1000;
+        }
+
+        @VisibleForTesting
+        synchronized void onPrepared(String sql, long prepareTimeNanos) {
+            if (mRecentStatements.put(sql, Boolean.TRUE) != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+            mTotalPrepareTimeNanos += prepareTimeNanos;
+        }
+    }
+}
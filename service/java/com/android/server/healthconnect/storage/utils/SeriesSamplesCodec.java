@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import android.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes the samples of a series record into a single packed BLOB.
+ *
+ * <p>The format is: a version byte, a value kind byte, the number of samples as a varint and then
+ * for every sample (ordered by time) the zigzag varint delta of its epoch millis from the previous
+ * sample followed by its value. Integer values are stored as zigzag varint deltas from the previous
+ * value, double values are stored as their raw 8 byte representation.
+ *
+ * @hide
+ */
+public final class SeriesSamplesCodec {
+    public static final int VALUE_KIND_INTEGER = 0;
+    public static final int VALUE_KIND_DOUBLE = 1;
+    private static final int FORMAT_VERSION = 1;
+
+    private SeriesSamplesCodec() {}
+
+    /** Collects samples and encodes them into a packed BLOB. */
+    public static final class Encoder {
+        private final int mValueKind;
+        private long[] mEpochMillis;
+        private long[] mValues;
+        private int mSize;
+
+        public Encoder(int valueKind, int expectedSize) {
+            mValueKind = valueKind;
+            mEpochMillis = new long[Math.max(expectedSize, 1)];
+            mValues = new long[mEpochMillis.length];
+        }
+
+        /** Adds a sample with an integer value. */
+        public Encoder add(long epochMillis, long value) {
+            ensureCapacity();
+            mEpochMillis[mSize] = epochMillis;
+            mValues[mSize++] = value;
+            return this;
+        }
+
+        /** Adds a sample with a double value. */
+        public Encoder add(long epochMillis, double value) {
+            return add(epochMillis, Double.doubleToRawLongBits(value));
+        }
+
+        /** Returns the packed representation of all the samples added so far. */
+        @NonNull
+        public byte[] toByteArray() {
+            sortByTime();
+            // Worst case: 10 bytes per varint, 8 bytes for a double.
+            ByteWriter writer = new ByteWriter(7 + mSize * 20);
+            writer.writeByte(FORMAT_VERSION);
+            writer.writeByte(mValueKind);
+            writer.writeVarint(mSize);
+
+            long previousTime = 0;
+            long previousValue = 0;
+            for (int i = 0; i < mSize; i++) {
+                writer.writeVarint(zigzag(mEpochMillis[i] - previousTime));
+                previousTime = mEpochMillis[i];
+                if (mValueKind == VALUE_KIND_INTEGER) {
+                    writer.writeVarint(zigzag(mValues[i] - previousValue));
+                    previousValue = mValues[i];
+                } else {
+                    writer.writeLong(mValues[i]);
+                }
+            }
+            return writer.toByteArray();
+        }
+
+        private void ensureCapacity() {
+            if (mSize == mEpochMillis.length) {
+                mEpochMillis = Arrays.copyOf(mEpochMillis, mSize * 2);
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+        }
+
+        private void sortByTime() {
+            boolean sorted = true;
+            for (int i = 1; i < mSize && sorted; i++) {
+                sorted = mEpochMillis[i - 1] <= mEpochMillis[i];
+            }
+            if (sorted) {
+                return;
+            }
+
+            // Series records hand over their samples already compacted into time order, so this is
+            // only a fallback for other callers: a stable bottom-up merge sort of the arrays.
+            long[] times = mEpochMillis;
+            long[] values = mValues;
+            long[] timesBuffer = new long[times.length];
+            long[] valuesBuffer = new long[values.length];
+            for (int width = 1; width < mSize; width *= 2) {
+                for (int start = 0; start < mSize; start += 2 * width) {
+                    int middle = Math.min(start + width, mSize);
+                    int end = Math.min(start + 2 * width, mSize);
+                    int left = start;
+                    int right = middle;
+                    for (int k = start; k < end; k++) {
+                        if (left < middle && (right >= end || times[left] <= times[right])) {
+                            timesBuffer[k] = times[left];
+                            valuesBuffer[k] = values[left++];
+                        } else {
+                            timesBuffer[k] = times[right];
+                            valuesBuffer[k] = values[right++];
+                        }
+                    }
+                }
+                long[] swap = times;
+                times = timesBuffer;
+                timesBuffer = swap;
+                swap = values;
+                values = valuesBuffer;
+                valuesBuffer = swap;
+            }
+            mEpochMillis = times;
+            mValues = values;
+        }
+    }
+
+    /** Iterates over the samples of a packed BLOB. */
+    public static final class Decoder {
+        private final byte[] mBytes;
+        private final int mValueKind;
+        private final int mSize;
+        private int mPosition;
+        private int mIndex;
+        private long mEpochMillis;
+        private long mValue;
+
+        public Decoder(@NonNull byte[] bytes) {
+            mBytes = bytes;
+            if (mBytes.length < 3 || mBytes[0] != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported packed samples format");
+            }
+            mValueKind = mBytes[1];
+            mPosition = 2;
+            mSize = (int) readVarint();
+        }
+
+        /** Returns the total number of samples in the BLOB. */
+        public int size() {
+            return mSize;
+        }
+
+        /** Advances to the next sample, returns false if there are no more samples. */
+        public boolean moveToNext() {
+            if (mIndex >= mSize) {
+                return false;
+            }
+
+            mEpochMillis += unzigzag(readVarint());
+            if (mValueKind == VALUE_KIND_INTEGER) {
+                mValue += unzigzag(readVarint());
+            } else {
+                mValue = readLong();
+            }
+            mIndex++;
+            return true;
+        }
+
+        /** Returns the epoch millis of the current sample. */
+        public long getEpochMillis() {
+            return mEpochMillis;
+        }
+
+        /** Returns the value of the current sample as a long. */
+        public long getLongValue() {
+            return mValueKind == VALUE_KIND_INTEGER
+                    ? mValue
+                    : (long) Double.longBitsToDouble(mValue);
+        }
+
+        /** Returns the value of the current sample as a double. */
+        public double getDoubleValue() {
+            return mValueKind == VALUE_KIND_INTEGER ? mValue : Double.longBitsToDouble(mValue);
+        }
+
+        private long readVarint() {
+            long result = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mBytes[mPosition++];
+                result |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return result;
+        }
+
+        private long readLong() {
+            long result = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                result = (result << 8) | (mBytes[mPosition++] & 0xFF);
+            }
+            return result;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class ByteWriter {
+        private byte[] mBytes;
+        private int mSize;
+
+        ByteWriter(int capacity) {
+            mBytes = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            mBytes[mSize++] = (byte) value;
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                mBytes[mSize++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBytes[mSize++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            for (int i = Long.BYTES - 1; i >= 0; i--) {
+                mBytes[mSize++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBytes, mSize);
+        }
+    }
+}
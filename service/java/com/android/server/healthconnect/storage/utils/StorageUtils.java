@@ -397,15 +397,6 @@ public final class StorageUtils {
         return getHexString(convertUUIDToBytes(uuid));
     }
 
-    public static List<String> getListOfHexString(List<UUID> uuids) {
-        List<String> hexStrings = new ArrayList<>();
-        for (UUID uuid : uuids) {
-            hexStrings.add(getHexString(convertUUIDToBytes(uuid)));
-        }
-
-        return hexStrings;
-    }
-
     public static byte[] getSingleByteArray(List<UUID> uuids) {
         byte[] allByteArray = new byte[UUID_BYTE_SIZE * uuids.size()];
 
@@ -418,10 +409,14 @@ public final class StorageUtils {
     }
 
     public static List<UUID> getCursorUUIDList(Cursor cursor, String columnName) {
-        byte[] bytes = cursor.getBlob(cursor.getColumnIndex(columnName));
+        return convertBytesToUUIDs(cursor.getBlob(cursor.getColumnIndex(columnName)));
+    }
+
+    /** Returns the uuids packed in {@code bytes} by {@link #getSingleByteArray}. */
+    public static List<UUID> convertBytesToUUIDs(byte[] bytes) {
         ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
 
-        List<UUID> uuidList = new ArrayList<>();
+        List<UUID> uuidList = new ArrayList<>(bytes.length / UUID_BYTE_SIZE);
         while (byteBuffer.hasRemaining()) {
             long high = byteBuffer.getLong();
             long low = byteBuffer.getLong();
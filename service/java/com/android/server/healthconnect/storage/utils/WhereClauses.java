@@ -16,21 +16,33 @@
 
 package com.android.server.healthconnect.storage.utils;
 
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.UUID;
 
-/** @hide */
+/**
+ * Where clauses of a SQL statement.
+ *
+ * <p>Values are kept apart from the SQL text, and can either be inlined with {@link #get(boolean)}
+ * or bound to {@code ?} placeholders with {@link #get(boolean, List)}. Statements built with
+ * placeholders have the same text for all the requests of the same shape, so SQLite can reuse
+ * their prepared statements, see {@link PreparedStatements}.
+ *
+ * @hide
+ */
 public final class WhereClauses {
-    private final List<String> mClauses = new ArrayList<>();
+    private final List<Clause> mClauses = new ArrayList<>();
     private boolean mUseOr = false;
 
     public WhereClauses addWhereBetweenClause(String columnName, long start, long end) {
-        mClauses.add(columnName + " BETWEEN " + start + " AND " + end);
-
-        return this;
+        return addClause(columnName + " BETWEEN ? AND ?", start, end);
     }
 
     public WhereClauses addWhereBetweenTimeClause(String columnName, long startTime, long endTime) {
@@ -41,9 +53,7 @@ public final class WhereClauses {
             return addWhereLaterThanTimeClause(columnName, startTime);
         }
 
-        mClauses.add(columnName + " BETWEEN " + startTime + " AND " + endTime);
-
-        return this;
+        return addClause(columnName + " BETWEEN ? AND ?", startTime, endTime);
     }
 
     public WhereClauses addWhereLaterThanTimeClause(String columnName, long startTime) {
@@ -51,78 +61,137 @@ public final class WhereClauses {
             return this;
         }
 
-        mClauses.add(columnName + " > " + startTime);
-
-        return this;
+        return addClause(columnName + " > ?", startTime);
     }
 
     public WhereClauses addWhereInClause(String columnName, List<String> values) {
         if (values == null || values.isEmpty()) return this;
 
-        mClauses.add(columnName + " IN " + "('" + String.join("', '", values) + "')");
-
-        return this;
+        return addInClause(columnName, values);
     }
 
+    /** Adds an IN clause of SQL literals, such as hex blobs, which are always inlined. */
     public WhereClauses addWhereInClauseWithoutQuotes(String columnName, List<String> values) {
         if (values == null || values.isEmpty()) return this;
 
-        mClauses.add(columnName + " IN " + "(" + String.join(", ", values) + ")");
+        mClauses.add(new Clause(columnName + " IN " + "(" + String.join(", ", values) + ")"));
 
         return this;
     }
 
+    /** Adds an IN clause matching the given uuids, stored as blobs in {@code columnName}. */
+    public WhereClauses addWhereInUuidsClause(String columnName, List<UUID> uuids) {
+        if (uuids == null || uuids.isEmpty()) return this;
+
+        List<byte[]> values = new ArrayList<>(uuids.size());
+        for (UUID uuid : uuids) {
+            values.add(StorageUtils.convertUUIDToBytes(uuid));
+        }
+        return addInClause(columnName, values);
+    }
+
+    /** Adds an equals clause of a SQL literal, quoted if it isn't already, which is inlined. */
     public WhereClauses addWhereEqualsClause(String columnName, String value) {
         if (columnName == null || value == null || value.isEmpty() || columnName.isEmpty()) {
             return this;
         }
 
-        mClauses.add(columnName + " = " + StorageUtils.getNormalisedString(value));
+        mClauses.add(new Clause(columnName + " = " + StorageUtils.getNormalisedString(value)));
         return this;
     }
 
-    public WhereClauses addWhereGreaterThanClause(String columnName, String value) {
-        mClauses.add(columnName + " > '" + value + "'");
+    /** Adds an equals clause binding {@code value}. */
+    public WhereClauses addWhereEqualsClause(String columnName, long value) {
+        return addClause(columnName + " = ?", value);
+    }
 
-        return this;
+    /** Adds an equals clause binding the blob {@code value}, unless it is null. */
+    public WhereClauses addWhereEqualsClause(String columnName, @Nullable byte[] value) {
+        if (value == null) {
+            return this;
+        }
+
+        return addClause(columnName + " = ?", (Object) value);
+    }
+
+    public WhereClauses addWhereGreaterThanClause(String columnName, String value) {
+        return addClause(columnName + " > ?", value);
     }
 
     /** Add clause columnName > value */
     public WhereClauses addWhereGreaterThanClause(String columnName, long value) {
-        mClauses.add(columnName + " > " + value);
-
-        return this;
+        return addClause(columnName + " > ?", value);
     }
 
     public WhereClauses addWhereGreaterThanOrEqualClause(String columnName, long value) {
-        mClauses.add(columnName + " >= " + value);
-
-        return this;
+        return addClause(columnName + " >= ?", value);
     }
 
     public WhereClauses addWhereLessThanOrEqualClause(String columnName, long value) {
-        mClauses.add(columnName + " <= " + value);
-
-        return this;
+        return addClause(columnName + " <= ?", value);
     }
 
     /** Add clause columnName < value */
     public WhereClauses addWhereLessThanClause(String columnName, long value) {
-        mClauses.add(columnName + " < " + value);
+        return addClause(columnName + " < ?", value);
+    }
 
-        return this;
+    /**
+     * Adds a clause matching the rows after the row {@code rowId} of {@code tableName}, in
+     * ({@code columnName}, {@code rowIdColumnName}) order. The value of {@code columnName} is read
+     * from the row, or is {@code defaultValue} if the row doesn't exist.
+     *
+     * <p>The row is only looked up among the rows matching the clauses added before this one, so
+     * that a {@code rowId} taken from a client can't tell anything about rows it can't read. Those
+     * clauses must be joined by 'AND'.
+     *
+     * <p>The row value comparison is preceded by a plain range on {@code columnName}, so that the
+     * index on {@code columnName} is used to seek to the row.
+     */
+    public WhereClauses addWhereAfterRowClause(
+            String tableName,
+            String columnName,
+            String rowIdColumnName,
+            long rowId,
+            long defaultValue,
+            boolean isAscending) {
+        List<Object> rowValues = new ArrayList<>();
+        rowValues.add(rowId);
+        String rowFilter = build(/* withWhereKeyword= */ false, rowValues);
+        rowValues.add(defaultValue);
+        String value =
+                "COALESCE((SELECT "
+                        + columnName
+                        + " FROM "
+                        + tableName
+                        + " WHERE "
+                        + rowIdColumnName
+                        + " = ?"
+                        + (rowFilter.isEmpty() ? "" : " AND " + rowFilter)
+                        + "), ?)";
+
+        List<Object> values = new ArrayList<>(rowValues.size() * 2 + 1);
+        values.addAll(rowValues);
+        values.addAll(rowValues);
+        values.add(rowId);
+        return addClause(
+                columnName
+                        + (isAscending ? " >= " : " <= ")
+                        + value
+                        + " AND ("
+                        + columnName
+                        + ", "
+                        + rowIdColumnName
+                        + (isAscending ? ") > (" : ") < (")
+                        + value
+                        + ", ?)",
+                values.toArray());
     }
 
     public WhereClauses addWhereInIntsClause(String columnName, List<Integer> values) {
         if (values == null || values.isEmpty()) return this;
 
-        mClauses.add(
-                columnName
-                        + " IN ("
-                        + values.stream().map(String::valueOf).collect(Collectors.joining(", "))
-                        + ")");
-
-        return this;
+        return addInClause(columnName, values);
     }
 
     /**
@@ -134,13 +203,7 @@ public final class WhereClauses {
     public WhereClauses addWhereInLongsClause(String columnName, List<Long> values) {
         if (values == null || values.isEmpty()) return this;
 
-        mClauses.add(
-                columnName
-                        + " IN ("
-                        + values.stream().map(String::valueOf).collect(Collectors.joining(", "))
-                        + ")");
-
-        return this;
+        return addInClause(columnName, values);
     }
 
     /**
@@ -148,21 +211,43 @@ public final class WhereClauses {
      * set.
      */
     public WhereClauses addWhereInSQLRequestClause(String columnName, ReadTableRequest inRequest) {
-        mClauses.add(columnName + " IN (" + inRequest.getReadCommand() + ") ");
+        mClauses.add(new Clause(columnName + " IN (", inRequest, ") "));
 
         return this;
     }
 
     /**
      * Returns where clauses joined by 'AND', if the input parameter isIncludeWHEREinClauses is true
-     * then the clauses are preceded by 'WHERE'.
+     * then the clauses are preceded by 'WHERE'. Values are inlined in the returned SQL.
      */
     public String get(boolean withWhereKeyword) {
+        return build(withWhereKeyword, /* bindArgs= */ null);
+    }
+
+    /**
+     * Same as {@link #get(boolean)}, but with {@code ?} placeholders in place of the values, which
+     * are appended to {@code bindArgs} in order.
+     */
+    public String get(boolean withWhereKeyword, @NonNull List<Object> bindArgs) {
+        return build(withWhereKeyword, bindArgs);
+    }
+
+    private String build(boolean withWhereKeyword, @Nullable List<Object> bindArgs) {
         if (mClauses.isEmpty()) {
             return "";
         }
 
-        return (withWhereKeyword ? " WHERE " : "") + String.join(getJoinClause(), mClauses);
+        StringBuilder builder = new StringBuilder();
+        if (withWhereKeyword) {
+            builder.append(" WHERE ");
+        }
+        for (int i = 0; i < mClauses.size(); i++) {
+            if (i > 0) {
+                builder.append(getJoinClause());
+            }
+            mClauses.get(i).appendTo(builder, bindArgs);
+        }
+        return builder.toString();
     }
 
     private String getJoinClause() {
@@ -174,4 +259,87 @@ public final class WhereClauses {
 
         return this;
     }
+
+    private WhereClauses addClause(String sql, Object... values) {
+        mClauses.add(new Clause(sql, values));
+        return this;
+    }
+
+    private WhereClauses addInClause(String columnName, List<?> values) {
+        StringBuilder sql = new StringBuilder(columnName).append(" IN (");
+        for (int i = 0; i < values.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+
+        mClauses.add(new Clause(sql.toString(), values.toArray()));
+        return this;
+    }
+
+    /** Returns {@code value} as a SQL literal. */
+    private static String toSqlLiteral(@Nullable Object value) {
+        if (value == null) {
+            return "NULL";
+        }
+        if (value instanceof byte[]) {
+            return StorageUtils.getHexString((byte[]) value);
+        }
+        if (value instanceof String) {
+            return "'" + ((String) value).replace("'", "''") + "'";
+        }
+        return String.valueOf(value);
+    }
+
+    private static final class Clause {
+        // SQL with one '?' per value, or a literal SQL clause if there are no values.
+        private final String mSql;
+        private final List<Object> mValues;
+        @Nullable private final ReadTableRequest mInRequest;
+        private final String mSuffix;
+
+        Clause(String sql, Object... values) {
+            mSql = sql;
+            mValues = Arrays.asList(values);
+            mInRequest = null;
+            mSuffix = "";
+        }
+
+        Clause(String sql, ReadTableRequest inRequest, String suffix) {
+            mSql = sql;
+            mValues = Collections.emptyList();
+            mInRequest = inRequest;
+            mSuffix = suffix;
+        }
+
+        void appendTo(StringBuilder builder, @Nullable List<Object> bindArgs) {
+            if (mValues.isEmpty()) {
+                builder.append(mSql);
+            } else {
+                appendValuesTo(builder, bindArgs);
+            }
+
+            if (mInRequest != null) {
+                builder.append(
+                        bindArgs == null
+                                ? mInRequest.getReadCommand()
+                                : mInRequest.getReadCommand(bindArgs));
+                builder.append(mSuffix);
+            }
+        }
+
+        private void appendValuesTo(StringBuilder builder, @Nullable List<Object> bindArgs) {
+            int valueIndex = 0;
+            for (int i = 0; i < mSql.length(); i++) {
+                char c = mSql.charAt(i);
+                if (c != '?') {
+                    builder.append(c);
+                } else if (bindArgs == null) {
+                    builder.append(toSqlLiteral(mValues.get(valueIndex++)));
+                } else {
+                    builder.append(c);
+                    bindArgs.add(mValues.get(valueIndex++));
+                }
+            }
+        }
+    }
 }
@@ -97,6 +97,30 @@ public class MigrationEntityParcelTest {
                 migrationEntityListSize, migrationEntityList, deserializedMigrationEntityList);
     }
 
+    @Test
+    public void testMigrationEntityListParsing_usingSharedMemoryAfterOtherData() {
+        int numRequiredEntities = getRequiredNumberOfEntities();
+        List<MigrationEntity> migrationEntityList = new ArrayList<>();
+        for (int i = 0; i < 2 * numRequiredEntities; i++) {
+            migrationEntityList.add(HEIGHT_MIGRATION_ENTITY);
+        }
+        Parcel parcel = Parcel.obtain();
+        parcel.writeInt(42);
+        new MigrationEntityParcel(migrationEntityList).writeToParcel(parcel, 0);
+        parcel.writeInt(43);
+        parcel.setDataPosition(0);
+
+        assertThat(parcel.readInt()).isEqualTo(42);
+        List<MigrationEntity> deserializedMigrationEntityList =
+                MigrationEntityParcel.CREATOR.createFromParcel(parcel).getMigrationEntities();
+        assertThat(parcel.readInt()).isEqualTo(43);
+        parcel.recycle();
+
+        assertDeserializedListSize(migrationEntityList.size(), deserializedMigrationEntityList);
+        assertDeserializedHeightRecord(
+                migrationEntityList.size(), migrationEntityList, deserializedMigrationEntityList);
+    }
+
     @Test
     public void testParcelType_usingSharedMemory() {
         int numRequiredEntities = getRequiredNumberOfEntities();
@@ -112,6 +136,21 @@ public class MigrationEntityParcelTest {
         assertThat(parcelType).isEqualTo(ParcelUtils.USING_SHARED_MEMORY);
     }
 
+    @Test
+    public void testParcelType_usingSharedMemory_doesNotWritePayloadToParcel() {
+        int numRequiredEntities = getRequiredNumberOfEntities();
+        List<MigrationEntity> migrationEntityList = new ArrayList<>();
+        for (int i = 0; i < 2 * numRequiredEntities; i++) {
+            migrationEntityList.add(HEIGHT_MIGRATION_ENTITY);
+        }
+        Parcel parcel = Parcel.obtain();
+
+        new MigrationEntityParcel(migrationEntityList).writeToParcel(parcel, 0);
+
+        assertThat(parcel.dataSize()).isLessThan(ParcelUtils.IPC_PARCEL_LIMIT);
+        parcel.recycle();
+    }
+
     @Test
     public void testParcelType_usingParcel() {
         List<MigrationEntity> migrationEntityList = new ArrayList<>();
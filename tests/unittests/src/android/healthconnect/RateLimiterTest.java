@@ -19,6 +19,8 @@ package android.healthconnect;
 import static android.health.connect.ratelimiter.RateLimiter.CHUNK_SIZE_LIMIT_IN_BYTES;
 import static android.health.connect.ratelimiter.RateLimiter.RECORD_SIZE_LIMIT_IN_BYTES;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import static org.hamcrest.CoreMatchers.containsString;
 
 import android.health.connect.HealthConnectException;
@@ -34,8 +36,15 @@ import org.junit.rules.ExpectedException;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class RateLimiterTest {
     private static final int UID = 1;
@@ -44,6 +53,7 @@ public class RateLimiterTest {
     private static final int MAX_FOREGROUND_CALL_15M = 1000;
     private static final int MAX_BACKGROUND_CALL_15M = 1000;
     private static final Duration WINDOW_15M = Duration.ofMinutes(15);
+    private static final int THREAD_COUNT = 8;
 
     @Rule public ExpectedException exception = ExpectedException.none();
 
@@ -165,6 +175,48 @@ public class RateLimiterTest {
         tryAcquireCallQuotaNTimes(quotaCategoryWrite, IS_IN_FOREGROUND_FALSE, ceilQuotaAcquired);
     }
 
+    @Test
+    public void testTryAcquireApiCallQuota_concurrentCalls_grantExactlyTheQuota()
+            throws Exception {
+        RateLimiter.clearCache();
+        @QuotaCategory.Type int quotaCategoryRead = 2;
+        Instant startTime = Instant.now();
+        List<Integer> grantedCounts =
+                tryAcquireCallQuotaConcurrently(
+                        List.of(UID), quotaCategoryRead, MAX_FOREGROUND_CALL_15M);
+        Instant endTime = Instant.now();
+
+        int granted = grantedCounts.stream().mapToInt(Integer::intValue).sum();
+        assertThat(granted).isAtLeast(MAX_FOREGROUND_CALL_15M);
+        assertThat(granted)
+                .isAtMost(
+                        MAX_FOREGROUND_CALL_15M
+                                + getCeilQuotaAcquired(
+                                        startTime,
+                                        endTime,
+                                        WINDOW_15M,
+                                        MAX_FOREGROUND_CALL_15M));
+    }
+
+    @Test
+    public void testTryAcquireApiCallQuota_concurrentCallsOfUids_quotasAreIndependent()
+            throws Exception {
+        RateLimiter.clearCache();
+        @QuotaCategory.Type int quotaCategoryWrite = 3;
+        List<Integer> uids = new ArrayList<>();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            // Spread over the same and different stripes.
+            uids.add(10000 + i * 8);
+        }
+
+        List<Integer> grantedCounts =
+                tryAcquireCallQuotaConcurrently(uids, quotaCategoryWrite, MAX_FOREGROUND_CALL_15M);
+
+        for (int granted : grantedCounts) {
+            assertThat(granted).isEqualTo(MAX_FOREGROUND_CALL_15M);
+        }
+    }
+
     @Test
     public void checkMaxChunkMemoryUsage_LimitExceeded() {
         long valueExceeding = 5000001;
@@ -204,6 +256,48 @@ public class RateLimiterTest {
                 : (int) accumulated + 1;
     }
 
+    /**
+     * Makes {@code THREAD_COUNT} threads each try {@code nTimes} calls at once, as the uid at the
+     * same index of {@code uids}, or the only uid. Returns the number of calls granted per thread.
+     */
+    private List<Integer> tryAcquireCallQuotaConcurrently(
+            List<Integer> uids, @QuotaCategory.Type int quotaCategory, int nTimes)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                int uid = uids.size() == 1 ? uids.get(0) : uids.get(i);
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    start.await();
+                                    int granted = 0;
+                                    for (int call = 0; call < nTimes; call++) {
+                                        try {
+                                            RateLimiter.tryAcquireApiCallQuota(
+                                                    uid, quotaCategory, IS_IN_FOREGROUND_TRUE);
+                                            granted++;
+                                        } catch (HealthConnectException e) {
+                                            // Quota exceeded, keep trying to race the others.
+                                        }
+                                    }
+                                    return granted;
+                                }));
+            }
+            start.countDown();
+
+            List<Integer> grantedCounts = new ArrayList<>();
+            for (Future<Integer> future : futures) {
+                grantedCounts.add(future.get(30, TimeUnit.SECONDS));
+            }
+            return grantedCounts;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private void tryAcquireCallQuotaNTimes(
             @QuotaCategory.Type int quotaCategory, boolean isInForeground, int nTimes) {
         for (int i = 0; i < nTimes; i++) {
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.healthconnect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.aidl.RecordsParcel;
+import android.health.connect.internal.ParcelUtils;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.os.Parcel;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class RecordsParcelTest {
+    private static final String APP_PACKAGE_NAME = "android.healthconnect.unittests";
+    private static final long START_TIME = Instant.parse("2023-05-01T10:00:00Z").toEpochMilli();
+
+    @Test
+    public void testRecordsParcel_writeAndRead_recordsAreIdentical() {
+        List<RecordInternal<?>> records = getStepsRecords(10);
+        records.add(
+                new StepsRecordInternal()
+                        .setCount(5)
+                        .setStartTime(START_TIME)
+                        .setEndTime(START_TIME + 1000)
+                        .setPackageName(APP_PACKAGE_NAME));
+
+        Parcel parcel = Parcel.obtain();
+        new RecordsParcel(records).writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        List<RecordInternal<?>> restoredRecords =
+                RecordsParcel.CREATOR.createFromParcel(parcel).getRecords();
+        parcel.recycle();
+
+        assertRecordsAreIdentical(restoredRecords, records);
+    }
+
+    @Test
+    public void testRecordsParcel_readLegacyFormat_recordsAreIdentical() {
+        List<RecordInternal<?>> records = getStepsRecords(10);
+
+        Parcel parcel = writeLegacyFormat(records);
+        parcel.setDataPosition(0);
+        List<RecordInternal<?>> restoredRecords =
+                RecordsParcel.CREATOR.createFromParcel(parcel).getRecords();
+        parcel.recycle();
+
+        assertRecordsAreIdentical(restoredRecords, records);
+    }
+
+    @Test
+    public void testRecordsParcel_recordsOfSameApp_smallerThanLegacyFormat() {
+        List<RecordInternal<?>> records = getStepsRecords(2000);
+
+        Parcel parcel = Parcel.obtain();
+        new RecordsParcel(records).writeToParcel(parcel, 0);
+        Parcel legacyParcel = writeLegacyFormat(records);
+
+        assertThat(parcel.dataSize()).isLessThan(legacyParcel.dataSize() / 2);
+        parcel.recycle();
+        legacyParcel.recycle();
+    }
+
+    @Test
+    public void testRecordsParcel_recordsSize_includesSharedStrings() {
+        List<RecordInternal<?>> records = getStepsRecords(2);
+
+        RecordsParcel singleRecordParcel = writeAndRead(records.subList(0, 1));
+        RecordsParcel recordsParcel = writeAndRead(records);
+
+        // Only the format version, string count and record count aren't charged to the record.
+        long recordSize = singleRecordParcel.getRecordsChunkSize() - 3 * Integer.BYTES;
+        assertThat(singleRecordParcel.getRecordsSize()).containsExactly(recordSize);
+        // Each record is charged for the strings it shares with the other.
+        assertThat(recordsParcel.getRecordsSize()).containsExactly(recordSize, recordSize);
+    }
+
+    private static RecordsParcel writeAndRead(List<RecordInternal<?>> records) {
+        Parcel parcel = Parcel.obtain();
+        new RecordsParcel(records).writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        try {
+            return RecordsParcel.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static List<RecordInternal<?>> getStepsRecords(int count) {
+        List<RecordInternal<?>> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(
+                    new StepsRecordInternal()
+                            .setCount(100 + i)
+                            .setStartTime(START_TIME + i * 60_000L)
+                            .setEndTime(START_TIME + (i + 1) * 60_000L)
+                            .setStartZoneOffset(3600)
+                            .setEndZoneOffset(3600)
+                            .setUuid(UUID.randomUUID())
+                            .setPackageName(APP_PACKAGE_NAME)
+                            .setAppName("Unit tests")
+                            .setClientRecordId("client_id_" + i)
+                            .setManufacturer("Google")
+                            .setModel("Pixel Watch"));
+        }
+        return records;
+    }
+
+    private static Parcel writeLegacyFormat(List<RecordInternal<?>> records) {
+        Parcel parcel = Parcel.obtain();
+        parcel.writeInt(ParcelUtils.USING_PARCEL);
+        parcel.writeInt(records.size());
+        for (RecordInternal<?> record : records) {
+            parcel.writeInt(record.getRecordType());
+            record.writeToParcel(parcel);
+        }
+        return parcel;
+    }
+
+    private static void assertRecordsAreIdentical(
+            List<RecordInternal<?>> restoredRecords, List<RecordInternal<?>> records) {
+        assertThat(restoredRecords).hasSize(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            RecordInternal<?> record = records.get(i);
+            RecordInternal<?> restoredRecord = restoredRecords.get(i);
+            assertThat(restoredRecord.getUuid()).isEqualTo(record.getUuid());
+            assertThat(restoredRecord.getPackageName()).isEqualTo(record.getPackageName());
+            assertThat(restoredRecord.getAppName()).isEqualTo(record.getAppName());
+            assertThat(restoredRecord.getClientRecordId()).isEqualTo(record.getClientRecordId());
+            assertThat(restoredRecord.getManufacturer()).isEqualTo(record.getManufacturer());
+            assertThat(restoredRecord.getModel()).isEqualTo(record.getModel());
+            if (record.getUuid() != null) {
+                assertThat(restoredRecord.toExternalRecord())
+                        .isEqualTo(record.toExternalRecord());
+            }
+        }
+    }
+}
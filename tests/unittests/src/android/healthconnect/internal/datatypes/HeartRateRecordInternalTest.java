@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.healthconnect.internal.datatypes;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.internal.datatypes.HeartRateRecordInternal;
+import android.os.Parcel;
+
+import org.junit.Test;
+
+public class HeartRateRecordInternalTest {
+    @Test
+    public void testAddSample_outOfOrder_samplesKeptInOrderAdded() {
+        HeartRateRecordInternal record =
+                new HeartRateRecordInternal()
+                        .addSample(3000, 70)
+                        .addSample(1000, 80)
+                        .addSample(3000, 70);
+
+        assertThat(record.getSampleCount()).isEqualTo(3);
+        assertSample(record, 0, 3000, 70);
+        assertSample(record, 1, 1000, 80);
+        assertSample(record, 2, 3000, 70);
+    }
+
+    @Test
+    public void testCompactSamples_outOfOrder_samplesSortedByTime() {
+        HeartRateRecordInternal record =
+                new HeartRateRecordInternal()
+                        .addSample(3000, 70)
+                        .addSample(1000, 80)
+                        .addSample(2000, 90);
+
+        record.compactSamples();
+
+        assertThat(record.getSampleCount()).isEqualTo(3);
+        assertSample(record, 0, 1000, 80);
+        assertSample(record, 1, 2000, 90);
+        assertSample(record, 2, 3000, 70);
+    }
+
+    @Test
+    public void testCompactSamples_duplicates_onlyIdenticalSamplesDropped() {
+        HeartRateRecordInternal record =
+                new HeartRateRecordInternal()
+                        .addSample(1000, 80)
+                        .addSample(1000, 80)
+                        .addSample(1000, 75)
+                        .addSample(2000, 90);
+
+        record.compactSamples();
+
+        assertThat(record.getSampleCount()).isEqualTo(3);
+        assertSample(record, 0, 1000, 75);
+        assertSample(record, 1, 1000, 80);
+        assertSample(record, 2, 2000, 90);
+    }
+
+    @Test
+    public void testWriteToParcel_populateToParcelAndFrom_restoredSamplesAreIdentical() {
+        HeartRateRecordInternal record = new HeartRateRecordInternal();
+        for (int i = 0; i < 100; i++) {
+            record.addSample(1000L * i, 60 + i);
+        }
+        record.setStartTime(0).setEndTime(100_000);
+
+        Parcel parcel = Parcel.obtain();
+        record.writeToParcel(parcel);
+        parcel.setDataPosition(0);
+        HeartRateRecordInternal restoredRecord = new HeartRateRecordInternal();
+        restoredRecord.populateUsing(parcel);
+        parcel.recycle();
+
+        assertThat(restoredRecord.getSampleCount()).isEqualTo(100);
+        for (int i = 0; i < 100; i++) {
+            assertSample(restoredRecord, i, 1000L * i, 60 + i);
+        }
+    }
+
+    @Test
+    public void testPopulateUsing_outOfOrderSamples_restoredSamplesSorted() {
+        HeartRateRecordInternal record =
+                new HeartRateRecordInternal().addSample(2000, 90).addSample(1000, 80);
+        record.setStartTime(0).setEndTime(3000);
+
+        Parcel parcel = Parcel.obtain();
+        record.writeToParcel(parcel);
+        parcel.setDataPosition(0);
+        HeartRateRecordInternal restoredRecord = new HeartRateRecordInternal();
+        restoredRecord.populateUsing(parcel);
+        parcel.recycle();
+
+        assertThat(restoredRecord.getSampleCount()).isEqualTo(2);
+        assertSample(restoredRecord, 0, 1000, 80);
+        assertSample(restoredRecord, 1, 2000, 90);
+    }
+
+    private static void assertSample(
+            HeartRateRecordInternal record, int index, long epochMillis, int beatsPerMinute) {
+        assertThat(record.getSampleEpochMillis(index)).isEqualTo(epochMillis);
+        assertThat(record.getSampleBeatsPerMinute(index)).isEqualTo(beatsPerMinute);
+    }
+}
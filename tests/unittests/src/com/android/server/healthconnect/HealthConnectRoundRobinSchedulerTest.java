@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+@RunWith(AndroidJUnit4.class)
+public class HealthConnectRoundRobinSchedulerTest {
+    private final HealthConnectRoundRobinScheduler mScheduler =
+            new HealthConnectRoundRobinScheduler();
+
+    @Test
+    public void testGetNextTask_unitCosts_alternatesBetweenUids() {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            mScheduler.addTask(1, () -> order.add(1));
+        }
+        mScheduler.addTask(2, () -> order.add(2));
+        mScheduler.addTask(3, () -> order.add(3));
+
+        for (int i = 0; i < 5; i++) {
+            mScheduler.getNextTask().run();
+        }
+
+        assertThat(order).containsExactly(1, 2, 3, 1, 1).inOrder();
+    }
+
+    @Test
+    public void testGetNextTask_costlyTasks_doNotStarveOtherUids() {
+        List<Integer> order = new ArrayList<>();
+        int heavyCost = HealthConnectRoundRobinScheduler.getCostOfRecords(350);
+        assertThat(heavyCost).isEqualTo(4);
+        mScheduler.addTask(1, () -> order.add(1), heavyCost);
+        mScheduler.addTask(1, () -> order.add(1), heavyCost);
+        for (int i = 0; i < 8; i++) {
+            mScheduler.addTask(2, () -> order.add(2));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            mScheduler.getNextTask().run();
+        }
+
+        assertThat(order).containsExactly(2, 2, 2, 1, 2, 2, 2, 2, 1, 2).inOrder();
+    }
+
+    @Test
+    public void testGetNextTask_afterKill_returnsNoOpAndDropsTasks() {
+        List<Integer> order = new ArrayList<>();
+        mScheduler.addTask(1, () -> order.add(1));
+        mScheduler.killTasksAndPauseScheduler();
+        mScheduler.addTask(1, () -> order.add(1));
+
+        mScheduler.getNextTask().run();
+        assertThat(order).isEmpty();
+
+        mScheduler.resume();
+        mScheduler.addTask(2, () -> order.add(2));
+        mScheduler.getNextTask().run();
+        assertThat(order).containsExactly(2);
+    }
+
+    @Test
+    public void testAddTask_manyProducers_everyTaskRunsOnce() throws Exception {
+        int producers = 64;
+        int tasksPerProducer = 2000;
+        AtomicIntegerArray runs = new AtomicIntegerArray(producers * tasksPerProducer);
+        ExecutorService producerPool = Executors.newFixedThreadPool(producers);
+        ExecutorService consumerPool = Executors.newFixedThreadPool(4);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(producers * tasksPerProducer);
+
+        for (int producer = 0; producer < producers; producer++) {
+            final int uid = producer % 16;
+            final int firstTask = producer * tasksPerProducer;
+            producerPool.execute(
+                    () -> {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                        for (int i = 0; i < tasksPerProducer; i++) {
+                            final int task = firstTask + i;
+                            mScheduler.addTask(
+                                    uid,
+                                    () -> {
+                                        runs.incrementAndGet(task);
+                                        done.countDown();
+                                    },
+                                    1 + task % 3);
+                            consumerPool.execute(() -> mScheduler.getNextTask().run());
+                        }
+                    });
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        assertThat(done.await(60, TimeUnit.SECONDS)).isTrue();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        producerPool.shutdown();
+        consumerPool.shutdown();
+
+        for (int i = 0; i < runs.length(); i++) {
+            assertThat(runs.get(i)).isEqualTo(1);
+        }
+        // Loose bound, only meant to catch the scheduler serialising on contention.
+        assertThat(elapsedMillis).isLessThan(30_000L);
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.server.healthconnect;
 
+import static org.junit.Assert.assertThrows;
 import static org.mockito.Mockito.when;
 
 import android.app.ActivityManager;
@@ -35,7 +36,9 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ThreadPoolExecutor;
 
 @RunWith(AndroidJUnit4.class)
@@ -128,6 +131,33 @@ public class HealthConnectThreadSchedulerTest {
                 });
     }
 
+    @Test
+    public void testRunAggregationTasks_returnsResultsInOrder() {
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final int result = i;
+            tasks.add(() -> result);
+        }
+
+        Truth.assertThat(HealthConnectThreadScheduler.runAggregationTasks(tasks))
+                .containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9)
+                .inOrder();
+    }
+
+    @Test
+    public void testRunAggregationTasks_taskThrows_exceptionRethrown() {
+        List<Callable<Integer>> tasks =
+                List.of(
+                        () -> 1,
+                        () -> {
+                            throw new IllegalArgumentException("test");
+                        });
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> HealthConnectThreadScheduler.runAggregationTasks(tasks));
+    }
+
     @Test
     public void testHealthConnectSchedulerClear() {
         HealthConnectThreadScheduler.resetThreadPools();
@@ -137,4 +167,45 @@ public class HealthConnectThreadSchedulerTest {
         Truth.assertThat(mForegroundTaskSchedulerCompletedJobs).isEqualTo(0);
         Truth.assertThat(mBackgroundTaskSchedulerCompletedJobs).isEqualTo(0);
     }
+
+    @Test
+    public void testSchedule_readOnlyTask_runsOnReadLane() throws Exception {
+        ThreadPoolExecutor backgroundReadExecutor =
+                HealthConnectThreadScheduler.sBackgroundReadExecutor;
+        long completedJobs = backgroundReadExecutor.getCompletedTaskCount();
+        HealthConnectThreadScheduler.QueueMetrics metrics =
+                HealthConnectThreadScheduler.getQueueMetrics(
+                        HealthConnectThreadScheduler.LANE_BACKGROUND_READ);
+        long scheduledTasks = metrics.getScheduledTaskCount();
+
+        HealthConnectThreadScheduler.schedule(
+                mContext, () -> {}, Process.myUid(), false, /* isReadOnly= */ true);
+        TestUtils.waitForTaskToFinishSuccessfully(
+                () -> {
+                    if (backgroundReadExecutor.getCompletedTaskCount() != completedJobs + 1) {
+                        throw new RuntimeException();
+                    }
+                });
+
+        Truth.assertThat(metrics.getScheduledTaskCount()).isEqualTo(scheduledTasks + 1);
+        Truth.assertThat(mBackgroundTaskScheduler.getCompletedTaskCount())
+                .isEqualTo(mBackgroundTaskSchedulerCompletedJobs);
+    }
+
+    @Test
+    public void testUpdateReadThreadCounts_resizesReadLanes() {
+        HealthConnectThreadScheduler.updateReadThreadCounts(4, 100);
+        Truth.assertThat(HealthConnectThreadScheduler.sForegroundReadExecutor.getCorePoolSize())
+                .isEqualTo(4);
+        Truth.assertThat(HealthConnectThreadScheduler.sBackgroundReadExecutor.getCorePoolSize())
+                .isEqualTo(8);
+
+        HealthConnectThreadScheduler.updateReadThreadCounts(
+                HealthConnectDeviceConfigManager.FOREGROUND_READ_THREAD_COUNT_DEFAULT_FLAG_VALUE,
+                HealthConnectDeviceConfigManager.BACKGROUND_READ_THREAD_COUNT_DEFAULT_FLAG_VALUE);
+        Truth.assertThat(HealthConnectThreadScheduler.sBackgroundReadExecutor.getMaximumPoolSize())
+                .isEqualTo(
+                        HealthConnectDeviceConfigManager
+                                .BACKGROUND_READ_THREAD_COUNT_DEFAULT_FLAG_VALUE);
+    }
 }
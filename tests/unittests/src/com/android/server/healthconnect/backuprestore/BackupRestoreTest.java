@@ -29,6 +29,7 @@ import static com.android.server.healthconnect.backuprestore.BackupRestore.DATA_
 import static com.android.server.healthconnect.backuprestore.BackupRestore.DATA_DOWNLOAD_TIMEOUT_CANCELLED_KEY;
 import static com.android.server.healthconnect.backuprestore.BackupRestore.DATA_DOWNLOAD_TIMEOUT_KEY;
 import static com.android.server.healthconnect.backuprestore.BackupRestore.DATA_MERGING_RETRY_KEY;
+import static com.android.server.healthconnect.backuprestore.BackupRestore.DATA_MERGING_PROGRESS_TIME_KEY;
 import static com.android.server.healthconnect.backuprestore.BackupRestore.DATA_MERGING_TIMEOUT_CANCELLED_KEY;
 import static com.android.server.healthconnect.backuprestore.BackupRestore.DATA_MERGING_TIMEOUT_KEY;
 import static com.android.server.healthconnect.backuprestore.BackupRestore.DATA_RESTORE_ERROR_KEY;
@@ -46,6 +47,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -93,6 +95,7 @@ import org.mockito.quality.Strictness;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.time.Instant;
 import java.util.Map;
 
@@ -191,6 +194,14 @@ public class BackupRestoreTest {
 
         when(mTransactionManager.getDatabasePath()).thenReturn(dbFileToBackup);
         when(mFirstGrantTimeManager.getFile(mUserHandle)).thenReturn(grantTimeFileToBackup);
+        doAnswer(
+                        invocation -> {
+                            File snapshot = invocation.getArgument(0);
+                            Files.copy(dbFileToBackup.toPath(), snapshot.toPath());
+                            return null;
+                        })
+                .when(mTransactionManager)
+                .snapshotTo(any());
 
         Map<String, ParcelFileDescriptor> pfdsByFileName = new ArrayMap<>();
         pfdsByFileName.put(
@@ -205,6 +216,8 @@ public class BackupRestoreTest {
 
         assertThat(dbFileBacked.length()).isEqualTo(dbFileToBackup.length());
         assertThat(grantTimeFileBacked.length()).isEqualTo(dbFileToBackup.length());
+        verify(mTransactionManager).snapshotTo(any());
+        verify(mTransactionManager, never()).checkpoint();
     }
 
     @Test
@@ -588,6 +601,38 @@ public class BackupRestoreTest {
                 .insertOrReplacePreference(eq(DATA_MERGING_TIMEOUT_CANCELLED_KEY), eq(""));
     }
 
+    @Test
+    public void testOnStartJob_forMergingProgressJob_whenMergingProgressed_reschedulesTimeout() {
+        long timeoutStartTime = Instant.now().minusSeconds(60).toEpochMilli();
+        when(mPreferenceHelper.getPreference(eq(DATA_RESTORE_STATE_KEY)))
+                .thenReturn(String.valueOf(INTERNAL_RESTORE_STATE_MERGING_IN_PROGRESS));
+        when(mPreferenceHelper.getPreference(eq(DATA_MERGING_TIMEOUT_KEY)))
+                .thenReturn(String.valueOf(timeoutStartTime));
+        when(mPreferenceHelper.getPreference(eq(DATA_MERGING_PROGRESS_TIME_KEY)))
+                .thenReturn(String.valueOf(timeoutStartTime + 1000));
+
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_JOB_NAME_KEY, DATA_MERGING_TIMEOUT_KEY);
+        mBackupRestore.handleJob(extras);
+
+        verify(mPreferenceHelper, never())
+                .insertOrReplacePreference(
+                        eq(DATA_RESTORE_STATE_KEY),
+                        eq(String.valueOf(INTERNAL_RESTORE_STATE_MERGING_DONE)));
+        verify(mPreferenceHelper, never())
+                .insertOrReplacePreference(
+                        eq(DATA_RESTORE_ERROR_KEY), eq(String.valueOf(RESTORE_ERROR_UNKNOWN)));
+        ExtendedMockito.verify(
+                () ->
+                        BackupRestore.BackupRestoreJobService.schedule(
+                                eq(mServiceContext),
+                                mJobInfoArgumentCaptor.capture(),
+                                eq(mBackupRestore)));
+        JobInfo jobInfo = mJobInfoArgumentCaptor.getValue();
+        assertThat(jobInfo.getExtras().getString(EXTRA_JOB_NAME_KEY))
+                .isEqualTo(DATA_MERGING_TIMEOUT_KEY);
+    }
+
     @Test
     public void testMerge_mergingOfGrantTimesIsInvoked() {
         when(mPreferenceHelper.getPreference(eq(DATA_RESTORE_STATE_KEY)))
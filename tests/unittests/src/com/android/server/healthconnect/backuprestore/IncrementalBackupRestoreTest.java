@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.backuprestore;
+
+import static android.health.connect.Constants.DEFAULT_LONG;
+import static android.health.connect.HealthConnectDataState.RESTORE_ERROR_VERSION_DIFF;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.backuprestore.BackupRestore.BACKUP_WATERMARK_KEY;
+import static com.android.server.healthconnect.backuprestore.BackupRestore.BACKUP_WATERMARK_TIME_KEY;
+import static com.android.server.healthconnect.backuprestore.BackupRestore.INTERNAL_RESTORE_STATE_STAGING_DONE;
+import static com.android.server.healthconnect.backuprestore.BackupRestore.MERGED_INCREMENTAL_BACKUP_WATERMARK_KEY;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.TEST_PACKAGE_NAME;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.createStepsRecord;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.insertRecords;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.readRecords;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.updateRecords;
+import static com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper.DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.health.connect.RecordIdFilter;
+import android.health.connect.aidl.DeleteUsingFiltersRequestParcel;
+import android.health.connect.aidl.RecordIdFiltersParcel;
+import android.health.connect.datatypes.StepsRecord;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.health.connect.restore.StageRemoteDataRequest;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.migration.MigrationStateManager;
+import com.android.server.healthconnect.permission.FirstGrantTimeManager;
+import com.android.server.healthconnect.permission.GrantTimeXmlHelper;
+import com.android.server.healthconnect.storage.HealthConnectDatabaseTestRule;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper;
+import com.android.server.healthconnect.storage.request.DeleteTransactionRequest;
+import com.android.server.healthconnect.utils.FilesUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/** Tests incremental backups written from and merged into the real health connect db. */
+@RunWith(AndroidJUnit4.class)
+public class IncrementalBackupRestoreTest {
+    private static final String INCREMENTAL_BACKUP_FILE_NAME =
+            IncrementalBackup.FILE_NAME_PREFIX + "_test";
+    private static final String NEW_APP_PACKAGE_NAME = "android.healthconnect.uninstalled";
+    private static final long START_TIME = Instant.parse("2023-06-01T00:00:00Z").toEpochMilli();
+
+    @Rule
+    public final HealthConnectDatabaseTestRule mDatabaseRule =
+            new HealthConnectDatabaseTestRule(
+                    Environment.class,
+                    GrantTimeXmlHelper.class,
+                    BackupRestore.BackupRestoreJobService.class);
+
+    @Mock private FirstGrantTimeManager mFirstGrantTimeManager;
+    @Mock private MigrationStateManager mMigrationStateManager;
+    private File mDataDirectory;
+    private File mTransportDirectory;
+    private BackupRestore mBackupRestore;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        Context context = mDatabaseRule.getContext();
+        mDataDirectory = context.getDir("incremental_backup_data", Context.MODE_PRIVATE);
+        mTransportDirectory = context.getDir("incremental_backup_transport", Context.MODE_PRIVATE);
+        when(Environment.getDataDirectory()).thenReturn(mDataDirectory);
+        mBackupRestore =
+                new BackupRestore(mFirstGrantTimeManager, mMigrationStateManager, context);
+    }
+
+    @After
+    public void tearDown() {
+        FilesUtil.deleteDir(mDataDirectory);
+        FilesUtil.deleteDir(mTransportDirectory);
+    }
+
+    @Test
+    public void testIncrementalBackup_withoutDatabaseBackup_writesNothing() throws Exception {
+        insertRecords(mDatabaseRule.getContext(), createStepsRecord(START_TIME, START_TIME + 1, 1));
+
+        File backup = backUp(INCREMENTAL_BACKUP_FILE_NAME);
+
+        assertThat(backup.length()).isEqualTo(0);
+        assertThat(mBackupRestore.getBackupMetrics().getIncrementalBackupCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testIncrementalBackup_afterDatabaseBackup_writesChangesSinceIt() throws Exception {
+        List<UUID> uuids =
+                insertRecords(
+                        mDatabaseRule.getContext(),
+                        createStepsRecord(START_TIME, START_TIME + 1, 1),
+                        createStepsRecord(START_TIME + 1, START_TIME + 2, 2));
+        File databaseBackup =
+                backUp(TransactionManager.getInitialisedInstance().getDatabasePath().getName());
+        mBackupRestore.onBackupDelivered();
+        long fullBackupWatermark = ChangeLogsHelper.getInstance().getLatestRowId();
+        // Record 0 is deleted, record 1 updated and record 2 inserted after the database backup.
+        deleteStepsRecord(uuids.get(0));
+        StepsRecordInternal update = createStepsRecord(START_TIME + 1, START_TIME + 2, 20);
+        update.setUuid(uuids.get(1));
+        updateRecords(mDatabaseRule.getContext(), update);
+        UUID inserted =
+                insertRecords(
+                                mDatabaseRule.getContext(),
+                                createStepsRecord(START_TIME + 2, START_TIME + 3, 3))
+                        .get(0);
+
+        BackupContent first = readBackup(backUp(INCREMENTAL_BACKUP_FILE_NAME));
+        mBackupRestore.onBackupDelivered();
+        BackupContent second = readBackup(backUp(INCREMENTAL_BACKUP_FILE_NAME));
+
+        assertThat(databaseBackup.length()).isGreaterThan(0L);
+        assertThat(first.mHeader.getFromWatermark()).isEqualTo(fullBackupWatermark);
+        assertThat(first.mHeader.getToWatermark())
+                .isEqualTo(ChangeLogsHelper.getInstance().getLatestRowId());
+        assertThat(first.mDeletedUuids).containsExactly(uuids.get(0));
+        assertThat(first.getStepsCounts()).containsExactly(uuids.get(1), 20L, inserted, 3L);
+        // The watermark moved, so the next backup chains from the first one and is empty.
+        assertThat(second.mHeader.getFromWatermark())
+                .isEqualTo(first.mHeader.getToWatermark());
+        assertThat(second.mDeletedUuids).isEmpty();
+        assertThat(second.mRecords).isEmpty();
+        assertThat(mBackupRestore.getBackupMetrics().getLastIncrementalBackupRecordCount())
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void testIncrementalBackup_previousNotDelivered_writesItsChangesAgain()
+            throws Exception {
+        backUp(TransactionManager.getInitialisedInstance().getDatabasePath().getName());
+        mBackupRestore.onBackupDelivered();
+        long fullBackupWatermark = ChangeLogsHelper.getInstance().getLatestRowId();
+        UUID inserted =
+                insertRecords(
+                                mDatabaseRule.getContext(),
+                                createStepsRecord(START_TIME, START_TIME + 1, 1))
+                        .get(0);
+
+        // The first backup fails to upload, so it's never delivered.
+        BackupContent first = readBackup(backUp(INCREMENTAL_BACKUP_FILE_NAME));
+        BackupContent second = readBackup(backUp(INCREMENTAL_BACKUP_FILE_NAME));
+
+        assertThat(first.getStepsCounts()).containsExactly(inserted, 1L);
+        assertThat(second.mHeader.getFromWatermark()).isEqualTo(fullBackupWatermark);
+        assertThat(second.getStepsCounts()).containsExactly(inserted, 1L);
+    }
+
+    @Test
+    public void testIncrementalBackup_watermarkOlderThanChangeLogs_writesNothing()
+            throws Exception {
+        insertRecords(mDatabaseRule.getContext(), createStepsRecord(START_TIME, START_TIME + 1, 1));
+        // Change logs may have been deleted from a day earlier than their retention period.
+        Duration changeLogsPeriod = Duration.ofDays(DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS - 1);
+
+        setBackupWatermark(Instant.now().minus(changeLogsPeriod).minus(Duration.ofHours(1)));
+        File expired = backUp(INCREMENTAL_BACKUP_FILE_NAME);
+        setBackupWatermark(Instant.now().minus(changeLogsPeriod).plus(Duration.ofHours(1)));
+        File notExpired = backUp(INCREMENTAL_BACKUP_FILE_NAME);
+
+        assertThat(expired.length()).isEqualTo(0);
+        assertThat(readBackup(notExpired).mRecords).hasSize(1);
+    }
+
+    @Test
+    public void testIncrementalBackupMerger_replacesDeletesAndAddsRecords() throws Exception {
+        List<UUID> uuids =
+                insertRecords(
+                        mDatabaseRule.getContext(),
+                        createStepsRecord(START_TIME, START_TIME + 1, 1),
+                        createStepsRecord(START_TIME + 1, START_TIME + 2, 2));
+        UUID newAppUuid = UUID.randomUUID();
+        File backup = new File(mTransportDirectory, INCREMENTAL_BACKUP_FILE_NAME);
+        try (OutputStream outputStream = new FileOutputStream(backup)) {
+            IncrementalBackup.Writer writer =
+                    new IncrementalBackup.Writer(
+                            outputStream,
+                            TransactionManager.getInitialisedInstance().getDatabaseVersion(),
+                            /* fromWatermark= */ 0,
+                            /* toWatermark= */ 10);
+            writer.writeDeletes(RECORD_TYPE_STEPS, List.of(uuids.get(0)));
+            writer.writeRecords(
+                    List.of(
+                            createBackedUpStepsRecord(uuids.get(1), TEST_PACKAGE_NAME, 20),
+                            // Of an app which isn't installed, nor in the db yet.
+                            createBackedUpStepsRecord(newAppUuid, NEW_APP_PACKAGE_NAME, 30)));
+            writer.finish();
+        }
+
+        try (InputStream inputStream = new FileInputStream(backup)) {
+            new IncrementalBackup.Reader(inputStream)
+                    .readSections(
+                            new BackupRestore.IncrementalBackupMerger(
+                                    mDatabaseRule.getContext()));
+        }
+
+        assertThat(readRecords(RECORD_TYPE_STEPS, List.of(uuids.get(0)))).isEmpty();
+        List<RecordInternal<?>> records =
+                readRecords(RECORD_TYPE_STEPS, List.of(uuids.get(1), newAppUuid));
+        assertThat(getStepsCounts(records)).containsExactly(uuids.get(1), 20L, newAppUuid, 30L);
+        assertThat(AppInfoHelper.getInstance().getAppInfoId(NEW_APP_PACKAGE_NAME))
+                .isNotEqualTo(DEFAULT_LONG);
+        assertThat(
+                        TransactionManager.getInitialisedInstance()
+                                .getNumberOfEntriesInTheTable(StepsRecordHelper.STEPS_TABLE_NAME))
+                .isEqualTo(2L);
+    }
+
+    @Test
+    public void testMerge_incrementalBackupNeedsUpgrade_keepsItForTheNextAttempt()
+            throws Exception {
+        insertRecords(mDatabaseRule.getContext(), createStepsRecord(START_TIME, START_TIME + 1, 1));
+        stageDatabase();
+        long watermark = ChangeLogsHelper.getInstance().getLatestRowId();
+        int databaseVersion = TransactionManager.getInitialisedInstance().getDatabaseVersion();
+        UUID applied = UUID.randomUUID();
+        UUID kept = UUID.randomUUID();
+        File first =
+                stageIncrementalBackup(
+                        "_1",
+                        databaseVersion,
+                        watermark,
+                        watermark + 10,
+                        createBackedUpStepsRecord(applied, TEST_PACKAGE_NAME, 10));
+        // Only the next version of the module can apply it.
+        File second =
+                stageIncrementalBackup(
+                        "_2",
+                        databaseVersion + 1,
+                        watermark + 10,
+                        watermark + 20,
+                        createBackedUpStepsRecord(kept, TEST_PACKAGE_NAME, 20));
+        mBackupRestore.setInternalRestoreState(INTERNAL_RESTORE_STATE_STAGING_DONE, true);
+
+        try {
+            mBackupRestore.merge();
+        } finally {
+            mBackupRestore.getStagedDatabase().close();
+        }
+
+        assertThat(readRecords(RECORD_TYPE_STEPS, List.of(applied))).hasSize(1);
+        assertThat(readRecords(RECORD_TYPE_STEPS, List.of(kept))).isEmpty();
+        assertThat(first.exists()).isFalse();
+        assertThat(second.exists()).isTrue();
+        assertThat(mBackupRestore.getInternalRestoreState())
+                .isEqualTo(INTERNAL_RESTORE_STATE_STAGING_DONE);
+        assertThat(mBackupRestore.getDataRestoreError()).isEqualTo(RESTORE_ERROR_VERSION_DIFF);
+        // The next attempt resumes after the backup applied.
+        assertThat(
+                        PreferenceHelper.getInstance()
+                                .getPreference(MERGED_INCREMENTAL_BACKUP_WATERMARK_KEY))
+                .isEqualTo(String.valueOf(watermark + 10));
+    }
+
+    /** Sends {@code fileName} for backup, and returns the file it was written to. */
+    private File backUp(String fileName) throws IOException {
+        File file = new File(mTransportDirectory, fileName);
+        file.delete();
+        file.createNewFile();
+        mBackupRestore.getAllDataForBackup(
+                new StageRemoteDataRequest(
+                        Map.of(
+                                fileName,
+                                ParcelFileDescriptor.open(
+                                        file, ParcelFileDescriptor.MODE_READ_WRITE))),
+                mDatabaseRule.getContext().getUser());
+        return file;
+    }
+
+    /** Stages a backup of the health connect db, as restored from the transport. */
+    private void stageDatabase() throws IOException {
+        String databaseName =
+                TransactionManager.getInitialisedInstance().getDatabasePath().getName();
+        File backup = backUp(databaseName);
+        // The staged db is always in the directory of the system user.
+        File stagedDatabase = new File(getStagedDirectory(0), databaseName);
+        stagedDatabase.getParentFile().mkdirs();
+        Files.copy(backup.toPath(), stagedDatabase.toPath());
+    }
+
+    private File stageIncrementalBackup(
+            String suffix,
+            int databaseVersion,
+            long fromWatermark,
+            long toWatermark,
+            RecordInternal<?> record)
+            throws IOException {
+        File directory = getStagedDirectory(mDatabaseRule.getContext().getUser().getIdentifier());
+        directory.mkdirs();
+        File file = new File(directory, INCREMENTAL_BACKUP_FILE_NAME + suffix);
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            IncrementalBackup.Writer writer =
+                    new IncrementalBackup.Writer(
+                            outputStream, databaseVersion, fromWatermark, toWatermark);
+            writer.writeRecords(List.of(record));
+            writer.finish();
+        }
+        return file;
+    }
+
+    private static File getStagedDirectory(int userId) {
+        return new File(FilesUtil.getDataSystemCeHCDirectoryForUser(userId), "remote_staged");
+    }
+
+    private void deleteStepsRecord(UUID uuid) {
+        TransactionManager.getInitialisedInstance()
+                .deleteAll(
+                        new DeleteTransactionRequest(
+                                TEST_PACKAGE_NAME,
+                                new DeleteUsingFiltersRequestParcel(
+                                        new RecordIdFiltersParcel(
+                                                List.of(
+                                                        RecordIdFilter.fromId(
+                                                                StepsRecord.class,
+                                                                uuid.toString()))),
+                                        TEST_PACKAGE_NAME)));
+    }
+
+    private static void setBackupWatermark(Instant time) {
+        PreferenceHelper.getInstance().insertOrReplacePreference(BACKUP_WATERMARK_KEY, "0");
+        PreferenceHelper.getInstance()
+                .insertOrReplacePreference(
+                        BACKUP_WATERMARK_TIME_KEY, String.valueOf(time.toEpochMilli()));
+    }
+
+    private static StepsRecordInternal createBackedUpStepsRecord(
+            UUID uuid, String packageName, int count) {
+        StepsRecordInternal record = createStepsRecord(START_TIME, START_TIME + 1, count);
+        record.setUuid(uuid);
+        record.setPackageName(packageName);
+        record.setAppName("Unit tests");
+        return record;
+    }
+
+    private static BackupContent readBackup(File file) throws IOException {
+        try (InputStream inputStream = new FileInputStream(file)) {
+            IncrementalBackup.Reader reader = new IncrementalBackup.Reader(inputStream);
+            BackupContent content = new BackupContent(reader.getHeader());
+            reader.readSections(content);
+            return content;
+        }
+    }
+
+    private static Map<UUID, Long> getStepsCounts(List<RecordInternal<?>> records) {
+        Map<UUID, Long> counts = new HashMap<>();
+        for (RecordInternal<?> record : records) {
+            counts.put(record.getUuid(), (long) ((StepsRecordInternal) record).getCount());
+        }
+        return counts;
+    }
+
+    private static final class BackupContent implements IncrementalBackup.Consumer {
+        private final IncrementalBackup.Header mHeader;
+        private final List<UUID> mDeletedUuids = new ArrayList<>();
+        private final List<RecordInternal<?>> mRecords = new ArrayList<>();
+
+        BackupContent(IncrementalBackup.Header header) {
+            mHeader = header;
+        }
+
+        @Override
+        public void onDeletes(int recordType, List<UUID> uuids) {
+            assertThat(recordType).isEqualTo(RECORD_TYPE_STEPS);
+            mDeletedUuids.addAll(uuids);
+        }
+
+        @Override
+        public void onRecords(List<RecordInternal<?>> records) {
+            mRecords.addAll(records);
+        }
+
+        Map<UUID, Long> getStepsCounts() {
+            return IncrementalBackupRestoreTest.getStepsCounts(mRecords);
+        }
+    }
+}
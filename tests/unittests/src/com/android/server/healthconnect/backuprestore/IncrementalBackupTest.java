@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.backuprestore;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.utils.FilesUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class IncrementalBackupTest {
+    private static final int DATABASE_VERSION = 13;
+    private static final String APP_PACKAGE_NAME = "android.healthconnect.unittests";
+    private static final long START_TIME = Instant.parse("2023-05-01T10:00:00Z").toEpochMilli();
+    private static final UUID UUID_1 = UUID.randomUUID();
+    private static final UUID UUID_2 = UUID.randomUUID();
+    private static final UUID UUID_3 = UUID.randomUUID();
+
+    private File mBackupDirectory;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        mBackupDirectory = context.getDir("incremental_backups", Context.MODE_PRIVATE);
+    }
+
+    @After
+    public void tearDown() {
+        FilesUtil.deleteDir(mBackupDirectory);
+    }
+
+    @Test
+    public void testGetChain_backupsOutOfOrder_chainedFromBaseWatermark() throws Exception {
+        File covered = writeBackup("covered", 0, 10, List.of(), List.of());
+        File first = writeBackup("first", 10, 20, List.of(), List.of());
+        File second = writeBackup("second", 18, 35, List.of(), List.of());
+
+        List<File> chain = IncrementalBackup.getChain(10, List.of(second, covered, first));
+
+        assertThat(chain).containsExactly(first, second).inOrder();
+    }
+
+    @Test
+    public void testGetChain_gapInBackups_stopsAtGap() throws Exception {
+        File first = writeBackup("first", 0, 10, List.of(), List.of());
+        File afterGap = writeBackup("after_gap", 15, 20, List.of(), List.of());
+        File invalid = new File(mBackupDirectory, IncrementalBackup.FILE_NAME_PREFIX + "_invalid");
+        invalid.createNewFile();
+
+        List<File> chain = IncrementalBackup.getChain(0, List.of(first, afterGap, invalid));
+
+        assertThat(chain).containsExactly(first);
+    }
+
+    @Test
+    public void testRestore_chainedBackups_restoresLatestRecords() throws Exception {
+        // The base backup holds the records 1 and 2.
+        Map<UUID, Long> restoredSteps = new TreeMap<>();
+        restoredSteps.put(UUID_1, 100L);
+        restoredSteps.put(UUID_2, 200L);
+        // Record 1 is deleted, record 2 updated and record 3 inserted.
+        File first =
+                writeBackup(
+                        "first",
+                        10,
+                        20,
+                        List.of(UUID_1),
+                        List.of(getStepsRecord(UUID_2, 250), getStepsRecord(UUID_3, 300)));
+        // Record 3 is deleted, and record 1 inserted again with the same uuid.
+        File second =
+                writeBackup(
+                        "second",
+                        20,
+                        30,
+                        List.of(UUID_3),
+                        List.of(getStepsRecord(UUID_1, 150)));
+
+        for (File file : IncrementalBackup.getChain(10, List.of(second, first))) {
+            try (InputStream inputStream = new FileInputStream(file)) {
+                IncrementalBackup.Reader reader = new IncrementalBackup.Reader(inputStream);
+                assertThat(reader.getHeader().getDatabaseVersion()).isEqualTo(DATABASE_VERSION);
+                reader.readSections(
+                        new IncrementalBackup.Consumer() {
+                            @Override
+                            public void onDeletes(int recordType, List<UUID> uuids) {
+                                assertThat(recordType).isEqualTo(RECORD_TYPE_STEPS);
+                                uuids.forEach(restoredSteps::remove);
+                            }
+
+                            @Override
+                            public void onRecords(List<RecordInternal<?>> records) {
+                                for (RecordInternal<?> record : records) {
+                                    StepsRecordInternal steps = (StepsRecordInternal) record;
+                                    assertThat(steps.getPackageName()).isEqualTo(APP_PACKAGE_NAME);
+                                    restoredSteps.put(steps.getUuid(), (long) steps.getCount());
+                                }
+                            }
+                        });
+            }
+        }
+
+        assertThat(restoredSteps).containsExactly(UUID_1, 150L, UUID_2, 250L);
+    }
+
+    private File writeBackup(
+            String name,
+            long fromWatermark,
+            long toWatermark,
+            List<UUID> deletedUuids,
+            List<RecordInternal<?>> records)
+            throws IOException {
+        File file = new File(mBackupDirectory, IncrementalBackup.FILE_NAME_PREFIX + "_" + name);
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            IncrementalBackup.Writer writer =
+                    new IncrementalBackup.Writer(
+                            outputStream, DATABASE_VERSION, fromWatermark, toWatermark);
+            writer.writeDeletes(RECORD_TYPE_STEPS, deletedUuids);
+            writer.writeRecords(records);
+            writer.finish();
+        }
+        return file;
+    }
+
+    private static StepsRecordInternal getStepsRecord(UUID uuid, int count) {
+        return (StepsRecordInternal)
+                new StepsRecordInternal()
+                        .setCount(count)
+                        .setStartTime(START_TIME)
+                        .setEndTime(START_TIME + 60_000)
+                        .setUuid(uuid)
+                        .setPackageName(APP_PACKAGE_NAME)
+                        .setAppName("Unit tests");
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.backuprestore;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HEART_RATE;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.DeviceInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.HeartRateRecordHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
+import com.android.server.healthconnect.storage.request.CreateTableRequest;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class StagedDatabaseMergerTest {
+    private static final String SERIES_TABLE_NAME = "heart_rate_record_series_table";
+    private static final UUID UUID_1 = UUID.randomUUID();
+    private static final UUID UUID_2 = UUID.randomUUID();
+    private static final UUID UUID_3 = UUID.randomUUID();
+    private static final int STAGED_RECORD_COUNT = 500;
+    private static final int SAMPLES_PER_RECORD = 100;
+
+    private final HeartRateRecordHelper mHelper = new HeartRateRecordHelper();
+    private Context mContext;
+    private File mStagedPath;
+    private File mLivePath;
+    private SQLiteDatabase mStagedDatabase;
+    private SQLiteDatabase mLiveDatabase;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mStagedPath = mContext.getDatabasePath("staged_merger_test.db");
+        mLivePath = mContext.getDatabasePath("live_merger_test.db");
+        mStagedDatabase = createDatabase(mStagedPath);
+        mLiveDatabase = createDatabase(mLivePath);
+        // As the health connect db, so that its readers and writer don't block each other.
+        mLiveDatabase.enableWriteAheadLogging();
+    }
+
+    @After
+    public void tearDown() {
+        mStagedDatabase.close();
+        mLiveDatabase.close();
+        SQLiteDatabase.deleteDatabase(mStagedPath);
+        SQLiteDatabase.deleteDatabase(mLivePath);
+    }
+
+    @Test
+    public void testMerge_remapsIdsAndCopiesSamplesOfInsertedRecords() {
+        insertApp(mStagedDatabase, 1, "staged.app");
+        insertApp(mLiveDatabase, 1, "live.app");
+        insertApp(mLiveDatabase, 2, "staged.app");
+        insertDevice(mStagedDatabase, 1);
+        insertDevice(mLiveDatabase, 5);
+        insertHeartRate(mStagedDatabase, UUID_1, 1, 1, 70, 71);
+        insertHeartRate(mStagedDatabase, UUID_2, 1, 1, 80, 81);
+        insertHeartRate(mStagedDatabase, UUID_3, 1, 1, 90, 91);
+        // Already restored, so neither the record nor its samples are copied again.
+        insertHeartRate(mLiveDatabase, UUID_1, 2, 5, 60);
+        List<long[]> progress = new ArrayList<>();
+
+        List<Integer> mergedRecordTypes =
+                new StagedDatabaseMerger(
+                                mStagedDatabase,
+                                mLivePath,
+                                Map.of(1L, 2L),
+                                Map.of(1L, 5L),
+                                /* maxChunkRows= */ 6)
+                        .merge(
+                                List.of(mHelper),
+                                (merged, total) -> progress.add(new long[] {merged, total}));
+
+        assertThat(mergedRecordTypes).containsExactly(RECORD_TYPE_HEART_RATE);
+        assertThat(progress).hasSize(2);
+        assertThat(progress.get(1)).isEqualTo(new long[] {3, 3});
+        assertThat(getBeatsPerMinute(UUID_1)).containsExactly(60L);
+        assertThat(getBeatsPerMinute(UUID_2)).containsExactly(80L, 81L);
+        assertThat(getBeatsPerMinute(UUID_3)).containsExactly(90L, 91L);
+        try (Cursor cursor =
+                mLiveDatabase.rawQuery(
+                        "SELECT DISTINCT app_info_id, device_info_id FROM "
+                                + HeartRateRecordHelper.TABLE_NAME,
+                        null)) {
+            assertThat(cursor.getCount()).isEqualTo(1);
+            cursor.moveToFirst();
+            assertThat(cursor.getLong(0)).isEqualTo(2);
+            assertThat(cursor.getLong(1)).isEqualTo(5);
+        }
+        assertThat(DatabaseUtils.queryNumEntries(mStagedDatabase, HeartRateRecordHelper.TABLE_NAME))
+                .isEqualTo(0);
+        assertThat(DatabaseUtils.queryNumEntries(mStagedDatabase, SERIES_TABLE_NAME)).isEqualTo(0);
+    }
+
+    @Test
+    public void testMerge_chunksSizedByRowsWithSamples() {
+        insertApp(mStagedDatabase, 1, "staged.app");
+        insertApp(mLiveDatabase, 1, "staged.app");
+        insertDevice(mStagedDatabase, 1);
+        insertDevice(mLiveDatabase, 1);
+        insertHeartRate(mStagedDatabase, UUID_1, 1, 1, 70, 71);
+        insertHeartRate(mStagedDatabase, UUID_2, 1, 1, 80);
+        // More rows than a chunk may copy, so merged in a chunk of its own.
+        insertHeartRate(mStagedDatabase, UUID_3, 1, 1, 90, 91, 92, 93, 94, 95);
+        List<long[]> progress = new ArrayList<>();
+
+        new StagedDatabaseMerger(
+                        mStagedDatabase,
+                        mLivePath,
+                        Map.of(1L, 1L),
+                        Map.of(1L, 1L),
+                        /* maxChunkRows= */ 5)
+                .merge(
+                        List.of(mHelper),
+                        (merged, total) -> progress.add(new long[] {merged, total}));
+
+        assertThat(progress).hasSize(2);
+        assertThat(progress.get(0)).isEqualTo(new long[] {2, 3});
+        assertThat(progress.get(1)).isEqualTo(new long[] {3, 3});
+        assertThat(getBeatsPerMinute(UUID_1)).containsExactly(70L, 71L);
+        assertThat(getBeatsPerMinute(UUID_2)).containsExactly(80L);
+        assertThat(getBeatsPerMinute(UUID_3)).containsExactly(90L, 91L, 92L, 93L, 94L, 95L);
+    }
+
+    @Test
+    public void testMerge_concurrentLiveWrites_succeed() throws Exception {
+        insertApp(mStagedDatabase, 1, "staged.app");
+        insertApp(mLiveDatabase, 1, "staged.app");
+        insertDevice(mStagedDatabase, 1);
+        insertDevice(mLiveDatabase, 1);
+        long[] beatsPerMinute = new long[SAMPLES_PER_RECORD];
+        Arrays.fill(beatsPerMinute, 70);
+        mStagedDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < STAGED_RECORD_COUNT; i++) {
+                insertHeartRate(mStagedDatabase, UUID.randomUUID(), 1, 1, beatsPerMinute);
+            }
+            mStagedDatabase.setTransactionSuccessful();
+        } finally {
+            mStagedDatabase.endTransaction();
+        }
+
+        AtomicBoolean isMerging = new AtomicBoolean(true);
+        AtomicInteger liveWriteCount = new AtomicInteger();
+        CountDownLatch liveWritten = new CountDownLatch(1);
+        // Throws SQLiteDatabaseLockedException if a chunk holds the lock for longer than the busy
+        // timeout.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> liveWrites =
+                executor.submit(
+                        () -> {
+                            while (isMerging.get()) {
+                                insertHeartRate(mLiveDatabase, UUID.randomUUID(), 1, 1, 60, 61);
+                                liveWriteCount.incrementAndGet();
+                                liveWritten.countDown();
+                            }
+                            return null;
+                        });
+        try {
+            new StagedDatabaseMerger(mStagedDatabase, mLivePath, Map.of(1L, 1L), Map.of(1L, 1L))
+                    .merge(
+                            List.of(mHelper),
+                            // Makes sure that the live writes overlap the merge.
+                            (merged, total) -> await(liveWritten));
+        } finally {
+            isMerging.set(false);
+            executor.shutdown();
+        }
+        liveWrites.get();
+
+        assertThat(liveWriteCount.get()).isGreaterThan(0);
+        assertThat(DatabaseUtils.queryNumEntries(mLiveDatabase, HeartRateRecordHelper.TABLE_NAME))
+                .isEqualTo(STAGED_RECORD_COUNT + liveWriteCount.get());
+        assertThat(DatabaseUtils.queryNumEntries(mLiveDatabase, SERIES_TABLE_NAME))
+                .isEqualTo(
+                        (long) STAGED_RECORD_COUNT * SAMPLES_PER_RECORD
+                                + 2L * liveWriteCount.get());
+    }
+
+    @Test
+    public void testMerge_unmappedApp_skipsItsRecords() {
+        insertApp(mStagedDatabase, 1, "uninstalled.app");
+        insertDevice(mStagedDatabase, 1);
+        insertHeartRate(mStagedDatabase, UUID_1, 1, 1, 70);
+
+        List<Integer> mergedRecordTypes =
+                new StagedDatabaseMerger(mStagedDatabase, mLivePath, Map.of(), Map.of())
+                        .merge(List.of(mHelper), (merged, total) -> {});
+
+        assertThat(mergedRecordTypes).isEmpty();
+        assertThat(DatabaseUtils.queryNumEntries(mLiveDatabase, HeartRateRecordHelper.TABLE_NAME))
+                .isEqualTo(0);
+        assertThat(DatabaseUtils.queryNumEntries(mLiveDatabase, SERIES_TABLE_NAME)).isEqualTo(0);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private List<Long> getBeatsPerMinute(UUID uuid) {
+        List<Long> beatsPerMinute = new ArrayList<>();
+        try (Cursor cursor =
+                mLiveDatabase.rawQuery(
+                        "SELECT s.beats_per_minute FROM "
+                                + HeartRateRecordHelper.TABLE_NAME
+                                + " r JOIN "
+                                + SERIES_TABLE_NAME
+                                + " s ON s.parent_key = r.row_id WHERE r.uuid = "
+                                + StorageUtils.getHexString(uuid)
+                                + " ORDER BY s.epoch_millis",
+                        null)) {
+            while (cursor.moveToNext()) {
+                beatsPerMinute.add(cursor.getLong(0));
+            }
+        }
+        return beatsPerMinute;
+    }
+
+    private SQLiteDatabase createDatabase(File path) {
+        SQLiteDatabase.deleteDatabase(path);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+        db.setForeignKeyConstraintsEnabled(true);
+        HealthConnectDatabase.createTable(db, AppInfoHelper.getInstance().getCreateTableRequest());
+        HealthConnectDatabase.createTable(
+                db, DeviceInfoHelper.getInstance().getCreateTableRequest());
+        CreateTableRequest request = mHelper.getCreateTableRequest();
+        HealthConnectDatabase.createTable(db, request);
+        request.getChildTableRequests()
+                .forEach(childRequest -> HealthConnectDatabase.createTable(db, childRequest));
+        return db;
+    }
+
+    private static void insertApp(SQLiteDatabase db, long rowId, String packageName) {
+        ContentValues values = new ContentValues();
+        values.put(RecordHelper.PRIMARY_COLUMN_NAME, rowId);
+        values.put(AppInfoHelper.PACKAGE_COLUMN_NAME, packageName);
+        db.insertOrThrow(AppInfoHelper.TABLE_NAME, null, values);
+    }
+
+    private static void insertDevice(SQLiteDatabase db, long rowId) {
+        ContentValues values = new ContentValues();
+        values.put(RecordHelper.PRIMARY_COLUMN_NAME, rowId);
+        values.put("model", "Watch");
+        db.insertOrThrow(DeviceInfoHelper.getInstance().getTableName(), null, values);
+    }
+
+    private static void insertHeartRate(
+            SQLiteDatabase db,
+            UUID uuid,
+            long appInfoId,
+            long deviceInfoId,
+            long... beatsPerMinute) {
+        ContentValues values = new ContentValues();
+        values.put(RecordHelper.UUID_COLUMN_NAME, StorageUtils.convertUUIDToBytes(uuid));
+        values.put(RecordHelper.APP_INFO_ID_COLUMN_NAME, appInfoId);
+        values.put(RecordHelper.DEVICE_INFO_ID_COLUMN_NAME, deviceInfoId);
+        values.put("start_time", 1000);
+        values.put("end_time", 1000 + beatsPerMinute.length);
+        long rowId = db.insertOrThrow(HeartRateRecordHelper.TABLE_NAME, null, values);
+        for (int i = 0; i < beatsPerMinute.length; i++) {
+            ContentValues sample = new ContentValues();
+            sample.put("parent_key", rowId);
+            sample.put("epoch_millis", 1000 + i);
+            sample.put("beats_per_minute", beatsPerMinute[i]);
+            db.insertOrThrow(SERIES_TABLE_NAME, null, sample);
+        }
+    }
+}
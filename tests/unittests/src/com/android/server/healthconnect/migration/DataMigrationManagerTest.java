@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.migration;
+
+import static android.health.connect.HealthPermissions.READ_STEPS;
+import static android.health.connect.HealthPermissions.WRITE_STEPS;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HEIGHT;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.datatypes.DataOrigin;
+import android.health.connect.datatypes.HeightRecord;
+import android.health.connect.datatypes.Metadata;
+import android.health.connect.datatypes.Record;
+import android.health.connect.datatypes.StepsRecord;
+import android.health.connect.datatypes.units.Length;
+import android.health.connect.migration.MigrationEntity;
+import android.health.connect.migration.PermissionMigrationPayload;
+import android.health.connect.migration.RecordMigrationPayload;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.permission.FirstGrantTimeManager;
+import com.android.server.healthconnect.permission.HealthConnectPermissionHelper;
+import com.android.server.healthconnect.storage.BatchInsertEngine;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.DeviceInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.HealthDataCategoryPriorityHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.MigrationEntityHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class DataMigrationManagerTest {
+    private static final String APP_PACKAGE_NAME = "android.healthconnect.mocked.app";
+    private static final String APP_PACKAGE_NAME_2 = "android.healthconnect.mocked.app2";
+    private static final Instant TIME = Instant.parse("2023-05-01T10:00:00Z");
+
+    @Mock Context mUserContext;
+    @Mock TransactionManager mTransactionManager;
+    @Mock HealthConnectPermissionHelper mHealthConnectPermissionHelper;
+    @Mock FirstGrantTimeManager mFirstGrantTimeManager;
+    @Mock DeviceInfoHelper mDeviceInfoHelper;
+    @Mock AppInfoHelper mAppInfoHelper;
+    @Mock MigrationEntityHelper mMigrationEntityHelper;
+    @Mock RecordHelperProvider mRecordHelperProvider;
+    @Mock HealthDataCategoryPriorityHelper mHealthDataCategoryPriorityHelper;
+    @Mock PriorityMigrationHelper mPriorityMigrationHelper;
+    @Mock ActivityDateHelper mActivityDateHelper;
+    @Mock SQLiteDatabase mSQLiteDatabase;
+
+    private DataMigrationManager mDataMigrationManager;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        doAnswer(
+                        invocation -> {
+                            TransactionManager.TransactionRunnable<?> runnable =
+                                    invocation.getArgument(0);
+                            runnable.run(mSQLiteDatabase);
+                            return null;
+                        })
+                .when(mTransactionManager)
+                .runAsTransaction(any());
+
+        mDataMigrationManager =
+                new DataMigrationManager(
+                        mUserContext,
+                        mTransactionManager,
+                        mHealthConnectPermissionHelper,
+                        mFirstGrantTimeManager,
+                        mDeviceInfoHelper,
+                        mAppInfoHelper,
+                        mMigrationEntityHelper,
+                        mRecordHelperProvider,
+                        mHealthDataCategoryPriorityHelper,
+                        mPriorityMigrationHelper,
+                        mActivityDateHelper);
+    }
+
+    @Test
+    public void testApply_entityIdsMigratedBefore_skipped() throws Exception {
+        when(mMigrationEntityHelper.getExistingEntityIds(eq(mSQLiteDatabase), any()))
+                .thenReturn(Set.of("permissions1"));
+
+        mDataMigrationManager.apply(
+                List.of(
+                        getPermissionEntity("permissions1", APP_PACKAGE_NAME),
+                        getPermissionEntity("permissions2", APP_PACKAGE_NAME_2),
+                        getPermissionEntity("permissions2", APP_PACKAGE_NAME_2)));
+
+        verify(mMigrationEntityHelper, times(1))
+                .getExistingEntityIds(
+                        mSQLiteDatabase, List.of("permissions1", "permissions2", "permissions2"));
+        verify(mMigrationEntityHelper, never()).getInsertRequest("permissions1");
+        verify(mMigrationEntityHelper, times(1)).getInsertRequest("permissions2");
+        verify(mHealthConnectPermissionHelper, never())
+                .grantHealthPermission(eq(APP_PACKAGE_NAME), any(), any());
+        verify(mHealthConnectPermissionHelper, times(1))
+                .grantHealthPermission(eq(APP_PACKAGE_NAME_2), eq(READ_STEPS), any());
+    }
+
+    @Test
+    public void testApply_records_insertedByTableWithActivityDatesOncePerBatch() throws Exception {
+        UpsertTableRequest stepsRequest1 = getRequest("steps_record_table");
+        UpsertTableRequest heightRequest = getRequest("height_record_table");
+        UpsertTableRequest stepsRequest2 = getRequest("steps_record_table");
+        mockRecordHelper(RECORD_TYPE_STEPS, stepsRequest1, stepsRequest2);
+        mockRecordHelper(RECORD_TYPE_HEIGHT, heightRequest);
+        when(mTransactionManager.insertOrIgnore(
+                        any(BatchInsertEngine.class), any(UpsertTableRequest.class)))
+                .thenReturn(1L);
+
+        mDataMigrationManager.apply(
+                List.of(
+                        getRecordEntity("steps1", getStepsRecord()),
+                        getRecordEntity("height", getHeightRecord()),
+                        getRecordEntity("steps2", getStepsRecord())));
+
+        InOrder inOrder = inOrder(mTransactionManager);
+        inOrder.verify(mTransactionManager)
+                .insertOrIgnore(any(BatchInsertEngine.class), eq(stepsRequest1));
+        inOrder.verify(mTransactionManager)
+                .insertOrIgnore(any(BatchInsertEngine.class), eq(stepsRequest2));
+        inOrder.verify(mTransactionManager)
+                .insertOrIgnore(any(BatchInsertEngine.class), eq(heightRequest));
+        verify(mActivityDateHelper, times(1))
+                .getUpsertTableRequest(eq(RECORD_TYPE_STEPS), anyLong());
+        verify(mActivityDateHelper, times(1))
+                .getUpsertTableRequest(eq(RECORD_TYPE_HEIGHT), anyLong());
+        verify(mMigrationEntityHelper, never()).getExistingEntityIds(any(), any());
+    }
+
+    @Test
+    public void testApply_recordInsertFails_throwsWithEntityId() throws Exception {
+        UpsertTableRequest stepsRequest = getRequest("steps_record_table");
+        mockRecordHelper(RECORD_TYPE_STEPS, stepsRequest);
+        when(mTransactionManager.insertOrIgnore(any(BatchInsertEngine.class), eq(stepsRequest)))
+                .thenThrow(new IllegalStateException());
+
+        DataMigrationManager.EntityWriteException exception =
+                assertThrows(
+                        DataMigrationManager.EntityWriteException.class,
+                        () ->
+                                mDataMigrationManager.apply(
+                                        List.of(getRecordEntity("steps", getStepsRecord()))));
+
+        assertThat(exception.getEntityId()).isEqualTo("steps");
+        verify(mActivityDateHelper, never()).getUpsertTableRequest(anyInt(), anyLong());
+    }
+
+    private void mockRecordHelper(
+            int recordType, UpsertTableRequest request, UpsertTableRequest... requests) {
+        RecordHelper<?> recordHelper = mock(RecordHelper.class);
+        when(recordHelper.getUpsertTableRequest(any())).thenReturn(request, requests);
+        doReturn(recordHelper).when(mRecordHelperProvider).getRecordHelper(recordType);
+    }
+
+    private static UpsertTableRequest getRequest(String table) {
+        return new UpsertTableRequest(table, new ContentValues());
+    }
+
+    private static MigrationEntity getPermissionEntity(String entityId, String packageName) {
+        return new MigrationEntity(
+                entityId,
+                new PermissionMigrationPayload.Builder(packageName, TIME)
+                        .addPermission(READ_STEPS)
+                        .addPermission(WRITE_STEPS)
+                        .build());
+    }
+
+    private static MigrationEntity getRecordEntity(String entityId, Record record) {
+        return new MigrationEntity(
+                entityId,
+                new RecordMigrationPayload.Builder(APP_PACKAGE_NAME, "Example App", record)
+                        .build());
+    }
+
+    private static StepsRecord getStepsRecord() {
+        return new StepsRecord.Builder(getMetadata(), TIME, TIME.plusSeconds(60), 100).build();
+    }
+
+    private static HeightRecord getHeightRecord() {
+        return new HeightRecord.Builder(getMetadata(), TIME, Length.fromMeters(1.8)).build();
+    }
+
+    private static Metadata getMetadata() {
+        return new Metadata.Builder()
+                .setId(UUID.randomUUID().toString())
+                .setDataOrigin(new DataOrigin.Builder().setPackageName(APP_PACKAGE_NAME).build())
+                .build();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.permission;
+
+import static android.content.pm.PackageManager.PERMISSION_DENIED;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+import static android.health.connect.HealthPermissions.WRITE_EXERCISE;
+import static android.health.connect.HealthPermissions.WRITE_EXERCISE_ROUTE;
+import static android.health.connect.HealthPermissions.WRITE_STEPS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.AttributionSource;
+import android.content.Context;
+import android.health.connect.internal.datatypes.ExerciseSessionRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.permission.PermissionManager;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.dx.mockito.inline.extended.ExtendedMockito;
+import com.android.server.healthconnect.HealthConnectDeviceConfigManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.util.List;
+import java.util.Map;
+
+@RunWith(AndroidJUnit4.class)
+public class DataPermissionEnforcerTest {
+    private static final int UID = 10123;
+    private static final AttributionSource ATTRIBUTION_SOURCE =
+            new AttributionSource.Builder(UID).setPackageName("android.healthconnect.test").build();
+
+    @Mock private PermissionManager mPermissionManager;
+    @Mock private Context mContext;
+    @Mock private HealthConnectDeviceConfigManager mHealthConnectDeviceConfigManager;
+    private MockitoSession mStaticMockSession;
+    private DataPermissionEnforcer mEnforcer;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mStaticMockSession =
+                ExtendedMockito.mockitoSession()
+                        .mockStatic(HealthConnectDeviceConfigManager.class)
+                        .strictness(Strictness.LENIENT)
+                        .startMocking();
+        when(HealthConnectDeviceConfigManager.getInitialisedInstance())
+                .thenReturn(mHealthConnectDeviceConfigManager);
+        when(mHealthConnectDeviceConfigManager.isSessionDatatypeFeatureEnabled()).thenReturn(true);
+        when(mHealthConnectDeviceConfigManager.isExerciseRouteFeatureEnabled()).thenReturn(true);
+        when(mPermissionManager.checkPermissionForStartDataDelivery(
+                        anyString(), any(AttributionSource.class), any()))
+                .thenReturn(PERMISSION_GRANTED);
+        mEnforcer = new DataPermissionEnforcer(mPermissionManager, mContext);
+    }
+
+    @After
+    public void tearDown() {
+        mStaticMockSession.finishMocking();
+    }
+
+    @Test
+    public void testEnforceRecordsWritePermissions_checksEachPermissionOncePerRequest() {
+        List<RecordInternal<?>> records =
+                List.of(
+                        new StepsRecordInternal(),
+                        new ExerciseSessionRecordInternal(),
+                        new StepsRecordInternal(),
+                        new ExerciseSessionRecordInternal());
+
+        mEnforcer.enforceRecordsWritePermissions(records, ATTRIBUTION_SOURCE);
+
+        verifyPermissionChecked(WRITE_STEPS, 1);
+        verifyPermissionChecked(WRITE_EXERCISE, 1);
+        verifyPermissionChecked(WRITE_EXERCISE_ROUTE, 1);
+
+        // Decisions aren't shared between requests, so that each request notes its app ops.
+        mEnforcer.enforceRecordsWritePermissions(records, ATTRIBUTION_SOURCE);
+
+        verifyPermissionChecked(WRITE_STEPS, 2);
+        verifyPermissionChecked(WRITE_EXERCISE, 2);
+        verifyPermissionChecked(WRITE_EXERCISE_ROUTE, 2);
+    }
+
+    @Test
+    public void testEnforceRecordsWritePermissions_returnsExtraWritePermissionStates() {
+        when(mPermissionManager.checkPermissionForStartDataDelivery(
+                        eq(WRITE_EXERCISE_ROUTE), any(AttributionSource.class), any()))
+                .thenReturn(PERMISSION_DENIED);
+
+        Map<String, Boolean> extraWritePermissionStates =
+                mEnforcer.enforceRecordsWritePermissions(
+                        List.of(new ExerciseSessionRecordInternal()), ATTRIBUTION_SOURCE);
+
+        assertThat(extraWritePermissionStates).containsExactly(WRITE_EXERCISE_ROUTE, false);
+    }
+
+    private void verifyPermissionChecked(String permissionName, int times) {
+        verify(mPermissionManager, times(times))
+                .checkPermissionForStartDataDelivery(
+                        eq(permissionName), eq(ATTRIBUTION_SOURCE), any());
+    }
+}
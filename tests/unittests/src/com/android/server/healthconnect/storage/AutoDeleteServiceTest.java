@@ -16,11 +16,14 @@
 
 package healthconnect.storage;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.health.connect.datatypes.RecordTypeIdentifier;
+import android.os.CancellationSignal;
 import android.util.ArrayMap;
 
 import androidx.test.runner.AndroidJUnit4;
@@ -80,11 +83,16 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.MockitoSession;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -96,6 +104,8 @@ import java.util.Set;
 public class AutoDeleteServiceTest {
     private static final String AUTO_DELETE_DURATION_RECORDS_KEY =
             "auto_delete_duration_records_key";
+    private static final int AUTO_DELETE_CHUNK_SIZE = 5000;
+    private static final Instant NOW = Instant.parse("2023-06-01T23:30:00Z");
     @Mock private PreferenceHelper mPreferenceHelper;
     @Mock private TransactionManager mTransactionManager;
     @Mock private RecordHelperProvider mRecordHelperProvider;
@@ -142,7 +152,7 @@ public class AutoDeleteServiceTest {
         when(ActivityDateHelper.getInstance()).thenReturn(mActivityDateHelper);
         when(mPreferenceHelper.getPreference(AUTO_DELETE_DURATION_RECORDS_KEY)).thenReturn(null);
 
-        AutoDeleteService.startAutoDelete();
+        AutoDeleteService.startAutoDelete(new CancellationSignal());
 
         verify(mRecordHelperProvider, never()).getRecordHelpers();
         verify(mTransactionManager, Mockito.times(2))
@@ -152,7 +162,8 @@ public class AutoDeleteServiceTest {
                                         checkTableNames_getPreferenceReturnNull(
                                                 deleteTableRequestsList)));
         verify(mAppInfoHelper).syncAppInfoRecordTypesUsed();
-        verify(mActivityDateHelper).reSyncForAllRecords();
+        // Nothing was deleted, so there are no dates to re-sync.
+        verify(mActivityDateHelper, never()).reSyncForAllRecords(Mockito.anyLong());
     }
 
     @Test
@@ -167,16 +178,91 @@ public class AutoDeleteServiceTest {
                 .thenReturn(String.valueOf(30));
         when(mRecordHelperProvider.getRecordHelpers()).thenReturn(getRecordHelpers());
 
-        AutoDeleteService.startAutoDelete();
+        AutoDeleteService.startAutoDelete(
+                new CancellationSignal(), Clock.fixed(NOW, ZoneOffset.UTC));
 
-        verify(mTransactionManager, Mockito.times(3))
+        verify(mTransactionManager, Mockito.times(2))
                 .deleteWithoutChangeLogs(
                         Mockito.argThat(
                                 (List<DeleteTableRequest> deleteTableRequestsList) ->
                                         checkTableNames_getPreferenceReturnNonNull(
                                                 deleteTableRequestsList)));
+        verify(mTransactionManager, Mockito.times(getRecordHelpers().size()))
+                .deleteWithoutChangeLogs(
+                        Mockito.argThat(
+                                (DeleteTableRequest request) ->
+                                        getTableNamesForDeletingStaleRecordEntries()
+                                                .contains(request.getTableName())),
+                        Mockito.eq(AUTO_DELETE_CHUNK_SIZE));
+        verify(mAppInfoHelper).syncAppInfoRecordTypesUsed();
+        // Only the dates up to a day after the deleted records are re-synced.
+        verify(mActivityDateHelper)
+                .reSyncForAllRecords(LocalDate.parse("2023-05-03").toEpochDay());
+    }
+
+    @Test
+    public void testStartAutoDelete_fullChunk_deletesNextChunkOfSameTable() {
+        mockRecordAutoDelete();
+        String firstTableName = getFirstRecordTableName();
+        // A full chunk of the first record type is deleted first, then the remaining ones.
+        when(mTransactionManager.deleteWithoutChangeLogs(
+                        Mockito.any(DeleteTableRequest.class), Mockito.anyInt()))
+                .thenReturn(AUTO_DELETE_CHUNK_SIZE, 10, 0);
+
+        AutoDeleteService.startAutoDelete(new CancellationSignal());
+
+        ArgumentCaptor<DeleteTableRequest> requests =
+                ArgumentCaptor.forClass(DeleteTableRequest.class);
+        verify(mTransactionManager, Mockito.times(getRecordHelpers().size() + 1))
+                .deleteWithoutChangeLogs(requests.capture(), Mockito.eq(AUTO_DELETE_CHUNK_SIZE));
+        assertThat(requests.getAllValues().get(0).getTableName()).isEqualTo(firstTableName);
+        assertThat(requests.getAllValues().get(1).getTableName()).isEqualTo(firstTableName);
+        assertThat(requests.getAllValues().get(2).getTableName()).isNotEqualTo(firstTableName);
         verify(mAppInfoHelper).syncAppInfoRecordTypesUsed();
-        verify(mActivityDateHelper).reSyncForAllRecords();
+    }
+
+    @Test
+    public void testStartAutoDelete_cancelled_stopsBetweenChunks() {
+        mockRecordAutoDelete();
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        // The job is stopped while the first chunk is deleted.
+        when(mTransactionManager.deleteWithoutChangeLogs(
+                        Mockito.any(DeleteTableRequest.class), Mockito.anyInt()))
+                .thenAnswer(
+                        invocation -> {
+                            cancellationSignal.cancel();
+                            return AUTO_DELETE_CHUNK_SIZE;
+                        });
+
+        AutoDeleteService.startAutoDelete(cancellationSignal);
+
+        verify(mTransactionManager)
+                .deleteWithoutChangeLogs(
+                        Mockito.any(DeleteTableRequest.class), Mockito.eq(AUTO_DELETE_CHUNK_SIZE));
+        // The rest of the run is left for the next one.
+        verify(mTransactionManager, never()).deleteWithoutChangeLogs(Mockito.anyList());
+        verify(mAppInfoHelper, never()).syncAppInfoRecordTypesUsed();
+        verify(mActivityDateHelper, never()).reSyncForAllRecords(Mockito.anyLong());
+    }
+
+    private void mockRecordAutoDelete() {
+        when(PreferenceHelper.getInstance()).thenReturn(mPreferenceHelper);
+        when(TransactionManager.getInitialisedInstance()).thenReturn(mTransactionManager);
+        when(RecordHelperProvider.getInstance()).thenReturn(mRecordHelperProvider);
+        when(AppInfoHelper.getInstance()).thenReturn(mAppInfoHelper);
+        when(ActivityDateHelper.getInstance()).thenReturn(mActivityDateHelper);
+        when(mPreferenceHelper.getPreference(AUTO_DELETE_DURATION_RECORDS_KEY))
+                .thenReturn(String.valueOf(30));
+        when(mRecordHelperProvider.getRecordHelpers()).thenReturn(getRecordHelpers());
+    }
+
+    private String getFirstRecordTableName() {
+        return getRecordHelpers()
+                .values()
+                .iterator()
+                .next()
+                .getDeleteRequestForAutoDelete(30)
+                .getTableName();
     }
 
     private boolean checkTableNames_getPreferenceReturnNull(List<DeleteTableRequest> list) {
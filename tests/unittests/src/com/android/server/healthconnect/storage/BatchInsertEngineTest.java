@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class BatchInsertEngineTest {
+    private static final String TABLE_NAME = "sample_table";
+    private static final String OTHER_TABLE_NAME = "other_table";
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(
+                "CREATE TABLE "
+                        + TABLE_NAME
+                        + " (row_id INTEGER PRIMARY KEY AUTOINCREMENT, uuid BLOB UNIQUE,"
+                        + " name TEXT, value REAL)");
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void testInsert_differentShapes_allRowsInserted() {
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(mDb)) {
+            for (int i = 0; i < 10; i++) {
+                ContentValues contentValues = new ContentValues();
+                contentValues.put("uuid", new byte[] {(byte) i});
+                contentValues.put("value", i * 1.5);
+                if (i % 2 == 0) {
+                    contentValues.put("name", "name" + i);
+                }
+                assertThat(insertEngine.insertOrThrow(request(contentValues))).isEqualTo(i + 1);
+            }
+        }
+
+        try (Cursor cursor =
+                mDb.rawQuery("SELECT name, value FROM " + TABLE_NAME + " ORDER BY row_id", null)) {
+            assertThat(cursor.getCount()).isEqualTo(10);
+            cursor.moveToPosition(3);
+            assertThat(cursor.isNull(0)).isTrue();
+            assertThat(cursor.getDouble(1)).isEqualTo(4.5);
+            cursor.moveToPosition(4);
+            assertThat(cursor.getString(0)).isEqualTo("name4");
+        }
+    }
+
+    @Test
+    public void testInsert_conflictIgnore_returnsInvalidRowId() {
+        try (BatchInsertEngine insertEngine = new BatchInsertEngine(mDb)) {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put("uuid", new byte[] {1});
+            assertThat(insertEngine.insert(request(contentValues), SQLiteDatabase.CONFLICT_IGNORE))
+                    .isEqualTo(1);
+            assertThat(insertEngine.insert(request(contentValues), SQLiteDatabase.CONFLICT_IGNORE))
+                    .isEqualTo(-1);
+            assertThrows(
+                    SQLiteConstraintException.class,
+                    () ->
+                            insertEngine.insert(
+                                    request(contentValues), SQLiteDatabase.CONFLICT_FAIL));
+        }
+    }
+
+    @Test
+    public void testGroupByTable_keepsOrderWithinTable() {
+        UpsertTableRequest first = new UpsertTableRequest(TABLE_NAME, new ContentValues());
+        UpsertTableRequest second = new UpsertTableRequest(OTHER_TABLE_NAME, new ContentValues());
+        UpsertTableRequest third = new UpsertTableRequest(TABLE_NAME, new ContentValues());
+
+        Map<String, List<UpsertTableRequest>> requestsByTable =
+                BatchInsertEngine.groupByTable(List.of(first, second, third));
+
+        assertThat(requestsByTable.keySet())
+                .containsExactly(TABLE_NAME, OTHER_TABLE_NAME)
+                .inOrder();
+        assertThat(requestsByTable.get(TABLE_NAME)).containsExactly(first, third).inOrder();
+    }
+
+    private static UpsertTableRequest request(ContentValues contentValues) {
+        return new UpsertTableRequest(TABLE_NAME, contentValues);
+    }
+}
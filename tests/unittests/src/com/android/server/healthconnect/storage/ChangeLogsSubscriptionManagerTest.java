@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import static android.health.connect.Constants.UPSERT;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HEART_RATE;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.health.connect.HealthConnectException;
+import android.health.connect.aidl.IChangeLogsListener;
+import android.os.IBinder;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.dx.mockito.inline.extended.ExtendedMockito;
+import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class ChangeLogsSubscriptionManagerTest {
+    private static final String PACKAGE_NAME = "android.healthconnect.test.app";
+    private static final String OTHER_PACKAGE_NAME = "android.healthconnect.test.other.app";
+    private static final long APP_ID = 1;
+    private static final long OTHER_APP_ID = 2;
+
+    @Mock private ScheduledExecutorService mExecutor;
+    @Mock private AppInfoHelper mAppInfoHelper;
+    private MockitoSession mStaticMockSession;
+    private ChangeLogsSubscriptionManager mSubscriptionManager;
+
+    @Before
+    public void setUp() {
+        mStaticMockSession =
+                ExtendedMockito.mockitoSession()
+                        .mockStatic(AppInfoHelper.class)
+                        .strictness(Strictness.LENIENT)
+                        .startMocking();
+        MockitoAnnotations.initMocks(this);
+        when(AppInfoHelper.getInstance()).thenReturn(mAppInfoHelper);
+        when(mAppInfoHelper.getPackageName(APP_ID)).thenReturn(PACKAGE_NAME);
+        when(mAppInfoHelper.getPackageName(OTHER_APP_ID)).thenReturn(OTHER_PACKAGE_NAME);
+        mSubscriptionManager = new ChangeLogsSubscriptionManager(mExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        mStaticMockSession.finishMocking();
+    }
+
+    @Test
+    public void testOnChangeLogsCommitted_burstOfMatchingChanges_signalledOnce() throws Exception {
+        IChangeLogsListener listener = createListener();
+        register(listener, List.of(RECORD_TYPE_STEPS), Collections.emptyList());
+
+        mSubscriptionManager.onChangeLogsCommitted(getChangeLogs(RECORD_TYPE_STEPS, APP_ID));
+        mSubscriptionManager.onChangeLogsCommitted(getChangeLogs(RECORD_TYPE_STEPS, APP_ID));
+
+        runScheduledSignal();
+        verify(listener).onChangeLogsAvailable();
+
+        // Signalled again for changes after the previous signal.
+        mSubscriptionManager.onChangeLogsCommitted(getChangeLogs(RECORD_TYPE_STEPS, APP_ID));
+        verify(mExecutor, times(2))
+                .schedule(
+                        any(Runnable.class),
+                        eq(ChangeLogsSubscriptionManager.COALESCE_DELAY_MILLIS),
+                        eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testOnChangeLogsCommitted_changesNotMatchingFilters_notSignalled() {
+        register(createListener(), List.of(RECORD_TYPE_STEPS), List.of(PACKAGE_NAME));
+
+        mSubscriptionManager.onChangeLogsCommitted(getChangeLogs(RECORD_TYPE_HEART_RATE, APP_ID));
+        mSubscriptionManager.onChangeLogsCommitted(getChangeLogs(RECORD_TYPE_STEPS, OTHER_APP_ID));
+
+        verify(mExecutor, never()).schedule(any(Runnable.class), anyLong(), any());
+    }
+
+    @Test
+    public void testRegisterListener_changesAfterToken_signalledRightAway() {
+        mSubscriptionManager.registerListener(
+                PACKAGE_NAME,
+                new ChangeLogsRequestHelper.TokenRequest(
+                        Collections.emptyList(), List.of(RECORD_TYPE_STEPS), PACKAGE_NAME, 5),
+                createListener(),
+                /* latestChangeLogRowId= */ 6);
+
+        verify(mExecutor).schedule(any(Runnable.class), anyLong(), any());
+    }
+
+    @Test
+    public void testUnregisterListener_pendingSignalDropped() throws Exception {
+        IChangeLogsListener listener = createListener();
+        register(listener, List.of(RECORD_TYPE_STEPS), Collections.emptyList());
+        mSubscriptionManager.onChangeLogsCommitted(getChangeLogs(RECORD_TYPE_STEPS, APP_ID));
+
+        mSubscriptionManager.unregisterListener(listener);
+        runScheduledSignal();
+
+        verify(listener, never()).onChangeLogsAvailable();
+        assertThat(mSubscriptionManager.getListenerCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRegisterListener_tooManyListeners_throws() {
+        for (int i = 0; i < ChangeLogsSubscriptionManager.MAX_LISTENERS_PER_PACKAGE; i++) {
+            register(createListener(), List.of(RECORD_TYPE_STEPS), Collections.emptyList());
+        }
+
+        HealthConnectException exception =
+                assertThrows(
+                        HealthConnectException.class,
+                        () ->
+                                register(
+                                        createListener(),
+                                        List.of(RECORD_TYPE_STEPS),
+                                        Collections.emptyList()));
+        assertThat(exception.getErrorCode())
+                .isEqualTo(HealthConnectException.ERROR_RATE_LIMIT_EXCEEDED);
+    }
+
+    private void register(
+            IChangeLogsListener listener, List<Integer> recordTypes, List<String> packageNames) {
+        mSubscriptionManager.registerListener(
+                PACKAGE_NAME,
+                new ChangeLogsRequestHelper.TokenRequest(
+                        packageNames, recordTypes, PACKAGE_NAME, /* rowIdChangeLogs= */ 10),
+                listener,
+                /* latestChangeLogRowId= */ 10);
+    }
+
+    private void runScheduledSignal() {
+        ArgumentCaptor<Runnable> signal = ArgumentCaptor.forClass(Runnable.class);
+        verify(mExecutor).schedule(signal.capture(), anyLong(), any());
+        signal.getValue().run();
+    }
+
+    private static IChangeLogsListener createListener() {
+        IChangeLogsListener listener = mock(IChangeLogsListener.class);
+        when(listener.asBinder()).thenReturn(mock(IBinder.class));
+        return listener;
+    }
+
+    private static List<UpsertTableRequest> getChangeLogs(int recordType, long appId) {
+        return new ChangeLogsHelper.ChangeLogs(UPSERT, PACKAGE_NAME, /* timeStamp= */ 1000)
+                .addUUIDs(recordType, appId, List.of(UUID.randomUUID()))
+                .getUpsertTableRequests();
+    }
+}
@@ -32,10 +32,18 @@ import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 public class HealthConnectDatabaseTest {
     // This number can only increase, as we are not allowed to make changes that remove tables or
     // columns
-    private static final int NUM_OF_TABLES = 57;
+    private static final int NUM_OF_TABLES = 58;
 
     @Mock Context mContext;
     private HealthConnectDatabase mHealthConnectDatabase;
@@ -66,4 +74,96 @@ public class HealthConnectDatabaseTest {
         cursor.moveToNext();
         Truth.assertThat(cursor.getInt(0)).isEqualTo(NUM_OF_TABLES);
     }
+
+    @Test
+    public void testWriteAheadLogging_isEnabled() {
+        try (Cursor cursor = mSQLiteDatabase.rawQuery("PRAGMA journal_mode", null)) {
+            cursor.moveToNext();
+            Truth.assertThat(cursor.getString(0)).isEqualTo("wal");
+        }
+    }
+
+    @Test
+    public void testReads_duringWriteTransaction_doNotWait() throws Exception {
+        int numberOfReaders = 4;
+        int readsPerReader = 50;
+        ExecutorService readers = Executors.newFixedThreadPool(numberOfReaders);
+        mSQLiteDatabase.beginTransaction();
+        try {
+            mSQLiteDatabase.execSQL("DELETE FROM preference_table");
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < numberOfReaders; i++) {
+                results.add(
+                        readers.submit(
+                                () -> {
+                                    for (int j = 0; j < readsPerReader; j++) {
+                                        try (Cursor cursor =
+                                                mSQLiteDatabase.rawQuery(
+                                                        "SELECT count(*) FROM sqlite_master",
+                                                        null)) {
+                                            cursor.moveToNext();
+                                        }
+                                    }
+                                }));
+            }
+
+            // Would time out if the readers had to wait for the transaction to end.
+            for (Future<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            mSQLiteDatabase.endTransaction();
+            readers.shutdown();
+        }
+    }
+
+    @Test
+    public void testCheckpoint_truncatesLog() {
+        mSQLiteDatabase.execSQL("DELETE FROM preference_table");
+        HealthConnectDatabase.WalMetrics walMetrics = mHealthConnectDatabase.getWalMetrics();
+        int checkpointCount = walMetrics.getCheckpointCount();
+
+        mHealthConnectDatabase.checkpoint();
+
+        Truth.assertThat(walMetrics.getCheckpointCount()).isEqualTo(checkpointCount + 1);
+        Truth.assertThat(walMetrics.getWalSizeBytes()).isEqualTo(0);
+        Truth.assertThat(walMetrics.getLastCheckpointDurationMillis()).isAtLeast(0);
+    }
+
+    @Test
+    public void testSnapshotTo_duringWriteTransaction_copiesLastCommittedState() {
+        File snapshot =
+                InstrumentationRegistry.getInstrumentation()
+                        .getContext()
+                        .getDatabasePath("mock_snapshot");
+        mSQLiteDatabase.execSQL("DELETE FROM preference_table");
+        // Committed, but only in the write-ahead log until it is checkpointed.
+        mSQLiteDatabase.execSQL("INSERT INTO preference_table (key, value) VALUES ('a', '1')");
+
+        mSQLiteDatabase.beginTransaction();
+        try {
+            mSQLiteDatabase.execSQL("INSERT INTO preference_table (key, value) VALUES ('b', '2')");
+            // Would wait for the transaction to end if the snapshot blocked on writes.
+            mHealthConnectDatabase.snapshotTo(snapshot);
+            mSQLiteDatabase.setTransactionSuccessful();
+        } finally {
+            mSQLiteDatabase.endTransaction();
+        }
+
+        try (SQLiteDatabase snapshotDatabase =
+                SQLiteDatabase.openDatabase(
+                        snapshot,
+                        new SQLiteDatabase.OpenParams.Builder()
+                                .addOpenFlags(SQLiteDatabase.OPEN_READONLY)
+                                .build())) {
+            try (Cursor cursor =
+                    snapshotDatabase.rawQuery("SELECT key FROM preference_table", null)) {
+                Truth.assertThat(cursor.getCount()).isEqualTo(1);
+                cursor.moveToNext();
+                Truth.assertThat(cursor.getString(0)).isEqualTo("a");
+            }
+        } finally {
+            SQLiteDatabase.deleteDatabase(snapshot);
+        }
+    }
 }
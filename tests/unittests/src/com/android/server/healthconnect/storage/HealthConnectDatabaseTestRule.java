@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.Process;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.dx.mockito.inline.extended.ExtendedMockito;
+import com.android.dx.mockito.inline.extended.StaticMockitoSessionBuilder;
+import com.android.server.healthconnect.HealthConnectDeviceConfigManager;
+import com.android.server.healthconnect.HealthConnectUserContext;
+import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.DeviceInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.HealthDataCategoryPriorityHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
+import com.android.server.healthconnect.utils.FilesUtil;
+
+import org.junit.rules.ExternalResource;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.io.File;
+
+/**
+ * Initialises {@link TransactionManager} with an empty database in the test app's files, for tests
+ * that read and write through the real storage stack. {@link HealthConnectDeviceConfigManager} is
+ * mocked, as are the classes passed to the constructor.
+ */
+public final class HealthConnectDatabaseTestRule extends ExternalResource {
+    private static final String DATABASE_DIRECTORY_NAME = "healthconnect_test_database";
+
+    private final Class<?>[] mStaticMockClasses;
+    private final Context mContext = InstrumentationRegistry.getInstrumentation().getContext();
+    private final File mDatabaseDirectory =
+            new File(mContext.getFilesDir(), DATABASE_DIRECTORY_NAME);
+    private HealthConnectDeviceConfigManager mDeviceConfigManager;
+    private MockitoSession mStaticMockSession;
+
+    public HealthConnectDatabaseTestRule(Class<?>... staticMockClasses) {
+        mStaticMockClasses = staticMockClasses;
+    }
+
+    @Override
+    protected void before() {
+        StaticMockitoSessionBuilder builder =
+                ExtendedMockito.mockitoSession()
+                        .mockStatic(HealthConnectDeviceConfigManager.class)
+                        .strictness(Strictness.LENIENT);
+        for (Class<?> staticMockClass : mStaticMockClasses) {
+            builder.mockStatic(staticMockClass);
+        }
+        mStaticMockSession = builder.startMocking();
+        mDeviceConfigManager = mock(HealthConnectDeviceConfigManager.class);
+        when(HealthConnectDeviceConfigManager.getInitialisedInstance())
+                .thenReturn(mDeviceConfigManager);
+        when(mDeviceConfigManager.isSessionDatatypeFeatureEnabled()).thenReturn(true);
+        when(mDeviceConfigManager.isExerciseRouteFeatureEnabled()).thenReturn(true);
+
+        FilesUtil.deleteDir(mDatabaseDirectory);
+        mDatabaseDirectory.mkdirs();
+        TransactionManager.clearInstanceForTest();
+        TransactionManager.getInstance(
+                new HealthConnectUserContext(mContext, Process.myUserHandle()) {
+                    @Override
+                    public File getDatabasePath(String name) {
+                        return new File(mDatabaseDirectory, name);
+                    }
+                });
+        clearCaches();
+    }
+
+    @Override
+    protected void after() {
+        TransactionManager.clearInstanceForTest();
+        clearCaches();
+        FilesUtil.deleteDir(mDatabaseDirectory);
+        mStaticMockSession.finishMocking();
+    }
+
+    /** Returns the context of the test app, which is the package records are inserted for. */
+    public Context getContext() {
+        return mContext;
+    }
+
+    public HealthConnectDeviceConfigManager getDeviceConfigManager() {
+        return mDeviceConfigManager;
+    }
+
+    private static void clearCaches() {
+        PreferenceHelper.getInstance().clearCache();
+        AppInfoHelper.getInstance().clearCache();
+        DeviceInfoHelper.getInstance().clearCache();
+        HealthDataCategoryPriorityHelper.getInstance().clearCache();
+        ChangeLogsHelper.getInstance().clearTailCache();
+    }
+}
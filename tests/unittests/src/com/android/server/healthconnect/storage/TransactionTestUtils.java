@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import android.content.Context;
+import android.health.connect.AggregateResult;
+import android.health.connect.TimeRangeFilter;
+import android.health.connect.TimeRangeFilterHelper;
+import android.health.connect.datatypes.AggregationType;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal;
+import android.health.connect.internal.datatypes.HydrationRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.health.connect.internal.datatypes.WeightRecordInternal;
+import android.os.Parcel;
+
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
+import com.android.server.healthconnect.storage.request.AggregateTableRequest;
+import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
+import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+
+import java.time.Duration;
+import java.time.Period;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Reads, writes and aggregates records through {@link TransactionManager}, which has to be
+ * initialised by {@link HealthConnectDatabaseTestRule}.
+ */
+public final class TransactionTestUtils {
+    /** The test app, which records are inserted for so that its app info can be looked up. */
+    public static final String TEST_PACKAGE_NAME = "com.android.healthconnect.unittests";
+
+    /** Inserts {@code records} and returns their uuids. */
+    public static List<UUID> insertRecords(Context context, RecordInternal<?>... records) {
+        List<String> uuids =
+                TransactionManager.getInitialisedInstance()
+                        .insertAll(
+                                new UpsertTransactionRequest(
+                                        TEST_PACKAGE_NAME,
+                                        List.of(records),
+                                        context,
+                                        /* isInsertRequest= */ true,
+                                        Collections.emptyMap()));
+        List<UUID> result = new ArrayList<>(uuids.size());
+        for (String uuid : uuids) {
+            result.add(UUID.fromString(uuid));
+        }
+        return result;
+    }
+
+    /** Updates the records with the uuids of {@code records}. */
+    public static void updateRecords(Context context, RecordInternal<?>... records) {
+        TransactionManager.getInitialisedInstance()
+                .updateAll(
+                        new UpsertTransactionRequest(
+                                TEST_PACKAGE_NAME,
+                                List.of(records),
+                                context,
+                                /* isInsertRequest= */ false,
+                                Collections.emptyMap()));
+    }
+
+    /** Reads the records of {@code recordType} with the given {@code uuids}. */
+    public static List<RecordInternal<?>> readRecords(int recordType, List<UUID> uuids) {
+        return TransactionManager.getInitialisedInstance()
+                .readRecords(
+                        new ReadTransactionRequest(
+                                Map.of(recordType, uuids), /* startDateAccess= */ 0));
+    }
+
+    /**
+     * Aggregates {@code aggregationType} over [{@code startTime}, {@code endTime}) and returns the
+     * result, or {@code null} if there is no data.
+     */
+    public static Long aggregateLong(
+            AggregationType<?> aggregationType, long startTime, long endTime) {
+        Parcel parcel = aggregate(aggregationType, startTime, endTime);
+        try {
+            return parcel == null ? null : parcel.readLong();
+        } finally {
+            recycle(parcel);
+        }
+    }
+
+    /** Same as {@link #aggregateLong}, for aggregations computed as doubles. */
+    public static Double aggregateDouble(
+            AggregationType<?> aggregationType, long startTime, long endTime) {
+        Parcel parcel = aggregate(aggregationType, startTime, endTime);
+        try {
+            return parcel == null ? null : parcel.readDouble();
+        } finally {
+            recycle(parcel);
+        }
+    }
+
+    /**
+     * Aggregates {@code aggregationType} over {@code timeRangeFilter} grouped by {@code period} or
+     * {@code duration}, and returns the result of each group, {@code null} for groups without data.
+     */
+    public static List<Double> aggregateDoubleGroups(
+            AggregationType<?> aggregationType,
+            TimeRangeFilter timeRangeFilter,
+            Period period,
+            Duration duration) {
+        RecordHelper<?> helper =
+                RecordHelperProvider.getInstance()
+                        .getRecordHelper(aggregationType.getApplicableRecordTypeIds().get(0));
+        AggregateTableRequest request =
+                helper.getAggregateTableRequest(
+                        aggregationType,
+                        Collections.emptyList(),
+                        TimeRangeFilterHelper.getFilterStartTimeMillis(timeRangeFilter),
+                        TimeRangeFilterHelper.getFilterEndTimeMillis(timeRangeFilter),
+                        TimeRangeFilterHelper.isLocalTimeFilter(timeRangeFilter));
+        request.setGroupBy(
+                helper.getDurationGroupByColumnName(), period, duration, timeRangeFilter);
+        TransactionManager.getInitialisedInstance().populateWithAggregation(request);
+        List<Double> results = new ArrayList<>();
+        for (AggregateResult<?> result : request.getAggregateResults()) {
+            Parcel parcel = toParcel(result);
+            try {
+                results.add(parcel == null ? null : parcel.readDouble());
+            } finally {
+                recycle(parcel);
+            }
+        }
+        return results;
+    }
+
+    public static HeartRateRecordInternal createHeartRateRecord(
+            long startTimeMillis, int... beatsPerMinute) {
+        HeartRateRecordInternal record = new HeartRateRecordInternal();
+        record.setStartTime(startTimeMillis);
+        record.setEndTime(startTimeMillis + 1000L * beatsPerMinute.length);
+        for (int i = 0; i < beatsPerMinute.length; i++) {
+            record.addSample(startTimeMillis + 1000L * i, beatsPerMinute[i]);
+        }
+        return record;
+    }
+
+    public static StepsRecordInternal createStepsRecord(
+            long startTimeMillis, long endTimeMillis, int count) {
+        StepsRecordInternal record = new StepsRecordInternal();
+        record.setCount(count);
+        record.setStartTime(startTimeMillis);
+        record.setEndTime(endTimeMillis);
+        return record;
+    }
+
+    public static WeightRecordInternal createWeightRecord(long timeMillis, double weight) {
+        WeightRecordInternal record = new WeightRecordInternal();
+        record.setWeight(weight);
+        record.setTime(timeMillis);
+        return record;
+    }
+
+    public static HydrationRecordInternal createHydrationRecord(
+            long startTimeMillis, long endTimeMillis, double volume) {
+        HydrationRecordInternal record = new HydrationRecordInternal();
+        record.setVolume(volume);
+        record.setStartTime(startTimeMillis);
+        record.setEndTime(endTimeMillis);
+        return record;
+    }
+
+    private static Parcel aggregate(
+            AggregationType<?> aggregationType, long startTime, long endTime) {
+        AggregateTableRequest request =
+                RecordHelperProvider.getInstance()
+                        .getRecordHelper(aggregationType.getApplicableRecordTypeIds().get(0))
+                        .getAggregateTableRequest(
+                                aggregationType,
+                                Collections.emptyList(),
+                                startTime,
+                                endTime,
+                                /* useLocalTime= */ false);
+        TransactionManager.getInitialisedInstance().populateWithAggregation(request);
+        return toParcel(request.getAggregateResults().get(0));
+    }
+
+    // Returns the result written to a parcel, as the value of AggregateResult isn't accessible.
+    private static Parcel toParcel(AggregateResult<?> result) {
+        if (result == null) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        result.putToParcel(parcel);
+        parcel.setDataPosition(0);
+        return parcel;
+    }
+
+    private static void recycle(Parcel parcel) {
+        if (parcel != null) {
+            parcel.recycle();
+        }
+    }
+
+    private TransactionTestUtils() {}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.storage.TransactionTestUtils.createHydrationRecord;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.createStepsRecord;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.insertRecords;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.datatypes.HydrationRecord;
+import android.health.connect.datatypes.Record;
+import android.health.connect.datatypes.StepsRecord;
+import android.health.connect.internal.datatypes.IntervalRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabaseTestRule;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.DeleteTableRequest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class ActivityDateHelperTest {
+    private static final Instant START_TIME = Instant.parse("2023-06-01T12:00:00Z");
+    private static final List<Class<? extends Record>> RECORD_TYPES =
+            List.of(StepsRecord.class, HydrationRecord.class);
+
+    @Rule
+    public final HealthConnectDatabaseTestRule mDatabaseRule = new HealthConnectDatabaseTestRule();
+
+    @Test
+    public void testReSyncForAllRecords_datesUnchanged() {
+        insertTestRecords();
+        List<LocalDate> dates = ActivityDateHelper.getInstance().getActivityDates(RECORD_TYPES);
+
+        ActivityDateHelper.getInstance()
+                .reSyncForAllRecords(LocalDate.parse("2023-06-02").toEpochDay());
+        List<LocalDate> datesAfterPartialReSync =
+                ActivityDateHelper.getInstance().getActivityDates(RECORD_TYPES);
+        ActivityDateHelper.getInstance().reSyncByRecordTypeIds(List.of(RECORD_TYPE_STEPS));
+        List<LocalDate> datesAfterStepsReSync =
+                ActivityDateHelper.getInstance().getActivityDates(RECORD_TYPES);
+
+        assertThat(dates)
+                .containsExactly(
+                        LocalDate.parse("2023-05-31"),
+                        LocalDate.parse("2023-06-01"),
+                        LocalDate.parse("2023-06-02"),
+                        LocalDate.parse("2023-06-03"),
+                        LocalDate.parse("2023-06-05"));
+        assertThat(datesAfterPartialReSync).containsExactlyElementsIn(dates);
+        assertThat(datesAfterStepsReSync).containsExactlyElementsIn(dates);
+    }
+
+    @Test
+    public void testReSyncForAllRecords_afterDelete_removesOnlyDatesWithoutRecords() {
+        insertTestRecords();
+        // Deletes the records starting before 22:00 on 2023-06-01 in UTC, as auto delete does.
+        long deletedBefore = START_TIME.plusSeconds(10 * 3600).toEpochMilli();
+        for (RecordHelper<?> helper :
+                List.of(new StepsRecordHelper(), new HydrationRecordHelper())) {
+            TransactionManager.getInitialisedInstance()
+                    .deleteWithoutChangeLogs(
+                            List.of(
+                                    new DeleteTableRequest(helper.getMainTableName())
+                                            .setTimeFilter(
+                                                    helper.getStartTimeColumnName(),
+                                                    Instant.EPOCH.toEpochMilli(),
+                                                    deletedBefore)));
+        }
+
+        ActivityDateHelper.getInstance()
+                .reSyncForAllRecords(LocalDate.parse("2023-06-02").toEpochDay());
+
+        // The steps starting at 23:00 on 2023-06-01 in UTC are kept, on their local date.
+        assertThat(ActivityDateHelper.getInstance().getActivityDates(RECORD_TYPES))
+                .containsExactly(
+                        LocalDate.parse("2023-06-02"),
+                        LocalDate.parse("2023-06-03"),
+                        LocalDate.parse("2023-06-05"));
+    }
+
+    private void insertTestRecords() {
+        insertRecords(
+                mDatabaseRule.getContext(),
+                // 2023-05-31 in local time.
+                createLocalStepsRecord(START_TIME, ZoneOffset.ofHours(-14)),
+                createLocalStepsRecord(START_TIME, ZoneOffset.UTC),
+                // 2023-06-02 in local time, but 2023-06-01 in UTC.
+                createLocalStepsRecord(START_TIME.plusSeconds(11 * 3600), ZoneOffset.ofHours(2)),
+                createLocalStepsRecord(START_TIME.plusSeconds(4 * 24 * 3600), ZoneOffset.UTC),
+                createLocalHydrationRecord(START_TIME.plusSeconds(24 * 3600), ZoneOffset.UTC),
+                createLocalHydrationRecord(START_TIME.plusSeconds(2 * 24 * 3600), ZoneOffset.UTC));
+    }
+
+    private static RecordInternal<?> createLocalStepsRecord(Instant startTime, ZoneOffset offset) {
+        return setZoneOffset(
+                createStepsRecord(startTime.toEpochMilli(), startTime.toEpochMilli() + 1000, 10),
+                offset);
+    }
+
+    private static RecordInternal<?> createLocalHydrationRecord(
+            Instant startTime, ZoneOffset offset) {
+        return setZoneOffset(
+                createHydrationRecord(
+                        startTime.toEpochMilli(), startTime.toEpochMilli() + 1000, 1.0),
+                offset);
+    }
+
+    private static RecordInternal<?> setZoneOffset(
+            IntervalRecordInternal<?> record, ZoneOffset offset) {
+        return record.setStartZoneOffset(offset.getTotalSeconds())
+                .setEndZoneOffset(offset.getTotalSeconds());
+    }
+}
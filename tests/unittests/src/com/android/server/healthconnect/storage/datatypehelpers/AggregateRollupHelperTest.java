@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_WEIGHT;
+
+import static com.android.server.healthconnect.storage.TransactionTestUtils.aggregateDouble;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.createHydrationRecord;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.createWeightRecord;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.insertRecords;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.updateRecords;
+import static com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper.BUCKET_DURATION_MILLIS;
+import static com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper.BUCKET_START_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper.RECORD_TYPE_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper.STALE_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper.TIME_BASIS_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper.TIME_BASIS_PHYSICAL;
+import static com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper.VALUE_COUNT_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper.VALUE_MAX_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper.VALUE_MIN_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.AggregateRollupHelper.VALUE_SUM_COLUMN_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.health.connect.datatypes.AggregationType;
+import android.health.connect.datatypes.HydrationRecord;
+import android.health.connect.datatypes.WeightRecord;
+import android.health.connect.datatypes.units.Mass;
+import android.health.connect.internal.datatypes.RecordInternal;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabaseTestRule;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.DeleteTableRequest;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.utils.OrderByClause;
+import com.android.server.healthconnect.storage.utils.WhereClauses;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class AggregateRollupHelperTest {
+    private static final long START_TIME = Instant.parse("2023-06-01T00:00:00Z").toEpochMilli();
+    private static final long HOUR = BUCKET_DURATION_MILLIS;
+
+    @Rule
+    public final HealthConnectDatabaseTestRule mDatabaseRule = new HealthConnectDatabaseTestRule();
+
+    @Test
+    public void testInsertTrigger_addsRecordsToTheirBucket() {
+        insert(
+                createWeightRecord(START_TIME, 60),
+                createWeightRecord(START_TIME + HOUR - 1, 80),
+                createWeightRecord(START_TIME + HOUR, 70));
+
+        List<ContentValues> rollups = getWeightRollups();
+
+        assertThat(rollups).hasSize(2);
+        assertRollup(rollups.get(0), START_TIME, 140, 60, 80, 2, /* stale= */ false);
+        assertRollup(rollups.get(1), START_TIME + HOUR, 70, 70, 70, 1, /* stale= */ false);
+    }
+
+    @Test
+    public void testDeleteTrigger_removedMinOrMax_marksBucketStale() {
+        List<UUID> uuids =
+                insert(
+                        createWeightRecord(START_TIME, 60),
+                        createWeightRecord(START_TIME + 1, 70),
+                        createWeightRecord(START_TIME + 2, 80));
+
+        deleteWeight(uuids.get(1));
+        assertRollup(getWeightRollups().get(0), START_TIME, 140, 60, 80, 2, /* stale= */ false);
+
+        deleteWeight(uuids.get(2));
+        assertThat(getWeightRollups().get(0).getAsDouble(VALUE_SUM_COLUMN_NAME)).isEqualTo(60.0);
+        assertThat(getWeightRollups().get(0).getAsLong(VALUE_COUNT_COLUMN_NAME)).isEqualTo(1L);
+        assertThat(getWeightRollups().get(0).getAsInteger(STALE_COLUMN_NAME)).isEqualTo(1);
+    }
+
+    @Test
+    public void testDeleteTrigger_lastRecordOfBucket_dropsBucket() {
+        List<UUID> uuids =
+                insert(
+                        createWeightRecord(START_TIME, 60),
+                        createWeightRecord(START_TIME + HOUR, 70));
+
+        deleteWeight(uuids.get(0));
+
+        List<ContentValues> rollups = getWeightRollups();
+        assertThat(rollups).hasSize(1);
+        assertRollup(rollups.get(0), START_TIME + HOUR, 70, 70, 70, 1, /* stale= */ false);
+    }
+
+    @Test
+    public void testUpdateTrigger_movesRecordToItsNewBucket() {
+        List<UUID> uuids =
+                insert(createWeightRecord(START_TIME, 60), createWeightRecord(START_TIME + 1, 80));
+        RecordInternal<?> updated =
+                createWeightRecord(START_TIME + HOUR, 90).setUuid(uuids.get(1));
+
+        updateRecords(mDatabaseRule.getContext(), updated);
+
+        List<ContentValues> rollups = getWeightRollups();
+        assertThat(rollups).hasSize(2);
+        assertThat(rollups.get(0).getAsDouble(VALUE_SUM_COLUMN_NAME)).isEqualTo(60.0);
+        assertThat(rollups.get(0).getAsInteger(STALE_COLUMN_NAME)).isEqualTo(1);
+        assertRollup(rollups.get(1), START_TIME + HOUR, 90, 90, 90, 1, /* stale= */ false);
+    }
+
+    @Test
+    public void testUpdateTrigger_metadataOnlyUpdate_keepsRollups() {
+        List<UUID> uuids =
+                insert(createWeightRecord(START_TIME, 60), createWeightRecord(START_TIME + 1, 80));
+        ContentValues lastModifiedTime = new ContentValues();
+        lastModifiedTime.put(RecordHelper.LAST_MODIFIED_TIME_COLUMN_NAME, START_TIME + HOUR);
+
+        TransactionManager.getInitialisedInstance()
+                .update(
+                        new UpsertTableRequest(
+                                        WeightRecordHelper.WEIGHT_RECORD_TABLE_NAME,
+                                        lastModifiedTime)
+                                .setUpdateWhereClauses(
+                                        new WhereClauses()
+                                                .addWhereInUuidsClause(
+                                                        RecordHelper.UUID_COLUMN_NAME,
+                                                        List.of(uuids.get(1)))));
+
+        List<ContentValues> rollups = getWeightRollups();
+        assertThat(rollups).hasSize(1);
+        // Removing and adding back the maximum would have marked the bucket as stale.
+        assertRollup(rollups.get(0), START_TIME, 140, 60, 80, 2, /* stale= */ false);
+    }
+
+    @Test
+    public void testRefreshStaleRollups_recomputesMinAndMax() {
+        List<UUID> uuids =
+                insert(
+                        createWeightRecord(START_TIME, 60),
+                        createWeightRecord(START_TIME + 1, 70),
+                        createWeightRecord(START_TIME + 2, 80));
+        deleteWeight(uuids.get(0));
+        deleteWeight(uuids.get(2));
+
+        AggregateRollupHelper.getInstance().refreshStaleRollups();
+
+        assertRollup(getWeightRollups().get(0), START_TIME, 70, 70, 70, 1, /* stale= */ false);
+    }
+
+    @Test
+    public void testAggregate_staleRollups_matchRawAggregation() {
+        List<UUID> uuids =
+                insert(
+                        createWeightRecord(START_TIME, 60),
+                        createWeightRecord(START_TIME + 1, 70),
+                        createWeightRecord(START_TIME + 2, 80));
+        deleteWeight(uuids.get(2));
+
+        assertMatchesRawAggregation(WeightRecord.WEIGHT_MAX, START_TIME, START_TIME + HOUR);
+        assertThat(aggregateDouble(WeightRecord.WEIGHT_MAX, START_TIME, START_TIME + HOUR))
+                .isEqualTo(70.0);
+        AggregateRollupHelper.getInstance().refreshStaleRollups();
+        assertThat(aggregateDouble(WeightRecord.WEIGHT_MAX, START_TIME, START_TIME + HOUR))
+                .isEqualTo(70.0);
+    }
+
+    @Test
+    public void testAggregate_rollups_matchRawAggregation() {
+        insert(
+                createWeightRecord(START_TIME, 60),
+                createWeightRecord(START_TIME + HOUR - 1, 90),
+                createWeightRecord(START_TIME + HOUR + 1, 75),
+                createWeightRecord(START_TIME + 2 * HOUR + 1, 65));
+
+        List<AggregationType<Mass>> types =
+                List.of(WeightRecord.WEIGHT_AVG, WeightRecord.WEIGHT_MIN, WeightRecord.WEIGHT_MAX);
+        for (AggregationType<?> type : types) {
+            assertMatchesRawAggregation(type, START_TIME, START_TIME + HOUR);
+            assertMatchesRawAggregation(type, START_TIME + HOUR, START_TIME + 3 * HOUR);
+            assertMatchesRawAggregation(type, START_TIME, START_TIME + 3 * HOUR);
+        }
+        assertThat(aggregateDouble(WeightRecord.WEIGHT_AVG, START_TIME, START_TIME + 3 * HOUR))
+                .isEqualTo(72.5);
+    }
+
+    @Test
+    public void testAggregate_recordsCrossingBuckets_matchRawAggregation() {
+        insert(
+                createHydrationRecord(START_TIME, START_TIME + 10, 1),
+                // Starts in the first bucket and ends in the second one.
+                createHydrationRecord(START_TIME + HOUR - 1, START_TIME + HOUR + 10, 2),
+                createHydrationRecord(START_TIME + HOUR + 1, START_TIME + HOUR + 10, 4));
+
+        assertMatchesRawAggregation(HydrationRecord.VOLUME_TOTAL, START_TIME, START_TIME + HOUR);
+        assertMatchesRawAggregation(
+                HydrationRecord.VOLUME_TOTAL, START_TIME + HOUR, START_TIME + 2 * HOUR);
+        assertMatchesRawAggregation(
+                HydrationRecord.VOLUME_TOTAL, START_TIME, START_TIME + 2 * HOUR);
+    }
+
+    private List<UUID> insert(RecordInternal<?>... records) {
+        return insertRecords(mDatabaseRule.getContext(), records);
+    }
+
+    /**
+     * Checks that the aggregation over [{@code startTime}, {@code endTime}), aligned to buckets,
+     * has the same result as the one ending a millisecond later, which isn't and hence is computed
+     * from the record table. No record must start in the extra millisecond.
+     */
+    private static void assertMatchesRawAggregation(
+            AggregationType<?> aggregationType, long startTime, long endTime) {
+        assertThat(aggregateDouble(aggregationType, startTime, endTime))
+                .isEqualTo(aggregateDouble(aggregationType, startTime, endTime + 1));
+    }
+
+    private static void deleteWeight(UUID uuid) {
+        TransactionManager.getInitialisedInstance()
+                .delete(
+                        new DeleteTableRequest(WeightRecordHelper.WEIGHT_RECORD_TABLE_NAME)
+                                .setUuids(RecordHelper.UUID_COLUMN_NAME, List.of(uuid)));
+    }
+
+    private static List<ContentValues> getWeightRollups() {
+        ReadTableRequest request =
+                new ReadTableRequest(AggregateRollupHelper.TABLE_NAME)
+                        .setWhereClause(
+                                new WhereClauses()
+                                        .addWhereInIntsClause(
+                                                RECORD_TYPE_COLUMN_NAME,
+                                                List.of(RECORD_TYPE_WEIGHT))
+                                        .addWhereInIntsClause(
+                                                TIME_BASIS_COLUMN_NAME,
+                                                List.of(TIME_BASIS_PHYSICAL)))
+                        .setOrderBy(
+                                new OrderByClause()
+                                        .addOrderByClause(BUCKET_START_COLUMN_NAME, true));
+        List<ContentValues> rollups = new ArrayList<>();
+        try (Cursor cursor = TransactionManager.getInitialisedInstance().read(request)) {
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, values);
+                rollups.add(values);
+            }
+        }
+        return rollups;
+    }
+
+    private static void assertRollup(
+            ContentValues rollup,
+            long bucketStart,
+            double sum,
+            double min,
+            double max,
+            long count,
+            boolean stale) {
+        assertThat(rollup.getAsLong(BUCKET_START_COLUMN_NAME)).isEqualTo(bucketStart);
+        assertThat(rollup.getAsDouble(VALUE_SUM_COLUMN_NAME)).isEqualTo(sum);
+        assertThat(rollup.getAsDouble(VALUE_MIN_COLUMN_NAME)).isEqualTo(min);
+        assertThat(rollup.getAsDouble(VALUE_MAX_COLUMN_NAME)).isEqualTo(max);
+        assertThat(rollup.getAsLong(VALUE_COUNT_COLUMN_NAME)).isEqualTo(count);
+        assertThat(rollup.getAsInteger(STALE_COLUMN_NAME)).isEqualTo(stale ? 1 : 0);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.Constants.UPSERT;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.storage.TransactionTestUtils.TEST_PACKAGE_NAME;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.createStepsRecord;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.insertRecords;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.changelog.ChangeLogsRequest;
+import android.health.connect.internal.datatypes.RecordInternal;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabaseTestRule;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class ChangeLogsHelperTest {
+    private static final long START_TIME = Instant.parse("2023-06-01T00:00:00Z").toEpochMilli();
+    private static final int PAGE_SIZE = 3;
+
+    @Rule
+    public final HealthConnectDatabaseTestRule mDatabaseRule = new HealthConnectDatabaseTestRule();
+
+    private long mNextStartTime = START_TIME;
+
+    @Test
+    public void testGetChangeLogs_afterCacheGap_returnsSamePagesAsTable() {
+        insertStepsRecords(1);
+        insertStepsRecords(2);
+        // Written without being added to the cache, which starts over after it.
+        for (UpsertTableRequest request : createChangeLogRequests()) {
+            TransactionManager.getInitialisedInstance().insert(request);
+        }
+        insertStepsRecords(3);
+        insertStepsRecords(1);
+        insertStepsRecords(4);
+        ChangeLogsTailCache tailCache = ChangeLogsHelper.getInstance().getTailCache();
+        long hitCount = tailCache.getHitCount();
+
+        List<List<Object>> cachedPages = readAllPages();
+        ChangeLogsHelper.getInstance().clearTailCache();
+        List<List<Object>> tablePages = readAllPages();
+
+        // The pages before the gap are read from the table, the last one from the cache.
+        assertThat(tailCache.getHitCount()).isEqualTo(hitCount + 1);
+        assertThat(cachedPages).hasSize(3);
+        assertThat(cachedPages).isEqualTo(tablePages);
+    }
+
+    @Test
+    public void testGetChangeLogs_nestedTransaction_cachedOnceOutermostCommitted() {
+        insertStepsRecords(1);
+        long lastRowId = ChangeLogsHelper.getInstance().getLatestRowId();
+        ChangeLogsTailCache tailCache = ChangeLogsHelper.getInstance().getTailCache();
+
+        TransactionManager.getInitialisedInstance()
+                .runAsTransaction(
+                        db -> {
+                            insertStepsRecords(2);
+                            assertThat(getCachedRowCount(tailCache, lastRowId)).isEqualTo(0);
+                        });
+
+        assertThat(getCachedRowCount(tailCache, lastRowId)).isEqualTo(1);
+        assertThat(readAllPages()).isEqualTo(readAllPagesFromTable());
+    }
+
+    private void insertStepsRecords(int count) {
+        RecordInternal<?>[] records = new RecordInternal<?>[count];
+        for (int i = 0; i < count; i++) {
+            records[i] = createStepsRecord(mNextStartTime, mNextStartTime + 1000, 10);
+            mNextStartTime += 1000;
+        }
+        insertRecords(mDatabaseRule.getContext(), records);
+    }
+
+    private static List<UpsertTableRequest> createChangeLogRequests() {
+        return new ChangeLogsHelper.ChangeLogs(UPSERT, TEST_PACKAGE_NAME, START_TIME)
+                .addUUIDs(
+                        RECORD_TYPE_STEPS,
+                        AppInfoHelper.getInstance().getAppInfoId(TEST_PACKAGE_NAME),
+                        List.of(UUID.randomUUID()))
+                .getUpsertTableRequests();
+    }
+
+    private static int getCachedRowCount(ChangeLogsTailCache tailCache, long afterRowId) {
+        List<ChangeLogsTailCache.Entry> rows =
+                tailCache.getRowsAfter(afterRowId, Collections.emptySet(), null, PAGE_SIZE);
+        return rows == null ? 0 : rows.size();
+    }
+
+    private static List<List<Object>> readAllPagesFromTable() {
+        ChangeLogsHelper.getInstance().clearTailCache();
+        return readAllPages();
+    }
+
+    /** Reads all the change logs a page at a time, and returns the content of each page. */
+    private static List<List<Object>> readAllPages() {
+        List<List<Object>> pages = new ArrayList<>();
+        long rowId = 0;
+        boolean hasMorePages = true;
+        while (hasMorePages) {
+            ChangeLogsRequestHelper.TokenRequest tokenRequest =
+                    new ChangeLogsRequestHelper.TokenRequest(
+                            Collections.emptyList(),
+                            Collections.emptyList(),
+                            TEST_PACKAGE_NAME,
+                            rowId);
+            ChangeLogsRequest request =
+                    new ChangeLogsRequest.Builder(
+                                    ChangeLogsRequestHelper.getNextPageToken(tokenRequest, rowId))
+                            .setPageSize(PAGE_SIZE)
+                            .build();
+
+            ChangeLogsHelper.ChangeLogsResponse response =
+                    ChangeLogsHelper.getInstance().getChangeLogs(tokenRequest, request);
+
+            rowId =
+                    ChangeLogsRequestHelper.getRequest(
+                                    TEST_PACKAGE_NAME, response.getNextPageToken())
+                            .getRowIdChangeLogs();
+            hasMorePages = response.hasMorePages();
+            pages.add(
+                    List.of(
+                            ChangeLogsHelper.getRecordTypeToInsertedUuids(
+                                    response.getChangeLogsMap()),
+                            rowId,
+                            hasMorePages));
+        }
+        return pages;
+    }
+}
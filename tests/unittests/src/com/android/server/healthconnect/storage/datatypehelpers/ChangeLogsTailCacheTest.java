@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.Constants.UPSERT;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HEART_RATE;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class ChangeLogsTailCacheTest {
+    private final ChangeLogsTailCache mCache =
+            new ChangeLogsTailCache(/* maxRows= */ 4, /* maxUuids= */ 10);
+
+    @Test
+    public void testGetRowsAfter_tokenInWindow_returnsRowsAfterToken() {
+        commit(
+                createEntry(10, RECORD_TYPE_STEPS, 1),
+                createEntry(11, RECORD_TYPE_HEART_RATE, 1),
+                createEntry(12, RECORD_TYPE_STEPS, 2));
+
+        List<ChangeLogsTailCache.Entry> rows =
+                mCache.getRowsAfter(10, Set.of(RECORD_TYPE_STEPS), null, /* pageSize= */ 100);
+
+        assertThat(getRowIds(rows)).containsExactly(12L);
+        assertThat(mCache.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testGetRowsAfter_tokenOutsideWindow_returnsNull() {
+        commit(createEntry(10, RECORD_TYPE_STEPS, 1));
+
+        assertThat(mCache.getRowsAfter(8, Collections.emptySet(), null, 100)).isNull();
+        assertThat(mCache.getRowsAfter(11, Collections.emptySet(), null, 100)).isNull();
+        assertThat(mCache.getRowsAfter(9, Collections.emptySet(), null, 100)).hasSize(1);
+        assertThat(mCache.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testGetRowsAfter_pageFull_returnsOneExtraRow() {
+        commit(
+                createEntry(1, RECORD_TYPE_STEPS, 1, 2),
+                createEntry(2, RECORD_TYPE_STEPS, 1, 1),
+                createEntry(3, RECORD_TYPE_STEPS, 1, 1));
+
+        List<ChangeLogsTailCache.Entry> rows =
+                mCache.getRowsAfter(0, Collections.emptySet(), Set.of(1L), /* pageSize= */ 2);
+
+        assertThat(getRowIds(rows)).containsExactly(1L, 2L).inOrder();
+    }
+
+    @Test
+    public void testOnRowsCommitted_overCapacity_evictsOldestRows() {
+        for (long rowId = 1; rowId <= 6; rowId++) {
+            commit(createEntry(rowId, RECORD_TYPE_STEPS, 1));
+        }
+
+        assertThat(mCache.getRowCount()).isEqualTo(4);
+        assertThat(mCache.getRowsAfter(1, Collections.emptySet(), null, 100)).isNull();
+        assertThat(getRowIds(mCache.getRowsAfter(2, Collections.emptySet(), null, 100)))
+                .containsExactly(3L, 4L, 5L, 6L)
+                .inOrder();
+
+        // Evicted to stay within the uuids limit.
+        commit(createEntry(7, RECORD_TYPE_STEPS, 1, 8));
+        assertThat(getRowIds(mCache.getRowsAfter(5, Collections.emptySet(), null, 100)))
+                .containsExactly(6L, 7L)
+                .inOrder();
+        assertThat(mCache.getRowsAfter(3, Collections.emptySet(), null, 100)).isNull();
+    }
+
+    @Test
+    public void testOnRowsCommitted_gapInRowIds_startsOver() {
+        commit(createEntry(1, RECORD_TYPE_STEPS, 1));
+        commit(createEntry(5, RECORD_TYPE_STEPS, 1));
+
+        assertThat(mCache.getRowsAfter(1, Collections.emptySet(), null, 100)).isNull();
+        assertThat(getRowIds(mCache.getRowsAfter(4, Collections.emptySet(), null, 100)))
+                .containsExactly(5L);
+    }
+
+    @Test
+    public void testGetRowsAfter_pageOfSingleUuidRows_returnsAtMostOneExtraRow() {
+        commit(
+                createEntry(1, RECORD_TYPE_STEPS, 1, 0),
+                createEntry(2, RECORD_TYPE_STEPS, 1, 0),
+                createEntry(3, RECORD_TYPE_STEPS, 1, 0),
+                createEntry(4, RECORD_TYPE_STEPS, 1, 0));
+
+        List<ChangeLogsTailCache.Entry> rows =
+                mCache.getRowsAfter(0, Collections.emptySet(), null, /* pageSize= */ 2);
+
+        // Same as reading pageSize + 1 rows from the table.
+        assertThat(getRowIds(rows)).containsExactly(1L, 2L, 3L).inOrder();
+    }
+
+    @Test
+    public void testGetRowsAfter_rowsNotCommitted_notReturned() {
+        commit(createEntry(1, RECORD_TYPE_STEPS, 1));
+        mCache.onRowsCommitting(List.of(createEntry(2, RECORD_TYPE_STEPS, 1)));
+
+        assertThat(getRowIds(mCache.getRowsAfter(0, Collections.emptySet(), null, 100)))
+                .containsExactly(1L);
+        assertThat(mCache.getRowsAfter(2, Collections.emptySet(), null, 100)).isNull();
+    }
+
+    @Test
+    public void testOnRowsCommitted_outOfOrder_returnsRowsOnceRowsBeforeCommitted() {
+        mCache.onRowsCommitting(List.of(createEntry(1, RECORD_TYPE_STEPS, 1)));
+        mCache.onRowsCommitting(
+                List.of(
+                        createEntry(2, RECORD_TYPE_STEPS, 1),
+                        createEntry(3, RECORD_TYPE_STEPS, 1)));
+
+        mCache.onRowsCommitted(2, 3);
+        assertThat(getRowIds(mCache.getRowsAfter(0, Collections.emptySet(), null, 100))).isEmpty();
+
+        mCache.onRowsCommitted(1, 1);
+        assertThat(getRowIds(mCache.getRowsAfter(0, Collections.emptySet(), null, 100)))
+                .containsExactly(1L, 2L, 3L)
+                .inOrder();
+    }
+
+    @Test
+    public void testOnRowsCommitting_rowIdReused_startsOver() {
+        commit(createEntry(1, RECORD_TYPE_STEPS, 1));
+        // Added by a transaction which was then rolled back, so the row id is used again.
+        mCache.onRowsCommitting(List.of(createEntry(2, RECORD_TYPE_STEPS, 1)));
+        commit(createEntry(2, RECORD_TYPE_HEART_RATE, 1));
+
+        assertThat(mCache.getRowsAfter(0, Collections.emptySet(), null, 100)).isNull();
+        assertThat(getRowIds(mCache.getRowsAfter(1, Set.of(RECORD_TYPE_HEART_RATE), null, 100)))
+                .containsExactly(2L);
+    }
+
+    private void commit(ChangeLogsTailCache.Entry... entries) {
+        mCache.onRowsCommitting(List.of(entries));
+        mCache.onRowsCommitted(entries[0].mRowId, entries[entries.length - 1].mRowId);
+    }
+
+    private static ChangeLogsTailCache.Entry createEntry(long rowId, int recordType, long appId) {
+        return createEntry(rowId, recordType, appId, 1);
+    }
+
+    private static ChangeLogsTailCache.Entry createEntry(
+            long rowId, int recordType, long appId, int uuidCount) {
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0; i < uuidCount; i++) {
+            uuids.add(UUID.randomUUID());
+        }
+        return new ChangeLogsTailCache.Entry(
+                rowId, recordType, appId, UPSERT, /* time= */ 1000, uuids);
+    }
+
+    private static List<Long> getRowIds(List<ChangeLogsTailCache.Entry> rows) {
+        List<Long> rowIds = new ArrayList<>();
+        for (ChangeLogsTailCache.Entry row : rows) {
+            rowIds.add(row.mRowId);
+        }
+        return rowIds;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.HealthPermissions.READ_EXERCISE_ROUTE;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.LocalTimeRangeFilter;
+import android.health.connect.ReadRecordsRequestUsingFilters;
+import android.health.connect.TimeInstantRangeFilter;
+import android.health.connect.aidl.ReadRecordsRequestParcel;
+import android.health.connect.datatypes.AggregationType;
+import android.health.connect.datatypes.DataOrigin;
+import android.health.connect.datatypes.Record;
+import android.health.connect.internal.datatypes.utils.AggregationTypeIdMapper;
+import android.health.connect.internal.datatypes.utils.RecordMapper;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.dx.mockito.inline.extended.ExtendedMockito;
+import com.android.server.healthconnect.HealthConnectDeviceConfigManager;
+import com.android.server.healthconnect.storage.HealthConnectDatabase;
+import com.android.server.healthconnect.storage.request.AggregateTableRequest;
+import com.android.server.healthconnect.storage.request.DeleteTableRequest;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+import com.android.server.healthconnect.storage.utils.PageTokenUtils;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs {@code EXPLAIN QUERY PLAN} on the read, aggregate and delete statements generated for every
+ * record type, and checks that none of them scans a whole table and that every index created by
+ * {@link RecordHelper#getIndexedColumns} is used by some of them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class QueryPlanTest {
+    private static final Instant START_TIME = Instant.parse("2023-06-01T00:00:00Z");
+    private static final Instant END_TIME = START_TIME.plus(1, ChronoUnit.DAYS);
+    private static final LocalDateTime LOCAL_START_TIME = LocalDateTime.of(2023, 6, 1, 0, 0);
+    private static final LocalDateTime LOCAL_END_TIME = LOCAL_START_TIME.plusDays(1);
+    private static final String PACKAGE_NAME = "package.name";
+    private static final Pattern INDEX_PATTERN =
+            Pattern.compile(" USING (?:COVERING )?INDEX (\\S+)");
+
+    @Mock Context mContext;
+    @Mock HealthConnectDeviceConfigManager mHealthConnectDeviceConfigManager;
+    @Mock PreferenceHelper mPreferenceHelper;
+    @Mock AppInfoHelper mAppInfoHelper;
+    private SQLiteDatabase mSQLiteDatabase;
+    private Set<String> mTableNames;
+    private MockitoSession mStaticMockSession;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mContext.getDatabasePath(anyString()))
+                .thenReturn(
+                        InstrumentationRegistry.getInstrumentation()
+                                .getContext()
+                                .getDatabasePath("query_plan"));
+        // Created before mocking the helpers, which the database needs to create its tables.
+        mSQLiteDatabase = new HealthConnectDatabase(mContext).getWritableDatabase();
+        mTableNames = getTableNames();
+
+        mStaticMockSession =
+                ExtendedMockito.mockitoSession()
+                        .mockStatic(HealthConnectDeviceConfigManager.class)
+                        .mockStatic(PreferenceHelper.class)
+                        .mockStatic(AppInfoHelper.class)
+                        .strictness(Strictness.LENIENT)
+                        .startMocking();
+        when(HealthConnectDeviceConfigManager.getInitialisedInstance())
+                .thenReturn(mHealthConnectDeviceConfigManager);
+        when(mHealthConnectDeviceConfigManager.isSessionDatatypeFeatureEnabled()).thenReturn(true);
+        when(mHealthConnectDeviceConfigManager.isExerciseRouteFeatureEnabled()).thenReturn(true);
+        when(PreferenceHelper.getInstance()).thenReturn(mPreferenceHelper);
+        when(AppInfoHelper.getInstance()).thenReturn(mAppInfoHelper);
+        when(mAppInfoHelper.getAppInfoId(anyString())).thenReturn(1L);
+        when(mAppInfoHelper.getAppInfoIds(any()))
+                .thenAnswer(
+                        invocation -> {
+                            List<String> packageNames = invocation.getArgument(0);
+                            List<Long> appInfoIds = new ArrayList<>();
+                            for (int i = 0; packageNames != null && i < packageNames.size(); i++) {
+                                appInfoIds.add(i + 1L);
+                            }
+                            return appInfoIds;
+                        });
+    }
+
+    @After
+    public void tearDown() {
+        mStaticMockSession.finishMocking();
+        mSQLiteDatabase.close();
+    }
+
+    @Test
+    public void testReadStatements_useIndexes() {
+        for (boolean packedSamples : new boolean[] {true, false}) {
+            setPackedSeriesSamplesEnabled(packedSamples);
+            for (RecordHelper<?> helper : getRecordHelpers()) {
+                for (String statement : getReadStatements(helper)) {
+                    assertNoFullTableScan(statement);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAggregateStatements_useIndexes() {
+        for (boolean packedSamples : new boolean[] {true, false}) {
+            setPackedSeriesSamplesEnabled(packedSamples);
+            for (RecordHelper<?> helper : getRecordHelpers()) {
+                for (String statement : getAggregateStatements(helper)) {
+                    assertNoFullTableScan(statement);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDeleteStatements_useIndexes() {
+        for (RecordHelper<?> helper : getRecordHelpers()) {
+            for (String statement : getDeleteStatements(helper)) {
+                assertNoFullTableScan(statement);
+            }
+        }
+    }
+
+    @Test
+    public void testActivityDateStatements_onlyScanIndex() {
+        // Activity dates are all the distinct local dates of a table, so the best plan reads the
+        // whole local date index, but not the table.
+        for (RecordHelper<?> helper : getRecordHelpers()) {
+            String statement = getActivityDateStatement(helper);
+            for (String detail : getQueryPlan(statement)) {
+                assertWithMessage(statement)
+                        .that(isFullTableScan(detail) && !detail.contains(" COVERING INDEX "))
+                        .isFalse();
+            }
+        }
+    }
+
+    @Test
+    public void testRecordIndexes_areUsed() {
+        setPackedSeriesSamplesEnabled(true);
+        for (RecordHelper<?> helper : getRecordHelpers()) {
+            List<String> statements = new ArrayList<>();
+            statements.addAll(getReadStatements(helper));
+            statements.addAll(getAggregateStatements(helper));
+            statements.addAll(getDeleteStatements(helper));
+            statements.add(getActivityDateStatement(helper));
+            Set<String> usedIndexes = new HashSet<>();
+            for (String statement : statements) {
+                for (String detail : getQueryPlan(statement)) {
+                    Matcher matcher = INDEX_PATTERN.matcher(detail);
+                    if (matcher.find()) {
+                        usedIndexes.add(matcher.group(1));
+                    }
+                }
+            }
+
+            for (List<String> columns : helper.getIndexedColumns()) {
+                String indexName =
+                        "idx_" + helper.getMainTableName() + "_" + String.join("_", columns);
+                assertWithMessage(indexName).that(usedIndexes).contains(indexName);
+            }
+        }
+    }
+
+    private void setPackedSeriesSamplesEnabled(boolean enabled) {
+        // Without packing, and no packed samples written before, series samples are read by
+        // joining the series tables.
+        when(mHealthConnectDeviceConfigManager.isPackedSeriesSamplesEnabled()).thenReturn(enabled);
+    }
+
+    private static List<RecordHelper<?>> getRecordHelpers() {
+        return new ArrayList<>(RecordHelperProvider.getInstance().getRecordHelpers().values());
+    }
+
+    private static List<String> getReadStatements(RecordHelper<?> helper) {
+        Class<? extends Record> recordClass =
+                RecordMapper.getInstance()
+                        .getRecordIdToExternalRecordClassMap()
+                        .get(helper.getRecordIdentifier());
+        List<ReadRecordsRequestUsingFilters<?>> requests =
+                List.of(
+                        new ReadRecordsRequestUsingFilters.Builder<>(recordClass)
+                                .setTimeRangeFilter(
+                                        new TimeInstantRangeFilter.Builder()
+                                                .setStartTime(START_TIME)
+                                                .setEndTime(END_TIME)
+                                                .build())
+                                .build(),
+                        new ReadRecordsRequestUsingFilters.Builder<>(recordClass)
+                                .setTimeRangeFilter(
+                                        new LocalTimeRangeFilter.Builder()
+                                                .setStartTime(LOCAL_START_TIME)
+                                                .setEndTime(LOCAL_END_TIME)
+                                                .build())
+                                .build(),
+                        new ReadRecordsRequestUsingFilters.Builder<>(recordClass)
+                                .addDataOrigins(
+                                        new DataOrigin.Builder()
+                                                .setPackageName(PACKAGE_NAME)
+                                                .build())
+                                .setTimeRangeFilter(
+                                        new TimeInstantRangeFilter.Builder()
+                                                .setStartTime(START_TIME)
+                                                .setEndTime(END_TIME)
+                                                .build())
+                                .build(),
+                        new ReadRecordsRequestUsingFilters.Builder<>(recordClass)
+                                .setPageToken(START_TIME.toEpochMilli() * 2)
+                                .build(),
+                        new ReadRecordsRequestUsingFilters.Builder<>(recordClass)
+                                .setPageToken(
+                                        PageTokenUtils.encode(
+                                                START_TIME.toEpochMilli(),
+                                                /* rowId= */ 10,
+                                                /* isAscending= */ false))
+                                .build());
+
+        List<String> statements = new ArrayList<>();
+        for (ReadRecordsRequestUsingFilters<?> request : requests) {
+            for (boolean enforceSelfRead : new boolean[] {false, true}) {
+                addReadStatements(
+                        statements,
+                        helper.getReadTableRequest(
+                                new ReadRecordsRequestParcel(request),
+                                PACKAGE_NAME,
+                                enforceSelfRead,
+                                /* startDateAccess= */ 0,
+                                Map.of(READ_EXERCISE_ROUTE, true)));
+            }
+        }
+        addReadStatements(
+                statements,
+                helper.getReadTableRequest(List.of(UUID.randomUUID()), /* startDateAccess= */ 0));
+        return statements;
+    }
+
+    private static void addReadStatements(List<String> statements, ReadTableRequest request) {
+        statements.add(request.getReadCommand());
+        if (request.getExtraReadRequests() != null) {
+            for (ReadTableRequest extraReadRequest : request.getExtraReadRequests()) {
+                statements.add(extraReadRequest.getReadCommand());
+            }
+        }
+    }
+
+    private static List<String> getAggregateStatements(RecordHelper<?> helper) {
+        List<String> statements = new ArrayList<>();
+        for (AggregationType<?> aggregationType :
+                AggregationTypeIdMapper.getInstance().getAggregationTypes()) {
+            if (!aggregationType
+                    .getApplicableRecordTypeIds()
+                    .contains(helper.getRecordIdentifier())) {
+                continue;
+            }
+            for (List<String> packageFilter : List.of(List.<String>of(), List.of(PACKAGE_NAME))) {
+                for (boolean useLocalTime : new boolean[] {false, true}) {
+                    AggregateTableRequest request =
+                            helper.getAggregateTableRequest(
+                                    aggregationType,
+                                    packageFilter,
+                                    START_TIME.toEpochMilli(),
+                                    END_TIME.toEpochMilli(),
+                                    useLocalTime);
+                    statements.add(request.getAggregationCommand(new ArrayList<>()));
+                    statements.add(request.getCommandToFetchAggregateMetadata(new ArrayList<>()));
+                }
+            }
+        }
+        return statements;
+    }
+
+    private static List<String> getDeleteStatements(RecordHelper<?> helper) {
+        List<String> statements = new ArrayList<>();
+        statements.add(helper.getDeleteRequestForAutoDelete(30).getDeleteCommand());
+        for (List<String> packageFilter : List.of(List.<String>of(), List.of(PACKAGE_NAME))) {
+            for (boolean useLocalTime : new boolean[] {false, true}) {
+                DeleteTableRequest request =
+                        helper.getDeleteTableRequest(
+                                packageFilter,
+                                START_TIME.toEpochMilli(),
+                                END_TIME.toEpochMilli(),
+                                useLocalTime);
+                statements.add(request.getReadCommand());
+                statements.add(request.getDeleteCommand());
+            }
+        }
+        DeleteTableRequest request = helper.getDeleteTableRequest(List.of(UUID.randomUUID()));
+        statements.add(request.getReadCommand());
+        statements.add(request.getDeleteCommand());
+        return statements;
+    }
+
+    private static String getActivityDateStatement(RecordHelper<?> helper) {
+        return new ReadTableRequest(helper.getMainTableName())
+                .setColumnNames(List.of(helper.getPeriodGroupByColumnName()))
+                .setDistinctClause(true)
+                .getReadCommand();
+    }
+
+    private void assertNoFullTableScan(String statement) {
+        List<String> fullTableScans = new ArrayList<>();
+        for (String detail : getQueryPlan(statement)) {
+            if (isFullTableScan(detail)) {
+                fullTableScans.add(detail);
+            }
+        }
+
+        assertWithMessage(statement).that(fullTableScans).isEmpty();
+    }
+
+    private List<String> getQueryPlan(String statement) {
+        List<String> details = new ArrayList<>();
+        try (Cursor cursor = mSQLiteDatabase.rawQuery("EXPLAIN QUERY PLAN " + statement, null)) {
+            int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                details.add(cursor.getString(detailColumn));
+            }
+        }
+        return details;
+    }
+
+    // Only searches use an index to skip rows. Scans read every row of a table, even when they
+    // read them from an index, while scans of subqueries are fine as long as the subqueries use
+    // indexes themselves.
+    private boolean isFullTableScan(String detail) {
+        String[] words = detail.split(" ");
+        if (words.length < 2 || !words[0].equals("SCAN")) {
+            return false;
+        }
+
+        String scanned = words[1].equals("TABLE") && words.length > 2 ? words[2] : words[1];
+        return mTableNames.contains(scanned);
+    }
+
+    private Set<String> getTableNames() {
+        Set<String> tableNames = new HashSet<>();
+        try (Cursor cursor =
+                mSQLiteDatabase.rawQuery(
+                        "SELECT name FROM sqlite_master WHERE type = 'table'", null)) {
+            while (cursor.moveToNext()) {
+                tableNames.add(cursor.getString(0));
+            }
+        }
+        return tableNames;
+    }
+}
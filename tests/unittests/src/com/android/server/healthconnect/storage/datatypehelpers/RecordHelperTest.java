@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.Constants.DEFAULT_LONG;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.storage.TransactionTestUtils.TEST_PACKAGE_NAME;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.createHeartRateRecord;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.createStepsRecord;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.insertRecords;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.readRecords;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import android.health.connect.ReadRecordsRequestUsingFilters;
+import android.health.connect.TimeInstantRangeFilter;
+import android.health.connect.aidl.ReadRecordsRequestParcel;
+import android.health.connect.datatypes.HeartRateRecord;
+import android.health.connect.datatypes.Record;
+import android.health.connect.datatypes.StepsRecord;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal;
+import android.health.connect.internal.datatypes.IntervalRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.util.Pair;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabaseTestRule;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
+import com.android.server.healthconnect.storage.utils.PageTokenUtils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class RecordHelperTest {
+    private static final Instant START_TIME = Instant.parse("2023-06-01T00:00:00Z");
+    private static final Instant END_TIME = START_TIME.plusSeconds(3600);
+    private static final int PAGE_SIZE = 3;
+
+    @Rule
+    public final HealthConnectDatabaseTestRule mDatabaseRule = new HealthConnectDatabaseTestRule();
+
+    @Test
+    public void testReadPages_equalStartTimes_returnsEachRecordOnce() {
+        List<UUID> uuids = new ArrayList<>();
+        // Inserted out of start time order, so that row ids and start times disagree.
+        uuids.addAll(insertStepsRecords(START_TIME.plusSeconds(1), 4));
+        uuids.addAll(insertStepsRecords(START_TIME, 10));
+        uuids.addAll(insertStepsRecords(START_TIME.plusSeconds(2), 2));
+
+        for (boolean isAscending : new boolean[] {true, false}) {
+            List<RecordInternal<?>> records = readAllPages(StepsRecord.class, isAscending);
+
+            assertThat(getUuids(records)).containsExactlyElementsIn(uuids);
+            Comparator<Long> order =
+                    isAscending ? Comparator.naturalOrder() : Comparator.reverseOrder();
+            assertThat(getStartTimes(records)).isInOrder(order);
+        }
+    }
+
+    @Test
+    public void testReadPages_seriesRecordsWithEqualStartTimes_returnsEachRecordOnce() {
+        when(mDatabaseRule.getDeviceConfigManager().isPackedSeriesSamplesEnabled())
+                .thenReturn(false);
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            uuids.addAll(
+                    insertRecords(
+                            mDatabaseRule.getContext(),
+                            createHeartRateRecord(START_TIME.toEpochMilli(), 60 + i, 70, 80)));
+        }
+
+        for (boolean isAscending : new boolean[] {true, false}) {
+            List<RecordInternal<?>> records = readAllPages(HeartRateRecord.class, isAscending);
+
+            // Each record is read once, with all the rows of its samples.
+            assertThat(getUuids(records)).containsExactlyElementsIn(uuids);
+            for (RecordInternal<?> record : records) {
+                assertThat(((HeartRateRecordInternal) record).getSampleCount()).isEqualTo(3);
+            }
+        }
+    }
+
+    @Test
+    public void testReadPage_tokenOfUnreadableRow_ignoresItsStartTime() {
+        // Outside of the time range of the read, so its start time mustn't be used.
+        List<UUID> unreadable = insertStepsRecords(END_TIME.plusSeconds(60), 1);
+        List<UUID> uuids = insertStepsRecords(START_TIME, 2);
+        int rowId = readRecords(RECORD_TYPE_STEPS, unreadable).get(0).getRowId();
+
+        Pair<List<RecordInternal<?>>, Long> page =
+                readPage(
+                        new ReadRecordsRequestUsingFilters.Builder<>(StepsRecord.class)
+                                .setTimeRangeFilter(getTimeRangeFilter())
+                                .setPageToken(
+                                        PageTokenUtils.encode(
+                                                START_TIME.toEpochMilli(),
+                                                rowId,
+                                                /* isAscending= */ true))
+                                .build());
+
+        assertThat(getUuids(page.first)).containsExactlyElementsIn(uuids);
+    }
+
+    private List<UUID> insertStepsRecords(Instant startTime, int count) {
+        RecordInternal<?>[] records = new RecordInternal<?>[count];
+        for (int i = 0; i < count; i++) {
+            records[i] =
+                    createStepsRecord(
+                            startTime.toEpochMilli(), startTime.toEpochMilli() + 1000, 10 + i);
+        }
+        return insertRecords(mDatabaseRule.getContext(), records);
+    }
+
+    /** Reads all the records of {@code recordClass} a page at a time. */
+    private static List<RecordInternal<?>> readAllPages(
+            Class<? extends Record> recordClass, boolean isAscending) {
+        List<RecordInternal<?>> records = new ArrayList<>();
+        long pageToken = DEFAULT_LONG;
+        do {
+            ReadRecordsRequestUsingFilters.Builder<? extends Record> builder =
+                    new ReadRecordsRequestUsingFilters.Builder<>(recordClass)
+                            .setTimeRangeFilter(getTimeRangeFilter())
+                            .setPageSize(PAGE_SIZE);
+            if (pageToken == DEFAULT_LONG) {
+                builder.setAscending(isAscending);
+            } else {
+                builder.setPageToken(pageToken);
+            }
+
+            Pair<List<RecordInternal<?>>, Long> page = readPage(builder.build());
+            assertThat(page.first.size()).isAtMost(PAGE_SIZE);
+            records.addAll(page.first);
+            pageToken = page.second;
+            // Clients may page while the token is non-negative.
+            assertThat(pageToken == DEFAULT_LONG || pageToken >= 0).isTrue();
+        } while (pageToken != DEFAULT_LONG);
+        return records;
+    }
+
+    private static Pair<List<RecordInternal<?>>, Long> readPage(
+            ReadRecordsRequestUsingFilters<?> request) {
+        return TransactionManager.getInitialisedInstance()
+                .readRecordsAndGetNextToken(
+                        new ReadTransactionRequest(
+                                TEST_PACKAGE_NAME,
+                                new ReadRecordsRequestParcel(request),
+                                /* startDateAccess= */ 0,
+                                /* enforceSelfRead= */ false,
+                                Collections.emptyMap()));
+    }
+
+    private static TimeInstantRangeFilter getTimeRangeFilter() {
+        return new TimeInstantRangeFilter.Builder()
+                .setStartTime(START_TIME)
+                .setEndTime(END_TIME)
+                .build();
+    }
+
+    private static List<UUID> getUuids(List<RecordInternal<?>> records) {
+        List<UUID> uuids = new ArrayList<>(records.size());
+        for (RecordInternal<?> record : records) {
+            uuids.add(record.getUuid());
+        }
+        return uuids;
+    }
+
+    private static List<Long> getStartTimes(List<RecordInternal<?>> records) {
+        List<Long> startTimes = new ArrayList<>(records.size());
+        for (RecordInternal<?> record : records) {
+            startTimes.add(((IntervalRecordInternal<?>) record).getStartTimeInMillis());
+        }
+        return startTimes;
+    }
+}
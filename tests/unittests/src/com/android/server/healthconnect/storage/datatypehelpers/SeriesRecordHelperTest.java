@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HEART_RATE;
+
+import static com.android.server.healthconnect.storage.TransactionTestUtils.aggregateLong;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.createHeartRateRecord;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.insertRecords;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.readRecords;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.updateRecords;
+import static com.android.server.healthconnect.storage.datatypehelpers.SeriesRecordHelper.PACKED_SAMPLES_WRITTEN_PREFERENCE_KEY;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import android.health.connect.datatypes.HeartRateRecord;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabaseTestRule;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.DeleteTableRequest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class SeriesRecordHelperTest {
+    private static final long START_TIME = Instant.parse("2023-06-01T00:00:00Z").toEpochMilli();
+    private static final long HOUR_MILLIS = 3_600_000;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    @Rule
+    public final HealthConnectDatabaseTestRule mDatabaseRule = new HealthConnectDatabaseTestRule();
+
+    private final HeartRateRecordHelper mHelper = new HeartRateRecordHelper();
+
+    @Test
+    public void testInsert_packedSamples_commitsPreferenceWithRecord() {
+        setPackedSeriesSamplesEnabled(true);
+
+        insertRecords(mDatabaseRule.getContext(), createHeartRateRecord(START_TIME, 70, 71));
+
+        assertThat(getPackedSamplesWrittenPreference()).isNotNull();
+        assertThat(getSeriesTableRowCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void testInsert_unpackedSamples_doesNotWritePreference() {
+        setPackedSeriesSamplesEnabled(false);
+
+        insertRecords(mDatabaseRule.getContext(), createHeartRateRecord(START_TIME, 70, 71));
+
+        assertThat(getPackedSamplesWrittenPreference()).isNull();
+        assertThat(getSeriesTableRowCount()).isEqualTo(2L);
+    }
+
+    @Test
+    public void testUpdate_unpackedSamples_replacesSeriesRows() {
+        setPackedSeriesSamplesEnabled(false);
+        List<UUID> uuids =
+                insertRecords(
+                        mDatabaseRule.getContext(), createHeartRateRecord(START_TIME, 70, 71));
+        HeartRateRecordInternal update = createHeartRateRecord(START_TIME, 80, 81, 82);
+        update.setUuid(uuids.get(0));
+
+        updateRecords(mDatabaseRule.getContext(), update);
+
+        assertThat(getSeriesTableRowCount()).isEqualTo(3L);
+        List<RecordInternal<?>> records = readRecords(RECORD_TYPE_HEART_RATE, uuids);
+        assertThat(records).hasSize(1);
+        assertSamples((HeartRateRecordInternal) records.get(0), START_TIME, 80, 81, 82);
+    }
+
+    @Test
+    public void testReadRecords_packedSamples_returnsAllSamples() {
+        setPackedSeriesSamplesEnabled(true);
+        List<UUID> uuids =
+                insertRecords(
+                        mDatabaseRule.getContext(), createHeartRateRecord(START_TIME, 70, 71, 72));
+
+        List<RecordInternal<?>> records = readRecords(RECORD_TYPE_HEART_RATE, uuids);
+
+        assertThat(records).hasSize(1);
+        assertSamples((HeartRateRecordInternal) records.get(0), START_TIME, 70, 71, 72);
+    }
+
+    @Test
+    public void testReadRecords_packingTurnedOff_returnsPackedAndUnpackedSamples() {
+        setPackedSeriesSamplesEnabled(true);
+        List<UUID> uuids =
+                new ArrayList<>(
+                        insertRecords(
+                                mDatabaseRule.getContext(),
+                                createHeartRateRecord(START_TIME, 70, 71)));
+        setPackedSeriesSamplesEnabled(false);
+        uuids.addAll(
+                insertRecords(
+                        mDatabaseRule.getContext(),
+                        createHeartRateRecord(START_TIME + 60_000, 80, 81, 82)));
+
+        List<RecordInternal<?>> records = readRecords(RECORD_TYPE_HEART_RATE, uuids);
+
+        assertThat(records).hasSize(2);
+        for (RecordInternal<?> record : records) {
+            HeartRateRecordInternal heartRate = (HeartRateRecordInternal) record;
+            if (heartRate.getStartTimeInMillis() == START_TIME) {
+                assertSamples(heartRate, START_TIME, 70, 71);
+            } else {
+                assertSamples(heartRate, START_TIME + 60_000, 80, 81, 82);
+            }
+        }
+    }
+
+    @Test
+    public void testReadRecords_unpackedRecordWithoutSamples_isSkipped() {
+        setPackedSeriesSamplesEnabled(false);
+        List<UUID> uuids =
+                new ArrayList<>(
+                        insertRecords(
+                                mDatabaseRule.getContext(),
+                                createHeartRateRecord(START_TIME, 70, 71)));
+        TransactionManager.getInitialisedInstance()
+                .delete(new DeleteTableRequest(mHelper.getSeriesDataTableName()));
+        uuids.addAll(
+                insertRecords(
+                        mDatabaseRule.getContext(),
+                        createHeartRateRecord(START_TIME + 60_000, 80, 81, 82)));
+
+        List<RecordInternal<?>> records = readRecords(RECORD_TYPE_HEART_RATE, uuids);
+
+        assertThat(records).hasSize(1);
+        assertSamples((HeartRateRecordInternal) records.get(0), START_TIME + 60_000, 80, 81, 82);
+    }
+
+    @Test
+    public void testAggregate_packedSamples_matchesUnpackedSamples() {
+        long packedStartTime = START_TIME + DAY_MILLIS;
+        setPackedSeriesSamplesEnabled(false);
+        insertRecords(
+                mDatabaseRule.getContext(),
+                createHeartRateRecord(START_TIME, 70, 90),
+                createHeartRateRecord(START_TIME + 60_000, 60, 80, 100));
+        // Same samples a day later, with the first record packed so that both formats are read.
+        setPackedSeriesSamplesEnabled(true);
+        insertRecords(mDatabaseRule.getContext(), createHeartRateRecord(packedStartTime, 70, 90));
+        setPackedSeriesSamplesEnabled(false);
+        insertRecords(
+                mDatabaseRule.getContext(),
+                createHeartRateRecord(packedStartTime + 60_000, 60, 80, 100));
+
+        long[] unpacked = aggregateHeartRate(START_TIME, START_TIME + HOUR_MILLIS);
+        long[] mixed = aggregateHeartRate(packedStartTime, packedStartTime + HOUR_MILLIS);
+
+        assertThat(unpacked).isEqualTo(new long[] {100, 60, 80, 5});
+        assertThat(mixed).isEqualTo(unpacked);
+    }
+
+    @Test
+    public void testAggregate_packedSamples_onlyCountsRecordsInRange() {
+        setPackedSeriesSamplesEnabled(true);
+        insertRecords(
+                mDatabaseRule.getContext(),
+                createHeartRateRecord(START_TIME, 70, 90, 110),
+                createHeartRateRecord(START_TIME + HOUR_MILLIS, 50, 60));
+
+        long[] result = aggregateHeartRate(START_TIME + HOUR_MILLIS, START_TIME + DAY_MILLIS);
+
+        assertThat(result).isEqualTo(new long[] {60, 50, 55, 2});
+    }
+
+    private void setPackedSeriesSamplesEnabled(boolean enabled) {
+        when(mDatabaseRule.getDeviceConfigManager().isPackedSeriesSamplesEnabled())
+                .thenReturn(enabled);
+    }
+
+    private long getSeriesTableRowCount() {
+        return TransactionManager.getInitialisedInstance()
+                .getNumberOfEntriesInTheTable(mHelper.getSeriesDataTableName());
+    }
+
+    private static long[] aggregateHeartRate(long startTime, long endTime) {
+        return new long[] {
+            aggregateLong(HeartRateRecord.BPM_MAX, startTime, endTime),
+            aggregateLong(HeartRateRecord.BPM_MIN, startTime, endTime),
+            aggregateLong(HeartRateRecord.BPM_AVG, startTime, endTime),
+            aggregateLong(HeartRateRecord.HEART_MEASUREMENTS_COUNT, startTime, endTime)
+        };
+    }
+
+    private static String getPackedSamplesWrittenPreference() {
+        // Read the preference back from the database rather than from the cache.
+        PreferenceHelper.getInstance().clearCache();
+        return PreferenceHelper.getInstance().getPreference(PACKED_SAMPLES_WRITTEN_PREFERENCE_KEY);
+    }
+
+    private static void assertSamples(
+            HeartRateRecordInternal record, long startTime, int... beatsPerMinute) {
+        assertThat(record.getSampleCount()).isEqualTo(beatsPerMinute.length);
+        for (int i = 0; i < beatsPerMinute.length; i++) {
+            assertThat(record.getSampleEpochMillis(i)).isEqualTo(startTime + 1000L * i);
+            assertThat(record.getSampleBeatsPerMinute(i)).isEqualTo(beatsPerMinute[i]);
+        }
+    }
+}
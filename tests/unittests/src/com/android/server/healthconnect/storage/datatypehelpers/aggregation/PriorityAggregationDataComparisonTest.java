@@ -17,10 +17,16 @@ package com.android.server.healthconnect.storage.datatypehelpers.aggregation;
 
 import static com.android.server.healthconnect.storage.datatypehelpers.aggregation.PriorityAggregationTestDataFactory.createStepsData;
 
+import static com.android.server.healthconnect.storage.datatypehelpers.aggregation.AggregationRecordHeap.END_TIME_ORDER;
+import static com.android.server.healthconnect.storage.datatypehelpers.aggregation.AggregationRecordHeap.HIGHEST_PRIORITY_FIRST_ORDER;
+import static com.android.server.healthconnect.storage.datatypehelpers.aggregation.AggregationRecordHeap.START_TIME_ORDER;
+
 import static com.google.common.truth.Truth.assertThat;
 
 import org.junit.Test;
 
+import java.util.List;
+
 public class PriorityAggregationDataComparisonTest {
     @Test
     public void testCompareTwoIntervals_orderByPriority() {
@@ -43,32 +49,53 @@ public class PriorityAggregationDataComparisonTest {
     }
 
     @Test
-    public void testCompareTimestamps_orderByTime() {
+    public void testTimeOrders_orderByTime() {
         AggregationRecordData data1 = createStepsData(10, 15, 15, 1, 1);
         AggregationRecordData data2 = createStepsData(12, 20, 20, 1, 10);
+        AggregationRecordData data3 = createStepsData(8, 25, 20, 1, 10);
 
-        assertThat(data1.getStartTimestamp().compareTo(data2.getStartTimestamp())).isLessThan(0);
-        assertThat(data1.getStartTimestamp().compareTo(data2.getStartTimestamp())).isLessThan(0);
-        assertThat(data2.getStartTimestamp().compareTo(data1.getEndTimestamp())).isLessThan(0);
-        assertThat(data1.getEndTimestamp().compareTo(data2.getStartTimestamp())).isGreaterThan(0);
-        assertThat(data2.getStartTimestamp().compareTo(data1.getStartTimestamp())).isGreaterThan(0);
-
-        AggregationTimestamp border =
-                new AggregationTimestamp(AggregationTimestamp.GROUP_BORDER, 13L);
-        AggregationTimestamp border2 =
-                new AggregationTimestamp(AggregationTimestamp.GROUP_BORDER, 15L);
-
-        assertThat(data2.getStartTimestamp().compareTo(border)).isLessThan(0);
-        assertThat(data2.getEndTimestamp().compareTo(border)).isGreaterThan(0);
-        assertThat(border.compareTo(border2)).isLessThan(0);
+        assertThat(START_TIME_ORDER.compare(data1, data2)).isLessThan(0);
+        assertThat(START_TIME_ORDER.compare(data2, data1)).isGreaterThan(0);
+        assertThat(START_TIME_ORDER.compare(data3, data1)).isLessThan(0);
+        assertThat(END_TIME_ORDER.compare(data1, data2)).isLessThan(0);
+        assertThat(END_TIME_ORDER.compare(data2, data1)).isGreaterThan(0);
+        assertThat(END_TIME_ORDER.compare(data3, data1)).isGreaterThan(0);
     }
 
     @Test
-    public void testCompareTimestamps_timestampsWithDifferentParentDataAreNotEqual() {
+    public void testTimeOrders_equalTimesWithDifferentDataAreNotEqual() {
         AggregationRecordData data1 = createStepsData(10, 20, 15, 1, 1);
         AggregationRecordData data2 = createStepsData(10, 20, 15, 1, 10);
 
-        assertThat(data1.getStartTimestamp().compareTo(data2.getStartTimestamp())).isNotEqualTo(0);
-        assertThat(data1.getEndTimestamp().compareTo(data2.getEndTimestamp())).isLessThan(0);
+        assertThat(START_TIME_ORDER.compare(data1, data2)).isLessThan(0);
+        assertThat(END_TIME_ORDER.compare(data1, data2)).isLessThan(0);
+        assertThat(START_TIME_ORDER.compare(data1, data1)).isEqualTo(0);
+    }
+
+    @Test
+    public void testHeap_pollsInOrder() {
+        AggregationRecordData data1 = createStepsData(10, 15, 15, 1, 1);
+        AggregationRecordData data2 = createStepsData(12, 20, 20, 1, 10);
+        AggregationRecordData data3 = createStepsData(8, 25, 20, 2, 10);
+        AggregationRecordHeap starts =
+                new AggregationRecordHeap(START_TIME_ORDER, /* trackIndices= */ false);
+        AggregationRecordHeap priorities =
+                new AggregationRecordHeap(HIGHEST_PRIORITY_FIRST_ORDER, /* trackIndices= */ true);
+        for (AggregationRecordData data : List.of(data1, data2, data3)) {
+            starts.add(data);
+            priorities.add(data);
+        }
+
+        assertThat(starts.poll()).isSameInstanceAs(data3);
+        assertThat(starts.poll()).isSameInstanceAs(data1);
+        assertThat(starts.poll()).isSameInstanceAs(data2);
+        assertThat(starts.isEmpty()).isTrue();
+
+        assertThat(priorities.peek()).isSameInstanceAs(data3);
+        priorities.remove(data3);
+        assertThat(priorities.contains(data3)).isFalse();
+        assertThat(priorities.contains(data1)).isTrue();
+        assertThat(priorities.poll()).isSameInstanceAs(data2);
+        assertThat(priorities.poll()).isSameInstanceAs(data1);
     }
 }
@@ -21,6 +21,7 @@ import static com.android.server.healthconnect.storage.datatypehelpers.aggregati
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.when;
 
@@ -34,8 +35,12 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 public class PriorityAggregationTest {
     @Mock Cursor mCursor;
@@ -194,6 +199,66 @@ public class PriorityAggregationTest {
         assertThat(mOneGroupAggregator.getResultForGroup(0)).isEqualTo(2.0 + 80.0);
     }
 
+    @Test
+    public void testTwoEqualStepsRecords_accountedOnce() {
+        doReturn(createStepsData(10, 20, 10, 1, 1), createStepsData(10, 20, 10, 1, 1))
+                .when(mOneGroupAggregator)
+                .readNewData(mCursor);
+        when(mCursor.moveToNext()).thenReturn(true, true, false);
+        mOneGroupAggregator.calculateAggregation(mCursor);
+        assertThat(mOneGroupAggregator.getResultForGroup(0)).isEqualTo(10.0);
+    }
+
+    @Test
+    public void testManyOverlappingStepsRecords_highestPriorityAccountedForEachMoment() {
+        Random random = new Random(/* seed= */ 42);
+        List<Long> splits = new ArrayList<>();
+        for (long split = 0; split <= 1000; split += 100) {
+            splits.add(split);
+        }
+        List<AggregationRecordData> records = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            int startTime = random.nextInt(1000);
+            records.add(
+                    createStepsData(
+                            startTime,
+                            startTime + 1 + random.nextInt(50),
+                            random.nextInt(100),
+                            random.nextInt(5),
+                            random.nextInt(1000)));
+        }
+        records.sort(Comparator.comparingLong(AggregationRecordData::getStartTime));
+
+        // Expected results: for every millisecond, the share of the highest priority record.
+        double[] expected = new double[splits.size() - 1];
+        for (long time = 0; time < 1000; time++) {
+            AggregationRecordData highest = null;
+            for (AggregationRecordData record : records) {
+                if (record.getStartTime() <= time
+                        && time < record.getEndTime()
+                        && (highest == null || record.compareTo(highest) > 0)) {
+                    highest = record;
+                }
+            }
+            if (highest != null) {
+                expected[(int) (time / 100)] += highest.getResultOnInterval(time, time + 1);
+            }
+        }
+
+        PriorityRecordsAggregator aggregator =
+                Mockito.spy(
+                        new PriorityRecordsAggregator(
+                                splits, Collections.emptyList(), 0, mParams, false));
+        Iterator<AggregationRecordData> iterator = records.iterator();
+        doAnswer(invocation -> iterator.next()).when(aggregator).readNewData(mCursor);
+        when(mCursor.moveToNext()).thenAnswer(invocation -> iterator.hasNext());
+        aggregator.calculateAggregation(mCursor);
+
+        for (int group = 0; group < expected.length; group++) {
+            assertThat(aggregator.getResultForGroup(group)).isWithin(1e-6).of(expected[group]);
+        }
+    }
+
     @Test
     public void testTwoSessions_noOverlaps() {
         doReturn(createSessionData(5, 12, 1), createSessionData(15, 25, 2))
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.request;
+
+import static android.health.connect.datatypes.HydrationRecord.VOLUME_TOTAL;
+
+import static com.android.server.healthconnect.storage.TransactionTestUtils.aggregateDoubleGroups;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.createHydrationRecord;
+import static com.android.server.healthconnect.storage.TransactionTestUtils.insertRecords;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.LocalTimeRangeFilter;
+import android.health.connect.TimeInstantRangeFilter;
+import android.health.connect.internal.datatypes.RecordInternal;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.storage.HealthConnectDatabaseTestRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.Period;
+import java.time.ZoneOffset;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class AggregateTableRequestTest {
+    // Not aligned to hours, so that aggregations are computed from the record table rather than
+    // from rollups.
+    private static final Instant START_TIME = Instant.parse("2023-06-01T00:00:10Z");
+    private static final LocalDateTime LOCAL_START_TIME =
+            LocalDateTime.parse("2023-06-01T00:00:10");
+    private static final ZoneOffset ZONE_OFFSET = ZoneOffset.ofHoursMinutes(5, 30);
+    private static final Duration GROUP_DURATION = Duration.ofMinutes(90);
+
+    @Rule
+    public final HealthConnectDatabaseTestRule mDatabaseRule = new HealthConnectDatabaseTestRule();
+
+    @Test
+    public void testGroupByDuration_groupsByStartTimeWithEndExclusiveEdges() {
+        Instant secondGroupStart = START_TIME.plus(GROUP_DURATION);
+        Instant thirdGroupStart = secondGroupStart.plus(GROUP_DURATION);
+        // The last group is cut to an hour by the end of the time range.
+        Instant endTime = START_TIME.plus(Duration.ofHours(4));
+        insert(
+                createRecord(START_TIME.minusSeconds(1), 1),
+                createRecord(START_TIME, 2),
+                createRecord(secondGroupStart.minusMillis(1), 4),
+                createRecord(secondGroupStart, 8),
+                createRecord(thirdGroupStart, 16),
+                createRecord(endTime.minusMillis(1), 32),
+                createRecord(endTime, 64));
+
+        List<Double> groups =
+                aggregateDoubleGroups(
+                        VOLUME_TOTAL,
+                        new TimeInstantRangeFilter.Builder()
+                                .setStartTime(START_TIME)
+                                .setEndTime(endTime)
+                                .build(),
+                        /* period= */ null,
+                        GROUP_DURATION);
+
+        // Records ending on a split are in the group they start in.
+        assertThat(groups).containsExactly(6.0, 8.0, 48.0).inOrder();
+    }
+
+    @Test
+    public void testGroupByDuration_localTime_matchesGroupByPeriod() {
+        LocalDateTime secondDay = LOCAL_START_TIME.plusDays(1);
+        LocalDateTime endTime = secondDay.plusDays(1).plusHours(12);
+        insert(
+                createLocalRecord(LOCAL_START_TIME.minusSeconds(1), 1),
+                createLocalRecord(LOCAL_START_TIME, 2),
+                createLocalRecord(secondDay.minus(Duration.ofMillis(1)), 4),
+                // Starts on the first day in UTC, but on the second day in local time.
+                createLocalRecord(secondDay, 8),
+                createLocalRecord(endTime.minus(Duration.ofMillis(1)), 16),
+                createLocalRecord(endTime, 32));
+        LocalTimeRangeFilter filter =
+                new LocalTimeRangeFilter.Builder()
+                        .setStartTime(LOCAL_START_TIME)
+                        .setEndTime(endTime)
+                        .build();
+
+        List<Double> byDuration =
+                aggregateDoubleGroups(VOLUME_TOTAL, filter, /* period= */ null, Duration.ofDays(1));
+        List<Double> byPeriod =
+                aggregateDoubleGroups(VOLUME_TOTAL, filter, Period.ofDays(1), /* duration= */ null);
+
+        assertThat(byDuration).containsExactly(6.0, 8.0, 16.0).inOrder();
+        assertThat(byDuration).isEqualTo(byPeriod);
+    }
+
+    private void insert(RecordInternal<?>... records) {
+        insertRecords(mDatabaseRule.getContext(), records);
+    }
+
+    private static RecordInternal<?> createRecord(Instant startTime, double volume) {
+        return createHydrationRecord(
+                startTime.toEpochMilli(), startTime.toEpochMilli() + 1, volume);
+    }
+
+    private static RecordInternal<?> createLocalRecord(LocalDateTime startTime, double volume) {
+        long startTimeMillis = startTime.toInstant(ZONE_OFFSET).toEpochMilli();
+        return createHydrationRecord(startTimeMillis, startTimeMillis + 1, volume)
+                .setStartZoneOffset(ZONE_OFFSET.getTotalSeconds())
+                .setEndZoneOffset(ZONE_OFFSET.getTotalSeconds());
+    }
+}
@@ -58,6 +58,16 @@ public class CreateTableRequestTest {
         assertThat(mCreateTableRequest.getCreateIndexStatements()).isNotNull();
     }
 
+    @Test
+    public void testCreateTable_compositeIndex_keepsColumnOrder() {
+        mCreateTableRequest.createIndexOn(List.of(REFERENCE_COULMN, COLUMN_NAME));
+
+        assertThat(mCreateTableRequest.getCreateIndexStatements())
+                .containsExactly(
+                        "CREATE INDEX IF NOT EXISTS idx_sample_table_referenceColumn_sampleColumn"
+                                + " ON sample_table(referenceColumn,sampleColumn)");
+    }
+
     @Test
     public void testCreateTable_getChildTableRequests() {
         List<CreateTableRequest> childTables = new ArrayList<>();
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.request;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentValues;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.storage.utils.WhereClauses;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class UpsertTableRequestTest {
+    private static final String TABLE_NAME = "sample_table";
+
+    @Test
+    public void testGetUpdateCommand_bindsValuesThenWhereClauses() {
+        List<Object> bindArgs = new ArrayList<>();
+
+        String command = createUpdateRequest(42, 7).getUpdateCommand(bindArgs);
+
+        assertThat(command).isEqualTo("UPDATE sample_table SET value = ? WHERE row_id = ?");
+        assertThat(bindArgs).containsExactly(42L, 7L).inOrder();
+    }
+
+    @Test
+    public void testGetUpdateCommand_sameShape_sameCommand() {
+        List<Object> bindArgs = new ArrayList<>();
+
+        assertThat(createUpdateRequest(42, 7).getUpdateCommand(bindArgs))
+                .isEqualTo(createUpdateRequest(43, 8).getUpdateCommand(bindArgs));
+    }
+
+    private static UpsertTableRequest createUpdateRequest(long value, long rowId) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put("value", value);
+        return new UpsertTableRequest(TABLE_NAME, contentValues)
+                .setUpdateWhereClauses(new WhereClauses().addWhereEqualsClause("row_id", rowId));
+    }
+}
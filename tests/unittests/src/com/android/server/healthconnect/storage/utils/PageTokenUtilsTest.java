@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import static android.health.connect.Constants.DEFAULT_LONG;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Instant;
+
+@RunWith(AndroidJUnit4.class)
+public class PageTokenUtilsTest {
+    private static final long START_TIME = Instant.parse("2023-06-01T10:15:30.123Z").toEpochMilli();
+    private static final long START_OF_MINUTE =
+            Instant.parse("2023-06-01T10:15:00Z").toEpochMilli();
+
+    @Test
+    public void testEncode_ascending_decodesRowAndOrder() {
+        long token = PageTokenUtils.encode(START_TIME, Integer.MAX_VALUE, /* isAscending= */ true);
+
+        assertThat(token).isAtLeast(0);
+        assertThat(PageTokenUtils.isRowToken(token)).isTrue();
+        assertThat(PageTokenUtils.isAscending(token)).isTrue();
+        assertThat(PageTokenUtils.getRowId(token)).isEqualTo(Integer.MAX_VALUE);
+        assertThat(PageTokenUtils.getFallbackStartTime(token)).isEqualTo(START_OF_MINUTE);
+    }
+
+    @Test
+    public void testEncode_descending_decodesRowAndOrder() {
+        long token = PageTokenUtils.encode(START_TIME, 0, /* isAscending= */ false);
+
+        assertThat(token).isAtLeast(0);
+        assertThat(PageTokenUtils.isRowToken(token)).isTrue();
+        assertThat(PageTokenUtils.isAscending(token)).isFalse();
+        assertThat(PageTokenUtils.getRowId(token)).isEqualTo(0);
+        assertThat(PageTokenUtils.getFallbackStartTime(token))
+                .isEqualTo(START_OF_MINUTE + 59_999);
+    }
+
+    @Test
+    public void testLegacyToken_decodesStartTimeAndOrder() {
+        assertThat(PageTokenUtils.isRowToken(DEFAULT_LONG)).isFalse();
+        assertThat(PageTokenUtils.isRowToken(DEFAULT_LONG - 1)).isFalse();
+        assertThat(PageTokenUtils.isRowToken(START_TIME * 2)).isFalse();
+        assertThat(PageTokenUtils.isAscending(START_TIME * 2)).isTrue();
+        assertThat(PageTokenUtils.getStartTime(START_TIME * 2)).isEqualTo(START_TIME);
+        assertThat(PageTokenUtils.isAscending(START_TIME * 2 + 1)).isFalse();
+        assertThat(PageTokenUtils.getStartTime(START_TIME * 2 + 1)).isEqualTo(START_TIME);
+    }
+}
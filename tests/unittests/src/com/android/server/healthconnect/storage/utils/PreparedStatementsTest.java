@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class PreparedStatementsTest {
+
+    @Test
+    public void testStats_countsRepeatedStatementsAsHits() {
+        PreparedStatements.Stats stats = new PreparedStatements.Stats(/* cacheSize= */ 2);
+
+        stats.onPrepared("SELECT 1", 3000);
+        stats.onPrepared("SELECT 1", 1000);
+        stats.onPrepared("SELECT 2", 1000);
+        stats.onPrepared("SELECT 3", 1000);
+        // Evicted by the two statements above.
+        stats.onPrepared("SELECT 1", 2000);
+
+        assertThat(stats.getHitCount()).isEqualTo(1);
+        assertThat(stats.getMissCount()).isEqualTo(4);
+        assertThat(stats.getHitRatio()).isEqualTo(0.2);
+        assertThat(stats.getAveragePrepareTimeMicros()).isEqualTo(1);
+    }
+}
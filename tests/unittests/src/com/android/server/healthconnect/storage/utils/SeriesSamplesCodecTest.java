@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class SeriesSamplesCodecTest {
+
+    @Test
+    public void testIntegerSamples_unsortedInput_decodedInTimeOrder() {
+        byte[] packed =
+                new SeriesSamplesCodec.Encoder(SeriesSamplesCodec.VALUE_KIND_INTEGER, 4)
+                        .add(3000L, 61L)
+                        .add(1000L, 75L)
+                        .add(4000L, 60L)
+                        .add(2000L, 180L)
+                        .toByteArray();
+
+        SeriesSamplesCodec.Decoder decoder = new SeriesSamplesCodec.Decoder(packed);
+        assertThat(decoder.size()).isEqualTo(4);
+        long[] expectedTimes = {1000L, 2000L, 3000L, 4000L};
+        long[] expectedValues = {75L, 180L, 61L, 60L};
+        for (int i = 0; i < expectedTimes.length; i++) {
+            assertThat(decoder.moveToNext()).isTrue();
+            assertThat(decoder.getEpochMillis()).isEqualTo(expectedTimes[i]);
+            assertThat(decoder.getLongValue()).isEqualTo(expectedValues[i]);
+        }
+        assertThat(decoder.moveToNext()).isFalse();
+    }
+
+    @Test
+    public void testDoubleSamples_roundTripExactly() {
+        double[] values = {0.1, -2.5, Double.MAX_VALUE, 1e-300, 42.0};
+        SeriesSamplesCodec.Encoder encoder =
+                new SeriesSamplesCodec.Encoder(SeriesSamplesCodec.VALUE_KIND_DOUBLE, 1);
+        for (int i = 0; i < values.length; i++) {
+            encoder.add(-1000L + i, values[i]);
+        }
+
+        SeriesSamplesCodec.Decoder decoder = new SeriesSamplesCodec.Decoder(encoder.toByteArray());
+        for (int i = 0; i < values.length; i++) {
+            assertThat(decoder.moveToNext()).isTrue();
+            assertThat(decoder.getEpochMillis()).isEqualTo(-1000L + i);
+            assertThat(decoder.getDoubleValue()).isEqualTo(values[i]);
+        }
+        assertThat(decoder.moveToNext()).isFalse();
+    }
+
+    @Test
+    public void testRegularSeries_isSmallerThanRawValues() {
+        int size = 86_400;
+        SeriesSamplesCodec.Encoder encoder =
+                new SeriesSamplesCodec.Encoder(SeriesSamplesCodec.VALUE_KIND_INTEGER, size);
+        long start = 1_690_000_000_000L;
+        for (int i = size - 1; i >= 0; i--) {
+            encoder.add(start + i * 1000L, 60L + i % 7);
+        }
+
+        byte[] packed = encoder.toByteArray();
+        // One byte per value delta and two per time delta, plus the header.
+        assertThat(packed.length).isLessThan(size * 4);
+
+        SeriesSamplesCodec.Decoder decoder = new SeriesSamplesCodec.Decoder(packed);
+        long previousTime = Long.MIN_VALUE;
+        int count = 0;
+        while (decoder.moveToNext()) {
+            assertThat(decoder.getEpochMillis()).isGreaterThan(previousTime);
+            previousTime = decoder.getEpochMillis();
+            count++;
+        }
+        assertThat(count).isEqualTo(size);
+    }
+
+    @Test
+    public void testDecoder_unknownVersion_throws() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new SeriesSamplesCodec.Decoder(new byte[] {(byte) 0x7F, 0, 0}));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class WhereClausesTest {
+
+    @Test
+    public void testGet_withBindArgs_usesPlaceholdersInOrder() {
+        WhereClauses whereClauses =
+                new WhereClauses()
+                        .addWhereBetweenTimeClause("start_time", 10, 20)
+                        .addWhereInLongsClause("app_info_id", List.of(3L, 4L))
+                        .addWhereInClause("name", List.of("a"))
+                        .addWhereEqualsClause("type", "1");
+        List<Object> bindArgs = new ArrayList<>();
+
+        assertThat(whereClauses.get(/* withWhereKeyword= */ true, bindArgs))
+                .isEqualTo(
+                        " WHERE start_time BETWEEN ? AND ? AND app_info_id IN (?, ?)"
+                                + " AND name IN (?) AND type = '1'");
+        assertThat(bindArgs).containsExactly(10L, 20L, 3L, 4L, "a").inOrder();
+    }
+
+    @Test
+    public void testGet_withoutBindArgs_inlinesValues() {
+        WhereClauses whereClauses =
+                new WhereClauses()
+                        .addWhereLessThanClause("end_time", 20)
+                        .addWhereInClause("name", List.of("it's"))
+                        .setUseOr(true);
+
+        assertThat(whereClauses.get(/* withWhereKeyword= */ false))
+                .isEqualTo("end_time < 20 OR name IN ('it''s')");
+    }
+
+    @Test
+    public void testAddWhereInUuidsClause_bindsBlobs() {
+        UUID uuid = UUID.randomUUID();
+        WhereClauses whereClauses =
+                new WhereClauses().addWhereInUuidsClause("uuid", List.of(uuid));
+        List<Object> bindArgs = new ArrayList<>();
+
+        assertThat(whereClauses.get(/* withWhereKeyword= */ false, bindArgs))
+                .isEqualTo("uuid IN (?)");
+        assertThat(bindArgs).hasSize(1);
+        assertThat((byte[]) bindArgs.get(0)).isEqualTo(StorageUtils.convertUUIDToBytes(uuid));
+        assertThat(whereClauses.get(/* withWhereKeyword= */ false))
+                .isEqualTo("uuid IN (" + StorageUtils.getHexString(uuid) + ")");
+    }
+
+    @Test
+    public void testAddWhereEqualsClause_bindsLongsAndBlobs() {
+        byte[] uuid = StorageUtils.convertUUIDToBytes(UUID.randomUUID());
+        WhereClauses whereClauses =
+                new WhereClauses()
+                        .addWhereEqualsClause("uuid", uuid)
+                        .addWhereEqualsClause("app_info_id", 3)
+                        .addWhereEqualsClause("dedupe_hash", (byte[]) null);
+        List<Object> bindArgs = new ArrayList<>();
+
+        assertThat(whereClauses.get(/* withWhereKeyword= */ false, bindArgs))
+                .isEqualTo("uuid = ? AND app_info_id = ?");
+        assertThat(bindArgs).containsExactly(uuid, 3L).inOrder();
+    }
+
+    @Test
+    public void testAddWhereInSQLRequestClause_bindsSubqueryValuesInPlace() {
+        ReadTableRequest inRequest =
+                new ReadTableRequest("parent_table")
+                        .setColumnNames(List.of("row_id"))
+                        .setWhereClause(new WhereClauses().addWhereGreaterThanClause("time", 5));
+        WhereClauses whereClauses =
+                new WhereClauses()
+                        .addWhereLessThanClause("a", 1)
+                        .addWhereInSQLRequestClause("parent_key", inRequest)
+                        .addWhereLessThanClause("b", 2);
+        List<Object> bindArgs = new ArrayList<>();
+
+        String sql = whereClauses.get(/* withWhereKeyword= */ false, bindArgs);
+
+        assertThat(sql).startsWith("a < ? AND parent_key IN (SELECT row_id FROM parent_table");
+        assertThat(sql).contains("time > ?");
+        assertThat(bindArgs).containsExactly(1L, 5L, 2L).inOrder();
+    }
+}